@@ -15,9 +15,13 @@ import org.lwjgl.opengl.Display;
 import org.lwjgl.opengl.PixelFormat;
 
 import com.ra4king.fps.actors.Portal;
+import com.ra4king.fps.renderers.ChunkBatchRenderer;
+import com.ra4king.fps.renderers.RegionAllocator;
 import com.ra4king.fps.renderers.Resources;
 import com.ra4king.fps.renderers.WorldRenderer;
 import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkStreamer;
+import com.ra4king.fps.world.NoiseChunkGenerator;
 import com.ra4king.fps.world.World;
 import com.ra4king.opengl.util.GLProgram;
 import com.ra4king.opengl.util.PNGDecoder;
@@ -47,11 +51,19 @@ public class OpenGLWorlds extends GLProgram {
 		// System.setOut(logs);
 		// System.setErr(logs);
 		
-		new OpenGLWorlds().run(4, 3, true, new PixelFormat(24, 0, 24, 8, 4));// , new ContextAttribs(4, 4).withDebug(true).withProfileCore(true));
+		// -Dfps.trackStructs=true reports off-heap memory that was never freed on exit
+		
+		OpenGLWorlds game = new OpenGLWorlds();
+		game.run(4, 3, true, new PixelFormat(24, 0, 24, 8, 4));// , new ContextAttribs(4, 4).withDebug(true).withProfileCore(true));
+		game.close();
 	}
 	
 	private final int WORLD_COUNT = 2;
 	
+	// Radius in chunks streamed around the camera, 0 pre-generates a fixed 4x4x4 world instead
+	private final int STREAMING_RADIUS = 0;
+	private final long STREAMING_MEMORY_BUDGET = 64L << 20;
+	
 	private Camera camera;
 	
 	private HashMap<World,WorldRenderer> worldsMap;
@@ -78,6 +90,26 @@ public class OpenGLWorlds extends GLProgram {
 		super("OpenGLWorlds", 800, 600, true);
 	}
 	
+	/**
+	 * Frees the off-heap memory of the worlds and cameras once the game loop is over.
+	 */
+	public void close() {
+		if(worlds == null)
+			return;
+		
+		for(WorldRenderer worldRenderer : worldRenderers) {
+			worldRenderer.close();
+		}
+		
+		for(World world : worlds) {
+			world.close();
+		}
+		
+		camera.close();
+		
+		worlds = null;
+	}
+	
 	public Camera getCamera() {
 		return camera;
 	}
@@ -118,9 +150,16 @@ public class OpenGLWorlds extends GLProgram {
 		resetCamera();
 		
 		for(int a = 0; a < WORLD_COUNT; a++) {
-			worlds[a] = new World(4, 4, 4);
-			worldRenderers[a] = new WorldRenderer(this, worlds[a]);
-			worlds[a].generateRandomBlocks();
+			if(STREAMING_RADIUS > 0) {
+				final int side = 2 * STREAMING_RADIUS + 1;
+				worlds[a] = new World(0, 0, 0, true);
+				worlds[a].enableStreaming(new NoiseChunkGenerator(System.nanoTime()), STREAMING_RADIUS, 2 * side * side * side, STREAMING_MEMORY_BUDGET, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+				worldRenderers[a] = new WorldRenderer(this, worlds[a]);
+			} else {
+				worlds[a] = new World(4, 4, 4, true);
+				worldRenderers[a] = new WorldRenderer(this, worlds[a]);
+				worlds[a].generateRandomBlocks();
+			}
 			worldsMap.put(worlds[a], worldRenderers[a]);
 		}
 		
@@ -235,6 +274,34 @@ public class OpenGLWorlds extends GLProgram {
 		if(key == Keyboard.KEY_O) {
 			showPerformanceGraphs = !showPerformanceGraphs;
 		}
+		
+		if(key == Keyboard.KEY_M) {
+			boolean greedyMeshing = !worldRenderers[currentWorld].getChunkBatchRenderer().isGreedyMeshing();
+			for(WorldRenderer renderer : worldRenderers) {
+				renderer.getChunkBatchRenderer().setGreedyMeshing(greedyMeshing);
+			}
+		}
+		
+		if(key == Keyboard.KEY_K) {
+			boolean caveCulling = !worldRenderers[currentWorld].getChunkBatchRenderer().isCaveCulling();
+			for(WorldRenderer renderer : worldRenderers) {
+				renderer.getChunkBatchRenderer().setCaveCulling(caveCulling);
+			}
+		}
+		
+		if(key == Keyboard.KEY_U) {
+			float updateBudget = worldRenderers[currentWorld].getChunkBatchRenderer().getUpdateBudget() > 0 ? 0 : ChunkBatchRenderer.DEFAULT_UPDATE_BUDGET;
+			for(WorldRenderer renderer : worldRenderers) {
+				renderer.getChunkBatchRenderer().setUpdateBudget(updateBudget);
+			}
+		}
+		
+		if(key == Keyboard.KEY_L) {
+			boolean occlusionCulling = !worldRenderers[currentWorld].getChunkBatchRenderer().isOcclusionCulling();
+			for(WorldRenderer renderer : worldRenderers) {
+				renderer.getChunkBatchRenderer().setOcclusionCulling(occlusionCulling);
+			}
+		}
 	}
 	
 	public void resetCamera() {
@@ -262,6 +329,13 @@ public class OpenGLWorlds extends GLProgram {
 		camera.update(deltaTime);
 		Stopwatch.stop();
 		
+		Stopwatch.start("Chunk Streaming");
+		for(World w : worlds) {
+			if(w.getChunkStreamer() != null)
+				w.getChunkStreamer().update(camera.getPosition());
+		}
+		Stopwatch.stop();
+		
 		Stopwatch.start("World Update");
 		for(World w : worlds)
 			w.update(deltaTime);
@@ -310,14 +384,43 @@ public class OpenGLWorlds extends GLProgram {
 		font.render(String.format("Light System Render: %.2f ms", Stopwatch.getTimePerFrame("LightSystem render UBO")), 360, 35, 20, new Vector4(1, 1, 0, 1));
 		font.render(String.format("Chunk Render: %.2f ms", Stopwatch.getTimePerFrame("ChunkRenderers")), 360, 15, 20, new Vector4(0.5f, 0.5f, 0.5f, 1));
 		
+		font.render(String.format("Occlusion Buffer: %.2f ms", Stopwatch.getTimePerFrame("Occlusion Buffer")), 640, 75, 20, new Vector4(1));
+		
 		font.render("Position: " + camera.getPosition().toString(), 20, Display.getHeight() - 40, 20, new Vector4(1));
 		
-		int totalChunksRendered = 0, totalBlocksRendered = 0;
+		int totalSectionsRendered = 0, totalSectionsOccluded = 0, totalBlocksRendered = 0, totalTrianglesRendered = 0;
 		for(WorldRenderer renderer : worldRenderers) {
-			totalChunksRendered += renderer.getChunksRenderedCount();
-			totalBlocksRendered += renderer.getBlocksRenderedCount();
+			totalSectionsRendered += renderer.getChunkBatchRenderer().getSectionsRenderedCount();
+			totalSectionsOccluded += renderer.getChunkBatchRenderer().getSectionsOccludedCount();
+			totalBlocksRendered += renderer.getChunkBatchRenderer().getBlocksRenderedCount();
+			totalTrianglesRendered += renderer.getChunkBatchRenderer().getTrianglesRenderedCount();
 		}
 		
-		font.render("Chunks visible: " + totalChunksRendered + ", Total cubes rendered: " + totalBlocksRendered, 20, Display.getHeight() - 60, 20, new Vector4(1));
+		ChunkBatchRenderer chunkBatchRenderer = worldRenderers[currentWorld].getChunkBatchRenderer();
+		
+		font.render("Sections visible: " + totalSectionsRendered +
+		            (chunkBatchRenderer.isCaveCulling() || chunkBatchRenderer.isOcclusionCulling() ? " (" + totalSectionsOccluded + " hidden by terrain)" : "") + ", Total cubes rendered: " + totalBlocksRendered + ", Triangles: " + totalTrianglesRendered +
+		            (chunkBatchRenderer.isGreedyMeshing() ? " (greedy meshing)" : ""), 20, Display.getHeight() - 60, 20, new Vector4(1));
+		
+		font.render(String.format("Chunk uploads: %d, %.1f KB, updates waiting: %d%s", chunkBatchRenderer.getChunkUploadCount(), chunkBatchRenderer.getChunkUploadBytes() / 1024.0,
+		                          chunkBatchRenderer.getUpdatesPendingCount(), chunkBatchRenderer.getUpdateBudget() > 0 ? String.format(" (%.1f ms budget)", chunkBatchRenderer.getUpdateBudget()) : ""),
+		            20, Display.getHeight() - 100, 20, new Vector4(1));
+		
+		RegionAllocator storage = chunkBatchRenderer.getChunkStorageAllocator();
+		font.render(String.format("Chunk storage: %.1f / %.1f MB, high water %.1f MB, %.0f%% fragmented",
+		                          storage.getUsedBytes() / 1e6, storage.getCapacity() / 1e6, storage.getHighWaterMark() / 1e6, storage.getFragmentation() * 100),
+		            20, Display.getHeight() - 120, 20, new Vector4(1));
+		
+		ChunkStreamer streamer = worlds[currentWorld].getChunkStreamer();
+		if(streamer != null) {
+			font.render(String.format("Chunks loaded: %d, queued: %d, failed: %d, load latency: %.1f ms avg / %.1f ms max, unload: %.3f ms avg",
+			                          streamer.getChunkManager().getChunkCount(), streamer.getQueueDepth(), streamer.getFailedCount(),
+			                          streamer.getAverageLoadLatency(), streamer.getMaxLoadLatency(), streamer.getAverageUnloadTime()),
+			            20, Display.getHeight() - 80, 20, new Vector4(1));
+			
+			if(streamer.getLastFailure() != null) {
+				font.render("Last chunk generator failure: " + streamer.getLastFailure(), 20, Display.getHeight() - 140, 20, new Vector4(1));
+			}
+		}
 	}
 }
@@ -0,0 +1,78 @@
+package com.ra4king.fps;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the off-heap struct bytes held by each class of owner when running with -Dfps.trackStructs=true, otherwise
+ * does nothing. Owners report what they malloc and free, and whatever is still held at shutdown is printed as leaked.
+ *
+ * @author Roi Atalla
+ */
+public final class StructTracker {
+	public static final boolean ENABLED = Boolean.getBoolean("fps.trackStructs");
+	
+	private static final ConcurrentHashMap<Class<?>, AtomicLong> liveBytes = new ConcurrentHashMap<>();
+	
+	static {
+		if(ENABLED) {
+			Runtime.getRuntime().addShutdownHook(new Thread(StructTracker::reportLeaks, "Struct Leak Report"));
+		}
+	}
+	
+	private StructTracker() {}
+	
+	public static void allocated(Object owner, long bytes) {
+		if(ENABLED) {
+			liveBytes.computeIfAbsent(owner.getClass(), c -> new AtomicLong()).addAndGet(bytes);
+		}
+	}
+	
+	public static void freed(Object owner, long bytes) {
+		if(ENABLED) {
+			liveBytes.computeIfAbsent(owner.getClass(), c -> new AtomicLong()).addAndGet(-bytes);
+		}
+	}
+	
+	/**
+	 * Always 0 when not enabled.
+	 */
+	public static long getLiveBytes(Class<?> ownerClass) {
+		AtomicLong bytes = liveBytes.get(ownerClass);
+		return bytes == null ? 0 : bytes.get();
+	}
+	
+	/**
+	 * Always 0 when not enabled.
+	 */
+	public static long getTotalLiveBytes() {
+		long total = 0;
+		for(AtomicLong bytes : liveBytes.values()) {
+			total += bytes.get();
+		}
+		return total;
+	}
+	
+	/**
+	 * Prints the bytes still held per owner class, if any.
+	 */
+	public static void reportLeaks() {
+		TreeMap<String, Long> leaks = new TreeMap<>();
+		for(Map.Entry<Class<?>, AtomicLong> entry : liveBytes.entrySet()) {
+			if(entry.getValue().get() != 0) {
+				leaks.put(entry.getKey().getName(), entry.getValue().get());
+			}
+		}
+		
+		if(leaks.isEmpty()) {
+			return;
+		}
+		
+		System.err.println("Struct memory still held at shutdown:");
+		for(Map.Entry<String, Long> leak : leaks.entrySet()) {
+			System.err.printf("  %s: %d bytes\n", leak.getKey(), leak.getValue());
+		}
+	}
+}
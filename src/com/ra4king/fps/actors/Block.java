@@ -58,6 +58,10 @@ public class Block {
 	}
 	
 	public boolean isSurrounded(Chunk chunk) {
+		if(chunk.containsBlock(this)) {
+			return chunk.isSurrounded(x - chunk.getCornerX(), y - chunk.getCornerY(), z - chunk.getCornerZ());
+		}
+		
 		Block up = chunk.getChunkManager().getBlock(x, y + 1, z);
 		Block down = chunk.getChunkManager().getBlock(x, y - 1, z);
 		Block left = chunk.getChunkManager().getBlock(x - 1, y, z);
@@ -2,6 +2,7 @@ package com.ra4king.fps.actors;
 
 import com.ra4king.fps.Camera;
 import com.ra4king.fps.OpenGLWorlds;
+import com.ra4king.fps.StructTracker;
 import com.ra4king.fps.world.World;
 import com.ra4king.opengl.util.math.Quaternion;
 import com.ra4king.opengl.util.math.Vector2;
@@ -11,9 +12,13 @@ import net.indiespot.struct.cp.Struct;
 import net.indiespot.struct.cp.TakeStruct;
 
 /**
+ * Holds its position, size and orientation off-heap, close() frees them.
+ *
  * @author Roi Atalla
  */
-public class Portal implements Actor {
+public class Portal implements Actor, AutoCloseable {
+	private static final long STRUCT_BYTES = Struct.sizeof(Vector3.class) + Struct.sizeof(Vector2.class) + Struct.sizeof(Quaternion.class);
+	
 	private OpenGLWorlds worldsManager;
 	
 	private World parentWorld;
@@ -24,6 +29,8 @@ public class Portal implements Actor {
 	private World destWorld;
 	private Portal destPortal;
 	
+	private boolean closed;
+	
 	/**
 	 * Without orientation, the portal is by default on the XY plane with the position as the top left corner of the quad.
 	 */
@@ -35,18 +42,25 @@ public class Portal implements Actor {
 		this.orientation = Struct.malloc(Quaternion.class).set(orientation).normalize();
 		
 		this.destWorld = destWorld;
+		
+		StructTracker.allocated(this, STRUCT_BYTES);
 	}
 	
+	/**
+	 * Frees the off-heap memory, the Portal must not be used afterwards. Closing again does nothing.
+	 */
 	@Override
-	protected void finalize() throws Throwable {
-		try {
-			Struct.free(position);
-			Struct.free(size);
-			Struct.free(orientation);
-		}
-		finally {
-			super.finalize();
-		}
+	public void close() {
+		if(closed)
+			return;
+		
+		closed = true;
+		
+		Struct.free(position);
+		Struct.free(size);
+		Struct.free(orientation);
+		
+		StructTracker.freed(this, STRUCT_BYTES);
 	}
 	
 	public Camera getCamera() {
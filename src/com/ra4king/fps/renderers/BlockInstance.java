@@ -0,0 +1,54 @@
+package com.ra4king.fps.renderers;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.world.Chunk;
+
+/**
+ * The packed per-instance format ChunkRenderer uploads for each surface block, one int: the block's local position in
+ * its chunk in 5 bits per axis, the Chunk.FACE_* bits of its visible faces in 6 bits and the BlockType ordinal in the
+ * remaining 11. The chunk's corner is added back in blocks.vert.
+ *
+ * @author Roi Atalla
+ */
+public final class BlockInstance {
+	public static final int SIZE = 4;
+	
+	private static final int Y_SHIFT = 5, Z_SHIFT = 10, FACES_SHIFT = 15, TYPE_SHIFT = 21;
+	
+	private BlockInstance() {}
+	
+	/**
+	 * Local block positions.
+	 */
+	public static int encode(int x, int y, int z, BlockType type, int faces) {
+		return x | y << Y_SHIFT | z << Z_SHIFT | faces << FACES_SHIFT | type.ordinal() << TYPE_SHIFT;
+	}
+	
+	public static int getX(int instance) {
+		return instance & 31;
+	}
+	
+	public static int getY(int instance) {
+		return instance >>> Y_SHIFT & 31;
+	}
+	
+	public static int getZ(int instance) {
+		return instance >>> Z_SHIFT & 31;
+	}
+	
+	public static int getFaces(int instance) {
+		return instance >>> FACES_SHIFT & Chunk.ALL_FACES;
+	}
+	
+	public static BlockType getType(int instance) {
+		return BlockType.values[instance >>> TYPE_SHIFT];
+	}
+	
+	public static int setType(int instance, BlockType type) {
+		return (instance & ~(-1 << TYPE_SHIFT)) | type.ordinal() << TYPE_SHIFT;
+	}
+	
+	public static int setFaces(int instance, int faces) {
+		return (instance & ~(Chunk.ALL_FACES << FACES_SHIFT)) | faces << FACES_SHIFT;
+	}
+}
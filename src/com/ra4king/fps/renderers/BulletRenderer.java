@@ -1,225 +1,282 @@
-package com.ra4king.fps.renderers;
-
-import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL15.*;
-import static org.lwjgl.opengl.GL20.*;
-
-import java.nio.FloatBuffer;
-import java.util.Arrays;
-import java.util.List;
-
-import org.lwjgl.BufferUtils;
-
-import com.ra4king.fps.actors.Bullet;
-import com.ra4king.fps.world.BulletManager;
-import com.ra4king.opengl.util.ShaderProgram;
-import com.ra4king.opengl.util.Utils;
-import com.ra4king.opengl.util.math.Matrix4;
-import com.ra4king.opengl.util.math.MatrixStack;
-import com.ra4king.opengl.util.math.Vector3;
-import com.ra4king.opengl.util.render.RenderUtils;
-import com.ra4king.opengl.util.render.RenderUtils.FrustumCulling;
-
-/**
- * @author Roi Atalla
- */
-public class BulletRenderer {
-	private BulletManager bulletManager;
-	
-	private ShaderProgram bulletProgram;
-	private int projectionMatrixUniform, modelViewMatrixUniform;
-	
-	private FloatBuffer bulletDataBuffer;
-	private int vao, bulletDataVBO;
-	
-	private final int BULLET_SIZE = 2 * 4 * 4;
-	private int BULLET_BUFFER_SIZE = 1000 * BULLET_SIZE;
-	
-	public BulletRenderer(BulletManager bulletManager) {
-		this.bulletManager = bulletManager;
-		
-		bulletProgram = new ShaderProgram(Utils.readFully(Resources.getInputStream("shaders/bullet.vert")),
-				                                 Utils.readFully(Resources.getInputStream("shaders/bullet.frag")));
-		
-		projectionMatrixUniform = bulletProgram.getUniformLocation("projectionMatrix");
-		modelViewMatrixUniform = bulletProgram.getUniformLocation("modelViewMatrix");
-		
-		float[] bulletMappings = {
-				-0.5f, 0.5f, 0.5f, 0.5f, 0.5f, -0.5f,
-				0.5f, -0.5f, -0.5f, -0.5f, -0.5f, 0.5f
-		};
-		
-		FloatBuffer bulletMappingsBuffer = BufferUtils.createFloatBuffer(bulletMappings.length);
-		bulletMappingsBuffer.put(bulletMappings).flip();
-		
-		vao = RenderUtils.glGenVertexArrays();
-		RenderUtils.glBindVertexArray(vao);
-		
-		int bulletMappingsVBO = glGenBuffers();
-		glBindBuffer(GL_ARRAY_BUFFER, bulletMappingsVBO);
-		glBufferData(GL_ARRAY_BUFFER, bulletMappingsBuffer, GL_STATIC_DRAW);
-		
-		glEnableVertexAttribArray(0);
-		glVertexAttribPointer(0, 2, GL_FLOAT, false, 0, 0);
-		
-		bulletDataBuffer = BufferUtils.createFloatBuffer(BULLET_BUFFER_SIZE / 4);
-		
-		bulletDataVBO = glGenBuffers();
-		glBindBuffer(GL_ARRAY_BUFFER, bulletDataVBO);
-		glBufferData(GL_ARRAY_BUFFER, BULLET_BUFFER_SIZE, GL_STREAM_DRAW);
-		
-		glEnableVertexAttribArray(1);
-		glVertexAttribPointer(1, 4, GL_FLOAT, false, 2 * 4 * 4, 0);
-		RenderUtils.glVertexAttribDivisor(1, 1);
-		
-		glEnableVertexAttribArray(2);
-		glVertexAttribPointer(2, 4, GL_FLOAT, false, 2 * 4 * 4, 4 * 4);
-		RenderUtils.glVertexAttribDivisor(2, 1);
-		
-		glBindBuffer(GL_ARRAY_BUFFER, 0);
-		
-		RenderUtils.glBindVertexArray(0);
-	}
-	
-	public int getBulletLightData(Matrix4 viewMatrix, FloatBuffer bulletData, int maxBulletCount) {
-		final float bulletK = 1f, nonSolidBulletK = 1f;
-		
-		BulletVectorPair[] bulletVectorPairs = new BulletVectorPair[bulletManager.getBullets().size()];
-		for(int a = 0; a < bulletVectorPairs.length; a++)
-			bulletVectorPairs[a] = new BulletVectorPair(null, new Vector3());
-		sort(bulletManager.getBullets(), viewMatrix, bulletVectorPairs);
-		
-		int count = 0;
-		
-		for(int a = bulletVectorPairs.length - 1; a >= 0 && count < maxBulletCount; a--) {
-			Bullet b = bulletVectorPairs[a].bullet;
-			Vector3 v = bulletVectorPairs[a].vector;
-			
-			if(v.z() >= 0) {
-				continue;
-			}
-			
-			bulletData.put(v.toBuffer());
-			bulletData.put(b.getRange());
-			bulletData.put(b.getColor().toBuffer());
-			bulletData.put((b.isSolid() ? bulletK / (0.1f * b.getSize()) : nonSolidBulletK) / b.getAlpha());
-			
-			count++;
-		}
-		
-		return count;
-	}
-	
-	private static void sort(List<Bullet> bullets, Matrix4 viewMatrix, BulletVectorPair[] sortedBullets) {
-		if(bullets.size() != sortedBullets.length) {
-			throw new IllegalArgumentException("sortedBullets array is invalid length!");
-		}
-		
-		for(int a = 0; a < bullets.size(); a++) {
-			Bullet b = bullets.get(a);
-			sortedBullets[a].bullet = bullets.get(a);
-			viewMatrix.mult3(b.getPosition(), 1.0f, sortedBullets[a].vector);
-		}
-		
-		Arrays.sort(sortedBullets);
-	}
-	
-	public void render(Matrix4 projectionMatrix, MatrixStack modelViewMatrix, FrustumCulling culling) {
-		BulletVectorPair[] bulletVectorPairs = new BulletVectorPair[bulletManager.getBullets().size()];
-		for(int a = 0; a < bulletVectorPairs.length; a++)
-			bulletVectorPairs[a] = new BulletVectorPair(null, new Vector3());
-		
-		sort(bulletManager.getBullets(), modelViewMatrix.getTop(), bulletVectorPairs);
-		
-		render(projectionMatrix, modelViewMatrix, bulletVectorPairs, culling);
-	}
-	
-	public void render(Matrix4 projectionMatrix, MatrixStack modelViewMatrix, FrustumCulling culling, Bullet... bullets) {
-		List<Bullet> bulletList = Arrays.asList(bullets);
-		
-		BulletVectorPair[] bulletVectorPairs = new BulletVectorPair[bulletList.size()];
-		for(int a = 0; a < bulletVectorPairs.length; a++)
-			bulletVectorPairs[a] = new BulletVectorPair(null, new Vector3());
-		
-		sort(bulletList, modelViewMatrix.getTop(), bulletVectorPairs);
-		
-		render(projectionMatrix, modelViewMatrix, bulletVectorPairs, culling);
-	}
-	
-	private void render(Matrix4 projectionMatrix, MatrixStack modelViewMatrix, BulletVectorPair[] bullets, FrustumCulling culling) {
-		if(bullets.length == 0) {
-			return;
-		}
-		
-		bulletProgram.begin();
-		
-		glUniformMatrix4(projectionMatrixUniform, false, projectionMatrix.toBuffer());
-		glUniformMatrix4(modelViewMatrixUniform, false, modelViewMatrix.getTop().toBuffer());
-		
-		final int BULLET_COUNT = BULLET_SIZE / 2;
-		
-		boolean bulletCountChanged = bullets.length * BULLET_COUNT > bulletDataBuffer.capacity();
-		
-		if(bulletCountChanged) {
-			while(bullets.length * BULLET_COUNT > BULLET_BUFFER_SIZE >> 2) {
-				BULLET_BUFFER_SIZE *= 2;
-			}
-			
-			bulletDataBuffer = BufferUtils.createFloatBuffer(BULLET_BUFFER_SIZE >> 2);
-		} else {
-			bulletDataBuffer.clear();
-		}
-		
-		int bulletDrawnCount = 0;
-		
-		for(BulletVectorPair bvp : bullets) {
-			if(culling != null && !culling.isCubeInsideFrustum(bvp.bullet.getPosition(), bvp.bullet.getSize())) {
-				continue;
-			}
-			
-			bulletDrawnCount++;
-			
-			bulletDataBuffer.put(bvp.bullet.getPosition().toBuffer()).put(bvp.bullet.getSize());
-			bulletDataBuffer.put(bvp.bullet.getColor().toBuffer()).put(bvp.bullet.getAlpha());
-		}
-		
-		bulletDataBuffer.flip();
-		
-		glBindBuffer(GL_ARRAY_BUFFER, bulletDataVBO);
-		
-		if(bulletCountChanged) {
-			glBufferData(GL_ARRAY_BUFFER, bulletDataBuffer, GL_STREAM_DRAW);
-		} else {
-			glBufferData(GL_ARRAY_BUFFER, BULLET_BUFFER_SIZE, GL_STREAM_DRAW);
-			glBufferSubData(GL_ARRAY_BUFFER, 0, bulletDataBuffer);
-		}
-		
-		glBindBuffer(GL_ARRAY_BUFFER, 0);
-		
-		RenderUtils.glBindVertexArray(vao);
-		
-		glDepthMask(false);
-		RenderUtils.glDrawArraysInstanced(GL_TRIANGLES, 0, 6, bulletDrawnCount);
-		glDepthMask(true);
-	}
-	
-	private static class BulletVectorPair implements Comparable {
-		Bullet bullet;
-		Vector3 vector;
-		
-		BulletVectorPair(Bullet bullet, Vector3 vector) {
-			this.bullet = bullet;
-			this.vector = vector;
-		}
-		
-		@Override
-		public int compareTo(Object o) {
-			if(o instanceof BulletVectorPair) {
-				BulletVectorPair bvp = (BulletVectorPair)o;
-				return (int)Math.signum(this.vector.z() - bvp.vector.z());
-			}
-			
-			throw new IllegalArgumentException("Wat");
-		}
-	}
-}
+package com.ra4king.fps.renderers;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.BufferUtils;
+
+import com.ra4king.fps.actors.Bullet;
+import com.ra4king.fps.world.BulletManager;
+import com.ra4king.opengl.util.ShaderProgram;
+import com.ra4king.opengl.util.Utils;
+import com.ra4king.opengl.util.math.Matrix4;
+import com.ra4king.opengl.util.math.MatrixStack;
+import com.ra4king.opengl.util.math.Vector3;
+import com.ra4king.opengl.util.render.RenderUtils;
+import com.ra4king.opengl.util.render.RenderUtils.FrustumCulling;
+
+/**
+ * @author Roi Atalla
+ */
+public class BulletRenderer {
+	private BulletManager bulletManager;
+	
+	private ShaderProgram bulletProgram;
+	private int projectionMatrixUniform, modelViewMatrixUniform;
+	
+	private FloatBuffer bulletDataBuffer;
+	private int vao, bulletDataVBO;
+	
+	private final int BULLET_SIZE = 2 * 4 * 4;
+	private int BULLET_BUFFER_SIZE = 1000 * BULLET_SIZE;
+	
+	// Reused between frames, sortKeys holds the bullet indices in the low bits, viewPositions is indexed by bullet
+	private long[] sortKeys = new long[0];
+	private float[] viewPositions = new float[0];
+	
+	public BulletRenderer(BulletManager bulletManager) {
+		this.bulletManager = bulletManager;
+		
+		bulletProgram = new ShaderProgram(Utils.readFully(Resources.getInputStream("shaders/bullet.vert")),
+				                                 Utils.readFully(Resources.getInputStream("shaders/bullet.frag")));
+		
+		projectionMatrixUniform = bulletProgram.getUniformLocation("projectionMatrix");
+		modelViewMatrixUniform = bulletProgram.getUniformLocation("modelViewMatrix");
+		
+		float[] bulletMappings = {
+				-0.5f, 0.5f, 0.5f, 0.5f, 0.5f, -0.5f,
+				0.5f, -0.5f, -0.5f, -0.5f, -0.5f, 0.5f
+		};
+		
+		FloatBuffer bulletMappingsBuffer = BufferUtils.createFloatBuffer(bulletMappings.length);
+		bulletMappingsBuffer.put(bulletMappings).flip();
+		
+		vao = RenderUtils.glGenVertexArrays();
+		RenderUtils.glBindVertexArray(vao);
+		
+		int bulletMappingsVBO = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, bulletMappingsVBO);
+		glBufferData(GL_ARRAY_BUFFER, bulletMappingsBuffer, GL_STATIC_DRAW);
+		
+		glEnableVertexAttribArray(0);
+		glVertexAttribPointer(0, 2, GL_FLOAT, false, 0, 0);
+		
+		bulletDataBuffer = BufferUtils.createFloatBuffer(BULLET_BUFFER_SIZE / 4);
+		
+		bulletDataVBO = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, bulletDataVBO);
+		glBufferData(GL_ARRAY_BUFFER, BULLET_BUFFER_SIZE, GL_STREAM_DRAW);
+		
+		glEnableVertexAttribArray(1);
+		glVertexAttribPointer(1, 4, GL_FLOAT, false, 2 * 4 * 4, 0);
+		RenderUtils.glVertexAttribDivisor(1, 1);
+		
+		glEnableVertexAttribArray(2);
+		glVertexAttribPointer(2, 4, GL_FLOAT, false, 2 * 4 * 4, 4 * 4);
+		RenderUtils.glVertexAttribDivisor(2, 1);
+		
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		
+		RenderUtils.glBindVertexArray(0);
+	}
+	
+	public int getBulletLightData(Matrix4 viewMatrix, FloatBuffer bulletData, int maxBulletCount) {
+		final float bulletK = 1f, nonSolidBulletK = 1f;
+		
+		int bulletCount = sort(viewMatrix);
+		
+		float[] colors = bulletManager.getColors();
+		
+		int count = 0;
+		
+		for(int a = bulletCount - 1; a >= 0 && count < maxBulletCount; a--) {
+			int i = (int)sortKeys[a];
+			int v = i * 3;
+			
+			if(viewPositions[v + 2] >= 0) {
+				continue;
+			}
+			
+			bulletData.put(viewPositions, v, 3);
+			bulletData.put(bulletManager.getRange(i));
+			bulletData.put(colors, v, 3);
+			bulletData.put((bulletManager.isSolid(i) ? bulletK / (0.1f * bulletManager.getSize(i)) : nonSolidBulletK) / bulletManager.getAlpha(i));
+			
+			count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Fills viewPositions with the view space position of each bullet and sortKeys with their indices, farthest first.
+	 *
+	 * @return the number of bullets
+	 */
+	private int sort(Matrix4 viewMatrix) {
+		int bulletCount = bulletManager.getBulletCount();
+		
+		if(sortKeys.length < bulletCount) {
+			sortKeys = new long[Math.max(bulletCount, sortKeys.length * 2)];
+			viewPositions = new float[sortKeys.length * 3];
+		}
+		
+		float[] positions = bulletManager.getPositions();
+		
+		Vector3 position = new Vector3(), viewPosition = new Vector3();
+		
+		for(int i = 0; i < bulletCount; i++) {
+			int v = i * 3;
+			
+			viewMatrix.mult3(position.set(positions[v], positions[v + 1], positions[v + 2]), 1.0f, viewPosition);
+			
+			viewPositions[v] = viewPosition.x();
+			viewPositions[v + 1] = viewPosition.y();
+			viewPositions[v + 2] = viewPosition.z();
+			
+			sortKeys[i] = sortKey(viewPosition.z(), i);
+		}
+		
+		Arrays.sort(sortKeys, 0, bulletCount);
+		
+		return bulletCount;
+	}
+	
+	/**
+	 * Orders by z in the high bits, then by index in the low bits.
+	 */
+	private static long sortKey(float z, int index) {
+		int bits = Float.floatToIntBits(z);
+		// Negative floats order backwards as ints, flipping all but the sign bit fixes that
+		bits ^= (bits >> 31) & 0x7FFFFFFF;
+		return (long)bits << 32 | index;
+	}
+	
+	/**
+	 * @param occlusionBuffer rasterized for this frame's view, or null to draw occluded bullets too
+	 */
+	public void render(Matrix4 projectionMatrix, MatrixStack modelViewMatrix, FrustumCulling culling, OcclusionBuffer occlusionBuffer) {
+		int bulletCount = sort(modelViewMatrix.getTop());
+		
+		if(bulletCount == 0) {
+			return;
+		}
+		
+		boolean bulletCountChanged = prepareBuffer(bulletCount);
+		
+		float[] positions = bulletManager.getPositions();
+		float[] colors = bulletManager.getColors();
+		
+		Vector3 position = new Vector3();
+		
+		int bulletDrawnCount = 0;
+		
+		for(int a = 0; a < bulletCount; a++) {
+			int i = (int)sortKeys[a];
+			int v = i * 3;
+			
+			float size = bulletManager.getSize(i);
+			position.set(positions[v], positions[v + 1], positions[v + 2]);
+			
+			if(culling != null && !culling.isCubeInsideFrustum(position, size)) {
+				continue;
+			}
+			
+			if(occlusionBuffer != null &&
+					!occlusionBuffer.isBoxVisible(position.x() - size, position.y() - size, position.z() - size,
+					                              position.x() + size, position.y() + size, position.z() + size)) {
+				continue;
+			}
+			
+			bulletDrawnCount++;
+			
+			bulletDataBuffer.put(positions, v, 3).put(size);
+			bulletDataBuffer.put(colors, v, 3).put(bulletManager.getAlpha(i));
+		}
+		
+		draw(projectionMatrix, modelViewMatrix, bulletDrawnCount, bulletCountChanged);
+	}
+	
+	/**
+	 * Draws bullets that are not in the BulletManager, in the order given.
+	 */
+	public void render(Matrix4 projectionMatrix, MatrixStack modelViewMatrix, FrustumCulling culling, Bullet... bullets) {
+		if(bullets.length == 0) {
+			return;
+		}
+		
+		boolean bulletCountChanged = prepareBuffer(bullets.length);
+		
+		Vector3 position = new Vector3(), color = new Vector3();
+		
+		int bulletDrawnCount = 0;
+		
+		for(Bullet bullet : bullets) {
+			bullet.getPosition(position);
+			
+			if(culling != null && !culling.isCubeInsideFrustum(position, bullet.getSize())) {
+				continue;
+			}
+			
+			bulletDrawnCount++;
+			
+			bulletDataBuffer.put(position.toBuffer()).put(bullet.getSize());
+			bulletDataBuffer.put(bullet.getColor(color).toBuffer()).put(bullet.getAlpha());
+		}
+		
+		draw(projectionMatrix, modelViewMatrix, bulletDrawnCount, bulletCountChanged);
+	}
+	
+	/**
+	 * Makes room in bulletDataBuffer for bulletCount bullets and clears it.
+	 *
+	 * @return true if the buffer was reallocated
+	 */
+	private boolean prepareBuffer(int bulletCount) {
+		final int BULLET_COUNT = BULLET_SIZE / 2;
+		
+		boolean bulletCountChanged = bulletCount * BULLET_COUNT > bulletDataBuffer.capacity();
+		
+		if(bulletCountChanged) {
+			while(bulletCount * BULLET_COUNT > BULLET_BUFFER_SIZE >> 2) {
+				BULLET_BUFFER_SIZE *= 2;
+			}
+			
+			bulletDataBuffer = BufferUtils.createFloatBuffer(BULLET_BUFFER_SIZE >> 2);
+		} else {
+			bulletDataBuffer.clear();
+		}
+		
+		return bulletCountChanged;
+	}
+	
+	private void draw(Matrix4 projectionMatrix, MatrixStack modelViewMatrix, int bulletDrawnCount, boolean bulletCountChanged) {
+		bulletDataBuffer.flip();
+		
+		bulletProgram.begin();
+		
+		glUniformMatrix4(projectionMatrixUniform, false, projectionMatrix.toBuffer());
+		glUniformMatrix4(modelViewMatrixUniform, false, modelViewMatrix.getTop().toBuffer());
+		
+		glBindBuffer(GL_ARRAY_BUFFER, bulletDataVBO);
+		
+		if(bulletCountChanged) {
+			glBufferData(GL_ARRAY_BUFFER, bulletDataBuffer, GL_STREAM_DRAW);
+		} else {
+			glBufferData(GL_ARRAY_BUFFER, BULLET_BUFFER_SIZE, GL_STREAM_DRAW);
+			glBufferSubData(GL_ARRAY_BUFFER, 0, bulletDataBuffer);
+		}
+		
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+		
+		RenderUtils.glBindVertexArray(vao);
+		
+		glDepthMask(false);
+		RenderUtils.glDrawArraysInstanced(GL_TRIANGLES, 0, 6, bulletDrawnCount);
+		glDepthMask(true);
+	}
+}
@@ -0,0 +1,169 @@
+package com.ra4king.fps.renderers;
+
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkConnectivity;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Removes chunks hidden behind solid terrain from the chunks that passed the frustum test, with a breadth-first walk
+ * from the camera's chunk: a chunk is only reached through a face of a neighbor that the air inside the neighbor
+ * connects to the face it was itself entered through, see ChunkConnectivity. The walk only steps away from the camera,
+ * so it never comes back around to a chunk from behind.
+ *
+ * When the camera is not inside a loaded chunk, the walk starts from every visible chunk with no neighbor on a side
+ * facing the camera, entered through that side.
+ *
+ * @author Roi Atalla
+ */
+public class CaveCuller {
+	// Per slot: FACE_* bits of the faces the walk entered it through, plus these
+	private static final int IN_FRUSTUM = 1 << 6, REACHED = 1 << 7;
+	
+	private static final int[][] FACE_OFFSETS = {
+			{ -1, 0, 0 }, { 1, 0, 0 }, { 0, -1, 0 }, { 0, 1, 0 }, { 0, 0, -1 }, { 0, 0, 1 }
+	};
+	
+	private final ChunkManager chunkManager;
+	private final ChunkRenderer[] chunkRenderers;
+	
+	private final int[] states;
+	
+	// Slots and the face each was entered through, 0 for the camera's chunk. A slot is entered at most once per face.
+	private final int[] queueSlots, queueFaces;
+	
+	private int cameraChunkX, cameraChunkY, cameraChunkZ;
+	
+	/**
+	 * @param chunkRenderers the renderer of each slot, empty slots null. Read on every cull, so it may change between
+	 *                       calls.
+	 */
+	public CaveCuller(ChunkManager chunkManager, ChunkRenderer[] chunkRenderers) {
+		this.chunkManager = chunkManager;
+		this.chunkRenderers = chunkRenderers;
+		
+		states = new int[chunkRenderers.length];
+		queueSlots = new int[chunkRenderers.length * 7];
+		queueFaces = new int[chunkRenderers.length * 7];
+	}
+	
+	/**
+	 * Removes from slots the chunks the walk from the camera does not reach, keeping the order of the rest.
+	 *
+	 * @param cameraPosition in world space, as WorldRenderer draws blocks in
+	 * @param slots          the slots that passed the frustum test
+	 * @return the number of slots left
+	 */
+	public int cull(Vector3 cameraPosition, int[] slots, int count) {
+		for(int i = 0; i < count; i++) {
+			states[slots[i]] = IN_FRUSTUM;
+		}
+		
+		int blockX = Math.round(cameraPosition.x() / Chunk.SPACING);
+		int blockY = Math.round(cameraPosition.y() / Chunk.SPACING);
+		int blockZ = Math.round(-cameraPosition.z() / Chunk.SPACING);
+		
+		cameraChunkX = Math.floorDiv(blockX, Chunk.CHUNK_BLOCK_WIDTH);
+		cameraChunkY = Math.floorDiv(blockY, Chunk.CHUNK_BLOCK_HEIGHT);
+		cameraChunkZ = Math.floorDiv(blockZ, Chunk.CHUNK_BLOCK_DEPTH);
+		
+		int tail = 0;
+		
+		int cameraSlot = getSlot(chunkManager.getChunk(cameraChunkX, cameraChunkY, cameraChunkZ));
+		if(cameraSlot != -1) {
+			states[cameraSlot] |= REACHED;
+			queueSlots[tail] = cameraSlot;
+			queueFaces[tail++] = 0;
+		} else {
+			for(int i = 0; i < count; i++) {
+				Chunk chunk = chunkRenderers[slots[i]].getChunk();
+				
+				int entries = getFacesToward(chunk, true);
+				for(int face = 0; face < 6; face++) {
+					if((entries & (1 << face)) != 0 && getNeighbor(chunk, face) == null) {
+						states[slots[i]] |= REACHED | 1 << face;
+						queueSlots[tail] = slots[i];
+						queueFaces[tail++] = 1 << face;
+					}
+				}
+			}
+		}
+		
+		for(int head = 0; head < tail; head++) {
+			int slot = queueSlots[head];
+			int entry = queueFaces[head];
+			Chunk chunk = chunkRenderers[slot].getChunk();
+			
+			int exits = getFacesToward(chunk, false);
+			if(entry != 0) {
+				exits &= ChunkConnectivity.getConnectedFaces(chunk.getConnectivity(), entry);
+			}
+			
+			for(int face = 0; face < 6; face++) {
+				if((exits & (1 << face)) == 0) {
+					continue;
+				}
+				
+				int neighbor = getSlot(getNeighbor(chunk, face));
+				
+				// Faces come in pairs, NEG_X (bit 0) is opposite POS_X (bit 1) and so on
+				int neighborEntry = 1 << (face ^ 1);
+				
+				if(neighbor == -1 || (states[neighbor] & IN_FRUSTUM) == 0 || (states[neighbor] & neighborEntry) != 0) {
+					continue;
+				}
+				
+				states[neighbor] |= REACHED | neighborEntry;
+				queueSlots[tail] = neighbor;
+				queueFaces[tail++] = neighborEntry;
+			}
+		}
+		
+		int kept = 0;
+		for(int i = 0; i < count; i++) {
+			if((states[slots[i]] & REACHED) != 0) {
+				slots[kept++] = slots[i];
+			}
+			
+			states[slots[i]] = 0;
+		}
+		
+		if(cameraSlot != -1) {
+			states[cameraSlot] = 0;
+		}
+		
+		return kept;
+	}
+	
+	/**
+	 * @param toward true for the faces of the chunk facing the camera's chunk, false for the faces facing away from it.
+	 *               Along an axis where the chunk is level with the camera's chunk both faces count as facing away.
+	 */
+	private int getFacesToward(Chunk chunk, boolean toward) {
+		int x = chunk.getCornerX() / Chunk.CHUNK_BLOCK_WIDTH - cameraChunkX;
+		int y = chunk.getCornerY() / Chunk.CHUNK_BLOCK_HEIGHT - cameraChunkY;
+		int z = chunk.getCornerZ() / Chunk.CHUNK_BLOCK_DEPTH - cameraChunkZ;
+		
+		int towardFaces = (x > 0 ? Chunk.FACE_NEG_X : 0) | (x < 0 ? Chunk.FACE_POS_X : 0) |
+				(y > 0 ? Chunk.FACE_NEG_Y : 0) | (y < 0 ? Chunk.FACE_POS_Y : 0) |
+				(z > 0 ? Chunk.FACE_NEG_Z : 0) | (z < 0 ? Chunk.FACE_POS_Z : 0);
+		
+		return toward ? towardFaces : ~towardFaces & Chunk.ALL_FACES;
+	}
+	
+	private Chunk getNeighbor(Chunk chunk, int face) {
+		int[] offset = FACE_OFFSETS[face];
+		return chunkManager.getChunk(chunk.getCornerX() / Chunk.CHUNK_BLOCK_WIDTH + offset[0],
+		                             chunk.getCornerY() / Chunk.CHUNK_BLOCK_HEIGHT + offset[1],
+		                             chunk.getCornerZ() / Chunk.CHUNK_BLOCK_DEPTH + offset[2]);
+	}
+	
+	private int getSlot(Chunk chunk) {
+		if(chunk == null || !(chunk.getCallback() instanceof ChunkRenderer)) {
+			return -1;
+		}
+		
+		int slot = ((ChunkRenderer)chunk.getCallback()).getChunkNumOffset();
+		return chunkRenderers[slot] != null && chunkRenderers[slot].getChunk() == chunk ? slot : -1;
+	}
+}
@@ -0,0 +1,266 @@
+package com.ra4king.fps.renderers;
+
+import java.util.Arrays;
+
+import com.ra4king.fps.world.Chunk;
+
+/**
+ * A bounding volume hierarchy over the boxes of the loaded chunks, so culling tests a few nodes per frame instead of
+ * every chunk. Chunks do not move, the hierarchy is only rebuilt when chunks are loaded or unloaded.
+ *
+ * Each node covers a contiguous range of the ordered chunk ids, so a node found entirely inside the frustum emits its
+ * whole range without testing its children. Nodes carry the plane mask of their parent down, a plane the parent is
+ * inside of is not tested again.
+ *
+ * @author Roi Atalla
+ */
+public class ChunkBVH {
+	private static final int MAX_LEAF_SIZE = 4;
+	
+	// The chunks added since the last clear, their ids are reordered by build so every node's chunks are contiguous
+	private int[] ids = new int[0];
+	private float[] bounds = new float[0];
+	private int count;
+	
+	// Node 0 is the root, the children of an inner node are at left and left + 1, leaves have left == -1
+	private float[] nodeBounds = new float[0];
+	private int[] nodeStart = new int[0], nodeCount = new int[0], nodeLeft = new int[0];
+	private int nodes;
+	
+	// Nodes and masks still to visit while culling
+	private int[] stack = new int[0];
+	
+	public void clear() {
+		count = 0;
+		nodes = 0;
+	}
+	
+	/**
+	 * Adds a box with an id that cull writes out when it is visible. Takes effect after the next build.
+	 */
+	public void add(int id, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		if(count == ids.length) {
+			int capacity = Math.max(16, count * 2);
+			ids = Arrays.copyOf(ids, capacity);
+			bounds = Arrays.copyOf(bounds, capacity * 6);
+		}
+		
+		ids[count] = id;
+		
+		int b = count * 6;
+		bounds[b] = minX;
+		bounds[b + 1] = minY;
+		bounds[b + 2] = minZ;
+		bounds[b + 3] = maxX;
+		bounds[b + 4] = maxY;
+		bounds[b + 5] = maxZ;
+		
+		count++;
+	}
+	
+	/**
+	 * Adds the chunk's box, in the same world space WorldRenderer draws its blocks in.
+	 */
+	public void add(int id, Chunk chunk) {
+		float halfSpacing = Chunk.SPACING * 0.5f;
+		
+		float minX = chunk.getCornerX() * Chunk.SPACING - halfSpacing;
+		float minY = chunk.getCornerY() * Chunk.SPACING - halfSpacing;
+		float maxZ = -chunk.getCornerZ() * Chunk.SPACING + halfSpacing;
+		
+		add(id, minX, minY, maxZ - Chunk.CHUNK_BLOCK_DEPTH * Chunk.SPACING,
+		    minX + Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING, minY + Chunk.CHUNK_BLOCK_HEIGHT * Chunk.SPACING, maxZ);
+	}
+	
+	/**
+	 * Adds the section's box, in the same world space as the chunk's.
+	 */
+	public void add(int id, ChunkSection section) {
+		Chunk chunk = section.getChunkRenderer().getChunk();
+		float halfSpacing = Chunk.SPACING * 0.5f;
+		float size = section.getSize() * Chunk.SPACING;
+		
+		float minX = (chunk.getCornerX() + section.getMinX()) * Chunk.SPACING - halfSpacing;
+		float minY = (chunk.getCornerY() + section.getMinY()) * Chunk.SPACING - halfSpacing;
+		float maxZ = -(chunk.getCornerZ() + section.getMinZ()) * Chunk.SPACING + halfSpacing;
+		
+		add(id, minX, minY, maxZ - size, minX + size, minY + size, maxZ);
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	public int getNodeCount() {
+		return nodes;
+	}
+	
+	public void build() {
+		// A binary tree with at least one chunk per leaf has fewer than 2 * count nodes
+		int maxNodes = Math.max(1, 2 * count);
+		if(nodeStart.length < maxNodes) {
+			nodeBounds = new float[maxNodes * 6];
+			nodeStart = new int[maxNodes];
+			nodeCount = new int[maxNodes];
+			nodeLeft = new int[maxNodes];
+		}
+		
+		nodes = 1;
+		build(0, 0, count);
+		
+		// Each level leaves at most one sibling on the stack, a node and its mask
+		int depth = 1;
+		for(int n = count; n > 1; n = (n + 1) / 2) {
+			depth++;
+		}
+		
+		if(stack.length < (depth + 1) * 2) {
+			stack = new int[(depth + 1) * 2];
+		}
+	}
+	
+	private void build(int node, int start, int length) {
+		int nb = node * 6;
+		nodeBounds[nb] = nodeBounds[nb + 1] = nodeBounds[nb + 2] = Float.POSITIVE_INFINITY;
+		nodeBounds[nb + 3] = nodeBounds[nb + 4] = nodeBounds[nb + 5] = Float.NEGATIVE_INFINITY;
+		
+		for(int i = start; i < start + length; i++) {
+			for(int axis = 0; axis < 3; axis++) {
+				nodeBounds[nb + axis] = Math.min(nodeBounds[nb + axis], bounds[i * 6 + axis]);
+				nodeBounds[nb + 3 + axis] = Math.max(nodeBounds[nb + 3 + axis], bounds[i * 6 + 3 + axis]);
+			}
+		}
+		
+		nodeStart[node] = start;
+		nodeCount[node] = length;
+		
+		if(length <= MAX_LEAF_SIZE) {
+			nodeLeft[node] = -1;
+			return;
+		}
+		
+		// Splits at the median along the longest axis, chunks sit on a grid so the halves come out as even boxes
+		int axis = 0;
+		for(int a = 1; a < 3; a++) {
+			if(nodeBounds[nb + 3 + a] - nodeBounds[nb + a] > nodeBounds[nb + 3 + axis] - nodeBounds[nb + axis]) {
+				axis = a;
+			}
+		}
+		
+		int half = length / 2;
+		select(start, start + length - 1, start + half, axis);
+		
+		int left = nodes;
+		nodes += 2;
+		nodeLeft[node] = left;
+		
+		build(left, start, half);
+		build(left + 1, start + half, length - half);
+	}
+	
+	/**
+	 * Partially sorts [from, to] by the center along axis so that the chunk at k is in its sorted position, with
+	 * smaller centers before it and larger after.
+	 */
+	private void select(int from, int to, int k, int axis) {
+		while(from < to) {
+			float pivot = center((from + to) >>> 1, axis);
+			
+			int i = from, j = to;
+			while(i <= j) {
+				while(center(i, axis) < pivot) {
+					i++;
+				}
+				while(center(j, axis) > pivot) {
+					j--;
+				}
+				
+				if(i <= j) {
+					swap(i++, j--);
+				}
+			}
+			
+			if(k <= j) {
+				to = j;
+			} else if(k >= i) {
+				from = i;
+			} else {
+				return;
+			}
+		}
+	}
+	
+	private float center(int i, int axis) {
+		return bounds[i * 6 + axis] + bounds[i * 6 + 3 + axis];
+	}
+	
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		
+		for(int b = 0; b < 6; b++) {
+			float f = bounds[i * 6 + b];
+			bounds[i * 6 + b] = bounds[j * 6 + b];
+			bounds[j * 6 + b] = f;
+		}
+	}
+	
+	/**
+	 * Writes the ids of the chunks inside or crossing the frustum into visible, in no particular order.
+	 *
+	 * @param visible must hold at least getCount() ids
+	 * @return the number of ids written
+	 */
+	public int cull(ChunkFrustum frustum, int[] visible) {
+		if(count == 0 || nodes == 0) {
+			return 0;
+		}
+		
+		int visibleCount = 0;
+		
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = ChunkFrustum.ALL_PLANES;
+		
+		while(top > 0) {
+			int mask = stack[--top];
+			int node = stack[--top];
+			
+			// Inside every plane the parent crossed: the whole range is visible
+			if(mask != 0) {
+				int nb = node * 6;
+				mask = frustum.test(nodeBounds[nb], nodeBounds[nb + 1], nodeBounds[nb + 2], nodeBounds[nb + 3], nodeBounds[nb + 4], nodeBounds[nb + 5], mask);
+				
+				if(mask == ChunkFrustum.OUTSIDE) {
+					continue;
+				}
+			}
+			
+			int left = nodeLeft[node];
+			
+			if(mask == 0 || left == -1) {
+				int start = nodeStart[node], length = nodeCount[node];
+				
+				if(mask == 0) {
+					System.arraycopy(ids, start, visible, visibleCount, length);
+					visibleCount += length;
+				} else {
+					for(int i = start; i < start + length; i++) {
+						int b = i * 6;
+						if(frustum.test(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5], mask) != ChunkFrustum.OUTSIDE) {
+							visible[visibleCount++] = ids[i];
+						}
+					}
+				}
+			} else {
+				stack[top++] = left + 1;
+				stack[top++] = mask;
+				stack[top++] = left;
+				stack[top++] = mask;
+			}
+		}
+		
+		return visibleCount;
+	}
+}
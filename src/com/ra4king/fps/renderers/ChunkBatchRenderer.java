@@ -0,0 +1,858 @@
+package com.ra4king.fps.renderers;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL40.*;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.BufferUtils;
+
+import com.ra4king.fps.renderers.WorldRenderer.DrawElementsIndirectCommand;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkConnectivity;
+import com.ra4king.fps.world.ChunkManager.ChunkListener;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector2;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * The chunk pass of WorldRenderer: keeps a ChunkRenderer per loaded chunk, their sections' data resident in GPU
+ * buffers, and draws every visible section with one multi-draw. All of its GL calls go through a RenderDevice, so whole frames of it
+ * run without a GPU against a RecordingRenderDevice. The shader program is bound by the caller.
+ *
+ * @author Roi Atalla
+ */
+public class ChunkBatchRenderer implements ChunkListener {
+	private final RenderDevice device;
+	private final World world;
+	
+	private ByteBuffer commandsBuffer;
+	
+	private int chunkVAO, cubeVBO, cubeCornersVBO, indicesVBO, commandsVBO;
+	// One copy of the cube's vertices, cubeVBO holds one per chunk slot
+	private ByteBuffer cubeVertices;
+	
+	// One slot per loaded chunk, empty slots are null. The slots double when a chunk is loaded while all are taken.
+	private ChunkRenderer[] chunkRenderers;
+	private int[] freeChunkSlots;
+	private int freeChunkSlotCount;
+	
+	// Each chunk slot owns sectionsPerChunk residency slots in a row, one per section
+	private final int sectionSize, sectionsPerChunk;
+	
+	// Uploads of the instances, each section keeps its slot's data until it changes
+	private ChunkResidency chunkResidency;
+	private StagingSlotBuffer chunkRendererStorage;
+	
+	// Culls the sections' boxes each frame, rebuilt after chunks are loaded or unloaded
+	private final ChunkBVH chunkBVH = new ChunkBVH();
+	private boolean chunkBVHDirty = true;
+	private int[] visibleSlots;
+	
+	// The chunks holding the visible sections, each once, for the culling done per chunk
+	private int[] visibleChunks;
+	private boolean[] chunkMarks;
+	
+	// Chunk updates are spread over frames when many chunks change at once, the closest and visible chunks first
+	private ChunkUpdateScheduler updateScheduler;
+	private int[] updateSlots;
+	private float updateBudget = DEFAULT_UPDATE_BUDGET;
+	private int updatesPending;
+	
+	// Time the chunks drawn by the last prepare were marked visible with
+	private long lastVisibleTime;
+	
+	// Milliseconds per frame
+	public static final float DEFAULT_UPDATE_BUDGET = 4;
+	
+	// Cave culling drops the chunks in the frustum that terrain hides, using each chunk's connectivity
+	private boolean caveCulling = true;
+	private final ChunkConnectivity chunkConnectivity = new ChunkConnectivity();
+	private CaveCuller caveCuller;
+	
+	// Occlusion culling drops the chunks behind the solid layers of the chunks close to the camera
+	private boolean occlusionCulling = true;
+	
+	// Chunks at most this many chunks away from the camera along every axis are drawn into the occlusion buffer
+	private static final int OCCLUDER_DISTANCE = 2;
+	
+	// Greedy meshing draws each chunk's merged quads instead of one cube instance per surface block. Its buffers are
+	// created the first time it is enabled.
+	private boolean greedyMeshing;
+	private GreedyMesher greedyMesher;
+	private IntBuffer meshScratch;
+	private int meshVAO, meshIndicesVBO, chunkCornersVBO;
+	private ChunkResidency meshResidency;
+	private StagingSlotBuffer meshStorage;
+	
+	// The storage buffers the VAOs' attributes were last pointed at, a resize replaces them
+	private int chunkVAOStorage, meshVAOStorage;
+	private final ByteBuffer chunkCornerBuffer = BufferUtils.createByteBuffer(ChunkRenderer.CUBE_VERTEX_COUNT * 3 * 4);
+	
+	private int sectionsRendered, sectionsOccluded, blocksRendered, trianglesRendered;
+	
+	// Bytes staged per frame for uploads, the slots being filled on the first frames need several sections
+	private static final int STAGING_SECTION_SIZE = 4 << 20;
+	
+	// Initial storage per chunk slot, noise terrain averages about a tenth of this. The storage doubles when it fills up.
+	private static final int INSTANCE_STORAGE_PER_CHUNK = 32 << 10;
+	private static final int MESH_STORAGE_PER_CHUNK = 64 << 10;
+	
+	private final DrawElementsIndirectCommand command = new DrawElementsIndirectCommand();
+	
+	public ChunkBatchRenderer(RenderDevice device, World world) {
+		this(device, world, ChunkRenderer.DEFAULT_SECTION_SIZE);
+	}
+	
+	/**
+	 * @param sectionSize blocks along each axis of the sections chunks are drawn and culled in, must divide the chunk
+	 *                    size
+	 */
+	public ChunkBatchRenderer(RenderDevice device, World world, int sectionSize) {
+		if(!ChunkRenderer.isValidSectionSize(sectionSize)) {
+			throw new IllegalArgumentException("Section size must divide " + Chunk.CHUNK_BLOCK_WIDTH + ": " + sectionSize);
+		}
+		
+		this.device = device;
+		this.world = world;
+		this.sectionSize = sectionSize;
+		
+		sectionsPerChunk = ChunkRenderer.getSectionsPerChunk(sectionSize);
+		
+		loadCube();
+		setupBlockVAO();
+		
+		// Sized again with the commands buffer each frame
+		commandsVBO = device.genBuffer();
+		device.bindBuffer(GL_DRAW_INDIRECT_BUFFER, commandsVBO);
+		device.bufferData(GL_DRAW_INDIRECT_BUFFER, commandsBuffer.capacity(), GL_STREAM_DRAW);
+		device.bindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+	}
+	
+	private void loadCube() {
+		final short[] indices = { 0, 1, 2, 2, 3, 0 };
+		
+		final Vector3[] normals = {
+		  new Vector3(0, 0, 1), // front
+		  new Vector3(0, 0, -1), // back
+		  new Vector3(0, 1, 0), // top
+		  new Vector3(0, -1, 0), // bottom
+		  new Vector3(1, 0, 0), // right
+		  new Vector3(-1, 0, 0) // left
+		};
+		
+		final Vector2[] texCoords = {
+				new Vector2(0, 1),
+				new Vector2(1, 1),
+				new Vector2(1, 0),
+				new Vector2(0, 0)
+		};
+		
+		final Vector3[] unitCube = {
+				// front
+				new Vector3(0.0f, 1.0f, 0.0f),
+				new Vector3(1.0f, 1.0f, 0.0f),
+				new Vector3(1.0f, 0.0f, 0.0f),
+				new Vector3(0.0f, 0.0f, 0.0f),
+				
+				// back
+				new Vector3(1.0f, 1.0f, -1.0f),
+				new Vector3(0.0f, 1.0f, -1.0f),
+				new Vector3(0.0f, 0.0f, -1.0f),
+				new Vector3(1.0f, 0.0f, -1.0f),
+				
+				// top
+				new Vector3(0.0f, 1.0f, -1.0f),
+				new Vector3(1.0f, 1.0f, -1.0f),
+				new Vector3(1.0f, 1.0f, 0.0f),
+				new Vector3(0.0f, 1.0f, 0.0f),
+				
+				// bottom
+				new Vector3(0.0f, 0.0f, 0.0f),
+				new Vector3(1.0f, 0.0f, 0.0f),
+				new Vector3(1.0f, 0.0f, -1.0f),
+				new Vector3(0.0f, 0.0f, -1.0f),
+				
+				// right
+				new Vector3(1.0f, 1.0f, 0.0f),
+				new Vector3(1.0f, 1.0f, -1.0f),
+				new Vector3(1.0f, 0.0f, -1.0f),
+				new Vector3(1.0f, 0.0f, 0.0f),
+				
+				// left
+				new Vector3(0.0f, 1.0f, -1.0f),
+				new Vector3(0.0f, 1.0f, 0.0f),
+				new Vector3(0.0f, 0.0f, 0.0f),
+				new Vector3(0.0f, 0.0f, -1.0f)
+		};
+		
+		// 2 vec3s and 1 vec2
+		cubeVertices = BufferUtils.createByteBuffer(unitCube.length * (2 * 3 + 2) * 4);
+		FloatBuffer cubeBuffer = cubeVertices.asFloatBuffer();
+		for(int a = 0; a < unitCube.length; a++) {
+			cubeBuffer.put(unitCube[a].toBuffer());
+			cubeBuffer.put(normals[a / 4].toBuffer());
+			cubeBuffer.put(texCoords[a % 4].toBuffer());
+		}
+		
+		ByteBuffer indicesData = BufferUtils.createByteBuffer(indices.length * 6 * 2);
+		ShortBuffer indicesBuffer = indicesData.asShortBuffer();
+		for(int a = 0; a < 6 * indices.length; a++) {
+			indicesBuffer.put((short)(indices[a % 6] + (a / indices.length) * 4));
+		}
+		
+		indicesVBO = device.genBuffer();
+		device.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indicesVBO);
+		device.bufferData(GL_ELEMENT_ARRAY_BUFFER, indicesData, GL_STATIC_DRAW);
+		device.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+	}
+	
+	/**
+	 * The chunk slots to start with. An unbounded world may start out empty and be filled later.
+	 */
+	private int getChunkSlotCount() {
+		int chunkSlots = world.getChunkStreamer() != null ? world.getChunkStreamer().getMaxLoadedChunks() : world.getChunkManager().getChunkCount();
+		return Math.max(1, chunkSlots);
+	}
+	
+	private void setupBlockVAO() {
+		final int chunkSlots = getChunkSlotCount();
+		
+		chunkRendererStorage = new StagingSlotBuffer(device, chunkSlots * INSTANCE_STORAGE_PER_CHUNK, STAGING_SECTION_SIZE, 3);
+		chunkResidency = new ChunkResidency(chunkRendererStorage, chunkSlots * sectionsPerChunk, ChunkSection.getDataSize(sectionSize));
+		
+		chunkVAO = device.genVertexArray();
+		device.bindVertexArray(chunkVAO);
+		device.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indicesVBO);
+		device.bindVertexArray(0);
+		device.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+		
+		createCubeBuffers(chunkSlots);
+		bindStorageAttributes();
+		
+		chunkRenderers = new ChunkRenderer[chunkSlots];
+		freeChunkSlots = new int[chunkSlots];
+		for(int i = 0; i < chunkSlots; i++) {
+			freeChunkSlots[freeChunkSlotCount++] = chunkSlots - 1 - i;
+		}
+		
+		createSlotArrays();
+		
+		for(Chunk chunk : world.getChunkManager().getChunks()) {
+			chunkLoaded(chunk);
+		}
+		
+		world.getChunkManager().setChunkListener(this);
+	}
+	
+	/**
+	 * Creates the cube copies and their chunk corners for chunkSlots slots and points the chunk VAO at them, replacing
+	 * the previous buffers. The corners are filled in by uploadChunkCorner.
+	 */
+	private void createCubeBuffers(int chunkSlots) {
+		// Instances only hold positions local to their chunk, the chunk's corner is a vertex attribute instead. There is
+		// one copy of the cube per chunk slot, each draw's baseVertex picks the copy holding its chunk's corner.
+		ByteBuffer cubeData = BufferUtils.createByteBuffer(chunkSlots * cubeVertices.capacity());
+		for(int slot = 0; slot < chunkSlots; slot++) {
+			cubeData.put(cubeVertices.duplicate());
+		}
+		cubeData.flip();
+		
+		if(cubeVBO != 0) {
+			device.deleteBuffer(cubeVBO);
+			device.deleteBuffer(cubeCornersVBO);
+		}
+		
+		cubeVBO = device.genBuffer();
+		device.bindBuffer(GL_ARRAY_BUFFER, cubeVBO);
+		device.bufferData(GL_ARRAY_BUFFER, cubeData, GL_STATIC_DRAW);
+		
+		// ivec3 chunk corner for each vertex of each copy
+		cubeCornersVBO = device.genBuffer();
+		device.bindBuffer(GL_ARRAY_BUFFER, cubeCornersVBO);
+		device.bufferData(GL_ARRAY_BUFFER, chunkSlots * ChunkRenderer.CUBE_VERTEX_COUNT * 3 * 4, GL_STATIC_DRAW);
+		
+		device.bindVertexArray(chunkVAO);
+		
+		device.bindBuffer(GL_ARRAY_BUFFER, cubeVBO);
+		
+		device.enableVertexAttribArray(0);
+		device.vertexAttribPointer(0, 3, GL_FLOAT, false, (2 * 3 + 2) * 4, 0);
+		
+		device.enableVertexAttribArray(1);
+		device.vertexAttribPointer(1, 3, GL_FLOAT, false, (2 * 3 + 2) * 4, 3 * 4);
+		
+		device.enableVertexAttribArray(2);
+		device.vertexAttribPointer(2, 2, GL_FLOAT, false, (2 * 3 + 2) * 4, 2 * 3 * 4);
+		
+		device.bindBuffer(GL_ARRAY_BUFFER, cubeCornersVBO);
+		
+		device.enableVertexAttribArray(3);
+		device.vertexAttribIPointer(3, 3, GL_INT, 3 * 4, 0);
+		
+		device.bindVertexArray(0);
+		device.bindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+	
+	/**
+	 * Creates the mesh chunk corners for chunkSlots slots and points the mesh VAO at them, replacing the previous buffer.
+	 */
+	private void createMeshCornersBuffer(int chunkSlots) {
+		if(chunkCornersVBO != 0) {
+			device.deleteBuffer(chunkCornersVBO);
+		}
+		
+		// One chunk corner per slot, selected by each draw's baseInstance
+		chunkCornersVBO = device.genBuffer();
+		device.bindBuffer(GL_ARRAY_BUFFER, chunkCornersVBO);
+		device.bufferData(GL_ARRAY_BUFFER, chunkSlots * 3 * 4, GL_STATIC_DRAW);
+		
+		device.bindVertexArray(meshVAO);
+		
+		device.enableVertexAttribArray(1);
+		device.vertexAttribIPointer(1, 3, GL_INT, 3 * 4, 0);
+		device.vertexAttribDivisor(1, 1);
+		
+		device.bindVertexArray(0);
+		device.bindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+	
+	/**
+	 * The per frame working arrays and helpers sized by the chunk slots.
+	 */
+	private void createSlotArrays() {
+		final int chunkSlots = chunkRenderers.length;
+		
+		commandsBuffer = BufferUtils.createByteBuffer(chunkSlots * sectionsPerChunk * 5 * 4);
+		
+		visibleSlots = new int[chunkSlots * sectionsPerChunk];
+		visibleChunks = new int[chunkSlots];
+		chunkMarks = new boolean[chunkSlots];
+		caveCuller = new CaveCuller(world.getChunkManager(), chunkRenderers);
+		updateScheduler = new ChunkUpdateScheduler(chunkRenderers);
+		updateSlots = new int[chunkSlots];
+	}
+	
+	/**
+	 * Doubles the chunk slots, the loaded chunks keep their slots and their data resident.
+	 */
+	private void growChunkSlots() {
+		final int oldChunkSlots = chunkRenderers.length;
+		final int chunkSlots = oldChunkSlots * 2;
+		
+		chunkRenderers = Arrays.copyOf(chunkRenderers, chunkSlots);
+		freeChunkSlots = Arrays.copyOf(freeChunkSlots, chunkSlots);
+		for(int slot = chunkSlots - 1; slot >= oldChunkSlots; slot--) {
+			freeChunkSlots[freeChunkSlotCount++] = slot;
+		}
+		
+		createSlotArrays();
+		
+		chunkResidency.growSlots(chunkSlots * sectionsPerChunk);
+		createCubeBuffers(chunkSlots);
+		
+		if(meshVAO != 0) {
+			meshResidency.growSlots(chunkSlots * sectionsPerChunk);
+			createMeshCornersBuffer(chunkSlots);
+		}
+		
+		for(ChunkRenderer chunkRenderer : chunkRenderers) {
+			if(chunkRenderer != null) {
+				uploadChunkCorner(chunkRenderer);
+			}
+		}
+	}
+	
+	@Override
+	public void chunkLoaded(Chunk chunk) {
+		if(freeChunkSlotCount == 0) {
+			growChunkSlots();
+		}
+		
+		int slot = freeChunkSlots[--freeChunkSlotCount];
+		
+		chunkRenderers[slot] = new ChunkRenderer(chunk, slot, sectionSize);
+		chunkBVHDirty = true;
+		
+		uploadChunkCorner(chunkRenderers[slot]);
+	}
+	
+	@Override
+	public void chunkUnloaded(Chunk chunk) {
+		if(!(chunk.getCallback() instanceof ChunkRenderer)) {
+			return;
+		}
+		
+		ChunkRenderer chunkRenderer = (ChunkRenderer)chunk.getCallback();
+		int slot = chunkRenderer.getChunkNumOffset();
+		
+		chunkRenderers[slot] = null;
+		freeChunkSlots[freeChunkSlotCount++] = slot;
+		chunkBVHDirty = true;
+		
+		// Mesh slots follow the instance slots
+		for(int i = 0; i < sectionsPerChunk; i++) {
+			chunkResidency.invalidate(slot * sectionsPerChunk + i);
+			
+			if(meshResidency != null) {
+				meshResidency.invalidate(slot * sectionsPerChunk + i);
+			}
+		}
+		
+		chunk.setCallback(null);
+	}
+	
+	private void setupMeshVAO() {
+		final int chunkSlots = chunkRenderers.length;
+		
+		greedyMesher = new GreedyMesher();
+		meshScratch = BufferUtils.createByteBuffer(ChunkSection.getMeshDataSize(sectionSize)).asIntBuffer();
+		
+		// Every section's mesh starts at vertex 0 of its slot, so one index buffer serves them all through baseVertex
+		final int[] quadIndices = { 0, 1, 2, 2, 3, 0 };
+		
+		ByteBuffer indicesData = BufferUtils.createByteBuffer(ChunkSection.getMaxMeshQuads(sectionSize) * GreedyMesher.INDICES_PER_QUAD * 4);
+		IntBuffer indicesBuffer = indicesData.asIntBuffer();
+		for(int a = 0; a < indicesBuffer.capacity(); a++) {
+			indicesBuffer.put(quadIndices[a % GreedyMesher.INDICES_PER_QUAD] + (a / GreedyMesher.INDICES_PER_QUAD) * GreedyMesher.VERTICES_PER_QUAD);
+		}
+		
+		meshIndicesVBO = device.genBuffer();
+		device.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, meshIndicesVBO);
+		device.bufferData(GL_ELEMENT_ARRAY_BUFFER, indicesData, GL_STATIC_DRAW);
+		device.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+		
+		meshVAO = device.genVertexArray();
+		device.bindVertexArray(meshVAO);
+		device.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, meshIndicesVBO);
+		device.bindVertexArray(0);
+		device.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+		
+		meshStorage = new StagingSlotBuffer(device, chunkSlots * MESH_STORAGE_PER_CHUNK, STAGING_SECTION_SIZE, 3);
+		meshResidency = new ChunkResidency(meshStorage, chunkSlots * sectionsPerChunk, ChunkSection.getMeshDataSize(sectionSize));
+		
+		createMeshCornersBuffer(chunkSlots);
+		bindStorageAttributes();
+		
+		for(ChunkRenderer chunkRenderer : chunkRenderers) {
+			if(chunkRenderer != null) {
+				uploadChunkCorner(chunkRenderer);
+			}
+		}
+	}
+	
+	/**
+	 * Points the instance and mesh vertex attributes at their storage's current buffer, which a resize replaces.
+	 */
+	private void bindStorageAttributes() {
+		if(chunkRendererStorage.getGLBuffer() != chunkVAOStorage) {
+			chunkVAOStorage = chunkRendererStorage.getGLBuffer();
+			
+			device.bindVertexArray(chunkVAO);
+			device.bindBuffer(GL_ARRAY_BUFFER, chunkVAOStorage);
+			
+			device.enableVertexAttribArray(4);
+			device.vertexAttribIPointer(4, 1, GL_UNSIGNED_INT, BlockInstance.SIZE, 0);
+			device.vertexAttribDivisor(4, 1);
+			
+			device.bindVertexArray(0);
+			device.bindBuffer(GL_ARRAY_BUFFER, 0);
+		}
+		
+		if(meshVAO != 0 && meshStorage.getGLBuffer() != meshVAOStorage) {
+			meshVAOStorage = meshStorage.getGLBuffer();
+			
+			device.bindVertexArray(meshVAO);
+			device.bindBuffer(GL_ARRAY_BUFFER, meshVAOStorage);
+			
+			device.enableVertexAttribArray(0);
+			device.vertexAttribIPointer(0, 1, GL_UNSIGNED_INT, 4, 0);
+			
+			device.bindVertexArray(0);
+			device.bindBuffer(GL_ARRAY_BUFFER, 0);
+		}
+	}
+	
+	/**
+	 * Writes the chunk's corner into its slot's copy of the cube and, once greedy meshing was enabled, its mesh slot.
+	 */
+	private void uploadChunkCorner(ChunkRenderer chunkRenderer) {
+		Chunk chunk = chunkRenderer.getChunk();
+		int slot = chunkRenderer.getChunkNumOffset();
+		
+		chunkCornerBuffer.clear();
+		for(int a = 0; a < ChunkRenderer.CUBE_VERTEX_COUNT; a++) {
+			chunkCornerBuffer.putInt(chunk.getCornerX()).putInt(chunk.getCornerY()).putInt(chunk.getCornerZ());
+		}
+		chunkCornerBuffer.flip();
+		
+		device.bindBuffer(GL_ARRAY_BUFFER, cubeCornersVBO);
+		device.bufferSubData(GL_ARRAY_BUFFER, slot * ChunkRenderer.CUBE_VERTEX_COUNT * 3 * 4, chunkCornerBuffer);
+		
+		if(meshVAO != 0) {
+			chunkCornerBuffer.limit(3 * 4);
+			
+			device.bindBuffer(GL_ARRAY_BUFFER, chunkCornersVBO);
+			device.bufferSubData(GL_ARRAY_BUFFER, slot * 3 * 4, chunkCornerBuffer);
+		}
+		
+		device.bindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+	
+	public boolean isGreedyMeshing() {
+		return greedyMeshing;
+	}
+	
+	/**
+	 * Switches between drawing one cube instance per surface block and drawing greedy meshes.
+	 */
+	public void setGreedyMeshing(boolean greedyMeshing) {
+		if(greedyMeshing && meshVAO == 0) {
+			setupMeshVAO();
+		}
+		
+		this.greedyMeshing = greedyMeshing;
+	}
+	
+	public boolean isCaveCulling() {
+		return caveCulling;
+	}
+	
+	public void setCaveCulling(boolean caveCulling) {
+		this.caveCulling = caveCulling;
+	}
+	
+	public boolean isOcclusionCulling() {
+		return occlusionCulling;
+	}
+	
+	public void setOcclusionCulling(boolean occlusionCulling) {
+		this.occlusionCulling = occlusionCulling;
+	}
+	
+	/**
+	 * @return milliseconds per frame update(Vector3) spends updating chunks
+	 */
+	public float getUpdateBudget() {
+		return updateBudget;
+	}
+	
+	/**
+	 * @param updateBudget milliseconds per frame update(Vector3) spends updating chunks, at least one chunk is updated
+	 *                     each frame. 0 or less updates every changed chunk every frame.
+	 */
+	public void setUpdateBudget(float updateBudget) {
+		this.updateBudget = updateBudget;
+	}
+	
+	/**
+	 * Chunks the last update(Vector3) left waiting for a later frame.
+	 */
+	public int getUpdatesPendingCount() {
+		return updatesPending;
+	}
+	
+	public int getSectionSize() {
+		return sectionSize;
+	}
+	
+	public int getSectionsRenderedCount() {
+		return sectionsRendered;
+	}
+	
+	/**
+	 * Sections inside the frustum that cave or occlusion culling found hidden during the last prepare.
+	 */
+	public int getSectionsOccludedCount() {
+		return sectionsOccluded;
+	}
+	
+	public int getBlocksRenderedCount() {
+		return blocksRendered;
+	}
+	
+	public int getTrianglesRenderedCount() {
+		return trianglesRendered;
+	}
+	
+	/**
+	 * Chunk data uploaded during the last frame, in bytes.
+	 */
+	public long getChunkUploadBytes() {
+		return greedyMeshing ? meshResidency.getLastFrameBytes() : chunkResidency.getLastFrameBytes();
+	}
+	
+	public int getChunkUploadCount() {
+		return greedyMeshing ? meshResidency.getLastFrameUploads() : chunkResidency.getLastFrameUploads();
+	}
+	
+	/**
+	 * The allocator of the chunk data being drawn, for its memory statistics.
+	 */
+	public RegionAllocator getChunkStorageAllocator() {
+		return greedyMeshing ? meshResidency.getAllocator() : chunkResidency.getAllocator();
+	}
+	
+	/**
+	 * Hands each modified chunk's changes since the last frame to its ChunkRenderer and brings the data being drawn up
+	 * to date.
+	 */
+	public void update() {
+		world.getChunkManager().drainDirtyChunks();
+		
+		for(ChunkRenderer chunkRenderer : chunkRenderers) {
+			if(chunkRenderer != null) {
+				update(chunkRenderer);
+			}
+		}
+		
+		updatesPending = 0;
+	}
+	
+	/**
+	 * Like update, but only spends the update budget, starting with the chunks closest to the camera. The chunks left
+	 * waiting keep drawing their data from before the change.
+	 */
+	public void update(Vector3 cameraPosition) {
+		if(updateBudget <= 0) {
+			update();
+			return;
+		}
+		
+		world.getChunkManager().drainDirtyChunks();
+		
+		int count = updateScheduler.schedule(cameraPosition, lastVisibleTime, greedyMeshing, caveCulling, updateSlots);
+		
+		long start = System.nanoTime();
+		long budget = (long)(updateBudget * 1e6);
+		
+		int updated = 0;
+		while(updated < count && (updated == 0 || System.nanoTime() - start < budget)) {
+			update(chunkRenderers[updateSlots[updated++]]);
+		}
+		
+		updatesPending = count - updated;
+	}
+	
+	private void update(ChunkRenderer chunkRenderer) {
+		chunkRenderer.update();
+		
+		if(caveCulling) {
+			chunkRenderer.getChunk().updateConnectivity(chunkConnectivity);
+		}
+		
+		if(greedyMeshing) {
+			chunkRenderer.updateMesh(greedyMesher, meshScratch);
+		}
+	}
+	
+	/**
+	 * Uploads what changed of the sections inside the frustum, and not hidden by terrain when cave or occlusion culling,
+	 * and records their draw commands.
+	 *
+	 * @param occlusionBuffer begun with the same view as the frustum, the occluders are added and rasterized here. May
+	 *                        be null when not occlusion culling.
+	 */
+	public void prepare(ChunkFrustum frustum, OcclusionBuffer occlusionBuffer, Vector3 cameraPosition) {
+		if(chunkBVHDirty) {
+			chunkBVH.clear();
+			for(ChunkRenderer chunkRenderer : chunkRenderers) {
+				if(chunkRenderer != null) {
+					for(int i = 0; i < sectionsPerChunk; i++) {
+						ChunkSection section = chunkRenderer.getSection(i);
+						
+						// Sections without surface blocks are skipped when drawing, their boxes are still culled so an
+						// edit adding blocks to them needs no rebuild
+						chunkBVH.add(section.getSlot(), section);
+					}
+				}
+			}
+			chunkBVH.build();
+			
+			chunkBVHDirty = false;
+		}
+		
+		int visibleCount = chunkBVH.cull(frustum, visibleSlots);
+		
+		sectionsOccluded = visibleCount;
+		if(caveCulling || occlusionCulling) {
+			int chunkCount = collectVisibleChunks(visibleCount);
+			
+			if(caveCulling) {
+				visibleCount = cullHiddenChunks(cameraPosition, visibleCount, chunkCount);
+				chunkCount = collectVisibleChunks(visibleCount);
+			}
+			if(occlusionCulling) {
+				visibleCount = cullOccluded(occlusionBuffer, cameraPosition, visibleCount, chunkCount);
+			}
+		}
+		sectionsOccluded -= visibleCount;
+		
+		ChunkResidency residency = greedyMeshing ? meshResidency : chunkResidency;
+		
+		long now = System.nanoTime();
+		lastVisibleTime = now;
+		
+		int defragmentCount;
+		do {
+			defragmentCount = residency.getDefragmentCount();
+			
+			commandsBuffer.clear();
+			
+			sectionsRendered = 0;
+			blocksRendered = 0;
+			trianglesRendered = 0;
+			
+			for(int i = 0; i < visibleCount; i++) {
+				int slot = visibleSlots[i];
+				ChunkSection section = chunkRenderers[slot / sectionsPerChunk].getSection(slot % sectionsPerChunk);
+				
+				// In view even when empty, a change may give it something to draw
+				section.getChunkRenderer().getChunk().setLastVisibleTime(now);
+				
+				// Empty and fully buried sections have nothing to draw
+				if(section.getLastCubeRenderCount() == 0) {
+					continue;
+				}
+				
+				boolean rendered = greedyMeshing ? section.renderMesh(command, residency)
+				                                 : section.render(command, residency);
+				
+				if(rendered) {
+					command.put(commandsBuffer);
+					
+					sectionsRendered++;
+					blocksRendered += section.getLastCubeRenderCount();
+					trianglesRendered += 2 * (greedyMeshing ? section.getLastQuadRenderCount() : section.getLastFaceRenderCount());
+				}
+			}
+			
+			// A defragment moved regions of sections whose commands were already recorded, the second pass finds every
+			// section already uploaded
+		} while(residency.getDefragmentCount() != defragmentCount);
+		
+		commandsBuffer.flip();
+		
+		device.bindBuffer(GL_DRAW_INDIRECT_BUFFER, commandsVBO);
+		device.bufferData(GL_DRAW_INDIRECT_BUFFER, commandsBuffer, GL_STREAM_DRAW);
+		device.bindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+	}
+	
+	/**
+	 * Writes the chunk slots of the visible sections into visibleChunks, each once and in the order first seen.
+	 *
+	 * @return the number of chunks
+	 */
+	private int collectVisibleChunks(int count) {
+		int chunkCount = 0;
+		
+		for(int i = 0; i < count; i++) {
+			int chunkSlot = visibleSlots[i] / sectionsPerChunk;
+			
+			if(!chunkMarks[chunkSlot]) {
+				chunkMarks[chunkSlot] = true;
+				visibleChunks[chunkCount++] = chunkSlot;
+			}
+		}
+		
+		for(int i = 0; i < chunkCount; i++) {
+			chunkMarks[visibleChunks[i]] = false;
+		}
+		
+		return chunkCount;
+	}
+	
+	/**
+	 * Connectivity is only known per chunk, so cave culling runs on the chunks of the visible sections and removes the
+	 * sections of the chunks it hides, keeping the order of the rest.
+	 */
+	private int cullHiddenChunks(Vector3 cameraPosition, int count, int chunkCount) {
+		chunkCount = caveCuller.cull(cameraPosition, visibleChunks, chunkCount);
+		
+		for(int i = 0; i < chunkCount; i++) {
+			chunkMarks[visibleChunks[i]] = true;
+		}
+		
+		int kept = 0;
+		for(int i = 0; i < count; i++) {
+			if(chunkMarks[visibleSlots[i] / sectionsPerChunk]) {
+				visibleSlots[kept++] = visibleSlots[i];
+			}
+		}
+		
+		for(int i = 0; i < chunkCount; i++) {
+			chunkMarks[visibleChunks[i]] = false;
+		}
+		
+		return kept;
+	}
+	
+	/**
+	 * Rasterizes the solid layers of the visible chunks close to the camera and removes the visible sections behind
+	 * them, keeping the order of the rest.
+	 */
+	private int cullOccluded(OcclusionBuffer occlusionBuffer, Vector3 cameraPosition, int count, int chunkCount) {
+		final float chunkWidth = Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING;
+		final float chunkHeight = Chunk.CHUNK_BLOCK_HEIGHT * Chunk.SPACING;
+		final float chunkDepth = Chunk.CHUNK_BLOCK_DEPTH * Chunk.SPACING;
+		
+		for(int i = 0; i < chunkCount; i++) {
+			ChunkRenderer chunkRenderer = chunkRenderers[visibleChunks[i]];
+			Chunk chunk = chunkRenderer.getChunk();
+			
+			// Distance from the camera to the chunk's center, in chunks
+			float x = Math.abs(chunk.getCornerX() * Chunk.SPACING + (chunkWidth - Chunk.SPACING) * 0.5f - cameraPosition.x()) / chunkWidth;
+			float y = Math.abs(chunk.getCornerY() * Chunk.SPACING + (chunkHeight - Chunk.SPACING) * 0.5f - cameraPosition.y()) / chunkHeight;
+			float z = Math.abs(-chunk.getCornerZ() * Chunk.SPACING - (chunkDepth - Chunk.SPACING) * 0.5f - cameraPosition.z()) / chunkDepth;
+			
+			if(Math.max(x, Math.max(y, z)) <= OCCLUDER_DISTANCE) {
+				occlusionBuffer.addChunkOccluders(chunkRenderer);
+			}
+		}
+		
+		occlusionBuffer.rasterize();
+		
+		int kept = 0;
+		for(int i = 0; i < count; i++) {
+			int slot = visibleSlots[i];
+			
+			if(occlusionBuffer.isSectionVisible(chunkRenderers[slot / sectionsPerChunk].getSection(slot % sectionsPerChunk))) {
+				visibleSlots[kept++] = slot;
+			}
+		}
+		
+		return kept;
+	}
+	
+	/**
+	 * Draws what the last prepare recorded, with the program for isGreedyMeshing bound.
+	 */
+	public void draw() {
+		ChunkResidency residency = greedyMeshing ? meshResidency : chunkResidency;
+		
+		// Uploads may have grown the storage into a new buffer
+		bindStorageAttributes();
+		
+		device.bindBuffer(GL_DRAW_INDIRECT_BUFFER, commandsVBO);
+		
+		if(greedyMeshing) {
+			device.bindVertexArray(meshVAO);
+			device.multiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0, sectionsRendered, 0);
+		} else {
+			device.bindVertexArray(chunkVAO);
+			device.multiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_SHORT, 0, sectionsRendered, 0);
+		}
+		
+		device.bindVertexArray(0);
+		device.bindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+		
+		// Fences this frame's copies out of the staging ring
+		residency.endFrame();
+	}
+}
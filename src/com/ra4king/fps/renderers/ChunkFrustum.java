@@ -0,0 +1,97 @@
+package com.ra4king.fps.renderers;
+
+import java.nio.FloatBuffer;
+
+import com.ra4king.opengl.util.math.Matrix4;
+
+/**
+ * The 6 planes of a view frustum, tested against axis-aligned boxes with a plane mask: bit i set means the box may
+ * still cross plane i. A box found fully inside a plane clears its bit, and since children of a box lie inside it they
+ * need not test that plane again. A mask of 0 means the box is entirely inside the frustum.
+ *
+ * Until setup is called every plane passes everything, so every box is inside.
+ *
+ * @author Roi Atalla
+ */
+public class ChunkFrustum {
+	public static final int ALL_PLANES = (1 << 6) - 1;
+	public static final int OUTSIDE = -1;
+	
+	// a, b, c, d of each plane, normalized, with points inside having a*x + b*y + c*z + d >= 0
+	private final float[] planes = new float[6 * 4];
+	
+	public ChunkFrustum() {
+		for(int i = 0; i < 6; i++) {
+			planes[i * 4 + 3] = Float.POSITIVE_INFINITY;
+		}
+	}
+	
+	/**
+	 * Extracts the planes out of the combined projection and view matrix.
+	 */
+	public void setup(Matrix4 viewProjection) {
+		setup(viewProjection.toBuffer());
+	}
+	
+	/**
+	 * Extracts the planes out of a column-major projection and view matrix starting at the buffer's position, the
+	 * position is left unchanged.
+	 */
+	public void setup(FloatBuffer viewProjection) {
+		int base = viewProjection.position();
+		
+		// left, right, bottom, top, near, far: the 4th row plus or minus each of the other rows
+		for(int i = 0; i < 6; i++) {
+			int row = i / 2;
+			float sign = (i & 1) == 0 ? 1 : -1;
+			
+			float a = viewProjection.get(base + 3) + sign * viewProjection.get(base + row);
+			float b = viewProjection.get(base + 7) + sign * viewProjection.get(base + 4 + row);
+			float c = viewProjection.get(base + 11) + sign * viewProjection.get(base + 8 + row);
+			float d = viewProjection.get(base + 15) + sign * viewProjection.get(base + 12 + row);
+			
+			float length = (float)Math.sqrt(a * a + b * b + c * c);
+			
+			planes[i * 4] = a / length;
+			planes[i * 4 + 1] = b / length;
+			planes[i * 4 + 2] = c / length;
+			planes[i * 4 + 3] = d / length;
+		}
+	}
+	
+	/**
+	 * Tests the box against the planes in mask.
+	 *
+	 * @return OUTSIDE if the box is entirely outside one of the planes, otherwise mask without the planes the box is
+	 * entirely inside of
+	 */
+	public int test(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, int mask) {
+		float centerX = (minX + maxX) * 0.5f, centerY = (minY + maxY) * 0.5f, centerZ = (minZ + maxZ) * 0.5f;
+		float extentX = (maxX - minX) * 0.5f, extentY = (maxY - minY) * 0.5f, extentZ = (maxZ - minZ) * 0.5f;
+		
+		for(int i = 0; i < 6; i++) {
+			if((mask & (1 << i)) == 0) {
+				continue;
+			}
+			
+			float a = planes[i * 4], b = planes[i * 4 + 1], c = planes[i * 4 + 2];
+			
+			float distance = a * centerX + b * centerY + c * centerZ + planes[i * 4 + 3];
+			float radius = Math.abs(a) * extentX + Math.abs(b) * extentY + Math.abs(c) * extentZ;
+			
+			if(distance < -radius) {
+				return OUTSIDE;
+			}
+			
+			if(distance >= radius) {
+				mask &= ~(1 << i);
+			}
+		}
+		
+		return mask;
+	}
+	
+	public boolean isBoxInside(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		return test(minX, minY, minZ, maxX, maxY, maxZ, ALL_PLANES) != OUTSIDE;
+	}
+}
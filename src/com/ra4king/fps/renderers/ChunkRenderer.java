@@ -1,40 +1,70 @@
 package com.ra4king.fps.renderers;
 
-import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
-import org.lwjgl.BufferUtils;
-
-import com.ra4king.fps.actors.Block;
 import com.ra4king.fps.actors.Block.BlockType;
-import com.ra4king.fps.renderers.WorldRenderer.DrawElementsIndirectCommand;
 import com.ra4king.fps.world.Chunk;
 import com.ra4king.fps.world.Chunk.ChunkModifiedCallback;
+import com.ra4king.fps.world.DirtyRegion;
 import com.ra4king.opengl.util.Stopwatch;
-import com.ra4king.opengl.util.buffers.GLBuffer;
-
-import net.indiespot.struct.cp.Struct;
 
 public class ChunkRenderer implements ChunkModifiedCallback {
 	private Chunk chunk;
-	private GLBuffer glBuffer;
 	private int chunkNumOffset;
 	
-	private ByteBuffer buffer;
-	private Block[] compact;
-	private int blockCount;
+	// The surface blocks and meshes are kept per section, each drawn and culled on its own
+	private final ChunkSection[] sections;
+	private final int sectionSize, sectionsPerAxis;
+	
+	// Block index -> its slot in its section or -1 if it is not drawn
+	private final int[] blockSlots;
+	
+	private boolean rebuild = true;
 	
-	private boolean chunkModified = true;
+	// Per Chunk.FACE_* bit position, the fully solid layer of blocks closest to that side of the chunk, -1 if none
+	private final int[] solidLayers = { -1, -1, -1, -1, -1, -1 };
 	
-	public static final int CHUNK_DATA_SIZE = Chunk.TOTAL_BLOCKS * Struct.sizeof(Block.class);
+	// Changes since the last update, only these blocks and the blocks next to them are tested again
+	private final DirtyRegion dirtyRegion;
 	
-	public ChunkRenderer(Chunk chunk, GLBuffer glBuffer, int chunkNumOffset) {
+	public static final int DEFAULT_SECTION_SIZE = 16;
+	
+	// The cube drawn for each instance, WorldRenderer keeps one copy of its vertices per chunk slot
+	public static final int CUBE_VERTEX_COUNT = 4 * 6;
+	public static final int CUBE_INDEX_COUNT = 6 * 6;
+	
+	public ChunkRenderer(Chunk chunk, int chunkNumOffset) {
+		this(chunk, chunkNumOffset, DEFAULT_SECTION_SIZE);
+	}
+	
+	/**
+	 * @param sectionSize blocks along each axis of a section, must divide the chunk size
+	 */
+	public ChunkRenderer(Chunk chunk, int chunkNumOffset, int sectionSize) {
+		if(!isValidSectionSize(sectionSize)) {
+			throw new IllegalArgumentException("Section size must divide " + Chunk.CHUNK_BLOCK_WIDTH + ": " + sectionSize);
+		}
+		
 		this.chunk = chunk;
-		this.glBuffer = glBuffer;
 		this.chunkNumOffset = chunkNumOffset;
+		this.sectionSize = sectionSize;
 		
-		// map the Block array to a ByteBuffer
-		buffer = BufferUtils.createByteBuffer(CHUNK_DATA_SIZE);
-		compact = Struct.map(Block.class, buffer);
+		sectionsPerAxis = Chunk.CHUNK_BLOCK_WIDTH / sectionSize;
+		sections = new ChunkSection[getSectionsPerChunk(sectionSize)];
+		for(int z = 0; z < sectionsPerAxis; z++) {
+			for(int y = 0; y < sectionsPerAxis; y++) {
+				for(int x = 0; x < sectionsPerAxis; x++) {
+					int index = (z * sectionsPerAxis + y) * sectionsPerAxis + x;
+					sections[index] = new ChunkSection(this, index, x * sectionSize, y * sectionSize, z * sectionSize, sectionSize);
+				}
+			}
+		}
+		
+		blockSlots = new int[Chunk.TOTAL_BLOCKS];
+		Arrays.fill(blockSlots, -1);
+		
+		dirtyRegion = new DirtyRegion();
 		
 		chunk.setCallback(this);
 	}
@@ -43,96 +73,316 @@ public class ChunkRenderer implements ChunkModifiedCallback {
 		return chunk;
 	}
 	
+	public int getChunkNumOffset() {
+		return chunkNumOffset;
+	}
+	
+	public static boolean isValidSectionSize(int sectionSize) {
+		return sectionSize > 0 && Chunk.CHUNK_BLOCK_WIDTH == Chunk.CHUNK_BLOCK_HEIGHT && Chunk.CHUNK_BLOCK_WIDTH == Chunk.CHUNK_BLOCK_DEPTH &&
+				Chunk.CHUNK_BLOCK_WIDTH % sectionSize == 0;
+	}
+	
+	public static int getSectionsPerChunk(int sectionSize) {
+		int sectionsPerAxis = Chunk.CHUNK_BLOCK_WIDTH / sectionSize;
+		return sectionsPerAxis * sectionsPerAxis * sectionsPerAxis;
+	}
+	
+	public int getSectionCount() {
+		return sections.length;
+	}
+	
+	public int getSectionSize() {
+		return sectionSize;
+	}
+	
+	public ChunkSection getSection(int index) {
+		return sections[index];
+	}
+	
+	private ChunkSection getSection(int x, int y, int z) {
+		return sections[((z / sectionSize) * sectionsPerAxis + y / sectionSize) * sectionsPerAxis + x / sectionSize];
+	}
+	
 	@Override
-	public void chunkModified(Block block) {
-		if(block != Struct.nullStruct(Block.class)) {
-			if(!chunk.containsBlock(block)) {
-				throw new IllegalArgumentException(String.format("Invalid block: (%d,%d,%d) of type %s. Chunk corner: (%d,%d,%d)",
-						block.getX(), block.getY(), block.getZ(), block.getType().toString(),
-						chunk.getCornerX(), chunk.getCornerY(), chunk.getCornerZ()));
+	public void chunkModified(DirtyRegion region) {
+		// Neighboring chunks are marked dirty by the ChunkManager when a change touches their border
+		if(region.isWholeChunk()) {
+			rebuild = true;
+			
+			for(ChunkSection section : sections) {
+				section.markMeshDirty();
 			}
+		} else {
+			dirtyRegion.include(region);
+			
+			// A changed block also changes the faces of the blocks next to it, which can be in the next section
+			int minX = Math.max(region.getMinX() - 1, 0) / sectionSize, maxX = (Math.min(region.getMaxX() + 1, Chunk.CHUNK_BLOCK_WIDTH) - 1) / sectionSize;
+			int minY = Math.max(region.getMinY() - 1, 0) / sectionSize, maxY = (Math.min(region.getMaxY() + 1, Chunk.CHUNK_BLOCK_HEIGHT) - 1) / sectionSize;
+			int minZ = Math.max(region.getMinZ() - 1, 0) / sectionSize, maxZ = (Math.min(region.getMaxZ() + 1, Chunk.CHUNK_BLOCK_DEPTH) - 1) / sectionSize;
 			
-			testForSurface(block);
+			for(int z = minZ; z <= maxZ; z++) {
+				for(int y = minY; y <= maxY; y++) {
+					for(int x = minX; x <= maxX; x++) {
+						sections[(z * sectionsPerAxis + y) * sectionsPerAxis + x].markMeshDirty();
+					}
+				}
+			}
 		}
-		
-		chunkModified = true;
 	}
 	
-	private void testForSurface(Block block) {
-		Chunk neighbor;
-		if(block.getX() == chunk.getCornerX()) {
-			neighbor = chunk.getChunkManager().getChunkContaining(chunk.getCornerX() - Chunk.CHUNK_BLOCK_WIDTH, chunk.getCornerY(), chunk.getCornerZ());
-			if(neighbor != null) {
-				neighbor.getCallback().chunkModified(Struct.nullStruct(Block.class));
-			}
-		} else if(block.getX() == chunk.getCornerX() + Chunk.CHUNK_BLOCK_WIDTH - 1) {
-			neighbor = chunk.getChunkManager().getChunkContaining(chunk.getCornerX() + Chunk.CHUNK_BLOCK_WIDTH, chunk.getCornerY(), chunk.getCornerZ());
-			if(neighbor != null) {
-				neighbor.getCallback().chunkModified(Struct.nullStruct(Block.class));
-			}
-		} else if(block.getY() == chunk.getCornerY()) {
-			neighbor = chunk.getChunkManager().getChunkContaining(chunk.getCornerX(), chunk.getCornerY() - Chunk.CHUNK_BLOCK_HEIGHT, chunk.getCornerZ());
-			if(neighbor != null) {
-				neighbor.getCallback().chunkModified(Struct.nullStruct(Block.class));
-			}
-		} else if(block.getY() == chunk.getCornerY() + Chunk.CHUNK_BLOCK_HEIGHT - 1) {
-			neighbor = chunk.getChunkManager().getChunkContaining(chunk.getCornerX(), chunk.getCornerY() + Chunk.CHUNK_BLOCK_HEIGHT, chunk.getCornerZ());
-			if(neighbor != null) {
-				neighbor.getCallback().chunkModified(Struct.nullStruct(Block.class));
-			}
-		} else if(block.getZ() == chunk.getCornerZ()) {
-			neighbor = chunk.getChunkManager().getChunkContaining(chunk.getCornerX(), chunk.getCornerY(), chunk.getCornerZ() - Chunk.CHUNK_BLOCK_DEPTH);
-			if(neighbor != null) {
-				neighbor.getCallback().chunkModified(Struct.nullStruct(Block.class));
-			}
-		} else if(block.getZ() == chunk.getCornerZ() + Chunk.CHUNK_BLOCK_DEPTH - 1) {
-			neighbor = chunk.getChunkManager().getChunkContaining(chunk.getCornerX(), chunk.getCornerY(), chunk.getCornerZ() + Chunk.CHUNK_BLOCK_DEPTH);
-			if(neighbor != null) {
-				neighbor.getCallback().chunkModified(Struct.nullStruct(Block.class));
+	/**
+	 * True if blocks changed since the last update.
+	 */
+	public boolean needsUpdate() {
+		return rebuild || !dirtyRegion.isEmpty();
+	}
+	
+	/**
+	 * True if a section's mesh is out of date, including sections never meshed.
+	 */
+	public boolean isMeshDirty() {
+		for(ChunkSection section : sections) {
+			if(section.isMeshDirty()) {
+				return true;
 			}
 		}
+		return false;
 	}
 	
 	public void update() {
-		if(chunkModified) {
-			blockCount = 0;
+		if(rebuild) {
+			rebuild = false;
+			dirtyRegion.clear();
 			
+			rebuildAll();
+			updateSolidLayers();
+		} else if(!dirtyRegion.isEmpty()) {
 			Stopwatch.start("Update Compact Array");
 			
-			for(Block block : chunk.getBlocks()) {
-				if(block.getType() != BlockType.AIR && !block.isSurrounded(chunk)) {
-					Struct.copy(Block.class, block, compact[blockCount++]);
+			updateRegion(dirtyRegion);
+			updateSolidLayers();
+			dirtyRegion.clear();
+			
+			Stopwatch.stop();
+		}
+	}
+	
+	/**
+	 * Meshes again the sections a change since their last mesh touched, see ChunkSection.updateMesh.
+	 */
+	public void updateMesh(GreedyMesher mesher, IntBuffer scratch) {
+		for(ChunkSection section : sections) {
+			section.updateMesh(mesher, scratch);
+		}
+	}
+	
+	private void rebuildAll() {
+		for(ChunkSection section : sections) {
+			for(int slot = 0; slot < section.getLastCubeRenderCount(); slot++) {
+				blockSlots[section.getBlock(slot)] = -1;
+			}
+			section.clear();
+		}
+		
+		if(chunk.isUniform()) {
+			// Uniform chunks: all air has nothing to draw, a solid chunk only has its outer shell to check
+			if(chunk.getUniformType() == BlockType.AIR || isBuried()) {
+				return;
+			}
+			
+			Stopwatch.start("Update Compact Array");
+			
+			BlockType type = chunk.getUniformType();
+			for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+				for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+					boolean edge = z == 0 || z == Chunk.CHUNK_BLOCK_DEPTH - 1 || y == 0 || y == Chunk.CHUNK_BLOCK_HEIGHT - 1;
+					
+					for(int x = 0; x < Chunk.CHUNK_BLOCK_WIDTH; x += edge ? 1 : Chunk.CHUNK_BLOCK_WIDTH - 1) {
+						int faces = chunk.getVisibleFaces(x, y, z);
+						if(faces != 0) {
+							add(Chunk.localToIndex(x, y, z), x, y, z, type, faces);
+						}
+					}
 				}
 			}
 			
 			Stopwatch.stop();
 			
-			chunkModified = false;
+			return;
+		}
+		
+		Stopwatch.start("Update Compact Array");
+		
+		// Whole rows of surface blocks are found at once from the chunk's occupancy bitset
+		for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+			for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+				for(int surface = chunk.getSurfaceRow(y, z); surface != 0; surface &= surface - 1) {
+					int x = Integer.numberOfTrailingZeros(surface);
+					int i = Chunk.localToIndex(x, y, z);
+					add(i, x, y, z, chunk.getType(i), chunk.getVisibleFaces(x, y, z));
+				}
+			}
+		}
+		
+		Stopwatch.stop();
+	}
+	
+	/**
+	 * Tests the changed blocks and the blocks sharing a face with them, so a single changed block only costs 7 tests.
+	 */
+	private void updateRegion(DirtyRegion region) {
+		int minX = Math.max(region.getMinX() - 1, 0), maxX = Math.min(region.getMaxX() + 1, Chunk.CHUNK_BLOCK_WIDTH);
+		int minY = Math.max(region.getMinY() - 1, 0), maxY = Math.min(region.getMaxY() + 1, Chunk.CHUNK_BLOCK_HEIGHT);
+		int minZ = Math.max(region.getMinZ() - 1, 0), maxZ = Math.min(region.getMaxZ() + 1, Chunk.CHUNK_BLOCK_DEPTH);
+		
+		for(int z = minZ; z < maxZ; z++) {
+			int outsideZ = z < region.getMinZ() || z >= region.getMaxZ() ? 1 : 0;
+			
+			for(int y = minY; y < maxY; y++) {
+				int outsideY = outsideZ + (y < region.getMinY() || y >= region.getMaxY() ? 1 : 0);
+				if(outsideY > 1) {
+					continue;
+				}
+				
+				for(int x = minX; x < maxX; x++) {
+					int outside = outsideY + (x < region.getMinX() || x >= region.getMaxX() ? 1 : 0);
+					
+					// Blocks only touching the region by an edge or a corner cannot have changed
+					if(outside > 1) {
+						continue;
+					}
+					
+					int i = Chunk.localToIndex(x, y, z);
+					BlockType type = chunk.getType(i);
+					
+					// A solid block is visible as long as one of its faces is
+					int faces = type == BlockType.AIR ? 0 : chunk.getVisibleFaces(x, y, z);
+					int slot = blockSlots[i];
+					
+					if(faces != 0) {
+						if(slot == -1) {
+							add(i, x, y, z, type, faces);
+						} else {
+							ChunkSection section = getSection(x, y, z);
+							int instance = section.get(slot);
+							int updated = BlockInstance.setFaces(BlockInstance.setType(instance, type), faces);
+							
+							// Only sections whose instances really changed are uploaded again
+							if(updated != instance) {
+								section.set(slot, updated);
+							}
+						}
+					} else if(slot != -1) {
+						remove(i, x, y, z);
+					}
+				}
+			}
 		}
 	}
 	
-	public int getLastCubeRenderCount() {
-		return blockCount;
+	private void add(int i, int x, int y, int z, BlockType type, int faces) {
+		blockSlots[i] = getSection(x, y, z).add(i, BlockInstance.encode(x, y, z, type, faces));
 	}
 	
-	public boolean render(DrawElementsIndirectCommand command, int baseInstance) {
-		if(blockCount == 0)
-			return false;
+	/**
+	 * Swap-removes the block at index i from its section: the section's last instance moves into its slot.
+	 */
+	private void remove(int i, int x, int y, int z) {
+		int slot = blockSlots[i];
+		int moved = getSection(x, y, z).remove(slot);
 		
-		Stopwatch.start("Upload VBO");
+		if(moved != -1) {
+			blockSlots[moved] = slot;
+		}
 		
-		final int DATA_SIZE = blockCount * Struct.sizeof(Block.class);
+		blockSlots[i] = -1;
+	}
+	
+	/**
+	 * Finds the first and last fully solid layer of blocks along each axis from the occupancy bitset.
+	 */
+	private void updateSolidLayers() {
+		long[] occupancy = chunk.getOccupancy();
+		long fullRow = (1L << Chunk.CHUNK_BLOCK_WIDTH) - 1;
 		
-		ByteBuffer uploadBuffer = glBuffer.bind(chunkNumOffset * CHUNK_DATA_SIZE, DATA_SIZE);
-		buffer.limit(DATA_SIZE).position(0);
-		uploadBuffer.put(buffer);
-		glBuffer.unbind();
+		// Bit x is cleared by any row missing block x, bits y and z by any row of their layer missing a block
+		long solidX = fullRow;
+		long solidY = (1L << Chunk.CHUNK_BLOCK_HEIGHT) - 1;
+		long solidZ = (1L << Chunk.CHUNK_BLOCK_DEPTH) - 1;
 		
-		Stopwatch.stop();
+		for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+			for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+				long row = occupancy[Chunk.getOccupancyRow(y, z)] >>> 1 & fullRow;
+				
+				solidX &= row;
+				if(row != fullRow) {
+					solidY &= ~(1L << y);
+					solidZ &= ~(1L << z);
+				}
+			}
+		}
 		
-		command.instanceCount = blockCount;
-		command.baseInstance = baseInstance + chunkNumOffset * Chunk.TOTAL_BLOCKS;
+		setSolidLayers(0, solidX);
+		setSolidLayers(2, solidY);
+		setSolidLayers(4, solidZ);
+	}
+	
+	private void setSolidLayers(int side, long layers) {
+		solidLayers[side] = layers == 0 ? -1 : Long.numberOfTrailingZeros(layers);
+		solidLayers[side + 1] = layers == 0 ? -1 : 63 - Long.numberOfLeadingZeros(layers);
+	}
+	
+	/**
+	 * The local index along the side's axis of the fully solid layer of blocks closest to that side, -1 if no layer is
+	 * fully solid. Both sides of an axis return the same layer if only one is.
+	 *
+	 * @param side the bit position of one of Chunk.FACE_*
+	 */
+	public int getSolidLayer(int side) {
+		return solidLayers[side];
+	}
+	
+	/**
+	 * True if all 6 neighboring chunks are uniformly solid, so none of this chunk's blocks can be seen.
+	 */
+	private boolean isBuried() {
+		int cx = chunk.getCornerX() / Chunk.CHUNK_BLOCK_WIDTH;
+		int cy = chunk.getCornerY() / Chunk.CHUNK_BLOCK_HEIGHT;
+		int cz = chunk.getCornerZ() / Chunk.CHUNK_BLOCK_DEPTH;
 		
-		return true;
+		return isUniformSolid(chunk.getChunkManager().getChunk(cx - 1, cy, cz)) &&
+				isUniformSolid(chunk.getChunkManager().getChunk(cx + 1, cy, cz)) &&
+				isUniformSolid(chunk.getChunkManager().getChunk(cx, cy - 1, cz)) &&
+				isUniformSolid(chunk.getChunkManager().getChunk(cx, cy + 1, cz)) &&
+				isUniformSolid(chunk.getChunkManager().getChunk(cx, cy, cz - 1)) &&
+				isUniformSolid(chunk.getChunkManager().getChunk(cx, cy, cz + 1));
+	}
+	
+	private static boolean isUniformSolid(Chunk chunk) {
+		return chunk != null && chunk.isUniform() && chunk.getUniformType() != BlockType.AIR;
+	}
+	
+	public int getLastCubeRenderCount() {
+		int count = 0;
+		for(ChunkSection section : sections) {
+			count += section.getLastCubeRenderCount();
+		}
+		return count;
+	}
+	
+	public int getLastFaceRenderCount() {
+		int count = 0;
+		for(ChunkSection section : sections) {
+			count += section.getLastFaceRenderCount();
+		}
+		return count;
+	}
+	
+	public int getLastQuadRenderCount() {
+		int count = 0;
+		for(ChunkSection section : sections) {
+			count += section.getLastQuadRenderCount();
+		}
+		return count;
 	}
 }
@@ -0,0 +1,295 @@
+package com.ra4king.fps.renderers;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps each chunk's GPU data resident in a region of one buffer and only uploads it again when it changed, as told by
+ * a generation the caller bumps on every change. Regions are sized to the data, with some room to grow, by a
+ * RegionAllocator. When it runs out of room it is defragmented if that frees enough contiguous space, else the buffer
+ * is doubled. The buffer is behind SlotBuffer so all of the bookkeeping works without a GL context.
+ *
+ * @author Roi Atalla
+ */
+public class ChunkResidency {
+	/**
+	 * Where the regions live. Uploads may be staged: the data only has to reach the buffer before the next draw is
+	 * issued.
+	 */
+	public interface SlotBuffer {
+		/**
+		 * @return a view for the size bytes of the next upload to be written into, or null if there is no room left
+		 * for uploads this frame
+		 */
+		ByteBuffer beginUpload(int size);
+		
+		/**
+		 * Makes the bytes written since beginUpload the contents of the buffer starting at offset.
+		 */
+		void endUpload(int offset);
+		
+		/**
+		 * Copies size bytes within the buffer from one offset down to a lower one, the ranges may overlap.
+		 */
+		void move(int from, int to, int size);
+		
+		int getSize();
+		
+		/**
+		 * Grows the buffer, keeping its contents.
+		 */
+		void resize(int size);
+		
+		/**
+		 * Called once per frame, after the draws reading this frame's uploads were issued.
+		 */
+		void endFrame();
+	}
+	
+	// Offsets are multiples of this, which is a multiple of the size of every element drawn from the buffer
+	public static final int ALIGNMENT = 64;
+	
+	private static final long NOT_RESIDENT = -1;
+	
+	private final SlotBuffer buffer;
+	private final int maxSlotSize;
+	private final RegionAllocator allocator;
+	
+	// The generation each slot holds, NOT_RESIDENT if it holds nothing valid, and its region or NONE if it has none
+	private long[] generations;
+	private int[] regions;
+	
+	private int[] freeSlots;
+	private int freeSlotCount;
+	
+	private int frameUploads, lastFrameUploads;
+	private long frameBytes, lastFrameBytes, totalBytes;
+	private int defragmentCount, growCount;
+	
+	/**
+	 * @param maxSlotSize the most data one slot may hold
+	 */
+	public ChunkResidency(SlotBuffer buffer, int slotCount, int maxSlotSize) {
+		this.buffer = buffer;
+		this.maxSlotSize = maxSlotSize;
+		
+		allocator = new RegionAllocator(buffer.getSize(), ALIGNMENT);
+		
+		generations = new long[slotCount];
+		regions = new int[slotCount];
+		
+		freeSlots = new int[slotCount];
+		for(int i = 0; i < slotCount; i++) {
+			generations[i] = NOT_RESIDENT;
+			regions[i] = RegionAllocator.NONE;
+			freeSlots[freeSlotCount++] = slotCount - 1 - i;
+		}
+	}
+	
+	public SlotBuffer getSlotBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * For its statistics, the regions must only be changed through this ChunkResidency.
+	 */
+	public RegionAllocator getAllocator() {
+		return allocator;
+	}
+	
+	public int getSlotCount() {
+		return generations.length;
+	}
+	
+	public int getFreeSlotCount() {
+		return freeSlotCount;
+	}
+	
+	/**
+	 * Adds empty slots up to slotCount, the existing slots keep their data. The new slots are allocated after the ones
+	 * already free.
+	 */
+	public void growSlots(int slotCount) {
+		int oldSlotCount = generations.length;
+		if(slotCount <= oldSlotCount) {
+			return;
+		}
+		
+		generations = Arrays.copyOf(generations, slotCount);
+		regions = Arrays.copyOf(regions, slotCount);
+		Arrays.fill(generations, oldSlotCount, slotCount, NOT_RESIDENT);
+		Arrays.fill(regions, oldSlotCount, slotCount, RegionAllocator.NONE);
+		
+		int[] newFreeSlots = new int[slotCount];
+		int newFreeSlotCount = 0;
+		for(int slot = slotCount - 1; slot >= oldSlotCount; slot--) {
+			newFreeSlots[newFreeSlotCount++] = slot;
+		}
+		System.arraycopy(freeSlots, 0, newFreeSlots, newFreeSlotCount, freeSlotCount);
+		
+		freeSlots = newFreeSlots;
+		freeSlotCount += newFreeSlotCount;
+	}
+	
+	/**
+	 * @return a free slot, or -1 if all are taken
+	 */
+	public int allocate() {
+		return freeSlotCount == 0 ? -1 : freeSlots[--freeSlotCount];
+	}
+	
+	public void free(int slot) {
+		invalidate(slot);
+		freeSlots[freeSlotCount++] = slot;
+	}
+	
+	/**
+	 * Forgets what the slot holds and gives back its region, the next upload to it always goes through.
+	 */
+	public void invalidate(int slot) {
+		generations[slot] = NOT_RESIDENT;
+		
+		if(regions[slot] != RegionAllocator.NONE) {
+			allocator.free(regions[slot]);
+			regions[slot] = RegionAllocator.NONE;
+		}
+	}
+	
+	/**
+	 * True if the slot holds some generation, not necessarily the latest one.
+	 */
+	public boolean isResident(int slot) {
+		return generations[slot] != NOT_RESIDENT;
+	}
+	
+	/**
+	 * Where the slot's data starts in the buffer, only valid until the next upload since uploads may move regions.
+	 */
+	public int getOffset(int slot) {
+		return regions[slot] == RegionAllocator.NONE ? 0 : allocator.getOffset(regions[slot]);
+	}
+	
+	/**
+	 * Uploads data, from its position to its limit, into the slot unless the slot already holds this generation.
+	 *
+	 * @return true if the slot holds this generation afterwards, false if there was no room to upload it this frame
+	 */
+	public boolean upload(int slot, long generation, ByteBuffer data) {
+		if(generations[slot] == generation) {
+			return true;
+		}
+		
+		int size = data.remaining();
+		if(size > maxSlotSize) {
+			throw new IllegalArgumentException("Upload of " + size + " bytes does not fit in a slot of " + maxSlotSize + " bytes.");
+		}
+		
+		if(size == 0) {
+			invalidate(slot);
+		} else {
+			// Staging room first, the region is only touched once the upload is sure to happen
+			ByteBuffer staging = buffer.beginUpload(size);
+			if(staging == null) {
+				return false;
+			}
+			
+			staging.put(data);
+			buffer.endUpload(allocator.getOffset(fitRegion(slot, size)));
+			
+			frameUploads++;
+			frameBytes += size;
+			totalBytes += size;
+		}
+		
+		generations[slot] = generation;
+		return true;
+	}
+	
+	/**
+	 * Makes the slot's region hold at least size bytes, its old contents are not kept.
+	 */
+	private int fitRegion(int slot, int size) {
+		// A quarter more so that a chunk growing by a few blocks stays in place
+		int wanted = Math.min(size + size / 4, maxSlotSize);
+		
+		int region = regions[slot];
+		
+		if(region != RegionAllocator.NONE) {
+			int regionSize = allocator.getSize(region);
+			
+			if(regionSize < size || regionSize > wanted * 2) {
+				region = allocator.reallocate(region, wanted);
+				
+				if(region == RegionAllocator.NONE) {
+					allocator.free(regions[slot]);
+				}
+			}
+		}
+		
+		if(region == RegionAllocator.NONE) {
+			region = allocateRegion(wanted);
+		}
+		
+		regions[slot] = region;
+		return region;
+	}
+	
+	private int allocateRegion(int size) {
+		int region = allocator.allocate(size);
+		
+		if(region == RegionAllocator.NONE && allocator.getFreeBytes() >= size) {
+			// Enough free space, only not in one piece
+			allocator.defragment((handle, from, to, bytes) -> buffer.move(from, to, bytes));
+			defragmentCount++;
+			
+			region = allocator.allocate(size);
+		}
+		
+		if(region == RegionAllocator.NONE) {
+			int capacity = Math.max(allocator.getCapacity() * 2, allocator.getCapacity() + size);
+			
+			buffer.resize(capacity);
+			allocator.grow(capacity);
+			growCount++;
+			
+			region = allocator.allocate(size);
+		}
+		
+		return region;
+	}
+	
+	public void endFrame() {
+		buffer.endFrame();
+		
+		lastFrameUploads = frameUploads;
+		lastFrameBytes = frameBytes;
+		frameUploads = 0;
+		frameBytes = 0;
+	}
+	
+	/**
+	 * Slots uploaded during the last frame.
+	 */
+	public int getLastFrameUploads() {
+		return lastFrameUploads;
+	}
+	
+	/**
+	 * Bytes uploaded during the last frame.
+	 */
+	public long getLastFrameBytes() {
+		return lastFrameBytes;
+	}
+	
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+	
+	public int getDefragmentCount() {
+		return defragmentCount;
+	}
+	
+	public int getGrowCount() {
+		return growCount;
+	}
+}
@@ -0,0 +1,300 @@
+package com.ra4king.fps.renderers;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+
+import com.ra4king.fps.renderers.WorldRenderer.DrawElementsIndirectCommand;
+import com.ra4king.opengl.util.Stopwatch;
+
+/**
+ * A cube of blocks of a ChunkRenderer's chunk: the surface blocks inside it and, once greedy meshing is used, its mesh.
+ * Each has its own generation, residency slot, draw command and box to cull, so an edit only uploads the sections it
+ * changed and the sections of a chunk outside the view are not drawn. Instances and mesh vertices keep their positions
+ * local to the chunk, the chunk's corner still comes from its chunk slot.
+ *
+ * The instances are changed by the ChunkRenderer, which keeps the slot each block's instance is in.
+ *
+ * @author Roi Atalla
+ */
+public class ChunkSection {
+	private final ChunkRenderer chunkRenderer;
+	private final int index;
+	private final int minX, minY, minZ, size;
+	
+	// Packed BlockInstances of the surface blocks, and the block index in the chunk of each
+	private final ByteBuffer buffer;
+	private final IntBuffer compact;
+	private final int[] slotBlocks;
+	private int blockCount;
+	
+	// Total visible faces of the blocks in compact, blocks.vert collapses the others
+	private int faceCount;
+	
+	// Bumped whenever compact changes, the slot is only uploaded again when this differs from what it holds
+	private long generation;
+	private int residentCount;
+	
+	// The greedy mesh is only built while WorldRenderer uses it, and rebuilt whole when a block in or next to the
+	// section changed. meshBuffer only grows to what the mesh needs, it is meshed into a worst case scratch buffer.
+	private ByteBuffer meshBuffer;
+	private IntBuffer meshVertices;
+	private int quadCount;
+	private boolean meshDirty = true;
+	private long meshGeneration;
+	private int residentQuadCount;
+	
+	ChunkSection(ChunkRenderer chunkRenderer, int index, int minX, int minY, int minZ, int size) {
+		this.chunkRenderer = chunkRenderer;
+		this.index = index;
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.size = size;
+		
+		buffer = BufferUtils.createByteBuffer(getDataSize(size));
+		compact = buffer.asIntBuffer();
+		slotBlocks = new int[size * size * size];
+	}
+	
+	/**
+	 * The most instance data a section of this size holds.
+	 */
+	public static int getDataSize(int size) {
+		return size * size * size * BlockInstance.SIZE;
+	}
+	
+	/**
+	 * The worst case, a 3D checkerboard: half the blocks are solid, each showing all 6 faces and none of them merged.
+	 */
+	public static int getMaxMeshQuads(int size) {
+		return 3 * size * size * size;
+	}
+	
+	public static int getMeshDataSize(int size) {
+		return getMaxMeshQuads(size) * GreedyMesher.VERTICES_PER_QUAD * 4;
+	}
+	
+	public ChunkRenderer getChunkRenderer() {
+		return chunkRenderer;
+	}
+	
+	/**
+	 * The index of this section in its ChunkRenderer.
+	 */
+	public int getIndex() {
+		return index;
+	}
+	
+	/**
+	 * The residency slot of this section, its chunk's slot times the sections per chunk plus its index.
+	 */
+	public int getSlot() {
+		return chunkRenderer.getChunkNumOffset() * chunkRenderer.getSectionCount() + index;
+	}
+	
+	/**
+	 * Local block position of the section's min corner in its chunk.
+	 */
+	public int getMinX() {
+		return minX;
+	}
+	
+	public int getMinY() {
+		return minY;
+	}
+	
+	public int getMinZ() {
+		return minZ;
+	}
+	
+	/**
+	 * Blocks along each axis.
+	 */
+	public int getSize() {
+		return size;
+	}
+	
+	public long getGeneration() {
+		return generation;
+	}
+	
+	public long getMeshGeneration() {
+		return meshGeneration;
+	}
+	
+	public int getLastCubeRenderCount() {
+		return blockCount;
+	}
+	
+	public int getLastFaceRenderCount() {
+		return faceCount;
+	}
+	
+	public int getLastQuadRenderCount() {
+		return quadCount;
+	}
+	
+	/**
+	 * @return the slot of the new instance
+	 */
+	int add(int block, int instance) {
+		compact.put(blockCount, instance);
+		faceCount += Integer.bitCount(BlockInstance.getFaces(instance));
+		slotBlocks[blockCount] = block;
+		generation++;
+		return blockCount++;
+	}
+	
+	void set(int slot, int instance) {
+		faceCount += Integer.bitCount(BlockInstance.getFaces(instance)) - Integer.bitCount(BlockInstance.getFaces(compact.get(slot)));
+		compact.put(slot, instance);
+		generation++;
+	}
+	
+	int get(int slot) {
+		return compact.get(slot);
+	}
+	
+	/**
+	 * Swap-removes the instance in the slot: the last instance moves into it.
+	 *
+	 * @return the block index of the instance moved into the slot, -1 if the slot was the last one
+	 */
+	int remove(int slot) {
+		int last = --blockCount;
+		
+		faceCount -= Integer.bitCount(BlockInstance.getFaces(compact.get(slot)));
+		generation++;
+		
+		if(slot == last) {
+			return -1;
+		}
+		
+		compact.put(slot, compact.get(last));
+		slotBlocks[slot] = slotBlocks[last];
+		return slotBlocks[slot];
+	}
+	
+	/**
+	 * The block index in the chunk of each slot's instance.
+	 */
+	int getBlock(int slot) {
+		return slotBlocks[slot];
+	}
+	
+	void clear() {
+		if(blockCount != 0) {
+			blockCount = 0;
+			faceCount = 0;
+			generation++;
+		}
+	}
+	
+	void markMeshDirty() {
+		meshDirty = true;
+	}
+	
+	public boolean isMeshDirty() {
+		return meshDirty;
+	}
+	
+	/**
+	 * @param scratch holds at least getMeshDataSize(size) bytes, its contents are overwritten
+	 */
+	public void updateMesh(GreedyMesher mesher, IntBuffer scratch) {
+		if(!meshDirty) {
+			return;
+		}
+		
+		meshDirty = false;
+		
+		Stopwatch.start("Greedy Meshing");
+		
+		scratch.clear();
+		int quads = mesher.mesh(chunkRenderer.getChunk(), minX, minY, minZ, size, size, size, scratch);
+		int vertices = quads * GreedyMesher.VERTICES_PER_QUAD;
+		
+		if(vertices > 0 && (meshVertices == null || meshVertices.capacity() < vertices)) {
+			// Some room to grow, so edits adding a few quads do not reallocate
+			meshBuffer = BufferUtils.createByteBuffer(Math.min(vertices + vertices / 4, getMaxMeshQuads(size) * GreedyMesher.VERTICES_PER_QUAD) * 4);
+			meshVertices = meshBuffer.asIntBuffer();
+		}
+		
+		if(vertices > 0) {
+			scratch.flip();
+			meshVertices.clear();
+			meshVertices.put(scratch);
+		}
+		
+		quadCount = quads;
+		meshGeneration++;
+		
+		Stopwatch.stop();
+	}
+	
+	/**
+	 * Uploads the instances to this section's slot if they changed since the last upload.
+	 *
+	 * @return false if there is nothing to draw, including when the slot never received the instances
+	 */
+	public boolean render(DrawElementsIndirectCommand command, ChunkResidency residency) {
+		if(blockCount == 0)
+			return false;
+		
+		int slot = getSlot();
+		
+		Stopwatch.start("Upload VBO");
+		
+		buffer.limit(blockCount * BlockInstance.SIZE).position(0);
+		if(residency.upload(slot, generation, buffer)) {
+			residentCount = blockCount;
+		}
+		
+		Stopwatch.stop();
+		
+		// Out of staging space this frame, the slot keeps drawing what it held before
+		if(!residency.isResident(slot))
+			return false;
+		
+		command.count = ChunkRenderer.CUBE_INDEX_COUNT;
+		command.instanceCount = residentCount;
+		command.firstIndex = 0;
+		command.baseVertex = chunkRenderer.getChunkNumOffset() * ChunkRenderer.CUBE_VERTEX_COUNT; // selects the cube copy holding the chunk's corner
+		command.baseInstance = residency.getOffset(slot) / BlockInstance.SIZE;
+		
+		return true;
+	}
+	
+	/**
+	 * Uploads the greedy mesh to this section's slot if it changed since the last upload and draws it as a single
+	 * instance, baseInstance selects the chunk's corner in the per-chunk attribute.
+	 */
+	public boolean renderMesh(DrawElementsIndirectCommand command, ChunkResidency residency) {
+		if(quadCount == 0)
+			return false;
+		
+		int slot = getSlot();
+		
+		Stopwatch.start("Upload VBO");
+		
+		meshBuffer.limit(quadCount * GreedyMesher.VERTICES_PER_QUAD * 4).position(0);
+		if(residency.upload(slot, meshGeneration, meshBuffer)) {
+			residentQuadCount = quadCount;
+		}
+		
+		Stopwatch.stop();
+		
+		if(!residency.isResident(slot))
+			return false;
+		
+		command.count = residentQuadCount * GreedyMesher.INDICES_PER_QUAD;
+		command.instanceCount = 1;
+		command.firstIndex = 0;
+		command.baseVertex = residency.getOffset(slot) / 4;
+		command.baseInstance = chunkRenderer.getChunkNumOffset();
+		
+		return true;
+	}
+}
@@ -0,0 +1,120 @@
+package com.ra4king.fps.renderers;
+
+import java.util.Arrays;
+
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Orders the chunks waiting for an update so that a frame's time budget goes to the ones that matter most: the closest
+ * to the camera first, and chunks drawn in the last frame before the ones that were not. Every frame a chunk waits
+ * moves it forward, and a chunk that waited MAX_WAIT_FRAMES goes before all others, so a burst of far away edits is
+ * always finished eventually while the camera keeps editing close by.
+ *
+ * Until a chunk is updated it keeps drawing what it held before.
+ *
+ * @author Roi Atalla
+ */
+public class ChunkUpdateScheduler {
+	// Chunks not drawn in the last frame wait as if they were this many times farther away
+	private static final float HIDDEN_WEIGHT = 4;
+	
+	// Every this many frames of waiting halve a chunk's distance
+	private static final float AGING_FRAMES = 30;
+	
+	// After this many frames of waiting a chunk goes before all others
+	private static final int MAX_WAIT_FRAMES = 120;
+	
+	private final ChunkRenderer[] chunkRenderers;
+	
+	// Per slot, the frames it has been waiting for, 0 when it has nothing to update
+	private final int[] waitFrames;
+	
+	// Priority in the high bits and slot in the low bits, lowest first
+	private final long[] order;
+	
+	/**
+	 * @param chunkRenderers the renderer of each slot, empty slots null. Read on every schedule, so it may change between
+	 *                       calls.
+	 */
+	public ChunkUpdateScheduler(ChunkRenderer[] chunkRenderers) {
+		this.chunkRenderers = chunkRenderers;
+		
+		waitFrames = new int[chunkRenderers.length];
+		order = new long[chunkRenderers.length];
+	}
+	
+	/**
+	 * Writes the slots with something to update into slots, in the order they should be updated in.
+	 *
+	 * @param cameraPosition  in world space, as WorldRenderer draws blocks in
+	 * @param lastVisibleTime the time chunks drawn in the last frame were marked visible with
+	 * @param greedyMeshing   whether stale meshes count as something to update
+	 * @param caveCulling     whether stale connectivity counts as something to update
+	 * @return the number of slots
+	 */
+	public int schedule(Vector3 cameraPosition, long lastVisibleTime, boolean greedyMeshing, boolean caveCulling, int[] slots) {
+		final float chunkWidth = Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING;
+		final float chunkHeight = Chunk.CHUNK_BLOCK_HEIGHT * Chunk.SPACING;
+		final float chunkDepth = Chunk.CHUNK_BLOCK_DEPTH * Chunk.SPACING;
+		
+		int count = 0;
+		
+		for(int slot = 0; slot < chunkRenderers.length; slot++) {
+			ChunkRenderer chunkRenderer = chunkRenderers[slot];
+			
+			if(chunkRenderer == null || !needsUpdate(chunkRenderer, greedyMeshing, caveCulling)) {
+				waitFrames[slot] = 0;
+				continue;
+			}
+			
+			int waited = waitFrames[slot]++;
+			
+			float priority;
+			if(waited >= MAX_WAIT_FRAMES) {
+				// Longest waiting first
+				priority = 1.0f / waited;
+			} else {
+				Chunk chunk = chunkRenderer.getChunk();
+				
+				// Distance from the camera to the chunk's center, in chunks
+				float x = (chunk.getCornerX() * Chunk.SPACING + (chunkWidth - Chunk.SPACING) * 0.5f - cameraPosition.x()) / chunkWidth;
+				float y = (chunk.getCornerY() * Chunk.SPACING + (chunkHeight - Chunk.SPACING) * 0.5f - cameraPosition.y()) / chunkHeight;
+				float z = (-chunk.getCornerZ() * Chunk.SPACING - (chunkDepth - Chunk.SPACING) * 0.5f - cameraPosition.z()) / chunkDepth;
+				
+				priority = (float)Math.sqrt(x * x + y * y + z * z);
+				
+				if(chunk.getLastVisibleTime() != lastVisibleTime) {
+					priority *= HIDDEN_WEIGHT;
+				}
+				
+				// Above any starved chunk
+				priority = 1 + priority / (1 + waited / AGING_FRAMES);
+			}
+			
+			// Positive floats order the same as their bits
+			order[count++] = (long)Float.floatToIntBits(priority) << 32 | slot;
+		}
+		
+		Arrays.sort(order, 0, count);
+		
+		for(int i = 0; i < count; i++) {
+			slots[i] = (int)order[i];
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Frames the slot has been waiting for an update, 0 if it has nothing to update.
+	 */
+	public int getWaitFrames(int slot) {
+		return waitFrames[slot];
+	}
+	
+	private static boolean needsUpdate(ChunkRenderer chunkRenderer, boolean greedyMeshing, boolean caveCulling) {
+		return chunkRenderer.needsUpdate() ||
+				(greedyMeshing && chunkRenderer.isMeshDirty()) ||
+				(caveCulling && chunkRenderer.getChunk().isConnectivityOutdated());
+	}
+}
@@ -0,0 +1,143 @@
+package com.ra4king.fps.renderers;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL43.*;
+import static org.lwjgl.opengl.GL44.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.lwjgl.opengl.GLSync;
+import org.lwjgl.opengl.OpenGLException;
+
+import com.ra4king.opengl.util.render.RenderUtils;
+
+/**
+ * The RenderDevice that calls straight through to GL.
+ *
+ * @author Roi Atalla
+ */
+public class GLRenderDevice implements RenderDevice {
+	// Fences are handed out as indices into this, null entries are free
+	private GLSync[] fences = new GLSync[8];
+	
+	@Override
+	public int genBuffer() {
+		return glGenBuffers();
+	}
+	
+	@Override
+	public void deleteBuffer(int buffer) {
+		glDeleteBuffers(buffer);
+	}
+	
+	@Override
+	public void bindBuffer(int target, int buffer) {
+		glBindBuffer(target, buffer);
+	}
+	
+	@Override
+	public void bufferData(int target, long size, int usage) {
+		glBufferData(target, size, usage);
+	}
+	
+	@Override
+	public void bufferData(int target, ByteBuffer data, int usage) {
+		glBufferData(target, data, usage);
+	}
+	
+	@Override
+	public void bufferSubData(int target, long offset, ByteBuffer data) {
+		glBufferSubData(target, offset, data);
+	}
+	
+	@Override
+	public void copyBufferSubData(int readTarget, int writeTarget, long readOffset, long writeOffset, long size) {
+		glCopyBufferSubData(readTarget, writeTarget, readOffset, writeOffset, size);
+	}
+	
+	@Override
+	public ByteBuffer mapPersistentBuffer(int target, long size) {
+		final int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+		
+		glBufferStorage(target, size, flags);
+		return glMapBufferRange(target, 0, size, flags, null);
+	}
+	
+	@Override
+	public void unmapBuffer(int target) {
+		glUnmapBuffer(target);
+	}
+	
+	@Override
+	public int fenceSync() {
+		int fence = 0;
+		while(fence < fences.length && fences[fence] != null) {
+			fence++;
+		}
+		
+		if(fence == fences.length) {
+			fences = Arrays.copyOf(fences, fences.length * 2);
+		}
+		
+		fences[fence] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		return fence;
+	}
+	
+	@Override
+	public boolean clientWaitSync(int fence, long timeoutNanos) {
+		int status = glClientWaitSync(fences[fence], GL_SYNC_FLUSH_COMMANDS_BIT, timeoutNanos);
+		
+		if(status == GL_WAIT_FAILED) {
+			throw new OpenGLException("Waiting on a fence failed.");
+		}
+		
+		return status != GL_TIMEOUT_EXPIRED;
+	}
+	
+	@Override
+	public void deleteSync(int fence) {
+		glDeleteSync(fences[fence]);
+		fences[fence] = null;
+	}
+	
+	@Override
+	public int genVertexArray() {
+		return RenderUtils.glGenVertexArrays();
+	}
+	
+	@Override
+	public void bindVertexArray(int vertexArray) {
+		RenderUtils.glBindVertexArray(vertexArray);
+	}
+	
+	@Override
+	public void enableVertexAttribArray(int index) {
+		glEnableVertexAttribArray(index);
+	}
+	
+	@Override
+	public void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset) {
+		glVertexAttribPointer(index, size, type, normalized, stride, offset);
+	}
+	
+	@Override
+	public void vertexAttribIPointer(int index, int size, int type, int stride, long offset) {
+		glVertexAttribIPointer(index, size, type, stride, offset);
+	}
+	
+	@Override
+	public void vertexAttribDivisor(int index, int divisor) {
+		RenderUtils.glVertexAttribDivisor(index, divisor);
+	}
+	
+	@Override
+	public void multiDrawElementsIndirect(int mode, int type, long indirectOffset, int drawCount, int stride) {
+		glMultiDrawElementsIndirect(mode, type, indirectOffset, drawCount, stride);
+	}
+}
@@ -0,0 +1,249 @@
+package com.ra4king.fps.renderers;
+
+import java.nio.IntBuffer;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.world.Chunk;
+
+/**
+ * Builds a chunk's mesh out of as few quads as possible: for each face direction and slice of the chunk, the visible
+ * faces of one BlockType are merged into rectangles. A box of the chunk can be meshed on its own, faces are then only
+ * merged inside it. Needs no GL context, the vertices are written to a plain buffer.
+ *
+ * Each vertex is one int holding the corner's local block position (0 to the chunk size, inclusive) in 6 bits per axis,
+ * the face index in 3 bits and the BlockType ordinal in the remaining 11, see encodeVertex. Face indices are the bit
+ * positions of the Chunk.FACE_* constants. A quad is 4 vertices in the same winding as WorldRenderer's cube, drawn with
+ * the indices 0, 1, 2, 2, 3, 0.
+ *
+ * Not thread-safe, the slice mask and box are reused between calls.
+ *
+ * @author Roi Atalla
+ */
+public class GreedyMesher {
+	public static final int VERTICES_PER_QUAD = 4;
+	public static final int INDICES_PER_QUAD = 6;
+	
+	// The corners of each face's quad, 0 being the min and 1 the max of the merged box along x, y and z
+	private static final int[][][] QUAD_CORNERS = {
+			{ { 0, 1, 1 }, { 0, 1, 0 }, { 0, 0, 0 }, { 0, 0, 1 } }, // -X
+			{ { 1, 1, 0 }, { 1, 1, 1 }, { 1, 0, 1 }, { 1, 0, 0 } }, // +X
+			{ { 0, 0, 0 }, { 1, 0, 0 }, { 1, 0, 1 }, { 0, 0, 1 } }, // -Y
+			{ { 0, 1, 1 }, { 1, 1, 1 }, { 1, 1, 0 }, { 0, 1, 0 } }, // +Y
+			{ { 0, 1, 0 }, { 1, 1, 0 }, { 1, 0, 0 }, { 0, 0, 0 } }, // -Z
+			{ { 1, 1, 1 }, { 0, 1, 1 }, { 0, 0, 1 }, { 1, 0, 1 } }, // +Z
+	};
+	
+	// Visible faces of the current direction, one row of x bits per (y,z) like Chunk.getFaceRow
+	private final int[] faceRows = new int[Chunk.CHUNK_BLOCK_DEPTH * Chunk.CHUNK_BLOCK_HEIGHT];
+	
+	// BlockType ordinal of the visible face at each (u,v) of the current slice, 0 (AIR) where there is none
+	private final int[] mask = new int[Math.max(Chunk.CHUNK_BLOCK_WIDTH, Chunk.CHUNK_BLOCK_DEPTH) * Math.max(Chunk.CHUNK_BLOCK_HEIGHT, Chunk.CHUNK_BLOCK_DEPTH)];
+	
+	private final int[] min = new int[3], max = new int[3];
+	
+	// The box being meshed in local block positions, slices, u and v are relative to its min corner
+	private final int[] boxMin = new int[3], boxSize = new int[3];
+	
+	/**
+	 * Writes the chunk's quads into vertices, starting at its position. Quads that do not fit are dropped.
+	 *
+	 * @return the number of quads in the mesh, including any that did not fit
+	 */
+	public int mesh(Chunk chunk, IntBuffer vertices) {
+		return mesh(chunk, 0, 0, 0, Chunk.CHUNK_BLOCK_WIDTH, Chunk.CHUNK_BLOCK_HEIGHT, Chunk.CHUNK_BLOCK_DEPTH, vertices);
+	}
+	
+	/**
+	 * Writes the quads of the visible faces of the blocks inside the box into vertices, starting at its position. The
+	 * vertices keep their positions local to the chunk. Quads that do not fit are dropped.
+	 *
+	 * @return the number of quads in the box's mesh, including any that did not fit
+	 */
+	public int mesh(Chunk chunk, int minX, int minY, int minZ, int sizeX, int sizeY, int sizeZ, IntBuffer vertices) {
+		if(chunk.isUniform() && chunk.getUniformType() == BlockType.AIR) {
+			return 0;
+		}
+		
+		boxMin[0] = minX;
+		boxMin[1] = minY;
+		boxMin[2] = minZ;
+		boxSize[0] = sizeX;
+		boxSize[1] = sizeY;
+		boxSize[2] = sizeZ;
+		
+		int rowMask = (int)((1L << sizeX) - 1) << minX;
+		
+		int quads = 0;
+		
+		for(int face = 0; face < 6; face++) {
+			boolean visible = false;
+			for(int z = minZ; z < minZ + sizeZ; z++) {
+				for(int y = minY; y < minY + sizeY; y++) {
+					int row = chunk.getFaceRow(y, z, 1 << face) & rowMask;
+					faceRows[z * Chunk.CHUNK_BLOCK_HEIGHT + y] = row;
+					visible |= row != 0;
+				}
+			}
+			
+			if(!visible) {
+				continue;
+			}
+			
+			int axis = face / 2;
+			
+			for(int slice = 0; slice < boxSize[axis]; slice++) {
+				if(fillMask(chunk, axis, slice)) {
+					quads += mergeSlice(face, slice, vertices);
+				}
+			}
+		}
+		
+		return quads;
+	}
+	
+	private int getSizeU(int axis) {
+		return axis == 0 ? boxSize[2] : boxSize[0];
+	}
+	
+	private int getSizeV(int axis) {
+		return axis == 1 ? boxSize[2] : boxSize[1];
+	}
+	
+	/**
+	 * Slices along x are indexed by (z,y), along y by (x,z) and along z by (x,y).
+	 *
+	 * @return false if the slice has no visible faces
+	 */
+	private boolean fillMask(Chunk chunk, int axis, int slice) {
+		int sizeU = getSizeU(axis);
+		int sizeV = getSizeV(axis);
+		
+		boolean visible = false;
+		
+		for(int v = 0; v < sizeV; v++) {
+			for(int u = 0; u < sizeU; u++) {
+				int x, y, z;
+				switch(axis) {
+					case 0:
+						x = boxMin[0] + slice;
+						y = boxMin[1] + v;
+						z = boxMin[2] + u;
+						break;
+					case 1:
+						x = boxMin[0] + u;
+						y = boxMin[1] + slice;
+						z = boxMin[2] + v;
+						break;
+					default:
+						x = boxMin[0] + u;
+						y = boxMin[1] + v;
+						z = boxMin[2] + slice;
+						break;
+				}
+				
+				if((faceRows[z * Chunk.CHUNK_BLOCK_HEIGHT + y] >>> x & 1) != 0) {
+					mask[v * sizeU + u] = chunk.getType(Chunk.localToIndex(x, y, z)).ordinal();
+					visible = true;
+				} else {
+					mask[v * sizeU + u] = 0;
+				}
+			}
+		}
+		
+		return visible;
+	}
+	
+	private int mergeSlice(int face, int slice, IntBuffer vertices) {
+		int axis = face / 2;
+		int sizeU = getSizeU(axis);
+		int sizeV = getSizeV(axis);
+		
+		int quads = 0;
+		
+		for(int v = 0; v < sizeV; v++) {
+			for(int u = 0; u < sizeU; ) {
+				int type = mask[v * sizeU + u];
+				if(type == 0) {
+					u++;
+					continue;
+				}
+				
+				int width = 1;
+				while(u + width < sizeU && mask[v * sizeU + u + width] == type) {
+					width++;
+				}
+				
+				int height = 1;
+				grow:
+				while(v + height < sizeV) {
+					for(int i = 0; i < width; i++) {
+						if(mask[(v + height) * sizeU + u + i] != type) {
+							break grow;
+						}
+					}
+					
+					height++;
+				}
+				
+				for(int j = 0; j < height; j++) {
+					for(int i = 0; i < width; i++) {
+						mask[(v + j) * sizeU + u + i] = 0;
+					}
+				}
+				
+				if(vertices.remaining() >= VERTICES_PER_QUAD) {
+					putQuad(face, slice, u, v, width, height, type, vertices);
+				}
+				
+				quads++;
+				u += width;
+			}
+		}
+		
+		return quads;
+	}
+	
+	private void putQuad(int face, int slice, int u, int v, int width, int height, int type, IntBuffer vertices) {
+		int axis = face / 2;
+		int axisU = axis == 0 ? 2 : 0;
+		int axisV = axis == 1 ? 2 : 1;
+		
+		min[axis] = boxMin[axis] + slice;
+		max[axis] = min[axis] + 1;
+		min[axisU] = boxMin[axisU] + u;
+		max[axisU] = min[axisU] + width;
+		min[axisV] = boxMin[axisV] + v;
+		max[axisV] = min[axisV] + height;
+		
+		for(int[] corner : QUAD_CORNERS[face]) {
+			vertices.put(encodeVertex(corner[0] == 0 ? min[0] : max[0],
+			                          corner[1] == 0 ? min[1] : max[1],
+			                          corner[2] == 0 ? min[2] : max[2],
+			                          face, type));
+		}
+	}
+	
+	public static int encodeVertex(int x, int y, int z, int face, int type) {
+		return x | y << 6 | z << 12 | face << 18 | type << 21;
+	}
+	
+	public static int getVertexX(int vertex) {
+		return vertex & 63;
+	}
+	
+	public static int getVertexY(int vertex) {
+		return vertex >>> 6 & 63;
+	}
+	
+	public static int getVertexZ(int vertex) {
+		return vertex >>> 12 & 63;
+	}
+	
+	public static int getVertexFace(int vertex) {
+		return vertex >>> 18 & 7;
+	}
+	
+	public static int getVertexType(int vertex) {
+		return vertex >>> 21;
+	}
+}
@@ -0,0 +1,484 @@
+package com.ra4king.fps.renderers;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.opengl.util.Stopwatch;
+import com.ra4king.opengl.util.math.Matrix4;
+
+/**
+ * A small depth buffer rasterized on the CPU each frame out of large occluders close to the camera, the fully solid
+ * block layers of chunks, to cull chunks and bullets hidden behind them before they are submitted.
+ *
+ * Depths are normalized device z, smaller is closer. A pixel only takes the depth of an occluder covering all of it, at
+ * the farthest the occluder gets within the pixel, so a box is only ever culled when it is hidden at every point. Each
+ * 8x8 tile also keeps the farthest depth of its pixels so a box behind a whole tile is rejected with one test.
+ * Rasterizing is split into bands of rows, each band filled by one task of the worker pool.
+ *
+ * Usage each frame: begin, addChunkOccluders or addQuad, rasterize, then isBoxVisible, isChunkVisible or isSectionVisible.
+ *
+ * @author Roi Atalla
+ */
+public class OcclusionBuffer {
+	public static final int WIDTH = 256, HEIGHT = 128;
+	
+	private static final int TILE_SIZE = 8;
+	private static final int TILES_X = WIDTH / TILE_SIZE, TILES_Y = HEIGHT / TILE_SIZE;
+	private static final int BAND_HEIGHT = 16;
+	
+	// Corners closer than this in clip w may be behind the camera, quads and boxes with such corners are not projected
+	private static final float MIN_W = 1e-3f;
+	
+	private final float[] depth = new float[WIDTH * HEIGHT];
+	private final float[] tileDepth = new float[TILES_X * TILES_Y];
+	
+	// Column-major projection and view matrix
+	private final float[] matrix = new float[16];
+	
+	// A quad clipped by the near plane has up to 5 edges
+	private static final int MAX_EDGES = 5;
+	
+	// Per occluder polygon: edge count, pixel rows and columns it may cover (inclusive), depth plane as the farthest
+	// depth within the pixel at the center of the screen and its x and y slopes, then a, b and c of each edge, inside where
+	// a * x + b * y + c >= 0 for the pixel center (x,y) of a pixel entirely inside the edge
+	private static final int POLYGON_STRIDE = 8 + 3 * MAX_EDGES;
+	private float[] polygons = new float[POLYGON_STRIDE * 256];
+	private int polygonCount;
+	
+	// Clip space corners of the quad being added and of it clipped against the near plane, then its screen corners
+	private final float[] clipCorners = new float[4 * 4], clippedCorners = new float[4 * MAX_EDGES];
+	private final float[] screenCorners = new float[3 * MAX_EDGES];
+	
+	// Screen x, y and depth of a box's corner
+	private final float[] projected = new float[3];
+	
+	private final ExecutorService executor;
+	private final ArrayList<Callable<Void>> bands = new ArrayList<>();
+	
+	/**
+	 * @param threadCount the threads rasterizing, with fewer than 2 the calling thread rasterizes instead of waiting on a
+	 *                    single worker
+	 */
+	public OcclusionBuffer(int threadCount) {
+		if(threadCount > 1) {
+			executor = Executors.newFixedThreadPool(threadCount, r -> {
+				Thread thread = new Thread(r, "Occlusion Rasterizer");
+				thread.setDaemon(true);
+				return thread;
+			});
+		} else {
+			executor = null;
+		}
+		
+		for(int y = 0; y < HEIGHT; y += BAND_HEIGHT) {
+			final int band = y;
+			bands.add(() -> {
+				rasterizeBand(band, band + BAND_HEIGHT);
+				return null;
+			});
+		}
+		
+		Arrays.fill(depth, Float.POSITIVE_INFINITY);
+		Arrays.fill(tileDepth, Float.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Drops the occluders of the last frame.
+	 */
+	public void begin(Matrix4 viewProjection) {
+		begin(viewProjection.toBuffer());
+	}
+	
+	/**
+	 * Drops the occluders of the last frame. The column-major matrix starts at the buffer's position, which is left
+	 * unchanged.
+	 */
+	public void begin(FloatBuffer viewProjection) {
+		for(int i = 0; i < 16; i++) {
+			matrix[i] = viewProjection.get(viewProjection.position() + i);
+		}
+		
+		polygonCount = 0;
+	}
+	
+	/**
+	 * Adds each outermost fully solid layer of the chunk as a quad through the centers of its blocks.
+	 */
+	public void addChunkOccluders(ChunkRenderer chunkRenderer) {
+		Chunk chunk = chunkRenderer.getChunk();
+		
+		// Block centers are at block * SPACING, the chunk's blocks span half a block past the first and last centers
+		float minX = (chunk.getCornerX() - 0.5f) * Chunk.SPACING, maxX = minX + Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING;
+		float minY = (chunk.getCornerY() - 0.5f) * Chunk.SPACING, maxY = minY + Chunk.CHUNK_BLOCK_HEIGHT * Chunk.SPACING;
+		float maxZ = -(chunk.getCornerZ() - 0.5f) * Chunk.SPACING, minZ = maxZ - Chunk.CHUNK_BLOCK_DEPTH * Chunk.SPACING;
+		
+		for(int side = 0; side < 6; side++) {
+			int layer = chunkRenderer.getSolidLayer(side);
+			
+			// The layer closest to the max side was already added if it is also the one closest to the min side
+			if(layer == -1 || ((side & 1) == 1 && layer == chunkRenderer.getSolidLayer(side - 1))) {
+				continue;
+			}
+			
+			switch(side / 2) {
+				case 0: {
+					float x = (chunk.getCornerX() + layer) * Chunk.SPACING;
+					addQuad(x, minY, minZ, x, maxY, minZ, x, maxY, maxZ, x, minY, maxZ);
+					break;
+				}
+				case 1: {
+					float y = (chunk.getCornerY() + layer) * Chunk.SPACING;
+					addQuad(minX, y, minZ, maxX, y, minZ, maxX, y, maxZ, minX, y, maxZ);
+					break;
+				}
+				case 2: {
+					float z = -(chunk.getCornerZ() + layer) * Chunk.SPACING;
+					addQuad(minX, minY, z, maxX, minY, z, maxX, maxY, z, minX, maxY, z);
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds a planar convex quad with its corners in order, in world space. The part of it behind the near plane is
+	 * clipped off.
+	 */
+	public void addQuad(float x0, float y0, float z0, float x1, float y1, float z1, float x2, float y2, float z2, float x3, float y3, float z3) {
+		transform(x0, y0, z0, clipCorners, 0);
+		transform(x1, y1, z1, clipCorners, 4);
+		transform(x2, y2, z2, clipCorners, 8);
+		transform(x3, y3, z3, clipCorners, 12);
+		
+		// Sutherland-Hodgman against the near plane, where clip z + w = 0
+		int count = 0;
+		for(int i = 0; i < 4; i++) {
+			int current = i * 4, next = (i + 1) % 4 * 4;
+			float currentDistance = clipCorners[current + 2] + clipCorners[current + 3];
+			float nextDistance = clipCorners[next + 2] + clipCorners[next + 3];
+			
+			if(currentDistance >= 0) {
+				System.arraycopy(clipCorners, current, clippedCorners, count++ * 4, 4);
+			}
+			
+			if((currentDistance >= 0) != (nextDistance >= 0)) {
+				float t = currentDistance / (currentDistance - nextDistance);
+				for(int c = 0; c < 4; c++) {
+					clippedCorners[count * 4 + c] = clipCorners[current + c] + t * (clipCorners[next + c] - clipCorners[current + c]);
+				}
+				count++;
+			}
+		}
+		
+		if(count < 3) {
+			return;
+		}
+		
+		for(int i = 0; i < count; i++) {
+			float w = clippedCorners[i * 4 + 3];
+			if(w < MIN_W) {
+				return;
+			}
+			
+			screenCorners[i * 3] = (clippedCorners[i * 4] / w * 0.5f + 0.5f) * WIDTH;
+			screenCorners[i * 3 + 1] = (clippedCorners[i * 4 + 1] / w * 0.5f + 0.5f) * HEIGHT;
+			screenCorners[i * 3 + 2] = clippedCorners[i * 4 + 2] / w;
+		}
+		
+		addPolygon(count);
+	}
+	
+	/**
+	 * Sets up the edge functions and depth plane of the convex polygon in screenCorners.
+	 */
+	private void addPolygon(int count) {
+		float[] corners = screenCorners;
+		
+		// Twice the signed area, positive when the corners go counter-clockwise, and the largest triangle of its fan
+		float area = 0, largest = 0;
+		int largestIndex = 1;
+		for(int i = 0; i < count; i++) {
+			int next = (i + 1) % count;
+			area += corners[i * 3] * corners[next * 3 + 1] - corners[next * 3] * corners[i * 3 + 1];
+			
+			if(i > 0 && next > 0) {
+				float triangle = (corners[i * 3] - corners[0]) * (corners[next * 3 + 1] - corners[1]) -
+						(corners[next * 3] - corners[0]) * (corners[i * 3 + 1] - corners[1]);
+				if(Math.abs(triangle) > Math.abs(largest)) {
+					largest = triangle;
+					largestIndex = i;
+				}
+			}
+		}
+		
+		// Seen edge on
+		if(Math.abs(area) < 1e-3f || Math.abs(largest) < 1e-6f) {
+			return;
+		}
+		
+		if((polygonCount + 1) * POLYGON_STRIDE > polygons.length) {
+			polygons = Arrays.copyOf(polygons, polygons.length * 2);
+		}
+		
+		int p = polygonCount * POLYGON_STRIDE;
+		
+		float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+		float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+		
+		// Occluders are seen from both sides, the edge functions of a clockwise polygon are negated to be positive inside
+		float sign = Math.signum(area);
+		
+		for(int i = 0; i < count; i++) {
+			int next = (i + 1) % count;
+			float x = corners[i * 3], y = corners[i * 3 + 1];
+			
+			float a = sign * (y - corners[next * 3 + 1]);
+			float b = sign * (corners[next * 3] - x);
+			
+			// A pixel is entirely inside if its farthest corner is, at the center that is half of |a| + |b| further in
+			polygons[p + 8 + i * 3] = a;
+			polygons[p + 8 + i * 3 + 1] = b;
+			polygons[p + 8 + i * 3 + 2] = -(a * x + b * y) - 0.5f * (Math.abs(a) + Math.abs(b));
+			
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
+		}
+		
+		// Depth is linear in screen space over the polygon's plane, taken from its largest triangle. Clipped corners can
+		// be far off screen, the plane is found in double precision so it stays exact near the screen.
+		int i = largestIndex, j = largestIndex + 1;
+		double dx1 = corners[i * 3] - corners[0], dy1 = corners[i * 3 + 1] - corners[1], dz1 = corners[i * 3 + 2] - corners[2];
+		double dx2 = corners[j * 3] - corners[0], dy2 = corners[j * 3 + 1] - corners[1], dz2 = corners[j * 3 + 2] - corners[2];
+		double triangle = dx1 * dy2 - dx2 * dy1;
+		double dzdx = (dz1 * dy2 - dz2 * dy1) / triangle;
+		double dzdy = (dz2 * dx1 - dz1 * dx2) / triangle;
+		
+		polygons[p] = count;
+		polygons[p + 1] = Math.max(0, (int)Math.ceil(minY));
+		polygons[p + 2] = Math.min(HEIGHT, (int)Math.floor(maxY)) - 1;
+		polygons[p + 3] = Math.max(0, (int)Math.ceil(minX));
+		polygons[p + 4] = Math.min(WIDTH, (int)Math.floor(maxX)) - 1;
+		
+		// The farthest the polygon gets within a pixel is half of |dz/dx| + |dz/dy| past its center
+		polygons[p + 5] = (float)(corners[2] + dzdx * (WIDTH * 0.5 - corners[0]) + dzdy * (HEIGHT * 0.5 - corners[1]) + 0.5 * (Math.abs(dzdx) + Math.abs(dzdy)));
+		polygons[p + 6] = (float)dzdx;
+		polygons[p + 7] = (float)dzdy;
+		
+		polygonCount++;
+	}
+	
+	/**
+	 * Writes the clip space x, y, z and w of the point into out at offset.
+	 */
+	private void transform(float x, float y, float z, float[] out, int offset) {
+		out[offset] = matrix[0] * x + matrix[4] * y + matrix[8] * z + matrix[12];
+		out[offset + 1] = matrix[1] * x + matrix[5] * y + matrix[9] * z + matrix[13];
+		out[offset + 2] = matrix[2] * x + matrix[6] * y + matrix[10] * z + matrix[14];
+		out[offset + 3] = matrix[3] * x + matrix[7] * y + matrix[11] * z + matrix[15];
+	}
+	
+	/**
+	 * Projects the point into projected, in pixels and normalized device z.
+	 *
+	 * @return false if the point is behind the near plane
+	 */
+	private boolean project(float x, float y, float z) {
+		float w = matrix[3] * x + matrix[7] * y + matrix[11] * z + matrix[15];
+		float clipZ = matrix[2] * x + matrix[6] * y + matrix[10] * z + matrix[14];
+		
+		if(w < MIN_W || clipZ < -w) {
+			return false;
+		}
+		
+		projected[0] = ((matrix[0] * x + matrix[4] * y + matrix[8] * z + matrix[12]) / w * 0.5f + 0.5f) * WIDTH;
+		projected[1] = ((matrix[1] * x + matrix[5] * y + matrix[9] * z + matrix[13]) / w * 0.5f + 0.5f) * HEIGHT;
+		projected[2] = clipZ / w;
+		return true;
+	}
+	
+	/**
+	 * The occluders added since begin, after clipping and dropping those seen edge on.
+	 */
+	public int getOccluderCount() {
+		return polygonCount;
+	}
+	
+	/**
+	 * Clears the buffer and rasterizes the occluders added since begin.
+	 */
+	public void rasterize() {
+		Stopwatch.start("Occlusion Buffer");
+		
+		if(executor == null) {
+			rasterizeBand(0, HEIGHT);
+		} else {
+			try {
+				for(Future<Void> future : executor.invokeAll(bands)) {
+					future.get();
+				}
+			} catch(InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			} catch(ExecutionException exc) {
+				throw new RuntimeException(exc.getCause());
+			}
+		}
+		
+		Stopwatch.stop();
+	}
+	
+	private void rasterizeBand(int bandMinY, int bandMaxY) {
+		Arrays.fill(depth, bandMinY * WIDTH, bandMaxY * WIDTH, Float.POSITIVE_INFINITY);
+		
+		for(int p = 0; p < polygonCount * POLYGON_STRIDE; p += POLYGON_STRIDE) {
+			rasterizePolygon(p, bandMinY, bandMaxY);
+		}
+		
+		for(int tileY = bandMinY / TILE_SIZE; tileY < bandMaxY / TILE_SIZE; tileY++) {
+			for(int tileX = 0; tileX < TILES_X; tileX++) {
+				float max = Float.NEGATIVE_INFINITY;
+				for(int y = tileY * TILE_SIZE; y < (tileY + 1) * TILE_SIZE; y++) {
+					int row = y * WIDTH + tileX * TILE_SIZE;
+					for(int x = 0; x < TILE_SIZE; x++) {
+						max = Math.max(max, depth[row + x]);
+					}
+				}
+				tileDepth[tileY * TILES_X + tileX] = max;
+			}
+		}
+	}
+	
+	/**
+	 * Fills the span of pixels entirely inside the polygon on each row of the band.
+	 */
+	private void rasterizePolygon(int p, int bandMinY, int bandMaxY) {
+		int edgeCount = (int)polygons[p];
+		int minY = Math.max(bandMinY, (int)polygons[p + 1]), maxY = Math.min(bandMaxY - 1, (int)polygons[p + 2]);
+		
+		for(int y = minY; y <= maxY; y++) {
+			float centerY = y + 0.5f;
+			
+			int left = (int)polygons[p + 3], right = (int)polygons[p + 4];
+			
+			// Each edge bounds the span on one side, at x + 0.5 = -(b * centerY + c) / a
+			for(int e = p + 8; e < p + 8 + edgeCount * 3 && left <= right; e += 3) {
+				float a = polygons[e];
+				float rest = polygons[e + 1] * centerY + polygons[e + 2];
+				
+				if(a > 0) {
+					left = Math.max(left, (int)Math.ceil(-rest / a - 0.5f));
+				} else if(a < 0) {
+					right = Math.min(right, (int)Math.floor(-rest / a - 0.5f));
+				} else if(rest < 0) {
+					right = left - 1;
+				}
+			}
+			
+			float dzdx = polygons[p + 6];
+			float rowDepth = polygons[p + 5] + polygons[p + 7] * (centerY - HEIGHT * 0.5f);
+			
+			int row = y * WIDTH;
+			for(int x = left; x <= right; x++) {
+				float z = rowDepth + dzdx * (x + 0.5f - WIDTH * 0.5f);
+				if(z < depth[row + x]) {
+					depth[row + x] = z;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return false if every block of the chunk is behind the occluders
+	 */
+	public boolean isChunkVisible(Chunk chunk) {
+		float minX = (chunk.getCornerX() - 0.5f) * Chunk.SPACING;
+		float minY = (chunk.getCornerY() - 0.5f) * Chunk.SPACING;
+		float maxZ = -(chunk.getCornerZ() - 0.5f) * Chunk.SPACING;
+		
+		return isBoxVisible(minX, minY, maxZ - Chunk.CHUNK_BLOCK_DEPTH * Chunk.SPACING,
+		                    minX + Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING, minY + Chunk.CHUNK_BLOCK_HEIGHT * Chunk.SPACING, maxZ);
+	}
+	
+	public boolean isSectionVisible(ChunkSection section) {
+		Chunk chunk = section.getChunkRenderer().getChunk();
+		float size = section.getSize() * Chunk.SPACING;
+		
+		float minX = (chunk.getCornerX() + section.getMinX() - 0.5f) * Chunk.SPACING;
+		float minY = (chunk.getCornerY() + section.getMinY() - 0.5f) * Chunk.SPACING;
+		float maxZ = -(chunk.getCornerZ() + section.getMinZ() - 0.5f) * Chunk.SPACING;
+		
+		return isBoxVisible(minX, minY, maxZ - size, minX + size, minY + size, maxZ);
+	}
+	
+	/**
+	 * @return false if the box, in world space, is behind the occluders at every pixel it covers
+	 */
+	public boolean isBoxVisible(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		float screenMinX = Float.POSITIVE_INFINITY, screenMinY = Float.POSITIVE_INFINITY, closest = Float.POSITIVE_INFINITY;
+		float screenMaxX = Float.NEGATIVE_INFINITY, screenMaxY = Float.NEGATIVE_INFINITY;
+		
+		for(int corner = 0; corner < 8; corner++) {
+			// Any corner in front of the near plane may be seen up close
+			if(!project((corner & 1) == 0 ? minX : maxX, (corner & 2) == 0 ? minY : maxY, (corner & 4) == 0 ? minZ : maxZ)) {
+				return true;
+			}
+			
+			screenMinX = Math.min(screenMinX, projected[0]);
+			screenMaxX = Math.max(screenMaxX, projected[0]);
+			screenMinY = Math.min(screenMinY, projected[1]);
+			screenMaxY = Math.max(screenMaxY, projected[1]);
+			closest = Math.min(closest, projected[2]);
+		}
+		
+		int pixelMinX = Math.max(0, (int)Math.floor(screenMinX)), pixelMaxX = Math.min(WIDTH - 1, (int)Math.floor(screenMaxX));
+		int pixelMinY = Math.max(0, (int)Math.floor(screenMinY)), pixelMaxY = Math.min(HEIGHT - 1, (int)Math.floor(screenMaxY));
+		
+		// Off screen, that is for the frustum test to decide
+		if(pixelMinX > pixelMaxX || pixelMinY > pixelMaxY) {
+			return true;
+		}
+		
+		for(int tileY = pixelMinY / TILE_SIZE; tileY <= pixelMaxY / TILE_SIZE; tileY++) {
+			for(int tileX = pixelMinX / TILE_SIZE; tileX <= pixelMaxX / TILE_SIZE; tileX++) {
+				if(tileDepth[tileY * TILES_X + tileX] < closest) {
+					continue;
+				}
+				
+				// Some pixel of the tile is not in front of the box, test the ones the box covers
+				int x0 = Math.max(pixelMinX, tileX * TILE_SIZE), x1 = Math.min(pixelMaxX, tileX * TILE_SIZE + TILE_SIZE - 1);
+				int y0 = Math.max(pixelMinY, tileY * TILE_SIZE), y1 = Math.min(pixelMaxY, tileY * TILE_SIZE + TILE_SIZE - 1);
+				
+				for(int y = y0; y <= y1; y++) {
+					for(int x = x0; x <= x1; x++) {
+						if(depth[y * WIDTH + x] >= closest) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * The depth of the pixel, positive infinity where no occluder covers it.
+	 */
+	public float getDepth(int x, int y) {
+		return depth[y * WIDTH + x];
+	}
+	
+	public void shutdown() {
+		if(executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -48,6 +48,13 @@ public class PortalRenderer {
 		init();
 	}
 	
+	/**
+	 * Frees the portal camera's off-heap memory.
+	 */
+	public void close() {
+		portalCamera.close();
+	}
+	
 	public Portal getPortal() {
 		return portal;
 	}
@@ -0,0 +1,312 @@
+package com.ra4king.fps.renderers;
+
+import static org.lwjgl.opengl.GL15.GL_ARRAY_BUFFER;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A RenderDevice without a GPU: buffers live in memory and draws are recorded instead of executed, so that frames of
+ * the chunk pass can run in tests and benchmarks. It counts uploads, copies and state changes, and keeps each draw's
+ * command read back from the indirect buffer, so the buffers' contents can be checked against what was drawn. Fences
+ * are always signaled.
+ *
+ * @author Roi Atalla
+ */
+public class RecordingRenderDevice implements RenderDevice {
+	public static class DrawCall {
+		public final int vertexArray, mode, type;
+		public final int count, instanceCount, firstIndex, baseVertex, baseInstance;
+		
+		public DrawCall(int vertexArray, int mode, int type, int count, int instanceCount, int firstIndex, int baseVertex, int baseInstance) {
+			this.vertexArray = vertexArray;
+			this.mode = mode;
+			this.type = type;
+			this.count = count;
+			this.instanceCount = instanceCount;
+			this.firstIndex = firstIndex;
+			this.baseVertex = baseVertex;
+			this.baseInstance = baseInstance;
+		}
+	}
+	
+	private static final int MAX_ATTRIBUTES = 16;
+	
+	// Buffer contents by name, name 0 is never handed out
+	private final ArrayList<ByteBuffer> buffers = new ArrayList<>();
+	private final HashMap<Integer, Integer> bindings = new HashMap<>();
+	
+	// The buffer each attribute of each vertex array reads from, by vertex array name
+	private final ArrayList<int[]> attributeBuffers = new ArrayList<>();
+	private int boundVertexArray;
+	
+	private int nextFence;
+	
+	private int uploads, copies, stateChanges, multiDrawCalls;
+	private long uploadBytes, copyBytes;
+	private final ArrayList<DrawCall> drawCalls = new ArrayList<>();
+	
+	public RecordingRenderDevice() {
+		buffers.add(null);
+		attributeBuffers.add(null);
+	}
+	
+	/**
+	 * Clears the counters and recorded draws, buffer contents are kept.
+	 */
+	public void reset() {
+		uploads = 0;
+		copies = 0;
+		stateChanges = 0;
+		multiDrawCalls = 0;
+		uploadBytes = 0;
+		copyBytes = 0;
+		drawCalls.clear();
+	}
+	
+	/**
+	 * bufferData with data and bufferSubData calls.
+	 */
+	public int getUploadCount() {
+		return uploads;
+	}
+	
+	public long getUploadBytes() {
+		return uploadBytes;
+	}
+	
+	public int getCopyCount() {
+		return copies;
+	}
+	
+	public long getCopyBytes() {
+		return copyBytes;
+	}
+	
+	/**
+	 * Buffer and vertex array binds and vertex attribute changes.
+	 */
+	public int getStateChangeCount() {
+		return stateChanges;
+	}
+	
+	public int getMultiDrawCallCount() {
+		return multiDrawCalls;
+	}
+	
+	/**
+	 * Every draw of every multi-draw call since the last reset.
+	 */
+	public List<DrawCall> getDrawCalls() {
+		return drawCalls;
+	}
+	
+	/**
+	 * A read-only view of the buffer's whole contents.
+	 */
+	public ByteBuffer getBufferContents(int buffer) {
+		return getBuffer(buffer).asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+	}
+	
+	/**
+	 * The buffer the attribute of the vertex array was last pointed at, 0 if none.
+	 */
+	public int getAttributeBuffer(int vertexArray, int index) {
+		return attributeBuffers.get(vertexArray)[index];
+	}
+	
+	@Override
+	public int genBuffer() {
+		buffers.add(ByteBuffer.allocate(0));
+		return buffers.size() - 1;
+	}
+	
+	@Override
+	public void deleteBuffer(int buffer) {
+		getBuffer(buffer);
+		buffers.set(buffer, null);
+		
+		bindings.values().removeIf(bound -> bound == buffer);
+	}
+	
+	@Override
+	public void bindBuffer(int target, int buffer) {
+		if(buffer != 0) {
+			getBuffer(buffer);
+		}
+		
+		bindings.put(target, buffer);
+		stateChanges++;
+	}
+	
+	@Override
+	public void bufferData(int target, long size, int usage) {
+		buffers.set(getBound(target), allocate(size));
+	}
+	
+	@Override
+	public void bufferData(int target, ByteBuffer data, int usage) {
+		ByteBuffer contents = allocate(data.remaining());
+		contents.put(data.duplicate()).clear();
+		buffers.set(getBound(target), contents);
+		
+		uploads++;
+		uploadBytes += contents.capacity();
+	}
+	
+	@Override
+	public void bufferSubData(int target, long offset, ByteBuffer data) {
+		ByteBuffer contents = getBuffer(getBound(target)).duplicate();
+		checkRange(contents, offset, data.remaining());
+		
+		contents.position((int)offset);
+		contents.put(data.duplicate());
+		
+		uploads++;
+		uploadBytes += data.remaining();
+	}
+	
+	@Override
+	public void copyBufferSubData(int readTarget, int writeTarget, long readOffset, long writeOffset, long size) {
+		int readBuffer = getBound(readTarget), writeBuffer = getBound(writeTarget);
+		
+		if(readBuffer == writeBuffer && readOffset < writeOffset + size && writeOffset < readOffset + size) {
+			throw new IllegalStateException("Overlapping copy within buffer " + readBuffer + ": " + readOffset + " to " + writeOffset + ", " + size + " bytes.");
+		}
+		
+		ByteBuffer source = getBuffer(readBuffer).duplicate();
+		ByteBuffer destination = getBuffer(writeBuffer).duplicate();
+		checkRange(source, readOffset, size);
+		checkRange(destination, writeOffset, size);
+		
+		source.limit((int)(readOffset + size)).position((int)readOffset);
+		destination.position((int)writeOffset);
+		destination.put(source);
+		
+		copies++;
+		copyBytes += size;
+	}
+	
+	@Override
+	public ByteBuffer mapPersistentBuffer(int target, long size) {
+		ByteBuffer contents = allocate(size);
+		buffers.set(getBound(target), contents);
+		
+		// Writes through the mapping are the buffer's contents, like a coherent mapping
+		return contents.duplicate().order(ByteOrder.nativeOrder());
+	}
+	
+	@Override
+	public void unmapBuffer(int target) {
+		getBound(target);
+	}
+	
+	@Override
+	public int fenceSync() {
+		return nextFence++;
+	}
+	
+	@Override
+	public boolean clientWaitSync(int fence, long timeoutNanos) {
+		return true;
+	}
+	
+	@Override
+	public void deleteSync(int fence) {}
+	
+	@Override
+	public int genVertexArray() {
+		attributeBuffers.add(new int[MAX_ATTRIBUTES]);
+		return attributeBuffers.size() - 1;
+	}
+	
+	@Override
+	public void bindVertexArray(int vertexArray) {
+		boundVertexArray = vertexArray;
+		stateChanges++;
+	}
+	
+	@Override
+	public void enableVertexAttribArray(int index) {
+		getBoundVertexArray();
+		stateChanges++;
+	}
+	
+	@Override
+	public void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset) {
+		getBoundVertexArray()[index] = getBound(GL_ARRAY_BUFFER);
+		stateChanges++;
+	}
+	
+	@Override
+	public void vertexAttribIPointer(int index, int size, int type, int stride, long offset) {
+		vertexAttribPointer(index, size, type, false, stride, offset);
+	}
+	
+	@Override
+	public void vertexAttribDivisor(int index, int divisor) {
+		getBoundVertexArray();
+		stateChanges++;
+	}
+	
+	@Override
+	public void multiDrawElementsIndirect(int mode, int type, long indirectOffset, int drawCount, int stride) {
+		getBoundVertexArray();
+		
+		ByteBuffer commands = getBuffer(getBound(GL_DRAW_INDIRECT_BUFFER));
+		
+		if(stride == 0) {
+			stride = 5 * 4;
+		}
+		
+		checkRange(commands, indirectOffset, (long)drawCount * stride);
+		
+		for(int i = 0; i < drawCount; i++) {
+			int offset = (int)indirectOffset + i * stride;
+			drawCalls.add(new DrawCall(boundVertexArray, mode, type,
+			                           commands.getInt(offset), commands.getInt(offset + 4), commands.getInt(offset + 8),
+			                           commands.getInt(offset + 12), commands.getInt(offset + 16)));
+		}
+		
+		multiDrawCalls++;
+	}
+	
+	private static ByteBuffer allocate(long size) {
+		return ByteBuffer.allocate((int)size).order(ByteOrder.nativeOrder());
+	}
+	
+	private static void checkRange(ByteBuffer contents, long offset, long size) {
+		if(offset < 0 || size < 0 || offset + size > contents.capacity()) {
+			throw new IllegalStateException("Range " + offset + " + " + size + " is outside a buffer of " + contents.capacity() + " bytes.");
+		}
+	}
+	
+	private ByteBuffer getBuffer(int buffer) {
+		if(buffer <= 0 || buffer >= buffers.size() || buffers.get(buffer) == null) {
+			throw new IllegalStateException("No buffer named " + buffer);
+		}
+		
+		return buffers.get(buffer);
+	}
+	
+	private int getBound(int target) {
+		Integer buffer = bindings.get(target);
+		if(buffer == null || buffer == 0) {
+			throw new IllegalStateException("No buffer bound to target " + target);
+		}
+		
+		return buffer;
+	}
+	
+	private int[] getBoundVertexArray() {
+		if(boundVertexArray == 0) {
+			throw new IllegalStateException("No vertex array bound.");
+		}
+		
+		return attributeBuffers.get(boundVertexArray);
+	}
+}
@@ -0,0 +1,550 @@
+package com.ra4king.fps.renderers;
+
+import java.util.Arrays;
+
+/**
+ * Hands out variable-sized regions of one large buffer, TLSF-style: free blocks are kept in lists segregated by size,
+ * 16 lists per power of two, with bitmaps of the non-empty lists so allocating and freeing are O(1). A freed block is
+ * merged with its free neighbors right away. Sizes are rounded up to the alignment.
+ *
+ * Only the bookkeeping lives here, copying the data when a region moves is up to the caller. Allocations are identified
+ * by handles that stay valid until they are freed, also across defragment.
+ *
+ * @author Roi Atalla
+ */
+public class RegionAllocator {
+	public interface Mover {
+		/**
+		 * Called in increasing order of from, to is always below from so the data may be copied in place front to back.
+		 */
+		void move(int handle, int from, int to, int size);
+	}
+	
+	public static final int NONE = -1;
+	
+	private static final int SL_LOG = 4, SL_COUNT = 1 << SL_LOG, FL_COUNT = 32;
+	
+	private static final byte UNUSED = 0, FREE = 1, ALLOCATED = 2;
+	
+	private final int alignment, alignmentShift;
+	
+	// All in units of alignment
+	private int capacity;
+	private int used, peakUsed, highWaterMark;
+	private int allocationCount;
+	
+	// Block records, a handle is the index of an allocated block's record. Blocks are linked in address order through
+	// prevBlocks/nextBlocks and free blocks are also linked in their size's list through prevFree/nextFree.
+	private int[] offsets, sizes;
+	private int[] prevBlocks, nextBlocks;
+	private int[] prevFree, nextFree;
+	private byte[] states;
+	private int firstBlock = NONE, lastBlock = NONE;
+	
+	private int[] unusedRecords;
+	private int unusedRecordCount;
+	private int recordCount;
+	
+	private final int[] freeHeads = new int[FL_COUNT * SL_COUNT];
+	private int flBitmap;
+	private final int[] slBitmaps = new int[FL_COUNT];
+	
+	/**
+	 * @param alignment a power of two, every offset and size is a multiple of it
+	 */
+	public RegionAllocator(int capacity, int alignment) {
+		if(Integer.bitCount(alignment) != 1) {
+			throw new IllegalArgumentException("Alignment must be a power of two: " + alignment);
+		}
+		
+		this.alignment = alignment;
+		alignmentShift = Integer.numberOfTrailingZeros(alignment);
+		
+		final int records = 64;
+		offsets = new int[records];
+		sizes = new int[records];
+		prevBlocks = new int[records];
+		nextBlocks = new int[records];
+		prevFree = new int[records];
+		nextFree = new int[records];
+		states = new byte[records];
+		unusedRecords = new int[records];
+		
+		Arrays.fill(freeHeads, NONE);
+		
+		grow(capacity);
+	}
+	
+	public int getAlignment() {
+		return alignment;
+	}
+	
+	/**
+	 * @return a handle to a region of at least size bytes, or NONE if no free block is large enough
+	 */
+	public int allocate(int size) {
+		int units = toUnits(size);
+		
+		int block = findFree(units);
+		if(block == NONE) {
+			return NONE;
+		}
+		
+		removeFree(block);
+		states[block] = ALLOCATED;
+		
+		if(sizes[block] > units) {
+			int rest = newRecord(offsets[block] + units, sizes[block] - units);
+			sizes[block] = units;
+			linkAfter(block, rest);
+			makeFree(rest);
+		}
+		
+		allocationCount++;
+		used += units;
+		updatePeaks(block);
+		
+		return block;
+	}
+	
+	public void free(int handle) {
+		checkAllocated(handle);
+		
+		allocationCount--;
+		used -= sizes[handle];
+		
+		makeFree(handle);
+	}
+	
+	/**
+	 * Grows or shrinks the region without moving it. Shrinking always succeeds, growing only if the block after it is
+	 * free and large enough.
+	 *
+	 * @return true if the region now holds at least size bytes
+	 */
+	public boolean resize(int handle, int size) {
+		checkAllocated(handle);
+		
+		int units = toUnits(size);
+		int current = sizes[handle];
+		
+		if(units < current) {
+			int rest = newRecord(offsets[handle] + units, current - units);
+			sizes[handle] = units;
+			linkAfter(handle, rest);
+			makeFree(rest);
+			
+			used -= current - units;
+		} else if(units > current) {
+			int next = nextBlocks[handle];
+			int needed = units - current;
+			
+			if(next == NONE || states[next] != FREE || sizes[next] < needed) {
+				return false;
+			}
+			
+			removeFree(next);
+			
+			if(sizes[next] == needed) {
+				unlink(next);
+			} else {
+				offsets[next] += needed;
+				sizes[next] -= needed;
+				insertFree(next);
+			}
+			
+			sizes[handle] = units;
+			
+			used += needed;
+			updatePeaks(handle);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Resizes the region in place if possible, else moves it to a new block. The old handle is freed when it moves, so
+	 * its offset has to be read before if its data is to be copied.
+	 *
+	 * @return the handle of the resized region, or NONE if no free block is large enough, in which case the old region
+	 * is left as it was
+	 */
+	public int reallocate(int handle, int size) {
+		if(resize(handle, size)) {
+			return handle;
+		}
+		
+		int moved = allocate(size);
+		if(moved != NONE) {
+			free(handle);
+		}
+		
+		return moved;
+	}
+	
+	/**
+	 * Moves every region, in address order, down to the start of the buffer, leaving all free space in one block at the
+	 * end. Handles stay the same.
+	 *
+	 * @param mover told about each region that moves, may be null
+	 */
+	public void defragment(Mover mover) {
+		Arrays.fill(freeHeads, NONE);
+		Arrays.fill(slBitmaps, 0);
+		flBitmap = 0;
+		
+		int cursor = 0;
+		int last = NONE;
+		
+		for(int block = firstBlock; block != NONE; ) {
+			int next = nextBlocks[block];
+			
+			if(states[block] == ALLOCATED) {
+				if(offsets[block] != cursor) {
+					if(mover != null) {
+						mover.move(block, offsets[block] << alignmentShift, cursor << alignmentShift, sizes[block] << alignmentShift);
+					}
+					
+					offsets[block] = cursor;
+				}
+				
+				prevBlocks[block] = last;
+				if(last == NONE) {
+					firstBlock = block;
+				} else {
+					nextBlocks[last] = block;
+				}
+				
+				last = block;
+				cursor += sizes[block];
+			} else {
+				releaseRecord(block);
+			}
+			
+			block = next;
+		}
+		
+		if(last == NONE) {
+			firstBlock = NONE;
+		} else {
+			nextBlocks[last] = NONE;
+		}
+		lastBlock = last;
+		
+		if(cursor < capacity) {
+			int rest = newRecord(cursor, capacity - cursor);
+			linkAfter(last, rest);
+			makeFree(rest);
+		}
+	}
+	
+	/**
+	 * Adds free space at the end of the buffer.
+	 */
+	public void grow(int capacity) {
+		int units = capacity >>> alignmentShift;
+		if(units < this.capacity) {
+			throw new IllegalArgumentException("Cannot shrink from " + getCapacity() + " to " + capacity + " bytes.");
+		}
+		
+		int added = units - this.capacity;
+		if(added == 0) {
+			return;
+		}
+		
+		if(lastBlock != NONE && states[lastBlock] == FREE) {
+			removeFree(lastBlock);
+			sizes[lastBlock] += added;
+			insertFree(lastBlock);
+		} else {
+			int rest = newRecord(this.capacity, added);
+			linkAfter(lastBlock, rest);
+			makeFree(rest);
+		}
+		
+		this.capacity = units;
+	}
+	
+	/**
+	 * The offset of the region in bytes.
+	 */
+	public int getOffset(int handle) {
+		checkAllocated(handle);
+		return offsets[handle] << alignmentShift;
+	}
+	
+	/**
+	 * The size of the region in bytes, at least what was asked for.
+	 */
+	public int getSize(int handle) {
+		checkAllocated(handle);
+		return sizes[handle] << alignmentShift;
+	}
+	
+	public int getCapacity() {
+		return capacity << alignmentShift;
+	}
+	
+	public int getAllocationCount() {
+		return allocationCount;
+	}
+	
+	public int getUsedBytes() {
+		return used << alignmentShift;
+	}
+	
+	public int getFreeBytes() {
+		return (capacity - used) << alignmentShift;
+	}
+	
+	/**
+	 * The most bytes allocated at once since creation or the last resetPeaks.
+	 */
+	public int getPeakUsedBytes() {
+		return peakUsed << alignmentShift;
+	}
+	
+	/**
+	 * The highest end of a region since creation or the last resetPeaks, the least capacity that would have been enough.
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark << alignmentShift;
+	}
+	
+	public void resetPeaks() {
+		peakUsed = used;
+		highWaterMark = 0;
+		
+		for(int block = lastBlock; block != NONE; block = prevBlocks[block]) {
+			if(states[block] == ALLOCATED) {
+				highWaterMark = offsets[block] + sizes[block];
+				break;
+			}
+		}
+	}
+	
+	public int getLargestFreeBlock() {
+		if(flBitmap == 0) {
+			return 0;
+		}
+		
+		int fl = 31 - Integer.numberOfLeadingZeros(flBitmap);
+		int sl = 31 - Integer.numberOfLeadingZeros(slBitmaps[fl]);
+		
+		int largest = 0;
+		for(int block = freeHeads[fl * SL_COUNT + sl]; block != NONE; block = nextFree[block]) {
+			largest = Math.max(largest, sizes[block]);
+		}
+		
+		return largest << alignmentShift;
+	}
+	
+	/**
+	 * 0 when all free space is in one block, approaching 1 as it is split into more, smaller blocks.
+	 */
+	public float getFragmentation() {
+		int free = getFreeBytes();
+		return free == 0 ? 0 : 1 - (float)getLargestFreeBlock() / free;
+	}
+	
+	private int toUnits(int size) {
+		if(size <= 0) {
+			throw new IllegalArgumentException("Invalid region size: " + size);
+		}
+		
+		return (int)(((long)size + alignment - 1) >>> alignmentShift);
+	}
+	
+	private void checkAllocated(int handle) {
+		if(handle < 0 || handle >= recordCount || states[handle] != ALLOCATED) {
+			throw new IllegalArgumentException("Not an allocated region: " + handle);
+		}
+	}
+	
+	private void updatePeaks(int block) {
+		peakUsed = Math.max(peakUsed, used);
+		highWaterMark = Math.max(highWaterMark, offsets[block] + sizes[block]);
+	}
+	
+	private static int firstLevel(int units) {
+		return units < SL_COUNT ? 0 : 31 - Integer.numberOfLeadingZeros(units) - SL_LOG + 1;
+	}
+	
+	private static int secondLevel(int units, int fl) {
+		return fl == 0 ? units : (units >>> (fl - 1)) - SL_COUNT;
+	}
+	
+	private int findFree(int units) {
+		// Rounded up to the next list's smallest size so that any block in that list or above fits
+		int search = units;
+		if(units >= SL_COUNT) {
+			search += (1 << (31 - Integer.numberOfLeadingZeros(units) - SL_LOG)) - 1;
+		}
+		
+		if(search > 0) {
+			int fl = firstLevel(search);
+			int sl = secondLevel(search, fl);
+			
+			int slMap = slBitmaps[fl] & (-1 << sl);
+			if(slMap == 0) {
+				int flMap = flBitmap & (-1 << (fl + 1));
+				if(flMap != 0) {
+					fl = Integer.numberOfTrailingZeros(flMap);
+					slMap = slBitmaps[fl];
+				}
+			}
+			
+			if(slMap != 0) {
+				return freeHeads[fl * SL_COUNT + Integer.numberOfTrailingZeros(slMap)];
+			}
+		}
+		
+		// Nothing larger, a block in units' own list may still fit
+		int fl = firstLevel(units);
+		for(int block = freeHeads[fl * SL_COUNT + secondLevel(units, fl)]; block != NONE; block = nextFree[block]) {
+			if(sizes[block] >= units) {
+				return block;
+			}
+		}
+		
+		return NONE;
+	}
+	
+	private void insertFree(int block) {
+		int fl = firstLevel(sizes[block]);
+		int sl = secondLevel(sizes[block], fl);
+		int list = fl * SL_COUNT + sl;
+		
+		int head = freeHeads[list];
+		prevFree[block] = NONE;
+		nextFree[block] = head;
+		if(head != NONE) {
+			prevFree[head] = block;
+		}
+		freeHeads[list] = block;
+		
+		flBitmap |= 1 << fl;
+		slBitmaps[fl] |= 1 << sl;
+	}
+	
+	private void removeFree(int block) {
+		int prev = prevFree[block], next = nextFree[block];
+		
+		if(next != NONE) {
+			prevFree[next] = prev;
+		}
+		
+		if(prev != NONE) {
+			nextFree[prev] = next;
+		} else {
+			int fl = firstLevel(sizes[block]);
+			int sl = secondLevel(sizes[block], fl);
+			
+			freeHeads[fl * SL_COUNT + sl] = next;
+			
+			if(next == NONE) {
+				slBitmaps[fl] &= ~(1 << sl);
+				if(slBitmaps[fl] == 0) {
+					flBitmap &= ~(1 << fl);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Marks the block free, merges it with free neighbors and puts the result in its list.
+	 */
+	private void makeFree(int block) {
+		states[block] = FREE;
+		
+		int next = nextBlocks[block];
+		if(next != NONE && states[next] == FREE) {
+			removeFree(next);
+			sizes[block] += sizes[next];
+			unlink(next);
+		}
+		
+		int prev = prevBlocks[block];
+		if(prev != NONE && states[prev] == FREE) {
+			removeFree(prev);
+			sizes[prev] += sizes[block];
+			unlink(block);
+			block = prev;
+		}
+		
+		insertFree(block);
+	}
+	
+	/**
+	 * Links block right after prev in address order, or first if prev is NONE.
+	 */
+	private void linkAfter(int prev, int block) {
+		int next = prev == NONE ? firstBlock : nextBlocks[prev];
+		
+		prevBlocks[block] = prev;
+		nextBlocks[block] = next;
+		
+		if(prev == NONE) {
+			firstBlock = block;
+		} else {
+			nextBlocks[prev] = block;
+		}
+		
+		if(next == NONE) {
+			lastBlock = block;
+		} else {
+			prevBlocks[next] = block;
+		}
+	}
+	
+	private void unlink(int block) {
+		int prev = prevBlocks[block], next = nextBlocks[block];
+		
+		if(prev == NONE) {
+			firstBlock = next;
+		} else {
+			nextBlocks[prev] = next;
+		}
+		
+		if(next == NONE) {
+			lastBlock = prev;
+		} else {
+			prevBlocks[next] = prev;
+		}
+		
+		releaseRecord(block);
+	}
+	
+	private int newRecord(int offset, int size) {
+		int record;
+		if(unusedRecordCount > 0) {
+			record = unusedRecords[--unusedRecordCount];
+		} else {
+			if(recordCount == offsets.length) {
+				int length = recordCount * 2;
+				offsets = Arrays.copyOf(offsets, length);
+				sizes = Arrays.copyOf(sizes, length);
+				prevBlocks = Arrays.copyOf(prevBlocks, length);
+				nextBlocks = Arrays.copyOf(nextBlocks, length);
+				prevFree = Arrays.copyOf(prevFree, length);
+				nextFree = Arrays.copyOf(nextFree, length);
+				states = Arrays.copyOf(states, length);
+				unusedRecords = Arrays.copyOf(unusedRecords, length);
+			}
+			
+			record = recordCount++;
+		}
+		
+		offsets[record] = offset;
+		sizes[record] = size;
+		prevBlocks[record] = nextBlocks[record] = NONE;
+		prevFree[record] = nextFree[record] = NONE;
+		
+		return record;
+	}
+	
+	private void releaseRecord(int record) {
+		states[record] = UNUSED;
+		unusedRecords[unusedRecordCount++] = record;
+	}
+}
@@ -0,0 +1,61 @@
+package com.ra4king.fps.renderers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The GL calls made by the chunk pass each frame, so that it can run against GLRenderDevice or, without a GPU, against
+ * RecordingRenderDevice. The methods follow the GL functions they are named after, targets and enums are GL's.
+ *
+ * @author Roi Atalla
+ */
+public interface RenderDevice {
+	int genBuffer();
+	
+	void deleteBuffer(int buffer);
+	
+	void bindBuffer(int target, int buffer);
+	
+	void bufferData(int target, long size, int usage);
+	
+	/**
+	 * Uploads data from its position to its limit.
+	 */
+	void bufferData(int target, ByteBuffer data, int usage);
+	
+	void bufferSubData(int target, long offset, ByteBuffer data);
+	
+	void copyBufferSubData(int readTarget, int writeTarget, long readOffset, long writeOffset, long size);
+	
+	/**
+	 * Gives the buffer bound to target immutable storage and maps all of it persistently and coherently for writing.
+	 */
+	ByteBuffer mapPersistentBuffer(int target, long size);
+	
+	void unmapBuffer(int target);
+	
+	/**
+	 * @return a fence signaled once the commands issued so far are complete
+	 */
+	int fenceSync();
+	
+	/**
+	 * @return false if the fence was not signaled within the timeout
+	 */
+	boolean clientWaitSync(int fence, long timeoutNanos);
+	
+	void deleteSync(int fence);
+	
+	int genVertexArray();
+	
+	void bindVertexArray(int vertexArray);
+	
+	void enableVertexAttribArray(int index);
+	
+	void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride, long offset);
+	
+	void vertexAttribIPointer(int index, int size, int type, int stride, long offset);
+	
+	void vertexAttribDivisor(int index, int divisor);
+	
+	void multiDrawElementsIndirect(int mode, int type, long indirectOffset, int drawCount, int stride);
+}
@@ -0,0 +1,163 @@
+package com.ra4king.fps.renderers;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL31.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A ChunkResidency.SlotBuffer backed by a GL buffer that is only ever written by the GPU. Uploads are written into a
+ * persistently mapped staging ring and copied into the slots with glCopyBufferSubData, which is ordered after the
+ * draws already issued, so a slot is never overwritten while a previous frame may still be reading it.
+ *
+ * The ring has one section per frame in flight. A fence is placed after each frame's copies and the section is only
+ * written again once the fence signals.
+ *
+ * @author Roi Atalla
+ */
+public class StagingSlotBuffer implements ChunkResidency.SlotBuffer {
+	private static final int NO_FENCE = -1;
+	
+	private final RenderDevice device;
+	
+	private int residentBuffer;
+	private int residentSize;
+	
+	private final int stagingBuffer;
+	private final ByteBuffer staging;
+	private final int sectionSize;
+	private final int[] fences;
+	
+	private int section;
+	private int sectionUsed;
+	private int uploadOffset, uploadSize;
+	
+	public StagingSlotBuffer(RenderDevice device, int size, int sectionSize, int sectionCount) {
+		this.device = device;
+		this.sectionSize = sectionSize;
+		
+		fences = new int[sectionCount];
+		Arrays.fill(fences, NO_FENCE);
+		
+		residentBuffer = createResidentBuffer(size);
+		residentSize = size;
+		
+		stagingBuffer = device.genBuffer();
+		device.bindBuffer(GL_COPY_READ_BUFFER, stagingBuffer);
+		staging = device.mapPersistentBuffer(GL_COPY_READ_BUFFER, (long)sectionSize * sectionCount);
+		device.bindBuffer(GL_COPY_READ_BUFFER, 0);
+	}
+	
+	private int createResidentBuffer(int size) {
+		int buffer = device.genBuffer();
+		device.bindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+		device.bufferData(GL_COPY_WRITE_BUFFER, size, GL_STATIC_DRAW);
+		device.bindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		return buffer;
+	}
+	
+	/**
+	 * The buffer holding the slots, to be used as the source of vertex attributes. It is replaced by resize.
+	 */
+	public int getGLBuffer() {
+		return residentBuffer;
+	}
+	
+	@Override
+	public int getSize() {
+		return residentSize;
+	}
+	
+	@Override
+	public void resize(int size) {
+		int resized = createResidentBuffer(size);
+		
+		// Ordered after the draws already issued like any other copy, deleting the old buffer is deferred by GL until
+		// they are done with it
+		device.bindBuffer(GL_COPY_READ_BUFFER, residentBuffer);
+		device.bindBuffer(GL_COPY_WRITE_BUFFER, resized);
+		device.copyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, Math.min(size, residentSize));
+		device.bindBuffer(GL_COPY_READ_BUFFER, 0);
+		device.bindBuffer(GL_COPY_WRITE_BUFFER, 0);
+		
+		device.deleteBuffer(residentBuffer);
+		
+		residentBuffer = resized;
+		residentSize = size;
+	}
+	
+	@Override
+	public ByteBuffer beginUpload(int size) {
+		if(sectionUsed + size > sectionSize) {
+			return null;
+		}
+		
+		uploadOffset = section * sectionSize + sectionUsed;
+		uploadSize = size;
+		sectionUsed += size;
+		
+		ByteBuffer view = staging.duplicate();
+		view.limit(uploadOffset + size).position(uploadOffset);
+		return view;
+	}
+	
+	@Override
+	public void endUpload(int offset) {
+		device.bindBuffer(GL_COPY_READ_BUFFER, stagingBuffer);
+		device.bindBuffer(GL_COPY_WRITE_BUFFER, residentBuffer);
+		device.copyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, uploadOffset, offset, uploadSize);
+		device.bindBuffer(GL_COPY_READ_BUFFER, 0);
+		device.bindBuffer(GL_COPY_WRITE_BUFFER, 0);
+	}
+	
+	@Override
+	public void move(int from, int to, int size) {
+		device.bindBuffer(GL_COPY_READ_BUFFER, residentBuffer);
+		device.bindBuffer(GL_COPY_WRITE_BUFFER, residentBuffer);
+		
+		// Copies within one buffer must not overlap, an overlapping move is split into pieces no longer than the distance
+		int step = from - to;
+		for(int done = 0; done < size; done += step) {
+			device.copyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, from + done, to + done, Math.min(step, size - done));
+		}
+		
+		device.bindBuffer(GL_COPY_READ_BUFFER, 0);
+		device.bindBuffer(GL_COPY_WRITE_BUFFER, 0);
+	}
+	
+	@Override
+	public void endFrame() {
+		fences[section] = device.fenceSync();
+		
+		section = (section + 1) % fences.length;
+		sectionUsed = 0;
+		
+		// The GPU may still be copying out of the next section, wait for the frame that used it
+		if(fences[section] != NO_FENCE) {
+			boolean signaled;
+			do {
+				signaled = device.clientWaitSync(fences[section], 1000000);
+			} while(!signaled);
+			
+			device.deleteSync(fences[section]);
+			fences[section] = NO_FENCE;
+		}
+	}
+	
+	public void destroy() {
+		for(int i = 0; i < fences.length; i++) {
+			if(fences[i] != NO_FENCE) {
+				device.deleteSync(fences[i]);
+				fences[i] = NO_FENCE;
+			}
+		}
+		
+		device.bindBuffer(GL_COPY_READ_BUFFER, stagingBuffer);
+		device.unmapBuffer(GL_COPY_READ_BUFFER);
+		device.bindBuffer(GL_COPY_READ_BUFFER, 0);
+		
+		device.deleteBuffer(stagingBuffer);
+		device.deleteBuffer(residentBuffer);
+	}
+}
@@ -0,0 +1,90 @@
+package com.ra4king.fps.world;
+
+/**
+ * Dense ChunkMap covering chunk positions [0, side) on each axis.
+ *
+ * @author Roi Atalla
+ */
+public class ArrayChunkMap implements ChunkMap {
+	private final int sideX, sideY, sideZ;
+	
+	// z * sideX * sideY + y * sideX + x
+	private final Chunk[] chunks;
+	private int size;
+	
+	public ArrayChunkMap(int sideX, int sideY, int sideZ) {
+		this.sideX = sideX;
+		this.sideY = sideY;
+		this.sideZ = sideZ;
+		
+		chunks = new Chunk[sideX * sideY * sideZ];
+	}
+	
+	private int posToArrayIndex(int x, int y, int z) {
+		if(x < 0 || x >= sideX ||
+				y < 0 || y >= sideY ||
+				z < 0 || z >= sideZ)
+			return -1;
+		
+		return z * sideX * sideY + y * sideX + x;
+	}
+	
+	@Override
+	public boolean isBounded() {
+		return true;
+	}
+	
+	@Override
+	public Chunk get(int x, int y, int z) {
+		int i = posToArrayIndex(x, y, z);
+		return i == -1 ? null : chunks[i];
+	}
+	
+	@Override
+	public void put(int x, int y, int z, Chunk chunk) {
+		int i = posToArrayIndex(x, y, z);
+		if(i == -1)
+			throw new IllegalArgumentException("Invalid chunk position (" + x + "," + y + "," + z + ").");
+		
+		if(chunks[i] == null)
+			size++;
+		
+		chunks[i] = chunk;
+	}
+	
+	@Override
+	public Chunk remove(int x, int y, int z) {
+		int i = posToArrayIndex(x, y, z);
+		if(i == -1)
+			return null;
+		
+		Chunk chunk = chunks[i];
+		if(chunk != null) {
+			chunks[i] = null;
+			size--;
+		}
+		
+		return chunk;
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public Chunk[] toArray() {
+		if(size == chunks.length) {
+			return chunks.clone();
+		}
+		
+		Chunk[] array = new Chunk[size];
+		int idx = 0;
+		for(Chunk chunk : chunks) {
+			if(chunk != null)
+				array[idx++] = chunk;
+		}
+		
+		return array;
+	}
+}
@@ -1,127 +1,513 @@
-package com.ra4king.fps.world;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-
-import com.ra4king.fps.actors.Actor;
-import com.ra4king.fps.actors.Block;
-import com.ra4king.fps.actors.Block.BlockType;
-import com.ra4king.fps.actors.Bullet;
-import com.ra4king.fps.actors.Portal;
-import com.ra4king.opengl.util.math.Quaternion;
-import com.ra4king.opengl.util.math.Vector3;
-
-/**
- * @author Roi Atalla
- */
-public class BulletManager {
-	private ArrayList<Bullet> bullets;
-	
-	private HashMap<Bullet, Integer> bulletDestroyCount;
-	private final int BLOCK_DESTROY_RATE = 5;
-	
-	private ChunkManager chunkManager;
-	
-	public BulletManager(ChunkManager chunkManager) {
-		this.chunkManager = chunkManager;
-		
-		bullets = new ArrayList<>();
-		
-		bulletDestroyCount = new HashMap<>();
-	}
-	
-	public void addBullet(Bullet bullet) {
-		bullets.add(bullet);
-	}
-	
-	public ArrayList<Bullet> getBullets() {
-		return bullets;
-	}
-	
-	private int blocksDestroyed;
-	
-	public int getBlocksDestroyedCount() {
-		return blocksDestroyed;
-	}
-	
-	private ArrayList<Bullet> temp = new ArrayList<>();
-	
-	public void update(long deltaTime) {
-		for(Bullet bullet : bullets) {
-			bullet.update(deltaTime);
-			
-			if(bullet.isAlive()) {
-				boolean isAlive = true;
-				
-				if(bullet.isSolid()) {
-					Vector3 pos = bullet.getPosition();
-					
-					Block[] blocks = chunkManager.getBlocks(pos, 0.5f * bullet.getSize());
-					
-					if(blocks.length > 0) {
-						int destroyCount = 0;
-						
-						for(Block b : blocks) {
-							chunkManager.setBlock(BlockType.AIR, b);
-							blocksDestroyed++;
-							destroyCount++;
-							
-							temp.add(new Bullet(new Vector3(b.getX(), b.getY(), -b.getZ()).mult(Chunk.SPACING), new Vector3((float)Math.random() * 2 - 1, (float)Math.random() * 2 - 1, (float)Math.random() * 2 - 1).normalize().mult(100), 1, 10, (long)2.5e8, false, new Vector3(1, 1, 1)));
-						}
-						
-						Integer i = bulletDestroyCount.get(bullet);
-						i = i == null ? destroyCount : i + destroyCount;
-						bulletDestroyCount.put(bullet, i);
-						
-						if(i >= bullet.getSize() * BLOCK_DESTROY_RATE) {
-							bulletDestroyCount.remove(bullet);
-							isAlive = false;
-						}
-					}
-
-//					} else if((block = chunkManager.getBlock(pos, 0.5f * bullet.getSize())) != null && block.getType() != BlockType.AIR) {
-//						chunkManager.setBlock(BlockType.AIR, block);
-//						
-//						blocksDestroyed++;
-//						
-//						isAlive = false;
-//						
-//						for(int a = 0; a < 2; a++) {
-//							temp.add(new Bullet(pos, new Vector3((float)(Math.random() * 2.0 - 1.0), (float)(Math.random() * 2.0 - 1.0), (float)(Math.random() * 2.0 - 1.0)).normalize().mult(100), 1, 5, (long)2.5e8, false, new Vector3(1)));
-//						}
-//					}
-				}
-				
-				if(isAlive) {
-					Vector3 delta = new Vector3(bullet.getVelocity()).mult(deltaTime / 1e9f);
-					
-					for(Actor actor : chunkManager.getWorld().getActors()) {
-						if(actor instanceof Portal) {
-							Portal portal = (Portal)actor;
-							if(portal.intersects(bullet.getPosition(), delta)) {
-								Quaternion bulletOrient = new Quaternion();
-								portal.transform(bullet.getPosition(), bulletOrient);
-								bulletOrient.inverse().mult3(bullet.getVelocity(), bullet.getVelocity());
-								
-								isAlive = false;
-								portal.getDestWorld().addBullet(new Bullet(bullet));
-								
-								break;
-							}
-						}
-					}
-					
-					if(isAlive) {
-						temp.add(bullet);
-					}
-				}
-			}
-		}
-		
-		bullets.clear();
-		
-		ArrayList<Bullet> old = bullets;
-		bullets = temp;
-		temp = old;
-	}
-}
+package com.ra4king.fps.world;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.ra4king.fps.actors.Actor;
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.actors.Bullet;
+import com.ra4king.fps.actors.Portal;
+import com.ra4king.fps.world.ChunkManager.BlockVisitor;
+import com.ra4king.opengl.util.math.Quaternion;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Keeps up to a fixed number of bullets in parallel arrays, one entry per bullet in each. Positions, velocities and
+ * colors take 3 floats per bullet. Bullets are added at the end and removed by moving the last bullet into their
+ * index, so indices are only valid until the next update or removal. Bullets added while full are dropped.
+ *
+ * Solid bullets collide with every block along the path they moved in a frame, so a long frame does not let them pass
+ * through thin walls.
+ *
+ * An update first moves every bullet and finds the ones that crossed a solid block or a portal, split across a
+ * ForkJoinPool without changing the world. Blocks are then destroyed, debris added and bullets sent through portals on
+ * the calling thread, from the last bullet to the first, which gives the same result as doing everything on one thread
+ * since destroying blocks never puts a block in a bullet's way. With the same seed and the same calls, the same blocks
+ * are destroyed and the same debris added, whatever the thread count.
+ *
+ * @author Roi Atalla
+ */
+public class BulletManager {
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+	
+	// Below this many bullets the first phase runs on the calling thread
+	private static final int MIN_PARALLEL_BULLETS = 2048;
+	
+	// What the first phase found for a bullet
+	private static final byte FLYING = 0, EXPIRED = 1, HIT = 2;
+	
+	private final int BLOCK_DESTROY_RATE = 5;
+	
+	private ChunkManager chunkManager;
+	
+	private final int capacity;
+	private int count;
+	
+	private final float[] positions, velocities, colors;
+	private final float[] sizes, ranges;
+	private final long[] ages, lives;
+	private final boolean[] solid;
+	private final int[] destroyCounts;
+	
+	// Per bullet, filled by the first phase of update: its outcome, the index in the World's actors of the portal it
+	// went through or -1, and for bullets that hit, their position before moving
+	private final byte[] outcomes;
+	private final int[] portals;
+	private final float[] fromPositions;
+	
+	private final SplittableRandom random;
+	
+	private final VoxelTraversal traversal = new VoxelTraversal();
+	
+	// Turns each block it visits into air with a debris bullet flying off it
+	private final BlockVisitor debrisSpawner = this::destroyBlock;
+	
+	// null when the first phase always runs on the calling thread
+	private final ForkJoinPool pool;
+	private final SimulateTask[] tasks;
+	private final RecursiveAction simulateAll;
+	
+	// Read by the tasks, set before the pool is invoked
+	private long frameTime;
+	private List<Actor> frameActors;
+	
+	private int blocksDestroyed;
+	private int droppedCount;
+	
+	public BulletManager(ChunkManager chunkManager) {
+		this(chunkManager, DEFAULT_CAPACITY);
+	}
+	
+	public BulletManager(ChunkManager chunkManager, int capacity) {
+		this(chunkManager, capacity, Math.max(1, Runtime.getRuntime().availableProcessors() / 2), System.nanoTime());
+	}
+	
+	/**
+	 * @param threadCount the threads moving bullets, with fewer than 2 the calling thread does it instead
+	 * @param seed        seeds the directions of debris
+	 */
+	public BulletManager(ChunkManager chunkManager, int capacity, int threadCount, long seed) {
+		if(capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive.");
+		
+		this.chunkManager = chunkManager;
+		this.capacity = capacity;
+		
+		random = new SplittableRandom(seed);
+		
+		outcomes = new byte[capacity];
+		portals = new int[capacity];
+		fromPositions = new float[capacity * 3];
+		
+		// A few tasks per thread, so threads that finish early steal from the others
+		tasks = new SimulateTask[threadCount > 1 ? threadCount * 4 : 1];
+		for(int i = 0; i < tasks.length; i++) {
+			tasks[i] = new SimulateTask();
+		}
+		
+		if(threadCount > 1) {
+			pool = new ForkJoinPool(threadCount);
+			simulateAll = new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			};
+		} else {
+			pool = null;
+			simulateAll = null;
+		}
+		
+		positions = new float[capacity * 3];
+		velocities = new float[capacity * 3];
+		colors = new float[capacity * 3];
+		sizes = new float[capacity];
+		ranges = new float[capacity];
+		ages = new long[capacity];
+		lives = new long[capacity];
+		solid = new boolean[capacity];
+		destroyCounts = new int[capacity];
+	}
+	
+	/**
+	 * Copies the bullet in.
+	 *
+	 * @return the bullet's index, or -1 if full
+	 */
+	public int addBullet(Bullet bullet) {
+		Vector3 position = bullet.getPosition(new Vector3());
+		Vector3 velocity = bullet.getVelocity(new Vector3());
+		Vector3 color = bullet.getColor(new Vector3());
+		
+		return addBullet(position.x(), position.y(), position.z(), velocity.x(), velocity.y(), velocity.z(),
+		                 bullet.getSize(), bullet.getRange(), bullet.getLife(), bullet.getAge(), bullet.isSolid(), color.x(), color.y(), color.z());
+	}
+	
+	/**
+	 * @return the bullet's index, or -1 if full
+	 */
+	public int addBullet(float x, float y, float z, float velocityX, float velocityY, float velocityZ, float size, float range, long life, long age, boolean isSolid, float red, float green, float blue) {
+		if(count == capacity) {
+			droppedCount++;
+			return -1;
+		}
+		
+		int index = count++;
+		int v = index * 3;
+		
+		positions[v] = x;
+		positions[v + 1] = y;
+		positions[v + 2] = z;
+		velocities[v] = velocityX;
+		velocities[v + 1] = velocityY;
+		velocities[v + 2] = velocityZ;
+		colors[v] = red;
+		colors[v + 1] = green;
+		colors[v + 2] = blue;
+		sizes[index] = size;
+		ranges[index] = range;
+		lives[index] = life;
+		ages[index] = age;
+		solid[index] = isSolid;
+		destroyCounts[index] = 0;
+		
+		return index;
+	}
+	
+	/**
+	 * Moves the last bullet into index.
+	 */
+	public void removeBullet(int index) {
+		if(index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("Invalid bullet index: " + index);
+		
+		int last = --count;
+		if(index == last) {
+			return;
+		}
+		
+		System.arraycopy(positions, last * 3, positions, index * 3, 3);
+		System.arraycopy(velocities, last * 3, velocities, index * 3, 3);
+		System.arraycopy(colors, last * 3, colors, index * 3, 3);
+		sizes[index] = sizes[last];
+		ranges[index] = ranges[last];
+		lives[index] = lives[last];
+		ages[index] = ages[last];
+		solid[index] = solid[last];
+		destroyCounts[index] = destroyCounts[last];
+	}
+	
+	public void clear() {
+		count = 0;
+	}
+	
+	public int getBulletCount() {
+		return count;
+	}
+	
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Bullets not added because the manager was full.
+	 */
+	public int getDroppedCount() {
+		return droppedCount;
+	}
+	
+	public int getBlocksDestroyedCount() {
+		return blocksDestroyed;
+	}
+	
+	/**
+	 * x,y,z of each bullet, the first getBulletCount() * 3 floats are valid. Not to be modified.
+	 */
+	public float[] getPositions() {
+		return positions;
+	}
+	
+	/**
+	 * x,y,z of each bullet, the first getBulletCount() * 3 floats are valid. Not to be modified.
+	 */
+	public float[] getVelocities() {
+		return velocities;
+	}
+	
+	/**
+	 * r,g,b of each bullet, the first getBulletCount() * 3 floats are valid. Not to be modified.
+	 */
+	public float[] getColors() {
+		return colors;
+	}
+	
+	public float getSize(int index) {
+		return sizes[index];
+	}
+	
+	public float getRange(int index) {
+		return ranges[index];
+	}
+	
+	public boolean isSolid(int index) {
+		return solid[index];
+	}
+	
+	public long getAge(int index) {
+		return ages[index];
+	}
+	
+	public long getLife(int index) {
+		return lives[index];
+	}
+	
+	public float getAlpha(int index) {
+		return (float)(lives[index] - ages[index]) / lives[index];
+	}
+	
+	/**
+	 * Stops the threads moving bullets, updates afterwards run on the calling thread.
+	 */
+	public void shutdown() {
+		if(pool != null) {
+			pool.shutdownNow();
+		}
+	}
+	
+	public int getThreadCount() {
+		return pool == null ? 1 : pool.getParallelism();
+	}
+	
+	public void update(long deltaTime) {
+		frameTime = deltaTime;
+		frameActors = chunkManager.getWorld().getActors();
+		
+		final int bulletCount = count;
+		
+		// Chunks may have been replaced or closed since the last frame
+		for(SimulateTask task : tasks) {
+			task.chunk = null;
+		}
+		
+		if(pool == null || pool.isShutdown() || bulletCount < MIN_PARALLEL_BULLETS) {
+			simulate(tasks[0], 0, bulletCount);
+		} else {
+			for(int i = 0; i < tasks.length; i++) {
+				tasks[i].start = (int)((long)bulletCount * i / tasks.length);
+				tasks[i].end = (int)((long)bulletCount * (i + 1) / tasks.length);
+				tasks[i].reinitialize();
+			}
+			
+			simulateAll.reinitialize();
+			pool.invoke(simulateAll);
+		}
+		
+		frameActors = null;
+		
+		apply(bulletCount);
+	}
+	
+	/**
+	 * Moves the bullets in [start, end) and fills in their outcomes. Only writes to those bullets' entries, and only reads
+	 * the world.
+	 */
+	private void simulate(SimulateTask task, int start, int end) {
+		final long deltaTime = frameTime;
+		final float seconds = deltaTime / 1e9f;
+		final List<Actor> actors = frameActors;
+		
+		Vector3 position = new Vector3(), delta = new Vector3();
+		
+		for(int i = start; i < end; i++) {
+			int v = i * 3;
+			
+			ages[i] += deltaTime;
+			
+			float fromX = positions[v], fromY = positions[v + 1], fromZ = positions[v + 2];
+			
+			delta.set(velocities[v], velocities[v + 1], velocities[v + 2]).mult(seconds);
+			position.set(fromX + delta.x(), fromY + delta.y(), fromZ + delta.z());
+			positions[v] = position.x();
+			positions[v + 1] = position.y();
+			positions[v + 2] = position.z();
+			
+			if(ages[i] >= lives[i]) {
+				outcomes[i] = EXPIRED;
+				continue;
+			}
+			
+			if(solid[i] && task.crossesSolid(fromX, fromY, fromZ, position)) {
+				outcomes[i] = HIT;
+				fromPositions[v] = fromX;
+				fromPositions[v + 1] = fromY;
+				fromPositions[v + 2] = fromZ;
+			} else {
+				outcomes[i] = FLYING;
+			}
+			
+			portals[i] = findPortal(position, delta, actors);
+		}
+	}
+	
+	/**
+	 * Removes the bullets in [0, bulletCount) that expired, destroyed enough blocks or went through a portal.
+	 */
+	private void apply(int bulletCount) {
+		List<Actor> actors = chunkManager.getWorld().getActors();
+		
+		Vector3 from = new Vector3(), position = new Vector3();
+		
+		// Backwards, so a removal only moves in a bullet that was already applied and debris added here waits a frame
+		for(int i = bulletCount - 1; i >= 0; i--) {
+			int v = i * 3;
+			
+			if(outcomes[i] == EXPIRED) {
+				removeBullet(i);
+				continue;
+			}
+			
+			position.set(positions[v], positions[v + 1], positions[v + 2]);
+			
+			if(outcomes[i] == HIT) {
+				from.set(fromPositions[v], fromPositions[v + 1], fromPositions[v + 2]);
+				
+				if(destroyBlocks(i, from, position)) {
+					removeBullet(i);
+					continue;
+				}
+			}
+			
+			if(portals[i] != -1) {
+				enterPortal(i, position, (Portal)actors.get(portals[i]));
+				removeBullet(i);
+			}
+		}
+	}
+	
+	/**
+	 * Walks the blocks the solid bullet at index went through this frame, in order, and at each solid one turns the
+	 * blocks within the bullet's radius into air, until the bullet destroyed enough blocks to die.
+	 *
+	 * @return true if the bullet destroyed enough blocks to die
+	 */
+	private boolean destroyBlocks(int index, Vector3 from, Vector3 to) {
+		final float radius = 0.5f * sizes[index];
+		
+		traversal.start(from, to);
+		
+		while(traversal.next()) {
+			if(!chunkManager.isSolid(traversal.getX(), traversal.getY(), traversal.getZ())) {
+				continue;
+			}
+			
+			destroyCounts[index] += destroyAround(traversal.getX(), traversal.getY(), traversal.getZ(), radius);
+			
+			if(destroyCounts[index] >= sizes[index] * BLOCK_DESTROY_RATE) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Turns the solid blocks whose centers are within radius of the center of block (x,y,z), in world units, into air,
+	 * with a debris bullet flying off each.
+	 *
+	 * @return the number of blocks destroyed
+	 */
+	private int destroyAround(int x, int y, int z, float radius) {
+		// Always includes the block itself
+		return chunkManager.forEachSolidInSphere(x * Chunk.SPACING, y * Chunk.SPACING, -z * Chunk.SPACING, radius, debrisSpawner);
+	}
+	
+	private boolean destroyBlock(int x, int y, int z) {
+		chunkManager.setBlock(BlockType.AIR, x, y, z);
+		blocksDestroyed++;
+		
+		Vector3 direction = new Vector3().set((float)random.nextDouble(-1, 1), (float)random.nextDouble(-1, 1), (float)random.nextDouble(-1, 1)).normalize().mult(100);
+		
+		addBullet(x * Chunk.SPACING, y * Chunk.SPACING, -z * Chunk.SPACING, direction.x(), direction.y(), direction.z(),
+		          1, 10, (long)2.5e8, 0, false, 1, 1, 1);
+		
+		return true;
+	}
+	
+	/**
+	 * @return the index in actors of the first portal the bullet went through this frame, or -1
+	 */
+	private static int findPortal(Vector3 position, Vector3 delta, List<Actor> actors) {
+		for(int a = 0; a < actors.size(); a++) {
+			Actor actor = actors.get(a);
+			
+			if(actor instanceof Portal && ((Portal)actor).intersects(position, delta)) {
+				return a;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Adds the bullet at index to the portal's destination world, on the other side of the portal.
+	 */
+	private void enterPortal(int index, Vector3 position, Portal portal) {
+		int v = index * 3;
+		
+		Quaternion bulletOrient = new Quaternion();
+		portal.transform(position, bulletOrient);
+		
+		Vector3 velocity = new Vector3(velocities[v], velocities[v + 1], velocities[v + 2]);
+		bulletOrient.inverse().mult3(velocity, velocity);
+		
+		portal.getDestWorld().getBulletManager().addBullet(position.x(), position.y(), position.z(), velocity.x(), velocity.y(), velocity.z(),
+		                                                   sizes[index], ranges[index], lives[index], ages[index], solid[index],
+		                                                   colors[v], colors[v + 1], colors[v + 2]);
+	}
+	
+	private class SimulateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final VoxelTraversal traversal = new VoxelTraversal();
+		
+		// Each task keeps its own last chunk, ChunkManager's is not meant to be shared between threads. Cleared every
+		// update.
+		private Chunk chunk;
+		
+		private int start, end;
+		
+		@Override
+		protected void compute() {
+			simulate(this, start, end);
+		}
+		
+		/**
+		 * True if any block the segment crosses is solid.
+		 */
+		boolean crossesSolid(float fromX, float fromY, float fromZ, Vector3 to) {
+			traversal.start(fromX, fromY, fromZ, to.x(), to.y(), to.z());
+			
+			while(traversal.next()) {
+				int x = traversal.getX(), y = traversal.getY(), z = traversal.getZ();
+				
+				if(chunk == null || !chunk.containsBlock(x, y, z)) {
+					chunk = chunkManager.findChunkContaining(x, y, z);
+					
+					if(chunk == null) {
+						continue;
+					}
+				}
+				
+				if(chunk.isSolid(x - chunk.getCornerX(), y - chunk.getCornerY(), z - chunk.getCornerZ())) {
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+}
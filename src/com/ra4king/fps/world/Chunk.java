@@ -1,226 +1,895 @@
-package com.ra4king.fps.world;
-
-import com.ra4king.fps.actors.Block;
-import com.ra4king.fps.actors.Block.BlockType;
-
-import net.indiespot.struct.cp.Struct;
-import net.indiespot.struct.cp.TakeStruct;
-
-/**
- * @author Roi Atalla
- */
-public class Chunk {
-	public static final int CHUNK_BLOCK_WIDTH = 32, CHUNK_BLOCK_HEIGHT = 32, CHUNK_BLOCK_DEPTH = 32;
-	public static final int TOTAL_BLOCKS = Chunk.CHUNK_BLOCK_WIDTH * Chunk.CHUNK_BLOCK_HEIGHT * Chunk.CHUNK_BLOCK_DEPTH;
-	
-	public static final float BLOCK_SIZE = 2;
-	public static final float SPACING = BLOCK_SIZE; // cannot be less than BLOCK_SIZE
-	
-	private ChunkModifiedCallback callback;
-	
-	private int cornerX, cornerY, cornerZ; // block indices
-			
-	// z * width * height + y * width + x
-	private final Block[] blocks; // structured array
-	
-	private int blockCount;
-	
-	private ChunkManager manager;
-	
-	public Chunk(ChunkManager manager, int cornerX, int cornerY, int cornerZ) {
-		this.manager = manager;
-		
-		this.cornerX = cornerX;
-		this.cornerY = cornerY;
-		this.cornerZ = cornerZ;
-		
-		blocks = Struct.mallocArray(Block.class, CHUNK_BLOCK_WIDTH * CHUNK_BLOCK_HEIGHT * CHUNK_BLOCK_DEPTH);
-		
-		blockCount = blocks.length;
-		
-		for(int i = 0; i < blockCount; i++) {
-			int rem = i % (CHUNK_BLOCK_WIDTH * CHUNK_BLOCK_HEIGHT);
-			int x = rem % CHUNK_BLOCK_WIDTH;
-			int y = rem / CHUNK_BLOCK_WIDTH;
-			int z = i / (CHUNK_BLOCK_WIDTH * CHUNK_BLOCK_HEIGHT);
-			
-			blocks[i].init(this, x, y, z, BlockType.AIR);
-		}
-	}
-	
-	@Override
-	protected void finalize() throws Throwable {
-		try {
-			Struct.free(blocks);
-		} finally {
-			super.finalize();
-		}
-	}
-	
-	public void setCallback(ChunkModifiedCallback callback) {
-		this.callback = callback;
-	}
-	
-	public ChunkModifiedCallback getCallback() {
-		return callback;
-	}
-	
-	public ChunkManager getChunkManager() {
-		return manager;
-	}
-	
-	public int getCornerX() {
-		return cornerX;
-	}
-	
-	public int getCornerY() {
-		return cornerY;
-	}
-	
-	public int getCornerZ() {
-		return cornerZ;
-	}
-	
-	public boolean cornerEquals(int cornerX, int cornerY, int cornerZ) {
-		return this.cornerX == cornerX && this.cornerY == cornerY && this.cornerZ == cornerZ;
-	}
-	
-	public boolean containsBlock(int x, int y, int z) {
-		return x >= cornerX && x < cornerX + CHUNK_BLOCK_WIDTH &&
-				y >= cornerY && y < cornerY + CHUNK_BLOCK_HEIGHT &&
-				z >= cornerZ && z < cornerZ + CHUNK_BLOCK_DEPTH;
-	}
-	
-	public boolean containsBlock(Block block) {
-		return containsBlock(block.getX(), block.getY(), block.getZ());
-	}
-	
-	public int posToArrayIndex(int x, int y, int z) {
-		if(!containsBlock(x, y, z))
-			throw new IllegalArgumentException("Invalid coords.");
-		
-		x %= CHUNK_BLOCK_WIDTH;
-		y %= CHUNK_BLOCK_HEIGHT;
-		z %= CHUNK_BLOCK_DEPTH;
-		
-		return z * CHUNK_BLOCK_WIDTH * CHUNK_BLOCK_HEIGHT + y * CHUNK_BLOCK_WIDTH + x;
-	}
-	
-	public int posToArrayIndex(Block block) {
-		return posToArrayIndex(block.getX(), block.getY(), block.getZ());
-	}
-	
-	public int getBlockCount() {
-		return blockCount;
-	}
-	
-	public boolean isValidPos(int x, int y, int z) {
-		return x >= cornerX && x < cornerX + CHUNK_BLOCK_WIDTH && y >= cornerY && y < cornerY + CHUNK_BLOCK_HEIGHT && z >= cornerZ && z < cornerZ + CHUNK_BLOCK_DEPTH;
-	}
-	
-	@TakeStruct
-	public Block get(int x, int y, int z) {
-		if(!isValidPos(x, y, z)) {
-			return Struct.nullStruct(Block.class);
-		}
-		
-		return blocks[posToArrayIndex(x, y, z)];
-	}
-	
-	public Block[] getNeighbors(int x, int y, int z) {
-		Block[] neighbors = new Block[6];
-		int idx = 0;
-		
-		for(int a = -1; a < 2; a++) {
-			if(a == 0)
-				continue;
-			
-			Block block = getChunkManager().getBlock(x + a, y, z);
-			if(block != Struct.nullStruct(Block.class)) {
-				neighbors[idx++] = block;
-			}
-		}
-		
-		for(int b = -1; b < 2; b++) {
-			if(b == 0)
-				continue;
-			
-			Block block = getChunkManager().getBlock(x, y + b, z);
-			if(block != Struct.nullStruct(Block.class)) {
-				neighbors[idx++] = block;
-			}
-		}
-		
-		for(int c = -1; c < 2; c++) {
-			if(c == 0)
-				continue;
-			
-			Block block = getChunkManager().getBlock(x, y, z + c);
-			if(block != Struct.nullStruct(Block.class)) {
-				neighbors[idx++] = block;
-			}
-		}
-		
-		return neighbors;
-	}
-	
-	public Block[] getNeighbors(Block b) {
-		return getNeighbors(b.getX() % Chunk.CHUNK_BLOCK_WIDTH, b.getY() % Chunk.CHUNK_BLOCK_HEIGHT, b.getZ() % Chunk.CHUNK_BLOCK_DEPTH);
-	}
-	
-	public Block[] getBlocks() {
-		return blocks;
-	}
-	
-	public void set(BlockType blockType, int x, int y, int z) {
-		if(!isValidPos(x, y, z)) {
-			throw new IllegalArgumentException("Invalid block position.");
-		}
-		
-		int i = posToArrayIndex(x, y, z);
-		
-		Block block = blocks[i];
-		
-		if(block.getX() != x || block.getY() != y || block.getZ() != z) {
-			throw new IllegalArgumentException(String.format("Invalid block found at (%d,%d,%d), its coords are (%d,%d,%d)",
-					x, y, z, block.getX(), block.getY(), block.getZ()));
-		}
-		
-		if(block.getType() == blockType) {
-			return;
-		}
-		
-		if(block == Struct.nullStruct(Block.class)) {
-			// blocks[i] = callback.chunkInit(x, y, z, blockType);
-			// All blocks must be initialized, this shouldn't happen
-			throw new IllegalStateException(String.format("Block at (%d,%d,%d) is null!", x, y, z));
-		}
-		
-		if(blockType != BlockType.AIR) {
-			if(block.getType() == BlockType.AIR) {
-				blockCount++; // Air -> Not Air
-			}
-			
-			block.setType(blockType);
-			callback.chunkModified(block);
-		} else if(blockType != block.getType()) { // Not Air -> Air
-			block.setType(blockType);
-			callback.chunkModified(block);
-			blockCount--;
-		}
-	}
-	
-	public void clearAll() {
-		for(int x = 0; x < CHUNK_BLOCK_WIDTH; x++) {
-			for(int y = 0; y < CHUNK_BLOCK_HEIGHT; y++) {
-				for(int z = 0; z < CHUNK_BLOCK_DEPTH; z++) {
-					set(BlockType.AIR, cornerX + x, cornerY + y, cornerZ + z);
-				}
-			}
-		}
-	}
-	
-	public interface ChunkModifiedCallback {
-		void chunkModified(Block block);
-	}
-}
+package com.ra4king.fps.world;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.ra4king.fps.StructTracker;
+import com.ra4king.fps.actors.Block;
+import com.ra4king.fps.actors.Block.BlockType;
+
+import net.indiespot.struct.cp.Struct;
+import net.indiespot.struct.cp.TakeStruct;
+
+/**
+ * Holds its Block views off-heap, close() frees them. The ChunkManager closes chunks it replaces or is closed with, and
+ * the ChunkStreamer closes chunks it unloads or discards.
+ *
+ * @author Roi Atalla
+ */
+public class Chunk implements AutoCloseable {
+	public static final int CHUNK_BLOCK_WIDTH = 32, CHUNK_BLOCK_HEIGHT = 32, CHUNK_BLOCK_DEPTH = 32;
+	public static final int TOTAL_BLOCKS = Chunk.CHUNK_BLOCK_WIDTH * Chunk.CHUNK_BLOCK_HEIGHT * Chunk.CHUNK_BLOCK_DEPTH;
+	
+	public static final float BLOCK_SIZE = 2;
+	public static final float SPACING = BLOCK_SIZE; // cannot be less than BLOCK_SIZE
+	
+	// Bits for the 6 faces of a chunk, a change on a face can change what is visible in the neighbor behind it
+	public static final int FACE_NEG_X = 1, FACE_POS_X = 2, FACE_NEG_Y = 4, FACE_POS_Y = 8, FACE_NEG_Z = 16, FACE_POS_Z = 32;
+	public static final int ALL_FACES = 63;
+	
+	private ChunkModifiedCallback callback;
+	
+	private int cornerX, cornerY, cornerZ; // block indices
+			
+	// z * width * height + y * width + x
+	// null while the chunk is uniform, in which case every block is uniformType
+	private PalettedBlockStorage storage;
+	private BlockType uniformType;
+	
+	// One long per (y,z) row with bit x + 1 set if the block at local x is solid, for x in [-1, CHUNK_BLOCK_WIDTH].
+	// Bits and rows outside the chunk are the apron: copies of the blocks sharing a face with this chunk in its 6
+	// neighbors, a missing neighbor counts as air. The apron's edges and corners are always 0.
+	// null while every bit would be 0, so uniform air chunks away from solid blocks have no per-block storage at all.
+	private long[] occupancy;
+	
+	private static final int OCCUPANCY_ROW_STRIDE = CHUNK_BLOCK_HEIGHT + 2; // rows per z
+	private static final int OCCUPANCY_LENGTH = (CHUNK_BLOCK_DEPTH + 2) * OCCUPANCY_ROW_STRIDE;
+	private static final long[] EMPTY_OCCUPANCY = new long[OCCUPANCY_LENGTH];
+	private static final long OCCUPANCY_INTERIOR = ((1L << CHUNK_BLOCK_WIDTH) - 1) << 1;
+	
+	// Blocks returned by get() are views materialized into this ring
+	private static final int VIEW_COUNT = 16;
+	private final Block[] views; // structured array
+	private boolean closed;
+	private int nextView;
+	
+	private int blockCount;
+	
+	private long lastVisibleTime;
+	
+	// Which faces the air inside connects, see ChunkConnectivity, and the generation it was computed at
+	private long connectivity = ChunkConnectivity.ALL_CONNECTED;
+	private long connectivityGeneration = -1;
+	
+	// Changes are accumulated here and handed to the callback once per frame by ChunkManager.drainDirtyChunks
+	private final DirtyRegion dirtyRegion;
+	private long generation;
+	
+	// Only chunks in the ChunkManager are tracked, detached chunks might be filled on another thread
+	private boolean attached;
+	
+	// setBlocks defers demoting to uniform until all its blocks are set
+	private boolean hasPendingEdits;
+	
+	private ChunkManager manager;
+	
+	public Chunk(ChunkManager manager, int cornerX, int cornerY, int cornerZ) {
+		this.manager = manager;
+		
+		this.cornerX = cornerX;
+		this.cornerY = cornerY;
+		this.cornerZ = cornerZ;
+		
+		uniformType = BlockType.AIR;
+		views = Struct.mallocArray(Block.class, VIEW_COUNT);
+		StructTracker.allocated(this, VIEW_COUNT * Struct.sizeof(Block.class));
+		
+		dirtyRegion = new DirtyRegion();
+	}
+	
+	/**
+	 * Frees the off-heap memory, the Chunk must not be used afterwards. Closing again does nothing.
+	 */
+	@Override
+	public void close() {
+		if(closed)
+			return;
+		
+		closed = true;
+		
+		Struct.free(views);
+		
+		StructTracker.freed(this, VIEW_COUNT * Struct.sizeof(Block.class));
+	}
+	
+	public void setCallback(ChunkModifiedCallback callback) {
+		this.callback = callback;
+	}
+	
+	public ChunkModifiedCallback getCallback() {
+		return callback;
+	}
+	
+	public ChunkManager getChunkManager() {
+		return manager;
+	}
+	
+	public int getCornerX() {
+		return cornerX;
+	}
+	
+	public int getCornerY() {
+		return cornerY;
+	}
+	
+	public int getCornerZ() {
+		return cornerZ;
+	}
+	
+	public boolean cornerEquals(int cornerX, int cornerY, int cornerZ) {
+		return this.cornerX == cornerX && this.cornerY == cornerY && this.cornerZ == cornerZ;
+	}
+	
+	public boolean containsBlock(int x, int y, int z) {
+		return x >= cornerX && x < cornerX + CHUNK_BLOCK_WIDTH &&
+				y >= cornerY && y < cornerY + CHUNK_BLOCK_HEIGHT &&
+				z >= cornerZ && z < cornerZ + CHUNK_BLOCK_DEPTH;
+	}
+	
+	public boolean containsBlock(Block block) {
+		return containsBlock(block.getX(), block.getY(), block.getZ());
+	}
+	
+	public int posToArrayIndex(int x, int y, int z) {
+		if(!containsBlock(x, y, z))
+			throw new IllegalArgumentException("Invalid coords.");
+		
+		x -= cornerX;
+		y -= cornerY;
+		z -= cornerZ;
+		
+		return z * CHUNK_BLOCK_WIDTH * CHUNK_BLOCK_HEIGHT + y * CHUNK_BLOCK_WIDTH + x;
+	}
+	
+	public int posToArrayIndex(Block block) {
+		return posToArrayIndex(block.getX(), block.getY(), block.getZ());
+	}
+	
+	public static int localToIndex(int x, int y, int z) {
+		return (z * CHUNK_BLOCK_HEIGHT + y) * CHUNK_BLOCK_WIDTH + x;
+	}
+	
+	public static int indexToLocalX(int i) {
+		return i % CHUNK_BLOCK_WIDTH;
+	}
+	
+	public static int indexToLocalY(int i) {
+		return (i / CHUNK_BLOCK_WIDTH) % CHUNK_BLOCK_HEIGHT;
+	}
+	
+	public static int indexToLocalZ(int i) {
+		return i / (CHUNK_BLOCK_WIDTH * CHUNK_BLOCK_HEIGHT);
+	}
+	
+	public int getBlockCount() {
+		return blockCount;
+	}
+	
+	/**
+	 * System.nanoTime() of the last frame this chunk passed culling, used to pick chunks to evict.
+	 */
+	public long getLastVisibleTime() {
+		return lastVisibleTime;
+	}
+	
+	public void setLastVisibleTime(long lastVisibleTime) {
+		this.lastVisibleTime = lastVisibleTime;
+	}
+	
+	/**
+	 * The ChunkConnectivity matrix as of the last updateConnectivity, every face connects to every other until then.
+	 */
+	public long getConnectivity() {
+		return connectivity;
+	}
+	
+	/**
+	 * Computes the connectivity again if a block changed since it was last computed.
+	 */
+	public void updateConnectivity(ChunkConnectivity calculator) {
+		if(connectivityGeneration != generation) {
+			connectivity = calculator.compute(this);
+			connectivityGeneration = generation;
+		}
+	}
+	
+	/**
+	 * True if a block changed since the connectivity was last computed.
+	 */
+	public boolean isConnectivityOutdated() {
+		return connectivityGeneration != generation;
+	}
+	
+	/**
+	 * Incremented every time a block in this chunk changes.
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Changes since the last ChunkManager.drainDirtyChunks.
+	 */
+	public DirtyRegion getDirtyRegion() {
+		return dirtyRegion;
+	}
+	
+	boolean isAttached() {
+		return attached;
+	}
+	
+	void setAttached(boolean attached) {
+		this.attached = attached;
+	}
+	
+	/**
+	 * Local block positions, max exclusive.
+	 */
+	private void markDirty(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		generation++;
+		
+		if(attached) {
+			updateNeighborAprons(minX, minY, minZ, maxX, maxY, maxZ);
+			manager.markDirty(this, minX, minY, minZ, maxX, maxY, maxZ);
+		}
+	}
+	
+	/**
+	 * Index into getOccupancy() of the row holding local (y,z), both in [-1, size].
+	 */
+	public static int getOccupancyRow(int y, int z) {
+		return (z + 1) * OCCUPANCY_ROW_STRIDE + (y + 1);
+	}
+	
+	/**
+	 * The occupancy bitset, see getOccupancyRow. Must not be modified. A shared array of zeros while this chunk has none.
+	 */
+	public long[] getOccupancy() {
+		return occupancy == null ? EMPTY_OCCUPANCY : occupancy;
+	}
+	
+	/**
+	 * Local block positions, each in [-1, size] so the blocks sharing a face with this chunk can be tested too.
+	 */
+	public boolean isSolid(int x, int y, int z) {
+		return occupancy != null && (occupancy[getOccupancyRow(y, z)] >>> (x + 1) & 1) != 0;
+	}
+	
+	/**
+	 * Local block positions. True if all 6 blocks sharing a face with this one are solid.
+	 */
+	public boolean isSurrounded(int x, int y, int z) {
+		if(occupancy == null)
+			return false;
+		
+		int row = getOccupancyRow(y, z);
+		int bit = x + 1;
+		
+		return (occupancy[row] >>> (bit - 1) & 5) == 5 &&
+				(occupancy[row - 1] & occupancy[row + 1] & occupancy[row - OCCUPANCY_ROW_STRIDE] & occupancy[row + OCCUPANCY_ROW_STRIDE] & 1L << bit) != 0;
+	}
+	
+	/**
+	 * Local block positions. FACE_* bits of the faces of this block that have a solid block against them.
+	 */
+	public int getSolidNeighbors(int x, int y, int z) {
+		if(occupancy == null)
+			return 0;
+		
+		int row = getOccupancyRow(y, z);
+		int bit = x + 1;
+		
+		return (int)(occupancy[row] >>> (bit - 1) & 1) * FACE_NEG_X |
+				(int)(occupancy[row] >>> (bit + 1) & 1) * FACE_POS_X |
+				(int)(occupancy[row - 1] >>> bit & 1) * FACE_NEG_Y |
+				(int)(occupancy[row + 1] >>> bit & 1) * FACE_POS_Y |
+				(int)(occupancy[row - OCCUPANCY_ROW_STRIDE] >>> bit & 1) * FACE_NEG_Z |
+				(int)(occupancy[row + OCCUPANCY_ROW_STRIDE] >>> bit & 1) * FACE_POS_Z;
+	}
+	
+	/**
+	 * Local block positions. FACE_* bits of the faces of this block that are not against a solid block, the ones that
+	 * can be seen if the block is solid.
+	 */
+	public int getVisibleFaces(int x, int y, int z) {
+		return ~getSolidNeighbors(x, y, z) & ALL_FACES;
+	}
+	
+	/**
+	 * Local block positions. Bit x is set for every solid block in the row at (y,z) that is not surrounded.
+	 */
+	public int getSurfaceRow(int y, int z) {
+		if(occupancy == null)
+			return 0;
+		
+		int row = getOccupancyRow(y, z);
+		
+		long solid = occupancy[row];
+		long surrounded = (solid << 1) & (solid >>> 1) &
+				occupancy[row - 1] & occupancy[row + 1] &
+				occupancy[row - OCCUPANCY_ROW_STRIDE] & occupancy[row + OCCUPANCY_ROW_STRIDE];
+		
+		return (int)((solid & ~surrounded & OCCUPANCY_INTERIOR) >>> 1);
+	}
+	
+	/**
+	 * Local block positions. Bit x is set for every solid block in the row at (y,z) whose given face, one of FACE_*, is
+	 * not against a solid block.
+	 */
+	public int getFaceRow(int y, int z, int face) {
+		if(occupancy == null)
+			return 0;
+		
+		int row = getOccupancyRow(y, z);
+		
+		long solid = occupancy[row];
+		long neighbors;
+		switch(face) {
+			case FACE_NEG_X:
+				neighbors = solid << 1;
+				break;
+			case FACE_POS_X:
+				neighbors = solid >>> 1;
+				break;
+			case FACE_NEG_Y:
+				neighbors = occupancy[row - 1];
+				break;
+			case FACE_POS_Y:
+				neighbors = occupancy[row + 1];
+				break;
+			case FACE_NEG_Z:
+				neighbors = occupancy[row - OCCUPANCY_ROW_STRIDE];
+				break;
+			case FACE_POS_Z:
+				neighbors = occupancy[row + OCCUPANCY_ROW_STRIDE];
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid face: " + face);
+		}
+		
+		return (int)((solid & ~neighbors & OCCUPANCY_INTERIOR) >>> 1);
+	}
+	
+	private void setOccupied(int i, boolean solid) {
+		int row = getOccupancyRow(indexToLocalY(i), indexToLocalZ(i));
+		long bit = 1L << (indexToLocalX(i) + 1);
+		
+		if(solid) {
+			allocateOccupancy()[row] |= bit;
+		} else if(occupancy != null) {
+			occupancy[row] &= ~bit;
+		}
+	}
+	
+	private void fillOccupancy(boolean solid) {
+		if(occupancy == null) {
+			if(!solid)
+				return;
+			
+			allocateOccupancy();
+		}
+		
+		for(int z = 0; z < CHUNK_BLOCK_DEPTH; z++) {
+			for(int y = 0; y < CHUNK_BLOCK_HEIGHT; y++) {
+				int row = getOccupancyRow(y, z);
+				occupancy[row] = (occupancy[row] & ~OCCUPANCY_INTERIOR) | (solid ? OCCUPANCY_INTERIOR : 0);
+			}
+		}
+		
+		if(!solid)
+			releaseOccupancyIfEmpty();
+	}
+	
+	private long[] allocateOccupancy() {
+		if(occupancy == null)
+			occupancy = new long[OCCUPANCY_LENGTH];
+		
+		return occupancy;
+	}
+	
+	/**
+	 * Drops the occupancy once this chunk is uniform air and no solid block is left in its apron.
+	 */
+	private void releaseOccupancyIfEmpty() {
+		if(occupancy == null || storage != null || uniformType != BlockType.AIR)
+			return;
+		
+		for(long row : occupancy) {
+			if(row != 0)
+				return;
+		}
+		
+		occupancy = null;
+	}
+	
+	/**
+	 * Also recounts blockCount from the storage.
+	 */
+	private void rebuildOccupancy() {
+		if(storage == null) {
+			fillOccupancy(uniformType != BlockType.AIR);
+			return;
+		}
+		
+		fillOccupancy(false);
+		blockCount = 0;
+		for(int i = 0; i < TOTAL_BLOCKS; i++) {
+			if(storage.get(i) != BlockType.AIR) {
+				setOccupied(i, true);
+				blockCount++;
+			}
+		}
+	}
+	
+	/**
+	 * Copies the changed blocks in the given box that lie on this chunk's faces into the aprons of the neighbors behind
+	 * those faces. Local block positions, max exclusive.
+	 */
+	private void updateNeighborAprons(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		int cx = cornerX / CHUNK_BLOCK_WIDTH;
+		int cy = cornerY / CHUNK_BLOCK_HEIGHT;
+		int cz = cornerZ / CHUNK_BLOCK_DEPTH;
+		
+		if(minX == 0)
+			copyApron(manager.getChunk(cx - 1, cy, cz), this, FACE_POS_X, minX, minY, minZ, maxX, maxY, maxZ);
+		if(maxX == CHUNK_BLOCK_WIDTH)
+			copyApron(manager.getChunk(cx + 1, cy, cz), this, FACE_NEG_X, minX, minY, minZ, maxX, maxY, maxZ);
+		if(minY == 0)
+			copyApron(manager.getChunk(cx, cy - 1, cz), this, FACE_POS_Y, minX, minY, minZ, maxX, maxY, maxZ);
+		if(maxY == CHUNK_BLOCK_HEIGHT)
+			copyApron(manager.getChunk(cx, cy + 1, cz), this, FACE_NEG_Y, minX, minY, minZ, maxX, maxY, maxZ);
+		if(minZ == 0)
+			copyApron(manager.getChunk(cx, cy, cz - 1), this, FACE_POS_Z, minX, minY, minZ, maxX, maxY, maxZ);
+		if(maxZ == CHUNK_BLOCK_DEPTH)
+			copyApron(manager.getChunk(cx, cy, cz + 1), this, FACE_NEG_Z, minX, minY, minZ, maxX, maxY, maxZ);
+	}
+	
+	/**
+	 * Fills the apron on all 6 faces from the neighbors and this chunk's faces into theirs, or clears the neighbors'
+	 * aprons if this chunk is being removed. Called by the ChunkManager when this chunk is added or removed.
+	 */
+	void syncAprons(boolean removed) {
+		int cx = cornerX / CHUNK_BLOCK_WIDTH;
+		int cy = cornerY / CHUNK_BLOCK_HEIGHT;
+		int cz = cornerZ / CHUNK_BLOCK_DEPTH;
+		
+		Chunk[] neighbors = {
+				manager.getChunk(cx - 1, cy, cz), manager.getChunk(cx + 1, cy, cz),
+				manager.getChunk(cx, cy - 1, cz), manager.getChunk(cx, cy + 1, cz),
+				manager.getChunk(cx, cy, cz - 1), manager.getChunk(cx, cy, cz + 1)
+		};
+		
+		for(int f = 0; f < 6; f++) {
+			int face = 1 << f;
+			int opposite = 1 << (f ^ 1);
+			
+			copyApron(this, neighbors[f], face, 0, 0, 0, CHUNK_BLOCK_WIDTH, CHUNK_BLOCK_HEIGHT, CHUNK_BLOCK_DEPTH);
+			copyApron(neighbors[f], removed ? null : this, opposite, 0, 0, 0, CHUNK_BLOCK_WIDTH, CHUNK_BLOCK_HEIGHT, CHUNK_BLOCK_DEPTH);
+		}
+	}
+	
+	/**
+	 * Copies the blocks of source facing dest into dest's apron on the given face of dest, only the rows within the
+	 * given box of source are copied. A null source clears them.
+	 */
+	private static void copyApron(Chunk dest, Chunk source, int face, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		if(dest == null) {
+			return;
+		}
+		
+		long[] d = dest.occupancy;
+		long[] s = source == null ? null : source.occupancy;
+		
+		// Nothing to copy and nothing to clear
+		if(d == null && s == null) {
+			return;
+		}
+		
+		switch(face) {
+			case FACE_NEG_X:
+			case FACE_POS_X: {
+				int destBit = face == FACE_NEG_X ? 0 : CHUNK_BLOCK_WIDTH + 1;
+				int sourceBit = face == FACE_NEG_X ? CHUNK_BLOCK_WIDTH : 1;
+				
+				for(int z = minZ; z < maxZ; z++) {
+					for(int y = minY; y < maxY; y++) {
+						int row = getOccupancyRow(y, z);
+						long value = s == null ? 0 : s[row] >>> sourceBit & 1;
+						if(d == null) {
+							if(value == 0)
+								continue;
+							
+							d = dest.allocateOccupancy();
+						}
+						
+						d[row] = (d[row] & ~(1L << destBit)) | value << destBit;
+					}
+				}
+				break;
+			}
+			case FACE_NEG_Y:
+			case FACE_POS_Y: {
+				int destY = face == FACE_NEG_Y ? -1 : CHUNK_BLOCK_HEIGHT;
+				int sourceY = face == FACE_NEG_Y ? CHUNK_BLOCK_HEIGHT - 1 : 0;
+				
+				for(int z = minZ; z < maxZ; z++) {
+					long value = s == null ? 0 : s[getOccupancyRow(sourceY, z)] & OCCUPANCY_INTERIOR;
+					if(d == null) {
+						if(value == 0)
+							continue;
+						
+						d = dest.allocateOccupancy();
+					}
+					
+					d[getOccupancyRow(destY, z)] = value;
+				}
+				break;
+			}
+			case FACE_NEG_Z:
+			case FACE_POS_Z: {
+				int destZ = face == FACE_NEG_Z ? -1 : CHUNK_BLOCK_DEPTH;
+				int sourceZ = face == FACE_NEG_Z ? CHUNK_BLOCK_DEPTH - 1 : 0;
+				
+				for(int y = minY; y < maxY; y++) {
+					long value = s == null ? 0 : s[getOccupancyRow(y, sourceZ)] & OCCUPANCY_INTERIOR;
+					if(d == null) {
+						if(value == 0)
+							continue;
+						
+						d = dest.allocateOccupancy();
+					}
+					
+					d[getOccupancyRow(y, destZ)] = value;
+				}
+				break;
+			}
+		}
+		
+		dest.releaseOccupancyIfEmpty();
+	}
+	
+	public boolean isValidPos(int x, int y, int z) {
+		return x >= cornerX && x < cornerX + CHUNK_BLOCK_WIDTH && y >= cornerY && y < cornerY + CHUNK_BLOCK_HEIGHT && z >= cornerZ && z < cornerZ + CHUNK_BLOCK_DEPTH;
+	}
+	
+	/**
+	 * A uniform chunk has no per-block storage, all its blocks are of getUniformType().
+	 */
+	public boolean isUniform() {
+		return storage == null;
+	}
+	
+	public BlockType getUniformType() {
+		return uniformType;
+	}
+	
+	public BlockType getType(int i) {
+		return storage == null ? uniformType : storage.get(i);
+	}
+	
+	public BlockType getType(int x, int y, int z) {
+		return getType(posToArrayIndex(x, y, z));
+	}
+	
+	/**
+	 * Approximate bytes used by this chunk's block storage.
+	 */
+	public long getMemoryUsage() {
+		return (storage == null ? 0 : storage.getMemoryUsage()) + (occupancy == null ? 0 : occupancy.length * 8L) + VIEW_COUNT * Struct.sizeof(Block.class);
+	}
+	
+	/**
+	 * The returned Block is a view that is only valid until VIEW_COUNT more calls to get() on this chunk.
+	 * Copy it if it needs to live longer.
+	 */
+	@TakeStruct
+	public Block get(int x, int y, int z) {
+		if(!isValidPos(x, y, z)) {
+			return Struct.nullStruct(Block.class);
+		}
+		
+		return view(posToArrayIndex(x, y, z));
+	}
+	
+	@TakeStruct
+	private Block view(int i) {
+		Block view = views[nextView];
+		nextView = (nextView + 1) % VIEW_COUNT;
+		
+		return view.init(this, indexToLocalX(i), indexToLocalY(i), indexToLocalZ(i), getType(i));
+	}
+	
+	public Block[] getNeighbors(int x, int y, int z) {
+		Block[] neighbors = new Block[6];
+		int idx = 0;
+		
+		for(int a = -1; a < 2; a++) {
+			if(a == 0)
+				continue;
+			
+			Block block = getChunkManager().getBlock(x + a, y, z);
+			if(block != Struct.nullStruct(Block.class)) {
+				neighbors[idx++] = block;
+			}
+		}
+		
+		for(int b = -1; b < 2; b++) {
+			if(b == 0)
+				continue;
+			
+			Block block = getChunkManager().getBlock(x, y + b, z);
+			if(block != Struct.nullStruct(Block.class)) {
+				neighbors[idx++] = block;
+			}
+		}
+		
+		for(int c = -1; c < 2; c++) {
+			if(c == 0)
+				continue;
+			
+			Block block = getChunkManager().getBlock(x, y, z + c);
+			if(block != Struct.nullStruct(Block.class)) {
+				neighbors[idx++] = block;
+			}
+		}
+		
+		return neighbors;
+	}
+	
+	public Block[] getNeighbors(Block b) {
+		return getNeighbors(b.getX() % Chunk.CHUNK_BLOCK_WIDTH, b.getY() % Chunk.CHUNK_BLOCK_HEIGHT, b.getZ() % Chunk.CHUNK_BLOCK_DEPTH);
+	}
+	
+	public void set(BlockType blockType, int x, int y, int z) {
+		if(!isValidPos(x, y, z)) {
+			throw new IllegalArgumentException("Invalid block position.");
+		}
+		
+		if(!setQuietly(posToArrayIndex(x, y, z), null, blockType)) {
+			return;
+		}
+		
+		demoteIfUniform();
+		
+		x -= cornerX;
+		y -= cornerY;
+		z -= cornerZ;
+		markDirty(x, y, z, x + 1, y + 1, z + 1);
+	}
+	
+	/**
+	 * Sets every block in [x0,x1) x [y0,y1) x [z0,z1) in world block positions, clipped to this chunk. The storage is
+	 * written directly and the whole box is marked dirty at once.
+	 *
+	 * @return true if any block changed
+	 */
+	public boolean fillBox(BlockType type, int x0, int y0, int z0, int x1, int y1, int z1) {
+		return editBox(null, type, x0, y0, z0, x1, y1, z1);
+	}
+	
+	/**
+	 * Same as fillBox but only blocks of type from are set to type to.
+	 *
+	 * @return true if any block changed
+	 */
+	public boolean replaceInBox(BlockType from, BlockType to, int x0, int y0, int z0, int x1, int y1, int z1) {
+		if(from == to) {
+			return false;
+		}
+		
+		return editBox(from, to, x0, y0, z0, x1, y1, z1);
+	}
+	
+	/**
+	 * A null from matches every type.
+	 */
+	private boolean editBox(BlockType from, BlockType to, int x0, int y0, int z0, int x1, int y1, int z1) {
+		int minX = Math.max(x0 - cornerX, 0), maxX = Math.min(x1 - cornerX, CHUNK_BLOCK_WIDTH);
+		int minY = Math.max(y0 - cornerY, 0), maxY = Math.min(y1 - cornerY, CHUNK_BLOCK_HEIGHT);
+		int minZ = Math.max(z0 - cornerZ, 0), maxZ = Math.min(z1 - cornerZ, CHUNK_BLOCK_DEPTH);
+		
+		if(minX >= maxX || minY >= maxY || minZ >= maxZ) {
+			return false;
+		}
+		
+		if(storage == null && (uniformType == to || (from != null && uniformType != from))) {
+			return false;
+		}
+		
+		boolean wholeChunk = minX == 0 && maxX == CHUNK_BLOCK_WIDTH && minY == 0 && maxY == CHUNK_BLOCK_HEIGHT && minZ == 0 && maxZ == CHUNK_BLOCK_DEPTH;
+		
+		boolean modified = false;
+		
+		if(wholeChunk && (from == null || storage == null)) {
+			// Either everything is overwritten or this uniform chunk is entirely of type from
+			makeUniform(to);
+			fillOccupancy(to != BlockType.AIR);
+			modified = true;
+		} else {
+			for(int z = minZ; z < maxZ; z++) {
+				for(int y = minY; y < maxY; y++) {
+					int i = localToIndex(minX, y, z);
+					for(int x = minX; x < maxX; x++, i++) {
+						modified |= setQuietly(i, from, to);
+					}
+				}
+			}
+		}
+		
+		if(modified) {
+			demoteIfUniform();
+			markDirty(minX, minY, minZ, maxX, maxY, maxZ);
+		}
+		
+		return modified;
+	}
+	
+	/**
+	 * Sets the block at index i but leaves demoting to uniform to the next finishPendingEdits.
+	 *
+	 * @return true if the block changed
+	 */
+	boolean setPending(int i, BlockType type) {
+		if(!setQuietly(i, null, type)) {
+			return false;
+		}
+		
+		hasPendingEdits = true;
+		
+		int x = indexToLocalX(i), y = indexToLocalY(i), z = indexToLocalZ(i);
+		markDirty(x, y, z, x + 1, y + 1, z + 1);
+		
+		return true;
+	}
+	
+	boolean hasPendingEdits() {
+		return hasPendingEdits;
+	}
+	
+	void finishPendingEdits() {
+		if(hasPendingEdits) {
+			hasPendingEdits = false;
+			demoteIfUniform();
+		}
+	}
+	
+	/**
+	 * Writes the storage directly, keeping blockCount correct. A null from matches every type.
+	 */
+	private boolean setQuietly(int i, BlockType from, BlockType to) {
+		if(storage == null) {
+			if(uniformType == to || (from != null && uniformType != from)) {
+				return false;
+			}
+			
+			// First differing block, promote to full storage
+			storage = new PalettedBlockStorage(TOTAL_BLOCKS, uniformType);
+		}
+		
+		if(from != null && storage.get(i) != from) {
+			return false;
+		}
+		
+		BlockType oldType = storage.set(i, to);
+		
+		if(oldType == to) {
+			return false;
+		}
+		
+		if(oldType == BlockType.AIR) {
+			blockCount++; // Air -> Not Air
+			setOccupied(i, true);
+		} else if(to == BlockType.AIR) {
+			blockCount--; // Not Air -> Air
+			setOccupied(i, false);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Drops the storage once it no longer holds more than one type.
+	 */
+	private void demoteIfUniform() {
+		if(storage == null) {
+			return;
+		}
+		
+		if(blockCount == 0) {
+			makeUniform(BlockType.AIR);
+			releaseOccupancyIfEmpty();
+		} else if(blockCount == TOTAL_BLOCKS && (storage.getPaletteSize() == 1 || storage.getPaletteSize() == 2 && storage.paletteContains(BlockType.AIR))) {
+			// no air is left and the palette holds at most one other type, so every block is of that type
+			makeUniform(storage.get(0));
+		}
+	}
+	
+	/**
+	 * Bytes written by writeTo.
+	 */
+	public int getSerializedSize() {
+		return 1 + (storage == null ? 2 : 4 + storage.getSerializedSize());
+	}
+	
+	public void writeTo(ByteBuffer buffer) {
+		if(storage == null) {
+			buffer.put((byte)0);
+			buffer.putShort((short)uniformType.ordinal());
+		} else {
+			buffer.put((byte)1);
+			buffer.putInt(blockCount);
+			storage.writeTo(buffer);
+		}
+	}
+	
+	/**
+	 * Replaces this chunk's blocks with what writeTo wrote. No callbacks are fired. The block count is recomputed from the
+	 * blocks by rebuildOccupancy instead of trusting the stored one.
+	 *
+	 * @throws IOException if the data is truncated or corrupt, the chunk is then left unchanged
+	 */
+	public void readFrom(ByteBuffer buffer) throws IOException {
+		try {
+			byte format = buffer.get();
+			
+			if(format == 0) {
+				int ordinal = buffer.getShort();
+				if(ordinal < 0 || ordinal >= BlockType.values.length) {
+					throw new IOException("Corrupt chunk: unknown block type " + ordinal + ".");
+				}
+				
+				makeUniform(BlockType.values[ordinal]);
+			} else if(format == 1) {
+				buffer.getInt(); // blockCount
+				PalettedBlockStorage loaded = PalettedBlockStorage.readFrom(buffer, TOTAL_BLOCKS);
+				
+				storage = loaded;
+				uniformType = null;
+			} else {
+				throw new IOException("Corrupt chunk: unknown format " + format + ".");
+			}
+		} catch(BufferUnderflowException exc) {
+			throw new IOException("Corrupt chunk: truncated.", exc);
+		}
+		
+		rebuildOccupancy();
+		demoteIfUniform();
+		connectivityGeneration = -1;
+	}
+	
+	private void makeUniform(BlockType type) {
+		storage = null;
+		uniformType = type;
+		blockCount = type == BlockType.AIR ? 0 : TOTAL_BLOCKS;
+	}
+	
+	public void clearAll() {
+		if(storage == null && uniformType == BlockType.AIR) {
+			return;
+		}
+		
+		makeUniform(BlockType.AIR);
+		fillOccupancy(false);
+		
+		markDirty(0, 0, 0, CHUNK_BLOCK_WIDTH, CHUNK_BLOCK_HEIGHT, CHUNK_BLOCK_DEPTH);
+	}
+	
+	public interface ChunkModifiedCallback {
+		/**
+		 * Called at most once per ChunkManager.drainDirtyChunks with everything that changed since the last call.
+		 * The region is cleared afterwards and must not be kept.
+		 */
+		void chunkModified(DirtyRegion region);
+	}
+}
@@ -0,0 +1,163 @@
+package com.ra4king.fps.world;
+
+import com.ra4king.fps.actors.Block.BlockType;
+
+/**
+ * Computes which faces of a chunk can see each other through the air inside it, by flood-filling each pocket of air
+ * and recording the faces it touches. The result is a 6x6 matrix in a long: bit (from * 6 + to) is set if some air
+ * connects face from to face to, both being the bit positions of the Chunk.FACE_* constants.
+ *
+ * Not thread-safe, the fill state is reused between calls.
+ *
+ * @author Roi Atalla
+ */
+public class ChunkConnectivity {
+	public static final long NONE = 0;
+	public static final long ALL_CONNECTED = (1L << 36) - 1;
+	
+	// Air not reached yet, one row of x bits per (y,z) like Chunk.getSurfaceRow
+	private final int[] open = new int[Chunk.CHUNK_BLOCK_DEPTH * Chunk.CHUNK_BLOCK_HEIGHT];
+	
+	// Runs of air reached and not expanded yet, as a row of open and one block of the run: row | x << 16. A run is only
+	// queued by a neighboring run that was still open, so there is at most one entry per pair of neighboring blocks.
+	private final int[] queue = new int[2 * Chunk.TOTAL_BLOCKS + 1];
+	
+	/**
+	 * @param from one of Chunk.FACE_*
+	 * @param to   one of Chunk.FACE_*
+	 */
+	public static boolean isConnected(long connectivity, int from, int to) {
+		return (connectivity >>> (Integer.numberOfTrailingZeros(from) * 6 + Integer.numberOfTrailingZeros(to)) & 1) != 0;
+	}
+	
+	/**
+	 * @return the FACE_* bits of the faces some air connects the given face to
+	 */
+	public static int getConnectedFaces(long connectivity, int from) {
+		return (int)(connectivity >>> (Integer.numberOfTrailingZeros(from) * 6)) & Chunk.ALL_FACES;
+	}
+	
+	public long compute(Chunk chunk) {
+		if(chunk.isUniform()) {
+			return chunk.getUniformType() == BlockType.AIR ? ALL_CONNECTED : NONE;
+		}
+		
+		long[] occupancy = chunk.getOccupancy();
+		for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+			for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+				open[z * Chunk.CHUNK_BLOCK_HEIGHT + y] = ~(int)(occupancy[Chunk.getOccupancyRow(y, z)] >>> 1);
+			}
+		}
+		
+		long connectivity = NONE;
+		
+		for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+			for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+				int row;
+				while((row = open[z * Chunk.CHUNK_BLOCK_HEIGHT + y]) != 0) {
+					int faces = fill(Integer.numberOfTrailingZeros(row), y, z);
+					
+					for(int face = 0; face < 6; face++) {
+						if((faces & (1 << face)) != 0) {
+							connectivity |= (long)faces << (face * 6);
+						}
+					}
+				}
+			}
+		}
+		
+		return connectivity;
+	}
+	
+	/**
+	 * Flood-fills the pocket of air holding the block, closing every block of it. Whole runs of air along x are filled
+	 * at once.
+	 *
+	 * @return the FACE_* bits of the chunk faces the pocket touches
+	 */
+	private int fill(int x, int y, int z) {
+		int faces = 0;
+		
+		int head = 0, tail = 0;
+		queue[tail++] = z * Chunk.CHUNK_BLOCK_HEIGHT + y | x << 16;
+		
+		while(head < tail) {
+			int entry = queue[head++];
+			int row = entry & 0xFFFF;
+			int seed = 1 << (entry >>> 16);
+			
+			if((open[row] & seed) == 0) {
+				continue;
+			}
+			
+			int run = getRun(open[row], seed);
+			open[row] &= ~run;
+			
+			y = row % Chunk.CHUNK_BLOCK_HEIGHT;
+			z = row / Chunk.CHUNK_BLOCK_HEIGHT;
+			
+			if((run & 1) != 0) {
+				faces |= Chunk.FACE_NEG_X;
+			}
+			if((run & 1 << (Chunk.CHUNK_BLOCK_WIDTH - 1)) != 0) {
+				faces |= Chunk.FACE_POS_X;
+			}
+			
+			if(y == 0) {
+				faces |= Chunk.FACE_NEG_Y;
+			} else {
+				tail = visit(row - 1, run, tail);
+			}
+			
+			if(y == Chunk.CHUNK_BLOCK_HEIGHT - 1) {
+				faces |= Chunk.FACE_POS_Y;
+			} else {
+				tail = visit(row + 1, run, tail);
+			}
+			
+			if(z == 0) {
+				faces |= Chunk.FACE_NEG_Z;
+			} else {
+				tail = visit(row - Chunk.CHUNK_BLOCK_HEIGHT, run, tail);
+			}
+			
+			if(z == Chunk.CHUNK_BLOCK_DEPTH - 1) {
+				faces |= Chunk.FACE_POS_Z;
+			} else {
+				tail = visit(row + Chunk.CHUNK_BLOCK_HEIGHT, run, tail);
+			}
+		}
+		
+		return faces;
+	}
+	
+	/**
+	 * Queues one block of each run of open air in the row that touches run.
+	 */
+	private int visit(int row, int run, int tail) {
+		int touching = open[row] & run;
+		
+		while(touching != 0) {
+			int seed = touching & -touching;
+			touching &= ~getRun(touching, seed);
+			
+			queue[tail++] = row | Integer.numberOfTrailingZeros(seed) << 16;
+		}
+		
+		return tail;
+	}
+	
+	/**
+	 * The contiguous bits of mask around the single bit seed.
+	 */
+	private static int getRun(int mask, int seed) {
+		// Adding the seed carries through the bits above it and clears them
+		int above = mask & -seed;
+		int up = above & ~(above + seed);
+		
+		int reversedAbove = Integer.reverse(mask) & -Integer.reverse(seed);
+		int down = Integer.reverse(reversedAbove & ~(reversedAbove + Integer.reverse(seed)));
+		
+		return up | down;
+	}
+}
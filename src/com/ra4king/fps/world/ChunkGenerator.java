@@ -0,0 +1,14 @@
+package com.ra4king.fps.world;
+
+/**
+ * Fills in the blocks of a newly created chunk.
+ *
+ * @author Roi Atalla
+ */
+public interface ChunkGenerator {
+	/**
+	 * May be called from a background thread on a chunk that is not yet part of its ChunkManager.
+	 * Implementations must only touch the given chunk, through Chunk.set.
+	 */
+	void generate(Chunk chunk);
+}
@@ -1,205 +1,856 @@
-package com.ra4king.fps.world;
-
-import com.ra4king.fps.actors.Block;
-import com.ra4king.fps.actors.Block.BlockType;
-import com.ra4king.opengl.util.math.Vector3;
-
-import net.indiespot.struct.cp.Struct;
-import net.indiespot.struct.cp.TakeStruct;
-
-/**
- * @author Roi Atalla
- */
-public class ChunkManager {
-	public final int CHUNKS_SIDE_X, CHUNKS_SIDE_Y, CHUNKS_SIDE_Z;
-	
-	private World world;
-	
-	// z * CHUNKS_SIDE_X * CHUNKS_SIDE_Y + y * CHUNKS_SIDE_X + x
-	private Chunk[] chunks;
-	
-	public ChunkManager(World world, int chunksX, int chunksY, int chunksZ) {
-		this.world = world;
-		
-		this.CHUNKS_SIDE_X = chunksX;
-		this.CHUNKS_SIDE_Y = chunksY;
-		this.CHUNKS_SIDE_Z = chunksZ;
-		
-		chunks = new Chunk[CHUNKS_SIDE_X * CHUNKS_SIDE_Y * CHUNKS_SIDE_Z];
-		
-		long t0 = System.nanoTime();
-		for(int x = 0; x < CHUNKS_SIDE_X; x++) {
-			for(int y = 0; y < CHUNKS_SIDE_Y; y++) {
-				for(int z = 0; z < CHUNKS_SIDE_Z; z++) {
-					chunks[posToArrayIndex(x, y, z)] = new Chunk(this, x * Chunk.CHUNK_BLOCK_WIDTH, y * Chunk.CHUNK_BLOCK_HEIGHT, z * Chunk.CHUNK_BLOCK_DEPTH);
-				}
-			}
-		}
-		long time = System.nanoTime() - t0;
-		System.out.printf("Chunks created in %.3f ms\n", time / 1e6);
-	}
-	
-	public World getWorld() {
-		return world;
-	}
-	
-	public void clearAll() {
-		for(Chunk c : chunks)
-			c.clearAll();
-	}
-	
-	private int posToArrayIndex(int x, int y, int z) {
-		if(x < 0 || x >= CHUNKS_SIDE_X ||
-				y < 0 || y >= CHUNKS_SIDE_Y ||
-				z < 0 || z >= CHUNKS_SIDE_Z)
-			return -1;
-		
-		return z * CHUNKS_SIDE_X * CHUNKS_SIDE_Y + y * CHUNKS_SIDE_X + x;
-	}
-	
-	private int blockPosToArrayIndex(int x, int y, int z) {
-		int ix = x / Chunk.CHUNK_BLOCK_WIDTH;
-		int iy = y / Chunk.CHUNK_BLOCK_HEIGHT;
-		int iz = z / Chunk.CHUNK_BLOCK_DEPTH;
-		
-		return posToArrayIndex(ix, iy, iz);
-	}
-	
-	public Chunk[] getChunks() {
-		return chunks;
-	}
-	
-	/**
-	 * In Chunk positions.
-	 */
-	public Chunk getChunk(int x, int y, int z) {
-		int pos = posToArrayIndex(x, y, z);
-		if(pos < 0 || pos >= chunks.length)
-			return null;
-		return chunks[pos];
-	}
-	
-	/**
-	 * In world block position.
-	 */
-	public Chunk getChunkContaining(int x, int y, int z) {
-		int pos = blockPosToArrayIndex(x, y, z);
-		if(pos == -1)
-			return null;
-		return chunks[pos];
-	}
-	
-	public Chunk getChunkContaining(Block block) {
-		return getChunkContaining(block.getX(), block.getY(), block.getZ());
-	}
-	
-	@TakeStruct
-	public Block getBlock(Vector3 v, float radius) {
-		int px = Math.round(v.x() / Chunk.SPACING);
-		int py = Math.round(v.y() / Chunk.SPACING);
-		int pz = Math.round(-v.z() / Chunk.SPACING);
-		
-		float lowestDistance = Float.MAX_VALUE;
-		Block closestBlock = Struct.nullStruct(Block.class);
-		
-		final int count = (int)Math.ceil(radius / Chunk.SPACING);
-		
-		for(int a = -count; a <= count; a++) {
-			for(int b = -count; b <= count; b++) {
-				for(int c = -count; c <= count; c++) {
-					Block block = getBlock(px + a, py + b, pz + c);
-					
-					if(block == null || block.getType() == BlockType.AIR)
-						continue;
-					
-					float len = new Vector3(px + a, py + b, -(pz + c)).mult(Chunk.SPACING).sub(v).lengthSquared();
-					
-					if(len < lowestDistance) {
-						lowestDistance = len;
-						closestBlock = block;
-					}
-				}
-			}
-		}
-		
-		final float d = Chunk.BLOCK_SIZE * 0.5f + radius;
-		
-		return lowestDistance <= d * d ? closestBlock : Struct.nullStruct(Block.class);
-	}
-	
-	public Block[] getBlocks(Vector3 v, float radius) {
-		// Get approximate index (x,y,z) coordinate
-		int px = Math.round(v.x() / Chunk.SPACING);
-		int py = Math.round(v.y() / Chunk.SPACING);
-		int pz = Math.round(-v.z() / Chunk.SPACING);
-		
-		// How many cubes fit in radius
-		final int count = (int)Math.ceil(radius / Chunk.SPACING);
-		
-		// (half cube + radius)^s = distSqr^2
-		float distSqr = Chunk.BLOCK_SIZE * 0.5f + radius;
-		distSqr *= distSqr;
-		
-		Block[] blocks = Struct.nullArray(Block.class, 300);
-		int size = 0;
-		
-		// Test against -count.xyz to +count.xyz offset from the p.xyz index
-		for(int a = -count; a <= count; a++) {
-			for(int b = -count; b <= count; b++) {
-				for(int c = -count; c <= count; c++) {
-					Block block = getBlock(px + a, py + b, pz + c);
-					
-					if(block == null || block.getType() == BlockType.AIR)
-						continue;
-					
-					// Length squared of ((px,py,pz)+(a,b,c) - v)
-					float lenSqr = new Vector3(px + a, py + b, -(pz + c)).mult(Chunk.SPACING).sub(v).lengthSquared();
-					
-					if(lenSqr <= distSqr) {
-						if(size >= blocks.length) {
-							Block[] temp = Struct.nullArray(Block.class, blocks.length * 2);
-							System.arraycopy(blocks, 0, temp, 0, blocks.length);
-							blocks = temp;
-						}
-						
-						blocks[size++] = block;
-					}
-				}
-			}
-		}
-		
-		if(size != blocks.length) {
-			Block[] temp = Struct.nullArray(Block.class, size);
-			System.arraycopy(blocks, 0, temp, 0, size);
-			blocks = temp;
-		}
-		
-		return blocks;
-	}
-	
-	@TakeStruct
-	public Block getBlock(int x, int y, int z) {
-		int i = blockPosToArrayIndex(x, y, z);
-		if(i == -1) {
-			return Struct.nullStruct(Block.class);
-		}
-		
-		return chunks[i].get(x, y, z);
-	}
-	
-	public void setBlock(BlockType type, Block block) {
-		setBlock(type, block.getX(), block.getY(), block.getZ());
-	}
-	
-	public void setBlock(BlockType type, int x, int y, int z) {
-		int i = blockPosToArrayIndex(x, y, z);
-		if(i == -1)
-			throw new IllegalArgumentException("Invalid cube position (" + x + "," + y + "," + z + ").");
-		
-		chunks[i].set(type, x, y, z);
-	}
-	
-	public void update(long deltaTime) {
-		
-	}
-}
+package com.ra4king.fps.world;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.ra4king.fps.StructTracker;
+import com.ra4king.fps.actors.Block;
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.opengl.util.math.Vector3;
+
+import net.indiespot.struct.cp.Struct;
+import net.indiespot.struct.cp.TakeStruct;
+
+/**
+ * close() frees the off-heap memory of the ChunkManager and of every chunk it holds.
+ *
+ * @author Roi Atalla
+ */
+public class ChunkManager implements AutoCloseable {
+	/**
+	 * Size of the initially created region, in chunks. An unbounded ChunkManager can hold chunks outside of it.
+	 */
+	public final int CHUNKS_SIDE_X, CHUNKS_SIDE_Y, CHUNKS_SIDE_Z;
+	
+	private World world;
+	
+	private final ChunkMap chunks;
+	
+	// Runs of lookups usually hit the same chunk, this skips the ChunkMap for them
+	private Chunk lastChunk;
+	
+	private ChunkListener listener;
+	
+	// getBlocks copies its results here since Chunk.get only hands out short-lived views
+	private Block[] queryResults;
+	private int[] queryPositions;
+	
+	// Reused by the queries that fill a caller's buffer
+	private final PositionCollector collector = new PositionCollector();
+	private final NearestFinder nearest = new NearestFinder();
+	private final int[] nearestResult = new int[3];
+	
+	private boolean closed;
+	
+	// Chunks with pending edits during setBlocks
+	private Chunk[] modifiedChunks = new Chunk[16];
+	
+	// Chunks whose DirtyRegion is not empty, in the order they were first marked
+	private Chunk[] dirtyChunks = new Chunk[16];
+	private int dirtyCount;
+	
+	public ChunkManager(World world, int chunksX, int chunksY, int chunksZ) {
+		this(world, new ArrayChunkMap(chunksX, chunksY, chunksZ), chunksX, chunksY, chunksZ);
+	}
+	
+	/**
+	 * Creates every chunk in [0, chunks.xyz) in the given ChunkMap.
+	 */
+	public ChunkManager(World world, ChunkMap chunkMap, int chunksX, int chunksY, int chunksZ) {
+		this.world = world;
+		
+		this.CHUNKS_SIDE_X = chunksX;
+		this.CHUNKS_SIDE_Y = chunksY;
+		this.CHUNKS_SIDE_Z = chunksZ;
+		
+		chunks = chunkMap;
+		
+		long t0 = System.nanoTime();
+		for(int x = 0; x < CHUNKS_SIDE_X; x++) {
+			for(int y = 0; y < CHUNKS_SIDE_Y; y++) {
+				for(int z = 0; z < CHUNKS_SIDE_Z; z++) {
+					createChunk(x, y, z);
+				}
+			}
+		}
+		long time = System.nanoTime() - t0;
+		System.out.printf("Chunks created in %.3f ms\n", time / 1e6);
+		
+		queryResults = Struct.mallocArray(Block.class, 300);
+		queryPositions = new int[queryResults.length * 3];
+		StructTracker.allocated(this, queryResults.length * Struct.sizeof(Block.class));
+	}
+	
+	/**
+	 * Closes every chunk and frees the off-heap memory, the ChunkManager must not be used afterwards. Closing again does
+	 * nothing.
+	 */
+	@Override
+	public void close() {
+		if(closed)
+			return;
+		
+		closed = true;
+		
+		for(Chunk chunk : chunks.toArray())
+			chunk.close();
+		
+		StructTracker.freed(this, queryResults.length * Struct.sizeof(Block.class));
+		
+		Struct.free(queryResults);
+	}
+	
+	public World getWorld() {
+		return world;
+	}
+	
+	public boolean isBounded() {
+		return chunks.isBounded();
+	}
+	
+	public void setChunkListener(ChunkListener listener) {
+		this.listener = listener;
+	}
+	
+	public ChunkListener getChunkListener() {
+		return listener;
+	}
+	
+	/**
+	 * Adds an already filled chunk, replacing and closing any chunk at the same position.
+	 */
+	public void addChunk(Chunk chunk) {
+		if(chunk.getChunkManager() != this)
+			throw new IllegalArgumentException("Chunk belongs to another ChunkManager.");
+		
+		int x = Math.floorDiv(chunk.getCornerX(), Chunk.CHUNK_BLOCK_WIDTH);
+		int y = Math.floorDiv(chunk.getCornerY(), Chunk.CHUNK_BLOCK_HEIGHT);
+		int z = Math.floorDiv(chunk.getCornerZ(), Chunk.CHUNK_BLOCK_DEPTH);
+		
+		Chunk replaced = removeChunk(x, y, z);
+		if(replaced != null && replaced != chunk)
+			replaced.close();
+		
+		chunks.put(x, y, z, chunk);
+		chunk.setAttached(true);
+		chunk.syncAprons(false);
+		
+		if(listener != null)
+			listener.chunkLoaded(chunk);
+		
+		// Blocks on the neighbors' borders might now be hidden
+		markDirty(chunk, 0, 0, 0, Chunk.CHUNK_BLOCK_WIDTH, Chunk.CHUNK_BLOCK_HEIGHT, Chunk.CHUNK_BLOCK_DEPTH);
+	}
+	
+	/**
+	 * In Chunk positions. The removed chunk is not closed.
+	 *
+	 * @return the removed chunk, or null if there was none
+	 */
+	public Chunk removeChunk(int x, int y, int z) {
+		Chunk chunk = chunks.remove(x, y, z);
+		if(chunk == null)
+			return null;
+		
+		if(lastChunk == chunk)
+			lastChunk = null;
+		
+		chunk.setAttached(false);
+		chunk.getDirtyRegion().clear();
+		chunk.syncAprons(true);
+		
+		if(listener != null)
+			listener.chunkUnloaded(chunk);
+		
+		// Blocks on the neighbors' borders might now be exposed
+		markNeighborsDirty(x, y, z, 0, 0, 0, Chunk.CHUNK_BLOCK_WIDTH, Chunk.CHUNK_BLOCK_HEIGHT, Chunk.CHUNK_BLOCK_DEPTH);
+		
+		return chunk;
+	}
+	
+	/**
+	 * Records a change to the blocks in the given box of a chunk, in local block positions with the max exclusive.
+	 * The border blocks of the neighbors behind the faces the box touches are marked too.
+	 */
+	void markDirty(Chunk chunk, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		includeDirty(chunk, minX, minY, minZ, maxX, maxY, maxZ);
+		chunk.getDirtyRegion().includeFaces(DirtyRegion.getFaces(minX, minY, minZ, maxX, maxY, maxZ));
+		
+		markNeighborsDirty(Math.floorDiv(chunk.getCornerX(), Chunk.CHUNK_BLOCK_WIDTH),
+				Math.floorDiv(chunk.getCornerY(), Chunk.CHUNK_BLOCK_HEIGHT),
+				Math.floorDiv(chunk.getCornerZ(), Chunk.CHUNK_BLOCK_DEPTH),
+				minX, minY, minZ, maxX, maxY, maxZ);
+	}
+	
+	/**
+	 * In Chunk positions, the box is in local block positions of the chunk at (x,y,z).
+	 */
+	private void markNeighborsDirty(int x, int y, int z, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		final int w = Chunk.CHUNK_BLOCK_WIDTH, h = Chunk.CHUNK_BLOCK_HEIGHT, d = Chunk.CHUNK_BLOCK_DEPTH;
+		
+		if(minX == 0)
+			includeDirty(getChunk(x - 1, y, z), w - 1, minY, minZ, w, maxY, maxZ);
+		if(maxX == w)
+			includeDirty(getChunk(x + 1, y, z), 0, minY, minZ, 1, maxY, maxZ);
+		if(minY == 0)
+			includeDirty(getChunk(x, y - 1, z), minX, h - 1, minZ, maxX, h, maxZ);
+		if(maxY == h)
+			includeDirty(getChunk(x, y + 1, z), minX, 0, minZ, maxX, 1, maxZ);
+		if(minZ == 0)
+			includeDirty(getChunk(x, y, z - 1), minX, minY, d - 1, maxX, maxY, d);
+		if(maxZ == d)
+			includeDirty(getChunk(x, y, z + 1), minX, minY, 0, maxX, maxY, 1);
+	}
+	
+	private void includeDirty(Chunk chunk, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		if(chunk == null)
+			return;
+		
+		DirtyRegion region = chunk.getDirtyRegion();
+		if(region.isEmpty()) {
+			if(dirtyCount == dirtyChunks.length)
+				dirtyChunks = Arrays.copyOf(dirtyChunks, dirtyCount * 2);
+			
+			dirtyChunks[dirtyCount++] = chunk;
+		}
+		
+		region.include(minX, minY, minZ, maxX, maxY, maxZ);
+	}
+	
+	/**
+	 * Hands every dirty chunk's DirtyRegion to its callback and clears it. Meant to be called once per frame, so all
+	 * changes made to a chunk in between are handled at once.
+	 *
+	 * @return the number of dirty chunks
+	 */
+	public int drainDirtyChunks() {
+		int count = 0;
+		
+		for(int i = 0; i < dirtyCount; i++) {
+			Chunk chunk = dirtyChunks[i];
+			dirtyChunks[i] = null;
+			
+			// Removed chunks have their region cleared
+			DirtyRegion region = chunk.getDirtyRegion();
+			if(region.isEmpty())
+				continue;
+			
+			if(chunk.getCallback() != null)
+				chunk.getCallback().chunkModified(region);
+			
+			region.clear();
+			count++;
+		}
+		
+		dirtyCount = 0;
+		
+		return count;
+	}
+	
+	public int getDirtyChunkCount() {
+		return dirtyCount;
+	}
+	
+	public void clearAll() {
+		for(Chunk c : chunks.toArray())
+			c.clearAll();
+	}
+	
+	/**
+	 * Writes every loaded chunk to region files in the given directory, overwriting chunks already saved there.
+	 *
+	 * @return the number of chunks written
+	 */
+	public int save(File directory) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create directory: " + directory);
+		
+		Chunk[] chunks = getChunks();
+		
+		// Group the chunks by region so each region file is opened only once
+		Comparator<Chunk> byRegion = Comparator.comparingInt((Chunk c) -> RegionFile.toRegion(getChunkX(c)))
+				.thenComparingInt(c -> RegionFile.toRegion(getChunkY(c)))
+				.thenComparingInt(c -> RegionFile.toRegion(getChunkZ(c)));
+		Arrays.sort(chunks, byRegion);
+		
+		RegionFile region = null;
+		try {
+			for(int i = 0; i < chunks.length; i++) {
+				Chunk chunk = chunks[i];
+				
+				int x = getChunkX(chunk), y = getChunkY(chunk), z = getChunkZ(chunk);
+				
+				if(i == 0 || byRegion.compare(chunks[i - 1], chunk) != 0) {
+					if(region != null)
+						region.close();
+					
+					region = new RegionFile(new File(directory, RegionFile.getFileName(RegionFile.toRegion(x), RegionFile.toRegion(y), RegionFile.toRegion(z))), false);
+				}
+				
+				int index = RegionFile.getIndex(Math.floorMod(x, RegionFile.REGION_SIZE), Math.floorMod(y, RegionFile.REGION_SIZE), Math.floorMod(z, RegionFile.REGION_SIZE));
+				
+				chunk.writeTo(region.allocateChunk(index, chunk.getSerializedSize()));
+			}
+		} finally {
+			if(region != null)
+				region.close();
+		}
+		
+		return chunks.length;
+	}
+	
+	/**
+	 * Reads every chunk saved in the region files of the given directory, replacing loaded chunks at the same positions.
+	 * A bounded ChunkManager skips saved chunks outside of its bounds. All chunks are read before any is replaced, so a
+	 * corrupt chunk leaves the loaded chunks untouched.
+	 *
+	 * @return the number of chunks read
+	 * @throws IOException if a region file or chunk is corrupt
+	 */
+	public int load(File directory) throws IOException {
+		File[] files = directory.listFiles();
+		if(files == null)
+			throw new IOException("Not a directory: " + directory);
+		
+		ArrayList<Chunk> loaded = new ArrayList<>();
+		
+		try {
+			for(File file : files) {
+				int[] regionPos = RegionFile.parseFileName(file.getName());
+				if(regionPos == null)
+					continue;
+				
+				try(RegionFile region = new RegionFile(file, true)) {
+					for(int i = 0; i < RegionFile.CHUNKS_PER_REGION; i++) {
+						ByteBuffer data = region.readChunk(i);
+						if(data == null)
+							continue;
+						
+						int x = regionPos[0] * RegionFile.REGION_SIZE + RegionFile.indexToX(i);
+						int y = regionPos[1] * RegionFile.REGION_SIZE + RegionFile.indexToY(i);
+						int z = regionPos[2] * RegionFile.REGION_SIZE + RegionFile.indexToZ(i);
+						
+						if(isBounded() && (x < 0 || x >= CHUNKS_SIDE_X || y < 0 || y >= CHUNKS_SIDE_Y || z < 0 || z >= CHUNKS_SIDE_Z))
+							continue;
+						
+						Chunk chunk = new Chunk(this, x * Chunk.CHUNK_BLOCK_WIDTH, y * Chunk.CHUNK_BLOCK_HEIGHT, z * Chunk.CHUNK_BLOCK_DEPTH);
+						loaded.add(chunk);
+						
+						try {
+							chunk.readFrom(data);
+						} catch(IOException exc) {
+							throw new IOException("Chunk (" + x + "," + y + "," + z + ") in " + file + ": " + exc.getMessage(), exc);
+						}
+					}
+				}
+			}
+		} catch(IOException | RuntimeException exc) {
+			for(Chunk chunk : loaded)
+				chunk.close();
+			
+			throw exc;
+		}
+		
+		for(Chunk chunk : loaded)
+			addChunk(chunk);
+		
+		return loaded.size();
+	}
+	
+	private static int getChunkX(Chunk chunk) {
+		return Math.floorDiv(chunk.getCornerX(), Chunk.CHUNK_BLOCK_WIDTH);
+	}
+	
+	private static int getChunkY(Chunk chunk) {
+		return Math.floorDiv(chunk.getCornerY(), Chunk.CHUNK_BLOCK_HEIGHT);
+	}
+	
+	private static int getChunkZ(Chunk chunk) {
+		return Math.floorDiv(chunk.getCornerZ(), Chunk.CHUNK_BLOCK_DEPTH);
+	}
+	
+	/**
+	 * In Chunk positions.
+	 */
+	private Chunk createChunk(int x, int y, int z) {
+		Chunk chunk = new Chunk(this, x * Chunk.CHUNK_BLOCK_WIDTH, y * Chunk.CHUNK_BLOCK_HEIGHT, z * Chunk.CHUNK_BLOCK_DEPTH);
+		chunks.put(x, y, z, chunk);
+		chunk.setAttached(true);
+		chunk.syncAprons(false);
+		
+		if(listener != null)
+			listener.chunkLoaded(chunk);
+		
+		return chunk;
+	}
+	
+	/**
+	 * @return a snapshot of all chunks currently loaded
+	 */
+	public Chunk[] getChunks() {
+		return chunks.toArray();
+	}
+	
+	public int getChunkCount() {
+		return chunks.size();
+	}
+	
+	/**
+	 * In Chunk positions.
+	 */
+	public Chunk getChunk(int x, int y, int z) {
+		Chunk last = lastChunk;
+		if(last != null && last.cornerEquals(x * Chunk.CHUNK_BLOCK_WIDTH, y * Chunk.CHUNK_BLOCK_HEIGHT, z * Chunk.CHUNK_BLOCK_DEPTH))
+			return last;
+		
+		Chunk chunk = chunks.get(x, y, z);
+		if(chunk != null)
+			lastChunk = chunk;
+		return chunk;
+	}
+	
+	/**
+	 * In world block position.
+	 */
+	public Chunk getChunkContaining(int x, int y, int z) {
+		Chunk last = lastChunk;
+		if(last != null && last.containsBlock(x, y, z))
+			return last;
+		
+		return getChunk(Math.floorDiv(x, Chunk.CHUNK_BLOCK_WIDTH), Math.floorDiv(y, Chunk.CHUNK_BLOCK_HEIGHT), Math.floorDiv(z, Chunk.CHUNK_BLOCK_DEPTH));
+	}
+	
+	/**
+	 * In world block position. Unlike getChunkContaining, does not remember the chunk for the next lookup, so it may be
+	 * called from other threads while the chunks are not being changed.
+	 */
+	Chunk findChunkContaining(int x, int y, int z) {
+		return chunks.get(Math.floorDiv(x, Chunk.CHUNK_BLOCK_WIDTH), Math.floorDiv(y, Chunk.CHUNK_BLOCK_HEIGHT), Math.floorDiv(z, Chunk.CHUNK_BLOCK_DEPTH));
+	}
+	
+	public Chunk getChunkContaining(Block block) {
+		return getChunkContaining(block.getX(), block.getY(), block.getZ());
+	}
+	
+	/**
+	 * The closest solid block touching the sphere, or the null struct. Prefer findNearestSolid, which does not go through
+	 * a Block view.
+	 */
+	@TakeStruct
+	public Block getBlock(Vector3 v, float radius) {
+		if(!findNearestSolid(v.x(), v.y(), v.z(), Chunk.BLOCK_SIZE * 0.5f + radius, nearestResult))
+			return Struct.nullStruct(Block.class);
+		
+		return getBlock(nearestResult[0], nearestResult[1], nearestResult[2]);
+	}
+	
+	/**
+	 * The solid blocks touching the sphere. The returned array points into a buffer owned by this ChunkManager and is
+	 * only valid until the next call. Prefer getSolidInSphere or forEachSolidInSphere, which do not allocate.
+	 */
+	public Block[] getBlocks(Vector3 v, float radius) {
+		int size;
+		while((size = getSolidInSphere(v.x(), v.y(), v.z(), Chunk.BLOCK_SIZE * 0.5f + radius, queryPositions)) == queryResults.length) {
+			StructTracker.freed(this, queryResults.length * Struct.sizeof(Block.class));
+			Struct.free(queryResults);
+			
+			queryResults = Struct.mallocArray(Block.class, queryResults.length * 2);
+			StructTracker.allocated(this, queryResults.length * Struct.sizeof(Block.class));
+			
+			queryPositions = new int[queryResults.length * 3];
+		}
+		
+		for(int i = 0; i < size; i++) {
+			Struct.copy(Block.class, getBlock(queryPositions[i * 3], queryPositions[i * 3 + 1], queryPositions[i * 3 + 2]), queryResults[i]);
+		}
+		
+		Block[] result = Struct.nullArray(Block.class, size);
+		System.arraycopy(queryResults, 0, result, 0, size);
+		
+		return result;
+	}
+	
+	/**
+	 * Visits every solid block in [x0,x1) x [y0,y1) x [z0,z1), in world block positions.
+	 *
+	 * @return the number of blocks visited
+	 */
+	public int forEachSolidInBox(int x0, int y0, int z0, int x1, int y1, int z1, BlockVisitor visitor) {
+		return visitSolid(x0, y0, z0, x1, y1, z1, 0, 0, 0, Float.POSITIVE_INFINITY, visitor);
+	}
+	
+	/**
+	 * Visits every solid block whose center is within radius of (x,y,z), in world space.
+	 *
+	 * @return the number of blocks visited
+	 */
+	public int forEachSolidInSphere(float x, float y, float z, float radius, BlockVisitor visitor) {
+		return visitSolid((int)Math.ceil((x - radius) / Chunk.SPACING), (int)Math.ceil((y - radius) / Chunk.SPACING), (int)Math.ceil((-z - radius) / Chunk.SPACING),
+		                  (int)Math.floor((x + radius) / Chunk.SPACING) + 1, (int)Math.floor((y + radius) / Chunk.SPACING) + 1, (int)Math.floor((-z + radius) / Chunk.SPACING) + 1,
+		                  x, y, z, radius * radius, visitor);
+	}
+	
+	/**
+	 * Same as forEachSolidInBox, storing the blocks as (x,y,z) triples in result until it is full.
+	 *
+	 * @return the number of blocks stored, result.length / 3 if there may be more
+	 */
+	public int getSolidInBox(int x0, int y0, int z0, int x1, int y1, int z1, int[] result) {
+		collector.reset(result);
+		forEachSolidInBox(x0, y0, z0, x1, y1, z1, collector);
+		return collector.size;
+	}
+	
+	/**
+	 * Same as forEachSolidInSphere, storing the blocks as (x,y,z) triples in result until it is full.
+	 *
+	 * @return the number of blocks stored, result.length / 3 if there may be more
+	 */
+	public int getSolidInSphere(float x, float y, float z, float radius, int[] result) {
+		collector.reset(result);
+		forEachSolidInSphere(x, y, z, radius, collector);
+		return collector.size;
+	}
+	
+	/**
+	 * Finds the solid block with the closest center within radius of (x,y,z), in world space, and stores its position in
+	 * result[0..2]. Ties go to the lowest x, then y, then z.
+	 *
+	 * @return false if there is none, leaving result unchanged
+	 */
+	public boolean findNearestSolid(float x, float y, float z, float radius, int[] result) {
+		nearest.reset(x, y, z);
+		
+		if(forEachSolidInSphere(x, y, z, radius, nearest) == 0)
+			return false;
+		
+		result[0] = nearest.nearestX;
+		result[1] = nearest.nearestY;
+		result[2] = nearest.nearestZ;
+		return true;
+	}
+	
+	/**
+	 * The number of solid blocks in [x0,x1) x [y0,y1) x [z0,z1), in world block positions. Chunks the box covers
+	 * entirely count through their block count, the rest through their occupancy rows.
+	 */
+	public int countSolidInBox(int x0, int y0, int z0, int x1, int y1, int z1) {
+		if(x0 >= x1 || y0 >= y1 || z0 >= z1)
+			return 0;
+		
+		int count = 0;
+		
+		for(int chunkZ = Math.floorDiv(z0, Chunk.CHUNK_BLOCK_DEPTH); chunkZ <= Math.floorDiv(z1 - 1, Chunk.CHUNK_BLOCK_DEPTH); chunkZ++) {
+			for(int chunkY = Math.floorDiv(y0, Chunk.CHUNK_BLOCK_HEIGHT); chunkY <= Math.floorDiv(y1 - 1, Chunk.CHUNK_BLOCK_HEIGHT); chunkY++) {
+				for(int chunkX = Math.floorDiv(x0, Chunk.CHUNK_BLOCK_WIDTH); chunkX <= Math.floorDiv(x1 - 1, Chunk.CHUNK_BLOCK_WIDTH); chunkX++) {
+					Chunk chunk = chunks.get(chunkX, chunkY, chunkZ);
+					if(chunk == null || chunk.getBlockCount() == 0)
+						continue;
+					
+					int lx0 = Math.max(x0 - chunk.getCornerX(), 0), lx1 = Math.min(x1 - chunk.getCornerX(), Chunk.CHUNK_BLOCK_WIDTH);
+					int ly0 = Math.max(y0 - chunk.getCornerY(), 0), ly1 = Math.min(y1 - chunk.getCornerY(), Chunk.CHUNK_BLOCK_HEIGHT);
+					int lz0 = Math.max(z0 - chunk.getCornerZ(), 0), lz1 = Math.min(z1 - chunk.getCornerZ(), Chunk.CHUNK_BLOCK_DEPTH);
+					
+					if(lx1 - lx0 == Chunk.CHUNK_BLOCK_WIDTH && ly1 - ly0 == Chunk.CHUNK_BLOCK_HEIGHT && lz1 - lz0 == Chunk.CHUNK_BLOCK_DEPTH) {
+						count += chunk.getBlockCount();
+						continue;
+					}
+					
+					long[] occupancy = chunk.getOccupancy();
+					long mask = ((1L << (lx1 - lx0)) - 1) << (lx0 + 1);
+					
+					for(int lz = lz0; lz < lz1; lz++) {
+						for(int ly = ly0; ly < ly1; ly++) {
+							count += Long.bitCount(occupancy[Chunk.getOccupancyRow(ly, lz)] & mask);
+						}
+					}
+				}
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Visits the solid blocks in the box whose center is within sqrt(distSqr) of (cx,cy,cz) in world space. Goes chunk
+	 * by chunk through the occupancy rows, skipping missing and empty chunks and the rows too far away on y and z. The
+	 * visitor may set the blocks it visits, each row is read before its blocks are visited.
+	 */
+	private int visitSolid(int x0, int y0, int z0, int x1, int y1, int z1, float cx, float cy, float cz, float distSqr, BlockVisitor visitor) {
+		if(x0 >= x1 || y0 >= y1 || z0 >= z1)
+			return 0;
+		
+		int visited = 0;
+		
+		for(int chunkZ = Math.floorDiv(z0, Chunk.CHUNK_BLOCK_DEPTH); chunkZ <= Math.floorDiv(z1 - 1, Chunk.CHUNK_BLOCK_DEPTH); chunkZ++) {
+			for(int chunkY = Math.floorDiv(y0, Chunk.CHUNK_BLOCK_HEIGHT); chunkY <= Math.floorDiv(y1 - 1, Chunk.CHUNK_BLOCK_HEIGHT); chunkY++) {
+				for(int chunkX = Math.floorDiv(x0, Chunk.CHUNK_BLOCK_WIDTH); chunkX <= Math.floorDiv(x1 - 1, Chunk.CHUNK_BLOCK_WIDTH); chunkX++) {
+					Chunk chunk = chunks.get(chunkX, chunkY, chunkZ);
+					if(chunk == null || chunk.getBlockCount() == 0)
+						continue;
+					
+					final int cornerX = chunk.getCornerX(), cornerY = chunk.getCornerY(), cornerZ = chunk.getCornerZ();
+					
+					int lx0 = Math.max(x0 - cornerX, 0), lx1 = Math.min(x1 - cornerX, Chunk.CHUNK_BLOCK_WIDTH);
+					int ly0 = Math.max(y0 - cornerY, 0), ly1 = Math.min(y1 - cornerY, Chunk.CHUNK_BLOCK_HEIGHT);
+					int lz0 = Math.max(z0 - cornerZ, 0), lz1 = Math.min(z1 - cornerZ, Chunk.CHUNK_BLOCK_DEPTH);
+					
+					long[] occupancy = chunk.getOccupancy();
+					long mask = ((1L << (lx1 - lx0)) - 1) << (lx0 + 1);
+					
+					for(int lz = lz0; lz < lz1; lz++) {
+						// Block z is at -z in world space
+						float dz = -(cornerZ + lz) * Chunk.SPACING - cz;
+						float dzSqr = dz * dz;
+						if(dzSqr > distSqr)
+							continue;
+						
+						for(int ly = ly0; ly < ly1; ly++) {
+							float dy = (cornerY + ly) * Chunk.SPACING - cy;
+							float dyzSqr = dzSqr + dy * dy;
+							if(dyzSqr > distSqr)
+								continue;
+							
+							long bits = occupancy[Chunk.getOccupancyRow(ly, lz)] & mask;
+							while(bits != 0) {
+								int x = cornerX + Long.numberOfTrailingZeros(bits) - 1;
+								bits &= bits - 1;
+								
+								float dx = x * Chunk.SPACING - cx;
+								if(dyzSqr + dx * dx > distSqr)
+									continue;
+								
+								visited++;
+								if(!visitor.visit(x, cornerY + ly, cornerZ + lz))
+									return visited;
+							}
+						}
+					}
+				}
+			}
+		}
+		
+		return visited;
+	}
+	
+	/**
+	 * In world block position, missing chunks are air.
+	 */
+	public boolean isSolid(int x, int y, int z) {
+		Chunk chunk = getChunkContaining(x, y, z);
+		return chunk != null && chunk.isSolid(x - chunk.getCornerX(), y - chunk.getCornerY(), z - chunk.getCornerZ());
+	}
+	
+	@TakeStruct
+	public Block getBlock(int x, int y, int z) {
+		Chunk chunk = getChunkContaining(x, y, z);
+		if(chunk == null) {
+			return Struct.nullStruct(Block.class);
+		}
+		
+		return chunk.get(x, y, z);
+	}
+	
+	public void setBlock(BlockType type, Block block) {
+		setBlock(type, block.getX(), block.getY(), block.getZ());
+	}
+	
+	public void setBlock(BlockType type, int x, int y, int z) {
+		Chunk chunk = getChunkContaining(x, y, z);
+		if(chunk == null) {
+			if(chunks.isBounded())
+				throw new IllegalArgumentException("Invalid cube position (" + x + "," + y + "," + z + ").");
+			
+			// A missing chunk is all air
+			if(type == BlockType.AIR)
+				return;
+			
+			chunk = createChunk(Math.floorDiv(x, Chunk.CHUNK_BLOCK_WIDTH), Math.floorDiv(y, Chunk.CHUNK_BLOCK_HEIGHT), Math.floorDiv(z, Chunk.CHUNK_BLOCK_DEPTH));
+		}
+		
+		chunk.set(type, x, y, z);
+	}
+	
+	/**
+	 * Sets every block in [x0,x1) x [y0,y1) x [z0,z1), in world block positions. Each chunk's storage is written
+	 * directly and its part of the box is marked dirty at once instead of block by block.
+	 *
+	 * @return the number of chunks modified
+	 */
+	public int fillBox(BlockType type, int x0, int y0, int z0, int x1, int y1, int z1) {
+		return editBox(null, type, x0, y0, z0, x1, y1, z1);
+	}
+	
+	/**
+	 * Same as fillBox but only blocks of type from are set to type to.
+	 *
+	 * @return the number of chunks modified
+	 */
+	public int replaceInBox(BlockType from, BlockType to, int x0, int y0, int z0, int x1, int y1, int z1) {
+		if(from == to)
+			return 0;
+		
+		return editBox(from, to, x0, y0, z0, x1, y1, z1);
+	}
+	
+	private int editBox(BlockType from, BlockType to, int x0, int y0, int z0, int x1, int y1, int z1) {
+		if(x0 >= x1 || y0 >= y1 || z0 >= z1)
+			return 0;
+		
+		if(chunks.isBounded() && (x0 < 0 || y0 < 0 || z0 < 0 ||
+				x1 > CHUNKS_SIDE_X * Chunk.CHUNK_BLOCK_WIDTH || y1 > CHUNKS_SIDE_Y * Chunk.CHUNK_BLOCK_HEIGHT || z1 > CHUNKS_SIDE_Z * Chunk.CHUNK_BLOCK_DEPTH))
+			throw new IllegalArgumentException("Invalid box (" + x0 + "," + y0 + "," + z0 + ") to (" + x1 + "," + y1 + "," + z1 + ").");
+		
+		// Missing chunks are all air, they only need to be created if air is being replaced
+		boolean createMissing = from == null ? to != BlockType.AIR : from == BlockType.AIR;
+		
+		int modified = 0;
+		
+		for(int cx = Math.floorDiv(x0, Chunk.CHUNK_BLOCK_WIDTH); cx <= Math.floorDiv(x1 - 1, Chunk.CHUNK_BLOCK_WIDTH); cx++) {
+			for(int cy = Math.floorDiv(y0, Chunk.CHUNK_BLOCK_HEIGHT); cy <= Math.floorDiv(y1 - 1, Chunk.CHUNK_BLOCK_HEIGHT); cy++) {
+				for(int cz = Math.floorDiv(z0, Chunk.CHUNK_BLOCK_DEPTH); cz <= Math.floorDiv(z1 - 1, Chunk.CHUNK_BLOCK_DEPTH); cz++) {
+					Chunk chunk = getChunk(cx, cy, cz);
+					if(chunk == null) {
+						if(!createMissing)
+							continue;
+						
+						chunk = createChunk(cx, cy, cz);
+					}
+					
+					boolean changed = from == null ? chunk.fillBox(to, x0, y0, z0, x1, y1, z1) : chunk.replaceInBox(from, to, x0, y0, z0, x1, y1, z1);
+					if(changed)
+						modified++;
+				}
+			}
+		}
+		
+		return modified;
+	}
+	
+	/**
+	 * Sets the blocks at all positions, stored as consecutive (x,y,z) world block positions. Chunks are only checked
+	 * for becoming uniform once all blocks are set.
+	 *
+	 * @return the number of chunks modified
+	 */
+	public int setBlocks(int[] positions, BlockType type) {
+		return setBlocks(positions, positions.length / 3, type);
+	}
+	
+	/**
+	 * Only the first count positions are set.
+	 *
+	 * @return the number of chunks modified
+	 */
+	public int setBlocks(int[] positions, int count, BlockType type) {
+		int modifiedCount = 0;
+		
+		try {
+			for(int i = 0; i < count * 3; i += 3) {
+				int x = positions[i], y = positions[i + 1], z = positions[i + 2];
+				
+				Chunk chunk = getChunkContaining(x, y, z);
+				if(chunk == null) {
+					if(chunks.isBounded())
+						throw new IllegalArgumentException("Invalid cube position (" + x + "," + y + "," + z + ").");
+					
+					if(type == BlockType.AIR)
+						continue;
+					
+					chunk = createChunk(Math.floorDiv(x, Chunk.CHUNK_BLOCK_WIDTH), Math.floorDiv(y, Chunk.CHUNK_BLOCK_HEIGHT), Math.floorDiv(z, Chunk.CHUNK_BLOCK_DEPTH));
+				}
+				
+				boolean hadPendingEdits = chunk.hasPendingEdits();
+				if(chunk.setPending(chunk.posToArrayIndex(x, y, z), type) && !hadPendingEdits) {
+					if(modifiedCount == modifiedChunks.length)
+						modifiedChunks = Arrays.copyOf(modifiedChunks, modifiedCount * 2);
+					
+					modifiedChunks[modifiedCount++] = chunk;
+				}
+			}
+		} finally {
+			// Also done for the blocks set before an invalid position was hit
+			for(int i = 0; i < modifiedCount; i++) {
+				modifiedChunks[i].finishPendingEdits();
+				modifiedChunks[i] = null;
+			}
+		}
+		
+		return modifiedCount;
+	}
+	
+	public void update(long deltaTime) {
+		
+	}
+	
+	public interface ChunkListener {
+		void chunkLoaded(Chunk chunk);
+		
+		void chunkUnloaded(Chunk chunk);
+	}
+	
+	/**
+	 * Receives the blocks found by a query, in world block positions.
+	 */
+	public interface BlockVisitor {
+		/**
+		 * @return false to stop the query
+		 */
+		boolean visit(int x, int y, int z);
+	}
+	
+	private static class PositionCollector implements BlockVisitor {
+		private int[] result;
+		private int size;
+		
+		void reset(int[] result) {
+			this.result = result;
+			size = 0;
+		}
+		
+		@Override
+		public boolean visit(int x, int y, int z) {
+			if(size * 3 + 3 > result.length)
+				return false;
+			
+			result[size * 3] = x;
+			result[size * 3 + 1] = y;
+			result[size * 3 + 2] = z;
+			size++;
+			
+			return size * 3 + 3 <= result.length;
+		}
+	}
+	
+	private static class NearestFinder implements BlockVisitor {
+		private float x, y, z;
+		private float nearestDistSqr;
+		private int nearestX, nearestY, nearestZ;
+		
+		void reset(float x, float y, float z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			nearestDistSqr = Float.POSITIVE_INFINITY;
+		}
+		
+		@Override
+		public boolean visit(int bx, int by, int bz) {
+			float dx = bx * Chunk.SPACING - x, dy = by * Chunk.SPACING - y, dz = -bz * Chunk.SPACING - z;
+			float distSqr = dx * dx + dy * dy + dz * dz;
+			
+			if(distSqr < nearestDistSqr || distSqr == nearestDistSqr && (bx < nearestX || bx == nearestX && (by < nearestY || by == nearestY && bz < nearestZ))) {
+				nearestDistSqr = distSqr;
+				nearestX = bx;
+				nearestY = by;
+				nearestZ = bz;
+			}
+			
+			return true;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.ra4king.fps.world;
+
+/**
+ * Storage backend for a ChunkManager's chunks, addressed by chunk position (block position / chunk size).
+ *
+ * @author Roi Atalla
+ */
+public interface ChunkMap {
+	/**
+	 * Whether chunks can only live in a fixed box of chunk positions.
+	 */
+	boolean isBounded();
+	
+	/**
+	 * @return the chunk at this chunk position, or null if there is none
+	 */
+	Chunk get(int x, int y, int z);
+	
+	void put(int x, int y, int z, Chunk chunk);
+	
+	/**
+	 * @return the removed chunk, or null if there was none
+	 */
+	Chunk remove(int x, int y, int z);
+	
+	int size();
+	
+	/**
+	 * @return a new array holding all chunks currently stored
+	 */
+	Chunk[] toArray();
+}
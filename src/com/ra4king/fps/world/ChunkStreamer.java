@@ -0,0 +1,392 @@
+package com.ra4king.fps.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Keeps the chunks within a radius of the camera loaded. Missing chunks are generated on background threads and
+ * handed back through a lock-free queue that update() drains on the calling thread. Chunks outside the radius stay
+ * cached until there are more than maxLoadedChunks or their storage exceeds the memory budget, at which point the
+ * least recently visible ones are unloaded.
+ *
+ * @author Roi Atalla
+ */
+public class ChunkStreamer {
+	// Caps how many finished chunks are added per update, each one makes its neighbors rebuild
+	private static final int MAX_CHUNKS_ADDED_PER_UPDATE = 8;
+	
+	// Edits can grow chunk storage, so the budget is also rechecked every so often when nothing was loaded
+	private static final int EVICT_CHECK_INTERVAL = 60;
+	
+	private final ChunkManager chunkManager;
+	private final ChunkGenerator generator;
+	
+	private final int radius;
+	private final int maxLoadedChunks;
+	private final long memoryBudget;
+	
+	// (x,y,z) chunk offsets within the radius, sorted nearest first
+	private final int[] offsets;
+	
+	private final ExecutorService executor;
+	private final ConcurrentLinkedQueue<LoadTask> finished;
+	private final AtomicInteger queueDepth;
+	
+	// Chunks being generated, they are only added to the ChunkManager once finished
+	private HashChunkMap pending;
+	
+	private int updatesSinceEvictCheck;
+	
+	private int centerX, centerY, centerZ;
+	private boolean hasCenter;
+	
+	private int loadedCount, unloadedCount, discardedCount, failedCount;
+	private Exception lastFailure;
+	private long totalLoadLatency, maxLoadLatency;
+	private long totalUnloadTime;
+	
+	public ChunkStreamer(ChunkManager chunkManager, ChunkGenerator generator, int radius, int maxLoadedChunks, long memoryBudget, int threadCount) {
+		if(chunkManager.isBounded())
+			throw new IllegalArgumentException("Streaming requires an unbounded ChunkManager.");
+		
+		if(maxLoadedChunks < (2 * radius + 1) * (2 * radius + 1) * (2 * radius + 1))
+			throw new IllegalArgumentException("maxLoadedChunks must at least fit the whole radius.");
+		
+		this.chunkManager = chunkManager;
+		this.generator = generator;
+		this.radius = radius;
+		this.maxLoadedChunks = maxLoadedChunks;
+		this.memoryBudget = memoryBudget;
+		
+		offsets = computeOffsets(radius);
+		
+		executor = Executors.newFixedThreadPool(threadCount, r -> {
+			Thread thread = new Thread(r, "Chunk Generator");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		finished = new ConcurrentLinkedQueue<>();
+		queueDepth = new AtomicInteger();
+		
+		pending = new HashChunkMap();
+	}
+	
+	private static int[] computeOffsets(int radius) {
+		ArrayList<int[]> list = new ArrayList<>();
+		for(int x = -radius; x <= radius; x++) {
+			for(int y = -radius; y <= radius; y++) {
+				for(int z = -radius; z <= radius; z++) {
+					if(x * x + y * y + z * z <= radius * radius) {
+						list.add(new int[] { x, y, z });
+					}
+				}
+			}
+		}
+		
+		list.sort((a, b) -> (a[0] * a[0] + a[1] * a[1] + a[2] * a[2]) - (b[0] * b[0] + b[1] * b[1] + b[2] * b[2]));
+		
+		int[] offsets = new int[list.size() * 3];
+		for(int i = 0; i < list.size(); i++) {
+			System.arraycopy(list.get(i), 0, offsets, i * 3, 3);
+		}
+		return offsets;
+	}
+	
+	public ChunkManager getChunkManager() {
+		return chunkManager;
+	}
+	
+	public int getRadius() {
+		return radius;
+	}
+	
+	public int getMaxLoadedChunks() {
+		return maxLoadedChunks;
+	}
+	
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	public void update(Vector3 cameraPosition) {
+		int cx = Math.floorDiv(Math.round(cameraPosition.x() / Chunk.SPACING), Chunk.CHUNK_BLOCK_WIDTH);
+		int cy = Math.floorDiv(Math.round(cameraPosition.y() / Chunk.SPACING), Chunk.CHUNK_BLOCK_HEIGHT);
+		int cz = Math.floorDiv(Math.round(-cameraPosition.z() / Chunk.SPACING), Chunk.CHUNK_BLOCK_DEPTH);
+		
+		if(!hasCenter || cx != centerX || cy != centerY || cz != centerZ) {
+			centerX = cx;
+			centerY = cy;
+			centerZ = cz;
+			hasCenter = true;
+			
+			requestMissing();
+		}
+		
+		if(addFinished() > 0 || ++updatesSinceEvictCheck >= EVICT_CHECK_INTERVAL) {
+			updatesSinceEvictCheck = 0;
+			evict();
+		}
+	}
+	
+	/**
+	 * Unloads every chunk, they are generated again around the camera on the next update.
+	 */
+	public void reloadAll() {
+		for(Chunk chunk : chunkManager.getChunks()) {
+			unload(chunk);
+		}
+		
+		// In-flight chunks are dropped when they finish
+		pending = new HashChunkMap();
+		
+		hasCenter = false;
+	}
+	
+	private void requestMissing() {
+		for(int i = 0; i < offsets.length; i += 3) {
+			int x = centerX + offsets[i];
+			int y = centerY + offsets[i + 1];
+			int z = centerZ + offsets[i + 2];
+			
+			if(chunkManager.getChunk(x, y, z) != null || pending.get(x, y, z) != null) {
+				continue;
+			}
+			
+			Chunk chunk = new Chunk(chunkManager, x * Chunk.CHUNK_BLOCK_WIDTH, y * Chunk.CHUNK_BLOCK_HEIGHT, z * Chunk.CHUNK_BLOCK_DEPTH);
+			pending.put(x, y, z, chunk);
+			
+			queueDepth.incrementAndGet();
+			executor.execute(new LoadTask(chunk));
+		}
+	}
+	
+	private int addFinished() {
+		int added = 0;
+		
+		LoadTask task;
+		while(added < MAX_CHUNKS_ADDED_PER_UPDATE && (task = finished.poll()) != null) {
+			Chunk chunk = task.chunk;
+			
+			int x = Math.floorDiv(chunk.getCornerX(), Chunk.CHUNK_BLOCK_WIDTH);
+			int y = Math.floorDiv(chunk.getCornerY(), Chunk.CHUNK_BLOCK_HEIGHT);
+			int z = Math.floorDiv(chunk.getCornerZ(), Chunk.CHUNK_BLOCK_DEPTH);
+			
+			if(pending.get(x, y, z) != chunk) {
+				chunk.close();
+				discardedCount++;
+				continue; // requested before a reloadAll
+			}
+			
+			pending.remove(x, y, z);
+			
+			// Half generated, requested again the next time the camera enters another chunk. An Error is not counted, it
+			// went on to the generator thread.
+			if(!task.generated) {
+				chunk.close();
+				
+				if(task.failure != null) {
+					failedCount++;
+					lastFailure = task.failure;
+				}
+				continue;
+			}
+			
+			// The camera moved away while this chunk was generating
+			if(!isInRadius(x, y, z)) {
+				chunk.close();
+				discardedCount++;
+				continue;
+			}
+			
+			long now = System.nanoTime();
+			chunk.setLastVisibleTime(now);
+			chunkManager.addChunk(chunk);
+			
+			long latency = now - task.requestTime;
+			totalLoadLatency += latency;
+			maxLoadLatency = Math.max(maxLoadLatency, latency);
+			loadedCount++;
+			added++;
+		}
+		
+		return added;
+	}
+	
+	private boolean isInRadius(int x, int y, int z) {
+		int dx = x - centerX, dy = y - centerY, dz = z - centerZ;
+		return dx * dx + dy * dy + dz * dz <= radius * radius;
+	}
+	
+	private void evict() {
+		Chunk[] chunks = chunkManager.getChunks();
+		
+		int count = chunks.length;
+		long memory = 0;
+		for(Chunk chunk : chunks) {
+			memory += chunk.getMemoryUsage();
+		}
+		
+		if(count <= maxLoadedChunks && memory <= memoryBudget) {
+			return;
+		}
+		
+		// Only chunks outside the radius are candidates, least recently visible first
+		int candidateCount = 0;
+		for(Chunk chunk : chunks) {
+			if(!isInRadius(Math.floorDiv(chunk.getCornerX(), Chunk.CHUNK_BLOCK_WIDTH),
+					Math.floorDiv(chunk.getCornerY(), Chunk.CHUNK_BLOCK_HEIGHT),
+					Math.floorDiv(chunk.getCornerZ(), Chunk.CHUNK_BLOCK_DEPTH))) {
+				chunks[candidateCount++] = chunk;
+			}
+		}
+		
+		Arrays.sort(chunks, 0, candidateCount, (a, b) -> Long.compare(a.getLastVisibleTime(), b.getLastVisibleTime()));
+		
+		for(int i = 0; i < candidateCount && (count > maxLoadedChunks || memory > memoryBudget); i++) {
+			memory -= chunks[i].getMemoryUsage();
+			count--;
+			
+			unload(chunks[i]);
+		}
+	}
+	
+	private void unload(Chunk chunk) {
+		long start = System.nanoTime();
+		
+		chunkManager.removeChunk(Math.floorDiv(chunk.getCornerX(), Chunk.CHUNK_BLOCK_WIDTH),
+				Math.floorDiv(chunk.getCornerY(), Chunk.CHUNK_BLOCK_HEIGHT),
+				Math.floorDiv(chunk.getCornerZ(), Chunk.CHUNK_BLOCK_DEPTH));
+		chunk.close();
+		
+		totalUnloadTime += System.nanoTime() - start;
+		unloadedCount++;
+	}
+	
+	/**
+	 * Chunks waiting for or being generated.
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+	
+	/**
+	 * Generated chunks waiting to be added on the next update.
+	 */
+	public int getFinishedCount() {
+		return finished.size();
+	}
+	
+	public int getLoadedCount() {
+		return loadedCount;
+	}
+	
+	public int getUnloadedCount() {
+		return unloadedCount;
+	}
+	
+	public int getDiscardedCount() {
+		return discardedCount;
+	}
+	
+	/**
+	 * Chunks whose generator threw, they are closed instead of added.
+	 */
+	public int getFailedCount() {
+		return failedCount;
+	}
+	
+	/**
+	 * What the generator threw for the last failed chunk, null if none failed.
+	 */
+	public Exception getLastFailure() {
+		return lastFailure;
+	}
+	
+	/**
+	 * Average time in ms from requesting a chunk to it being added to the ChunkManager.
+	 */
+	public double getAverageLoadLatency() {
+		return loadedCount == 0 ? 0 : totalLoadLatency / 1e6 / loadedCount;
+	}
+	
+	public double getMaxLoadLatency() {
+		return maxLoadLatency / 1e6;
+	}
+	
+	/**
+	 * Average time in ms spent on the calling thread unloading one chunk.
+	 */
+	public double getAverageUnloadTime() {
+		return unloadedCount == 0 ? 0 : totalUnloadTime / 1e6 / unloadedCount;
+	}
+	
+	/**
+	 * Stops the generator threads and closes the chunks that were being generated. Loaded chunks stay in the
+	 * ChunkManager.
+	 */
+	public void shutdown() {
+		List<Runnable> notStarted = executor.shutdownNow();
+		
+		try {
+			// A generator cannot be interrupted, it has to finish before its chunk is closed
+			if(!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				return;
+			}
+		} catch(InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		
+		// Chunks requested before a reloadAll are no longer pending, closing a chunk twice does nothing
+		for(Runnable task : notStarted) {
+			((LoadTask)task).chunk.close();
+		}
+		
+		LoadTask task;
+		while((task = finished.poll()) != null) {
+			task.chunk.close();
+		}
+		
+		for(Chunk chunk : pending.toArray()) {
+			chunk.close();
+		}
+		
+		pending = new HashChunkMap();
+	}
+	
+	private class LoadTask implements Runnable {
+		private final Chunk chunk;
+		private final long requestTime;
+		
+		// Set once the generator returned or threw an Exception, read after the task is polled from finished
+		private boolean generated;
+		private Exception failure;
+		
+		LoadTask(Chunk chunk) {
+			this.chunk = chunk;
+			this.requestTime = System.nanoTime();
+		}
+		
+		@Override
+		public void run() {
+			try {
+				generator.generate(chunk);
+				generated = true;
+			} catch(Exception exc) {
+				failure = exc;
+			} finally {
+				queueDepth.decrementAndGet();
+				finished.add(this);
+			}
+		}
+	}
+}
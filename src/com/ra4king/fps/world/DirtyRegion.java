@@ -0,0 +1,110 @@
+package com.ra4king.fps.world;
+
+/**
+ * What changed in a chunk since it was last drained: the bounding box, in local block positions with the max exclusive,
+ * of the blocks whose type changed or that border a changed block in a neighboring chunk, and which of the chunk's faces
+ * its changed blocks lie on. Blocks next to a changed block inside the same chunk are not part of the box.
+ *
+ * @author Roi Atalla
+ */
+public class DirtyRegion {
+	private int minX, minY, minZ, maxX, maxY, maxZ;
+	private int faces;
+	
+	public DirtyRegion() {
+		clear();
+	}
+	
+	public boolean isEmpty() {
+		return minX >= maxX;
+	}
+	
+	public boolean isWholeChunk() {
+		return minX == 0 && minY == 0 && minZ == 0 &&
+				maxX == Chunk.CHUNK_BLOCK_WIDTH && maxY == Chunk.CHUNK_BLOCK_HEIGHT && maxZ == Chunk.CHUNK_BLOCK_DEPTH;
+	}
+	
+	public int getMinX() {
+		return minX;
+	}
+	
+	public int getMinY() {
+		return minY;
+	}
+	
+	public int getMinZ() {
+		return minZ;
+	}
+	
+	public int getMaxX() {
+		return maxX;
+	}
+	
+	public int getMaxY() {
+		return maxY;
+	}
+	
+	public int getMaxZ() {
+		return maxZ;
+	}
+	
+	/**
+	 * Chunk.FACE_* bits of the faces changed blocks lie on.
+	 */
+	public int getFaces() {
+		return faces;
+	}
+	
+	/**
+	 * Grows the box to include the given one, local block positions with the max exclusive.
+	 */
+	public void include(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		this.minX = Math.min(this.minX, minX);
+		this.minY = Math.min(this.minY, minY);
+		this.minZ = Math.min(this.minZ, minZ);
+		this.maxX = Math.max(this.maxX, maxX);
+		this.maxY = Math.max(this.maxY, maxY);
+		this.maxZ = Math.max(this.maxZ, maxZ);
+	}
+	
+	public void include(DirtyRegion region) {
+		if(region.isEmpty()) {
+			return;
+		}
+		
+		include(region.minX, region.minY, region.minZ, region.maxX, region.maxY, region.maxZ);
+		faces |= region.faces;
+	}
+	
+	public void includeFaces(int faces) {
+		this.faces |= faces;
+	}
+	
+	public void clear() {
+		minX = minY = minZ = Integer.MAX_VALUE;
+		maxX = maxY = maxZ = Integer.MIN_VALUE;
+		faces = 0;
+	}
+	
+	/**
+	 * Chunk.FACE_* bits of the chunk faces a box touches, local block positions with the max exclusive.
+	 */
+	public static int getFaces(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+		int faces = 0;
+		
+		if(minX == 0)
+			faces |= Chunk.FACE_NEG_X;
+		if(maxX == Chunk.CHUNK_BLOCK_WIDTH)
+			faces |= Chunk.FACE_POS_X;
+		if(minY == 0)
+			faces |= Chunk.FACE_NEG_Y;
+		if(maxY == Chunk.CHUNK_BLOCK_HEIGHT)
+			faces |= Chunk.FACE_POS_Y;
+		if(minZ == 0)
+			faces |= Chunk.FACE_NEG_Z;
+		if(maxZ == Chunk.CHUNK_BLOCK_DEPTH)
+			faces |= Chunk.FACE_POS_Z;
+		
+		return faces;
+	}
+}
@@ -0,0 +1,183 @@
+package com.ra4king.fps.world;
+
+/**
+ * Unbounded ChunkMap: an open-addressing hash table (linear probing) keyed by the chunk position packed into a long.
+ * Each axis gets 21 signed bits, so chunk positions range over [-2^20, 2^20).
+ *
+ * @author Roi Atalla
+ */
+public class HashChunkMap implements ChunkMap {
+	public static final int MIN_COORD = -(1 << 20), MAX_COORD = (1 << 20) - 1;
+	
+	private static final int BITS = 21;
+	private static final long COORD_MASK = (1L << BITS) - 1;
+	
+	// A slot is empty iff its value is null
+	private long[] keys;
+	private Chunk[] values;
+	private int mask;
+	private int size;
+	
+	public HashChunkMap() {
+		this(64);
+	}
+	
+	public HashChunkMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+		keys = new long[capacity];
+		values = new Chunk[capacity];
+		mask = capacity - 1;
+	}
+	
+	public static long pack(int x, int y, int z) {
+		if(x < MIN_COORD || x > MAX_COORD ||
+				y < MIN_COORD || y > MAX_COORD ||
+				z < MIN_COORD || z > MAX_COORD)
+			throw new IllegalArgumentException("Chunk position out of range (" + x + "," + y + "," + z + ").");
+		
+		return (x & COORD_MASK) << (2 * BITS) | (y & COORD_MASK) << BITS | (z & COORD_MASK);
+	}
+	
+	public static int unpackX(long key) {
+		return (int)(key << (64 - 3 * BITS) >> (64 - BITS));
+	}
+	
+	public static int unpackY(long key) {
+		return (int)(key << (64 - 2 * BITS) >> (64 - BITS));
+	}
+	
+	public static int unpackZ(long key) {
+		return (int)(key << (64 - BITS) >> (64 - BITS));
+	}
+	
+	private static int hash(long key) {
+		// MurmurHash3 finalizer
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+	
+	@Override
+	public boolean isBounded() {
+		return false;
+	}
+	
+	@Override
+	public Chunk get(int x, int y, int z) {
+		if(x < MIN_COORD || x > MAX_COORD ||
+				y < MIN_COORD || y > MAX_COORD ||
+				z < MIN_COORD || z > MAX_COORD)
+			return null;
+		
+		return get(pack(x, y, z));
+	}
+	
+	public Chunk get(long key) {
+		for(int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			Chunk value = values[i];
+			if(value == null)
+				return null;
+			if(keys[i] == key)
+				return value;
+		}
+	}
+	
+	@Override
+	public void put(int x, int y, int z, Chunk chunk) {
+		if(chunk == null)
+			throw new IllegalArgumentException("Chunk cannot be null.");
+		
+		long key = pack(x, y, z);
+		
+		int i = hash(key) & mask;
+		while(values[i] != null) {
+			if(keys[i] == key) {
+				values[i] = chunk;
+				return;
+			}
+			
+			i = (i + 1) & mask;
+		}
+		
+		keys[i] = key;
+		values[i] = chunk;
+		
+		// keep the load factor at or below 1/2 so probe sequences stay short
+		if(++size * 2 > values.length)
+			rehash(values.length * 2);
+	}
+	
+	@Override
+	public Chunk remove(int x, int y, int z) {
+		if(x < MIN_COORD || x > MAX_COORD ||
+				y < MIN_COORD || y > MAX_COORD ||
+				z < MIN_COORD || z > MAX_COORD)
+			return null;
+		
+		long key = pack(x, y, z);
+		
+		int i = hash(key) & mask;
+		while(values[i] != null && keys[i] != key)
+			i = (i + 1) & mask;
+		
+		Chunk removed = values[i];
+		if(removed == null)
+			return null;
+		
+		// Backward-shift deletion: pull following entries of the cluster into the hole so lookups never need tombstones
+		int hole = i;
+		for(int j = (hole + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = hash(keys[j]) & mask;
+			if(((j - home) & mask) >= ((j - hole) & mask)) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		
+		values[hole] = null;
+		size--;
+		
+		return removed;
+	}
+	
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Chunk[] oldValues = values;
+		
+		keys = new long[capacity];
+		values = new Chunk[capacity];
+		mask = capacity - 1;
+		
+		for(int a = 0; a < oldValues.length; a++) {
+			if(oldValues[a] != null) {
+				int i = hash(oldKeys[a]) & mask;
+				while(values[i] != null)
+					i = (i + 1) & mask;
+				
+				keys[i] = oldKeys[a];
+				values[i] = oldValues[a];
+			}
+		}
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public Chunk[] toArray() {
+		Chunk[] array = new Chunk[size];
+		int idx = 0;
+		for(Chunk chunk : values) {
+			if(chunk != null)
+				array[idx++] = chunk;
+		}
+		
+		return array;
+	}
+}
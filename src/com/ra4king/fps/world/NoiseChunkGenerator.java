@@ -0,0 +1,99 @@
+package com.ra4king.fps.world;
+
+import com.ra4king.fps.actors.Block.BlockType;
+
+/**
+ * Same turbulence terrain as World's NoiseGenerator, but the noise lattice is hashed from the seed and the
+ * lattice position instead of read from a finite table. Every chunk can be generated on its own, in any order,
+ * on any thread, and the same seed always gives the same world.
+ *
+ * @author Roi Atalla
+ */
+public class NoiseChunkGenerator implements ChunkGenerator {
+	private static final double TURBULENCE_SIZE = 64;
+	private static final float SOLID_THRESHOLD = 0.55f;
+	
+	private final long seed;
+	
+	public NoiseChunkGenerator(long seed) {
+		this.seed = seed;
+	}
+	
+	public long getSeed() {
+		return seed;
+	}
+	
+	@Override
+	public void generate(Chunk chunk) {
+		for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+			for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+				for(int x = 0; x < Chunk.CHUNK_BLOCK_WIDTH; x++) {
+					int bx = chunk.getCornerX() + x;
+					int by = chunk.getCornerY() + y;
+					int bz = chunk.getCornerZ() + z;
+					
+					if(isSolid(bx, by, bz)) {
+						chunk.set(BlockType.SOLID, bx, by, bz);
+					}
+				}
+			}
+		}
+	}
+	
+	public boolean isSolid(int x, int y, int z) {
+		return (float)turbulence(x, y, z, TURBULENCE_SIZE) >= SOLID_THRESHOLD;
+	}
+	
+	private double noise(int x, int y, int z) {
+		long h = seed;
+		h ^= x * 0x9E3779B97F4A7C15L;
+		h ^= y * 0xC2B2AE3D27D4EB4FL;
+		h ^= z * 0x165667B19E3779F9L;
+		
+		// MurmurHash3 finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		
+		return (h >>> 11) * 0x1.0p-53;
+	}
+	
+	private double smoothNoise(double x, double y, double z) {
+		int x1 = (int)Math.floor(x);
+		int y1 = (int)Math.floor(y);
+		int z1 = (int)Math.floor(z);
+		
+		double fractX = x - x1;
+		double fractY = y - y1;
+		double fractZ = z - z1;
+		
+		int x2 = x1 + 1;
+		int y2 = y1 + 1;
+		int z2 = z1 + 1;
+		
+		double value = 0;
+		value += (1 - fractX) * (1 - fractY) * (1 - fractZ) * noise(x1, y1, z1);
+		value += fractX * (1 - fractY) * (1 - fractZ) * noise(x2, y1, z1);
+		value += (1 - fractX) * fractY * (1 - fractZ) * noise(x1, y2, z1);
+		value += fractX * fractY * (1 - fractZ) * noise(x2, y2, z1);
+		value += (1 - fractX) * (1 - fractY) * fractZ * noise(x1, y1, z2);
+		value += fractX * (1 - fractY) * fractZ * noise(x2, y1, z2);
+		value += (1 - fractX) * fractY * fractZ * noise(x1, y2, z2);
+		value += fractX * fractY * fractZ * noise(x2, y2, z2);
+		
+		return value;
+	}
+	
+	private double turbulence(double x, double y, double z, double size) {
+		double value = 0.0, initialSize = size;
+		
+		while(size >= 1) {
+			value += smoothNoise(x / size, y / size, z / size) * size;
+			size /= 2.0;
+		}
+		
+		return 0.5 * value / initialSize;
+	}
+}
@@ -0,0 +1,274 @@
+package com.ra4king.fps.world;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.ra4king.fps.actors.Block.BlockType;
+
+/**
+ * Stores one BlockType per block as a bit-packed index into a small per-chunk palette.
+ * Entries start at 1 bit and are widened (1, 2, 4, 8, 16 bits) as new types are added,
+ * so an entry never straddles two longs.
+ *
+ * @author Roi Atalla
+ */
+public class PalettedBlockStorage {
+	private static final int MAX_BITS_PER_BLOCK = 16;
+	
+	private final int size;
+	
+	private BlockType[] palette;
+	private int paletteSize;
+	
+	private int bitsPerBlock;
+	private int mask;
+	private long[] data;
+	
+	public PalettedBlockStorage(int size, BlockType initialType) {
+		this.size = size;
+		
+		palette = new BlockType[2];
+		palette[0] = initialType;
+		paletteSize = 1;
+		
+		bitsPerBlock = 1;
+		mask = 1;
+		data = new long[(size + 63) >>> 6];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getBitsPerBlock() {
+		return bitsPerBlock;
+	}
+	
+	public int getPaletteSize() {
+		return paletteSize;
+	}
+	
+	public boolean paletteContains(BlockType type) {
+		for(int i = 0; i < paletteSize; i++) {
+			if(palette[i] == type) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	public BlockType get(int index) {
+		return palette[getPaletteIndex(index)];
+	}
+	
+	/**
+	 * @return the previous type at this index
+	 */
+	public BlockType set(int index, BlockType type) {
+		int paletteIndex = getPaletteIndex(index);
+		BlockType old = palette[paletteIndex];
+		
+		if(old != type) {
+			setPaletteIndex(index, findOrAdd(type));
+		}
+		
+		return old;
+	}
+	
+	/**
+	 * Resets every entry to the given type and shrinks back to 1 bit per block.
+	 */
+	public void fill(BlockType type) {
+		palette = new BlockType[2];
+		palette[0] = type;
+		paletteSize = 1;
+		
+		bitsPerBlock = 1;
+		mask = 1;
+		data = new long[(size + 63) >>> 6];
+	}
+	
+	/**
+	 * Approximate heap footprint in bytes: the packed words plus the palette references.
+	 */
+	public long getMemoryUsage() {
+		return data.length * 8L + palette.length * 4L + 32;
+	}
+	
+	/**
+	 * Bytes written by writeTo: the palette followed by the packed words, run-length encoded as (count, word) pairs.
+	 */
+	public int getSerializedSize() {
+		return 4 + paletteSize * 2 + 4 + 4 + countRuns() * (4 + 8);
+	}
+	
+	private int countRuns() {
+		int runs = 0;
+		for(int i = 0; i < data.length; i++) {
+			if(i == 0 || data[i] != data[i - 1]) {
+				runs++;
+			}
+		}
+		return runs;
+	}
+	
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putInt(paletteSize);
+		for(int i = 0; i < paletteSize; i++) {
+			buffer.putShort((short)palette[i].ordinal());
+		}
+		
+		buffer.putInt(bitsPerBlock);
+		buffer.putInt(countRuns());
+		
+		for(int i = 0; i < data.length; ) {
+			long word = data[i];
+			int run = 1;
+			while(i + run < data.length && data[i + run] == word) {
+				run++;
+			}
+			
+			buffer.putInt(run);
+			buffer.putLong(word);
+			
+			i += run;
+		}
+	}
+	
+	/**
+	 * Reads what writeTo wrote, the words are decoded straight out of the buffer into the new storage. Every type, palette
+	 * index and run length is checked.
+	 *
+	 * @throws IOException if the data is truncated or corrupt, the buffer's position is then undefined
+	 */
+	public static PalettedBlockStorage readFrom(ByteBuffer buffer, int size) throws IOException {
+		try {
+			return read(buffer, size);
+		} catch(BufferUnderflowException exc) {
+			throw new IOException("Corrupt block storage: truncated.", exc);
+		}
+	}
+	
+	private static PalettedBlockStorage read(ByteBuffer buffer, int size) throws IOException {
+		PalettedBlockStorage storage = new PalettedBlockStorage(size, BlockType.AIR);
+		
+		int paletteSize = buffer.getInt();
+		if(paletteSize < 1 || paletteSize > 1 << MAX_BITS_PER_BLOCK || buffer.remaining() < paletteSize * 2 + 4) {
+			throw new IOException("Corrupt block storage: " + paletteSize + " types.");
+		}
+		
+		int bitsPerBlock = buffer.getInt(buffer.position() + paletteSize * 2);
+		
+		if(bitsPerBlock < 1 || bitsPerBlock > MAX_BITS_PER_BLOCK || Integer.bitCount(bitsPerBlock) != 1 || paletteSize > 1 << bitsPerBlock) {
+			throw new IOException("Corrupt block storage: " + paletteSize + " types at " + bitsPerBlock + " bits per block.");
+		}
+		
+		storage.palette = new BlockType[Math.max(2, 1 << bitsPerBlock)];
+		for(int i = 0; i < paletteSize; i++) {
+			int ordinal = buffer.getShort();
+			if(ordinal < 0 || ordinal >= BlockType.values.length) {
+				throw new IOException("Corrupt block storage: unknown block type " + ordinal + ".");
+			}
+			
+			BlockType type = BlockType.values[ordinal];
+			if(storage.paletteContains(type)) {
+				throw new IOException("Corrupt block storage: " + type + " is in the palette twice.");
+			}
+			
+			storage.palette[i] = type;
+			storage.paletteSize = i + 1;
+		}
+		
+		buffer.getInt(); // bitsPerBlock
+		storage.bitsPerBlock = bitsPerBlock;
+		storage.mask = (1 << bitsPerBlock) - 1;
+		storage.data = new long[(int)(((long)size * bitsPerBlock + 63) >>> 6)];
+		
+		int runs = buffer.getInt();
+		if(runs < 0) {
+			throw new IOException("Corrupt block storage: " + runs + " runs.");
+		}
+		
+		int i = 0;
+		for(int r = 0; r < runs; r++) {
+			int run = buffer.getInt();
+			long word = buffer.getLong();
+			
+			if(run < 1 || run > storage.data.length - i) {
+				throw new IOException("Corrupt block storage: run of " + run + " words at word " + i + " of " + storage.data.length + ".");
+			}
+			
+			for(int end = i + run; i < end; i++) {
+				storage.data[i] = word;
+			}
+		}
+		
+		if(i != storage.data.length) {
+			throw new IOException("Corrupt block storage: " + i + " of " + storage.data.length + " words.");
+		}
+		
+		// Every index is in the palette when it is full
+		for(int index = 0; index < size && paletteSize < 1 << bitsPerBlock; index++) {
+			if(storage.getPaletteIndex(index) >= paletteSize) {
+				throw new IOException("Corrupt block storage: block " + index + " has palette index " + storage.getPaletteIndex(index) + " of " + paletteSize + ".");
+			}
+		}
+		
+		return storage;
+	}
+	
+	private int getPaletteIndex(int index) {
+		int bitIndex = index * bitsPerBlock;
+		return (int)(data[bitIndex >>> 6] >>> (bitIndex & 63)) & mask;
+	}
+	
+	private void setPaletteIndex(int index, int paletteIndex) {
+		int bitIndex = index * bitsPerBlock;
+		int shift = bitIndex & 63;
+		
+		long word = data[bitIndex >>> 6];
+		word &= ~((long)mask << shift);
+		word |= (long)paletteIndex << shift;
+		data[bitIndex >>> 6] = word;
+	}
+	
+	private int findOrAdd(BlockType type) {
+		for(int i = 0; i < paletteSize; i++) {
+			if(palette[i] == type) {
+				return i;
+			}
+		}
+		
+		if(paletteSize == palette.length) {
+			if(bitsPerBlock == MAX_BITS_PER_BLOCK) {
+				throw new IllegalStateException("Palette is full.");
+			}
+			
+			widen(bitsPerBlock * 2);
+		}
+		
+		palette[paletteSize] = type;
+		return paletteSize++;
+	}
+	
+	private void widen(int newBitsPerBlock) {
+		PalettedBlockStorage wider = new PalettedBlockStorage(size, palette[0]);
+		wider.bitsPerBlock = newBitsPerBlock;
+		wider.mask = (1 << newBitsPerBlock) - 1;
+		wider.data = new long[(int)(((long)size * newBitsPerBlock + 63) >>> 6)];
+		
+		for(int i = 0; i < size; i++) {
+			wider.setPaletteIndex(i, getPaletteIndex(i));
+		}
+		
+		BlockType[] newPalette = new BlockType[1 << newBitsPerBlock];
+		System.arraycopy(palette, 0, newPalette, 0, paletteSize);
+		
+		palette = newPalette;
+		bitsPerBlock = newBitsPerBlock;
+		mask = wider.mask;
+		data = wider.data;
+	}
+}
@@ -0,0 +1,292 @@
+package com.ra4king.fps.world;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.BitSet;
+
+/**
+ * Stores the chunks of one REGION_SIZE^3 region of chunks in a single file. The file starts with a header and a table
+ * holding, for each chunk, the sector its payload starts at and its length in bytes. Payloads are stored in whole
+ * SECTOR_SIZE sectors, a rewritten chunk keeps its sectors if it still fits and moves to free ones otherwise.
+ *
+ * The whole file is memory-mapped: readChunk returns a view straight into the mapping and allocateChunk returns one
+ * for the caller to write the payload into, so chunks are never copied through an intermediate buffer.
+ *
+ * @author Roi Atalla
+ */
+public class RegionFile implements Closeable {
+	public static final int REGION_SIZE = 8;
+	public static final int CHUNKS_PER_REGION = REGION_SIZE * REGION_SIZE * REGION_SIZE;
+	
+	public static final int SECTOR_SIZE = 4096;
+	
+	private static final int MAGIC = 0x52474E31; // "RGN1"
+	private static final int VERSION = 1;
+	
+	private static final int HEADER_SIZE = 16;
+	private static final int TABLE_ENTRY_SIZE = 8;
+	private static final int FIRST_DATA_SECTOR = (HEADER_SIZE + CHUNKS_PER_REGION * TABLE_ENTRY_SIZE + SECTOR_SIZE - 1) / SECTOR_SIZE;
+	
+	private final File file;
+	private final boolean readOnly;
+	
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private MappedByteBuffer mapping;
+	
+	// Sectors holding the header, the table or a chunk payload
+	private final BitSet usedSectors;
+	
+	public RegionFile(File file, boolean readOnly) throws IOException {
+		this.file = file;
+		this.readOnly = readOnly;
+		
+		randomAccessFile = new RandomAccessFile(file, readOnly ? "r" : "rw");
+		channel = randomAccessFile.getChannel();
+		
+		usedSectors = new BitSet();
+		usedSectors.set(0, FIRST_DATA_SECTOR);
+		
+		try {
+			if(channel.size() == 0) {
+				if(readOnly)
+					throw new IOException("Empty region file: " + file);
+				
+				mapping = channel.map(MapMode.READ_WRITE, 0, FIRST_DATA_SECTOR * SECTOR_SIZE);
+				mapping.putInt(0, MAGIC);
+				mapping.putInt(4, VERSION);
+				mapping.putInt(8, REGION_SIZE);
+			} else {
+				mapping = channel.map(readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, 0, channel.size());
+				readHeader();
+			}
+		} catch(IOException exc) {
+			channel.close();
+			throw exc;
+		}
+	}
+	
+	private void readHeader() throws IOException {
+		if(mapping.capacity() < FIRST_DATA_SECTOR * SECTOR_SIZE || mapping.getInt(0) != MAGIC)
+			throw new IOException("Not a region file: " + file);
+		
+		if(mapping.getInt(4) != VERSION || mapping.getInt(8) != REGION_SIZE)
+			throw new IOException("Unsupported region file version " + mapping.getInt(4) + " with region size " + mapping.getInt(8) + ": " + file);
+		
+		int totalSectors = mapping.capacity() / SECTOR_SIZE;
+		
+		for(int i = 0; i < CHUNKS_PER_REGION; i++) {
+			int sector = getSectorOffset(i);
+			if(sector == 0)
+				continue;
+			
+			int length = getLength(i);
+			if(sector < FIRST_DATA_SECTOR || sector >= totalSectors || length < 0 || length > (long)(totalSectors - sector) * SECTOR_SIZE)
+				throw new IOException("Corrupt region file, chunk " + i + " points outside the file: " + file);
+			
+			int sectorCount = getSectorCount(length);
+			
+			// allocateChunk would overwrite the other chunk's payload
+			int used = usedSectors.nextSetBit(sector);
+			if(used != -1 && used < sector + sectorCount)
+				throw new IOException("Corrupt region file, chunk " + i + " overlaps another chunk: " + file);
+			
+			usedSectors.set(sector, sector + sectorCount);
+		}
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+	
+	/**
+	 * In Chunk positions relative to the region.
+	 */
+	public static int getIndex(int x, int y, int z) {
+		return (x * REGION_SIZE + y) * REGION_SIZE + z;
+	}
+	
+	public static int indexToX(int index) {
+		return index / (REGION_SIZE * REGION_SIZE);
+	}
+	
+	public static int indexToY(int index) {
+		return (index / REGION_SIZE) % REGION_SIZE;
+	}
+	
+	public static int indexToZ(int index) {
+		return index % REGION_SIZE;
+	}
+	
+	/**
+	 * In Chunk positions, the region holding a chunk.
+	 */
+	public static int toRegion(int chunkCoord) {
+		return Math.floorDiv(chunkCoord, REGION_SIZE);
+	}
+	
+	public static String getFileName(int regionX, int regionY, int regionZ) {
+		return "r." + regionX + "." + regionY + "." + regionZ + ".region";
+	}
+	
+	/**
+	 * @return the (x,y,z) region position encoded in the file name, or null if it is not a region file name
+	 */
+	public static int[] parseFileName(String name) {
+		String[] parts = name.split("\\.");
+		if(parts.length != 5 || !parts[0].equals("r") || !parts[4].equals("region"))
+			return null;
+		
+		try {
+			return new int[] { Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]) };
+		} catch(NumberFormatException exc) {
+			return null;
+		}
+	}
+	
+	private static int getTableOffset(int index) {
+		if(index < 0 || index >= CHUNKS_PER_REGION)
+			throw new IndexOutOfBoundsException("Invalid chunk index: " + index);
+		
+		return HEADER_SIZE + index * TABLE_ENTRY_SIZE;
+	}
+	
+	private int getSectorOffset(int index) {
+		return mapping.getInt(getTableOffset(index));
+	}
+	
+	private int getLength(int index) {
+		return mapping.getInt(getTableOffset(index) + 4);
+	}
+	
+	private static int getSectorCount(int length) {
+		return (int)Math.max(1, ((long)length + SECTOR_SIZE - 1) / SECTOR_SIZE);
+	}
+	
+	public boolean hasChunk(int index) {
+		return getSectorOffset(index) != 0;
+	}
+	
+	/**
+	 * @return a read-only view of the chunk's payload in the mapping, or null if the chunk was never written
+	 */
+	public ByteBuffer readChunk(int index) {
+		int sector = getSectorOffset(index);
+		if(sector == 0)
+			return null;
+		
+		return slice(sector * SECTOR_SIZE, getLength(index)).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Reserves length bytes for the chunk, replacing its previous payload.
+	 *
+	 * @return a view of the reserved bytes in the mapping, the payload must be written into it before the next call
+	 */
+	public ByteBuffer allocateChunk(int index, int length) throws IOException {
+		if(readOnly)
+			throw new IOException("Region file opened read-only: " + file);
+		
+		int sectorCount = getSectorCount(length);
+		
+		int sector = getSectorOffset(index);
+		if(sector != 0) {
+			int oldSectorCount = getSectorCount(getLength(index));
+			
+			if(sectorCount <= oldSectorCount) {
+				usedSectors.clear(sector + sectorCount, sector + oldSectorCount);
+			} else {
+				usedSectors.clear(sector, sector + oldSectorCount);
+				sector = findFreeSectors(sectorCount);
+			}
+		} else {
+			sector = findFreeSectors(sectorCount);
+		}
+		
+		usedSectors.set(sector, sector + sectorCount);
+		ensureCapacity((long)(sector + sectorCount) * SECTOR_SIZE);
+		
+		mapping.putInt(getTableOffset(index), sector);
+		mapping.putInt(getTableOffset(index) + 4, length);
+		
+		return slice(sector * SECTOR_SIZE, length);
+	}
+	
+	public void removeChunk(int index) throws IOException {
+		if(readOnly)
+			throw new IOException("Region file opened read-only: " + file);
+		
+		int sector = getSectorOffset(index);
+		if(sector == 0)
+			return;
+		
+		usedSectors.clear(sector, sector + getSectorCount(getLength(index)));
+		
+		mapping.putInt(getTableOffset(index), 0);
+		mapping.putInt(getTableOffset(index) + 4, 0);
+	}
+	
+	private int findFreeSectors(int count) {
+		int start = usedSectors.nextClearBit(FIRST_DATA_SECTOR);
+		while(true) {
+			int end = usedSectors.nextSetBit(start);
+			if(end == -1 || end - start >= count)
+				return start;
+			
+			start = usedSectors.nextClearBit(end);
+		}
+	}
+	
+	private void ensureCapacity(long size) throws IOException {
+		if(size <= mapping.capacity())
+			return;
+		
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("Region file too large: " + file);
+		
+		// Remapping is expensive, grow by doubling so that saving a whole region only remaps a few times
+		long newSize = Math.min(Math.max(size, mapping.capacity() * 2L), Integer.MAX_VALUE / SECTOR_SIZE * SECTOR_SIZE);
+		randomAccessFile.setLength(newSize);
+		mapping = channel.map(MapMode.READ_WRITE, 0, newSize);
+	}
+	
+	private ByteBuffer slice(int offset, int length) {
+		ByteBuffer buffer = mapping.duplicate();
+		buffer.position(offset);
+		buffer.limit(offset + length);
+		return buffer.slice();
+	}
+	
+	/**
+	 * @return the size of the file in bytes
+	 */
+	public long getSize() {
+		return mapping.capacity();
+	}
+	
+	/**
+	 * Writes all changes back to the file.
+	 */
+	public void flush() {
+		if(!readOnly)
+			mapping.force();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		flush();
+		
+		// The mapping itself stays valid until it is garbage collected
+		randomAccessFile.close();
+	}
+}
@@ -0,0 +1,128 @@
+package com.ra4king.fps.world;
+
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Walks the blocks a segment passes through in order, one block per next(), with the Amanatides-Woo traversal: the
+ * distance to the next block boundary on each axis is kept and the closest one is crossed. Crossing an edge or corner
+ * exactly visits one of the blocks sharing it before the other. Reusable, start() begins a new segment.
+ *
+ * Block (x,y,z) is centered on (x,y,-z) * Chunk.SPACING in world space, as Chunk and ChunkManager place them.
+ *
+ * @author Roi Atalla
+ */
+public class VoxelTraversal {
+	private int x, y, z;
+	private int stepX, stepY, stepZ;
+	
+	// Blocks left to cross on each axis to reach the block holding the end, so rounding never stops short or overshoots
+	private int stepsX, stepsY, stepsZ;
+	
+	// Segment fraction at which the next boundary on each axis is crossed, and between two boundaries
+	private float tMaxX, tMaxY, tMaxZ;
+	private float tDeltaX, tDeltaY, tDeltaZ;
+	
+	private float t;
+	private boolean started;
+	
+	/**
+	 * In world space.
+	 */
+	public void start(Vector3 from, Vector3 to) {
+		start(from.x(), from.y(), from.z(), to.x(), to.y(), to.z());
+	}
+	
+	/**
+	 * In world space.
+	 */
+	public void start(float fromX, float fromY, float fromZ, float toX, float toY, float toZ) {
+		// In block units, where block x spans [x, x + 1)
+		float u0 = fromX / Chunk.SPACING + 0.5f, u1 = toX / Chunk.SPACING + 0.5f;
+		float v0 = fromY / Chunk.SPACING + 0.5f, v1 = toY / Chunk.SPACING + 0.5f;
+		float w0 = -fromZ / Chunk.SPACING + 0.5f, w1 = -toZ / Chunk.SPACING + 0.5f;
+		
+		x = (int)Math.floor(u0);
+		y = (int)Math.floor(v0);
+		z = (int)Math.floor(w0);
+		
+		float du = u1 - u0, dv = v1 - v0, dw = w1 - w0;
+		
+		stepsX = Math.abs((int)Math.floor(u1) - x);
+		stepsY = Math.abs((int)Math.floor(v1) - y);
+		stepsZ = Math.abs((int)Math.floor(w1) - z);
+		
+		stepX = stepsX == 0 ? 0 : du > 0 ? 1 : -1;
+		stepY = stepsY == 0 ? 0 : dv > 0 ? 1 : -1;
+		stepZ = stepsZ == 0 ? 0 : dw > 0 ? 1 : -1;
+		
+		tDeltaX = stepX == 0 ? Float.POSITIVE_INFINITY : 1 / Math.abs(du);
+		tDeltaY = stepY == 0 ? Float.POSITIVE_INFINITY : 1 / Math.abs(dv);
+		tDeltaZ = stepZ == 0 ? Float.POSITIVE_INFINITY : 1 / Math.abs(dw);
+		
+		tMaxX = stepX == 0 ? Float.POSITIVE_INFINITY : (stepX > 0 ? x + 1 - u0 : u0 - x) * tDeltaX;
+		tMaxY = stepY == 0 ? Float.POSITIVE_INFINITY : (stepY > 0 ? y + 1 - v0 : v0 - y) * tDeltaY;
+		tMaxZ = stepZ == 0 ? Float.POSITIVE_INFINITY : (stepZ > 0 ? z + 1 - w0 : w0 - z) * tDeltaZ;
+		
+		t = 0;
+		started = false;
+	}
+	
+	/**
+	 * Moves to the next block, the first call gives the block holding the start of the segment.
+	 *
+	 * @return false once the segment has no more blocks
+	 */
+	public boolean next() {
+		if(!started) {
+			started = true;
+			return true;
+		}
+		
+		if(stepsX == 0 && stepsY == 0 && stepsZ == 0) {
+			return false;
+		}
+		
+		if(stepsX > 0 && (stepsY == 0 || tMaxX <= tMaxY) && (stepsZ == 0 || tMaxX <= tMaxZ)) {
+			x += stepX;
+			stepsX--;
+			t = tMaxX;
+			tMaxX += tDeltaX;
+		} else if(stepsY > 0 && (stepsZ == 0 || tMaxY <= tMaxZ)) {
+			y += stepY;
+			stepsY--;
+			t = tMaxY;
+			tMaxY += tDeltaY;
+		} else {
+			z += stepZ;
+			stepsZ--;
+			t = tMaxZ;
+			tMaxZ += tDeltaZ;
+		}
+		
+		t = Math.min(t, 1);
+		
+		return true;
+	}
+	
+	/**
+	 * Block position of the current block.
+	 */
+	public int getX() {
+		return x;
+	}
+	
+	public int getY() {
+		return y;
+	}
+	
+	public int getZ() {
+		return z;
+	}
+	
+	/**
+	 * Fraction of the segment at which it enters the current block, 0 for the first block.
+	 */
+	public float getT() {
+		return t;
+	}
+}
@@ -0,0 +1,122 @@
+package com.ra4king.test;
+
+import java.util.Random;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.World;
+
+/**
+ * Compares ChunkManager.setBlock called once per block against the bulk fillBox, replaceInBox and setBlocks.
+ * The times include draining the dirty chunks once afterwards, as a frame would.
+ * Usage: BulkEditBenchmark [chunks per side], defaults to 4 (a 128^3 world)
+ *
+ * @author Roi Atalla
+ */
+public class BulkEditBenchmark {
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		
+		// The first rounds include JIT warmup
+		for(int round = 1; round <= 3; round++) {
+			System.out.println("Round " + round);
+			benchmark(side);
+			System.out.println();
+		}
+	}
+	
+	private static void benchmark(int side) {
+		final int width = side * Chunk.CHUNK_BLOCK_WIDTH;
+		final int height = side * Chunk.CHUNK_BLOCK_HEIGHT;
+		final int depth = side * Chunk.CHUNK_BLOCK_DEPTH;
+		
+		System.out.printf("%dx%dx%d blocks in %d chunks\n", width, height, depth, side * side * side);
+		
+		// Fill the whole world
+		ChunkManager perBlock = createWorld(side);
+		long t0 = System.nanoTime();
+		for(int x = 0; x < width; x++) {
+			for(int y = 0; y < height; y++) {
+				for(int z = 0; z < depth; z++) {
+					perBlock.setBlock(BlockType.SOLID, x, y, z);
+				}
+			}
+		}
+		report("Fill, setBlock", perBlock, t0);
+		
+		ChunkManager bulk = createWorld(side);
+		t0 = System.nanoTime();
+		bulk.fillBox(BlockType.SOLID, 0, 0, 0, width, height, depth);
+		report("Fill, fillBox", bulk, t0);
+		
+		verify(perBlock, bulk);
+		
+		// Carve out a box that cuts through chunk borders
+		int x0 = width / 8, y0 = height / 8, z0 = depth / 8;
+		int x1 = width - x0 + 3, y1 = height - y0 + 5, z1 = depth - z0 + 7;
+		
+		t0 = System.nanoTime();
+		for(int x = x0; x < x1; x++) {
+			for(int y = y0; y < y1; y++) {
+				for(int z = z0; z < z1; z++) {
+					perBlock.setBlock(BlockType.AIR, x, y, z);
+				}
+			}
+		}
+		report("Carve, setBlock", perBlock, t0);
+		
+		t0 = System.nanoTime();
+		bulk.replaceInBox(BlockType.SOLID, BlockType.AIR, x0, y0, z0, x1, y1, z1);
+		report("Carve, replaceInBox", bulk, t0);
+		
+		verify(perBlock, bulk);
+		
+		// Scattered blocks, the same positions for both
+		Random random = new Random(1234);
+		int count = width * height * depth / 8;
+		int[] positions = new int[count * 3];
+		for(int i = 0; i < count; i++) {
+			positions[i * 3] = random.nextInt(width);
+			positions[i * 3 + 1] = random.nextInt(height);
+			positions[i * 3 + 2] = random.nextInt(depth);
+		}
+		
+		t0 = System.nanoTime();
+		for(int i = 0; i < count; i++) {
+			perBlock.setBlock(BlockType.SOLID, positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]);
+		}
+		report("Scatter, setBlock", perBlock, t0);
+		
+		t0 = System.nanoTime();
+		bulk.setBlocks(positions, BlockType.SOLID);
+		report("Scatter, setBlocks", bulk, t0);
+		
+		verify(perBlock, bulk);
+	}
+	
+	private static ChunkManager createWorld(int side) {
+		return new World(side, side, side).getChunkManager();
+	}
+	
+	private static void report(String name, ChunkManager chunkManager, long t0) {
+		int dirtyChunks = chunkManager.drainDirtyChunks();
+		System.out.printf("%-20s %10.3f ms %6d dirty chunks\n", name, (System.nanoTime() - t0) / 1e6, dirtyChunks);
+	}
+	
+	private static void verify(ChunkManager expected, ChunkManager actual) {
+		for(Chunk chunk : expected.getChunks()) {
+			Chunk other = actual.getChunkContaining(chunk.getCornerX(), chunk.getCornerY(), chunk.getCornerZ());
+			
+			if(chunk.getBlockCount() != other.getBlockCount()) {
+				throw new IllegalStateException("Bulk edit produced a different block count.");
+			}
+			
+			for(int i = 0; i < Chunk.TOTAL_BLOCKS; i++) {
+				if(chunk.getType(i) != other.getType(i)) {
+					throw new IllegalStateException("Bulk edit produced different blocks.");
+				}
+			}
+		}
+	}
+}
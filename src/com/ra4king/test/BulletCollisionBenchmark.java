@@ -0,0 +1,119 @@
+package com.ra4king.test;
+
+import java.util.Random;
+
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.VoxelTraversal;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Flies bullets through a random world without changing it and compares two ways of finding the blocks they touch
+ * each frame: ChunkManager.getBlocks around the position at the end of the frame, as BulletManager used to, and walking
+ * the blocks crossed during the frame with VoxelTraversal, as it does now. Reports the time per bullet per frame, and
+ * the frames where the walk crossed a solid block that sampling the end position missed.
+ * Usage: BulletCollisionBenchmark [bullets], defaults to 2000
+ *
+ * @author Roi Atalla
+ */
+public class BulletCollisionBenchmark {
+	private static final int FRAMES = 100;
+	
+	public static void main(String[] args) {
+		int bulletCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		
+		World world = new World(4, 4, 4);
+		world.generateRandomBlocks();
+		
+		ChunkManager chunkManager = world.getChunkManager();
+		
+		System.out.printf("%d bullets, %d frames\n", bulletCount, FRAMES);
+		
+		// The first round includes JIT warmup
+		for(int round = 0; round < 2; round++) {
+			for(float size : new float[] { 1, 10 }) {
+				for(long frameTime : new long[] { 16_000_000L, 33_000_000L }) {
+					run(chunkManager, bulletCount, size, size == 1 ? 500 : 200, frameTime, round == 1);
+				}
+			}
+		}
+	}
+	
+	private static void run(ChunkManager chunkManager, int bulletCount, float size, float speed, long frameTime, boolean print) {
+		final float width = chunkManager.CHUNKS_SIDE_X * Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING;
+		final float radius = 0.5f * size;
+		final float seconds = frameTime / 1e9f;
+		
+		Random random = new Random(1234);
+		
+		float[] positions = new float[bulletCount * 3];
+		float[] velocities = new float[bulletCount * 3];
+		for(int i = 0; i < bulletCount * 3; i += 3) {
+			positions[i] = random.nextFloat() * width;
+			positions[i + 1] = random.nextFloat() * width;
+			positions[i + 2] = -random.nextFloat() * width;
+			
+			Vector3 velocity = new Vector3(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1).normalize().mult(speed);
+			velocities[i] = velocity.x();
+			velocities[i + 1] = velocity.y();
+			velocities[i + 2] = velocity.z();
+		}
+		
+		VoxelTraversal traversal = new VoxelTraversal();
+		Vector3 from = new Vector3(), to = new Vector3();
+		
+		long sampledTime = 0, sweptTime = 0;
+		int sampledHits = 0, sweptHits = 0, missed = 0;
+		
+		for(int frame = 0; frame < FRAMES; frame++) {
+			for(int i = 0; i < bulletCount * 3; i += 3) {
+				from.set(positions[i], positions[i + 1], positions[i + 2]);
+				to.set(velocities[i], velocities[i + 1], velocities[i + 2]).mult(seconds).add(from);
+				
+				long t0 = System.nanoTime();
+				boolean sampled = chunkManager.getBlocks(to, radius).length > 0;
+				long t1 = System.nanoTime();
+				
+				boolean swept = false;
+				traversal.start(from, to);
+				while(traversal.next()) {
+					if(chunkManager.isSolid(traversal.getX(), traversal.getY(), traversal.getZ())) {
+						swept = true;
+						break;
+					}
+				}
+				long t2 = System.nanoTime();
+				
+				sampledTime += t1 - t0;
+				sweptTime += t2 - t1;
+				
+				if(sampled)
+					sampledHits++;
+				if(swept)
+					sweptHits++;
+				if(swept && !sampled)
+					missed++;
+				
+				// Bounce off the edges of the world to stay among the blocks
+				for(int a = 0; a < 3; a++) {
+					float p = a == 2 ? -to.z() : a == 1 ? to.y() : to.x();
+					if(p < 0 || p > width) {
+						velocities[i + a] = -velocities[i + a];
+					}
+				}
+				
+				positions[i] = to.x();
+				positions[i + 1] = to.y();
+				positions[i + 2] = to.z();
+			}
+		}
+		
+		if(print) {
+			int samples = bulletCount * FRAMES;
+			System.out.printf("size %2.0f, %3.0f units/s, %2d ms frames: sampled %7.1f ns, swept %7.1f ns per bullet per frame, "
+					                  + "%d frames hit when sampled, %d when swept, %d missed by sampling\n",
+			                  size, speed, frameTime / 1_000_000, (double)sampledTime / samples, (double)sweptTime / samples, sampledHits, sweptHits, missed);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.ra4king.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import com.ra4king.fps.actors.Bullet;
+import com.ra4king.fps.world.BulletManager;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Fires blasts in random directions through a random world and updates the BulletManager in 16 ms steps until every
+ * bullet and its debris is gone, then updates a full manager of debris flying through air. Reports the update time and
+ * the bytes allocated per frame.
+ * Usage: BulletPoolBenchmark [blasts], defaults to 200
+ *
+ * @author Roi Atalla
+ */
+public class BulletPoolBenchmark {
+	private static final long FRAME_TIME = 16_000_000L;
+	
+	public static void main(String[] args) {
+		int blasts = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		
+		World world = new World(4, 4, 4);
+		world.generateRandomBlocks();
+		
+		BulletManager bulletManager = world.getBulletManager();
+		
+		Random random = new Random(1);
+		float width = 4 * Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING;
+		
+		for(int i = 0; i < blasts; i++) {
+			Vector3 position = new Vector3(random.nextFloat() * width, random.nextFloat() * width, -random.nextFloat() * width);
+			Vector3 velocity = new Vector3(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f).mult(200);
+			bulletManager.addBullet(new Bullet(position, velocity, 10, 100));
+		}
+		
+		run(String.format("%d blasts", blasts), bulletManager, 2000);
+		System.out.printf("  %d blocks destroyed, %d debris dropped while full\n", bulletManager.getBlocksDestroyedCount(), bulletManager.getDroppedCount());
+		
+		// Far above the world, nothing to hit
+		for(int i = 0; i < bulletManager.getCapacity(); i++) {
+			bulletManager.addBullet(random.nextFloat() * width, width * 2 + random.nextFloat() * width, -random.nextFloat() * width,
+			                        random.nextFloat() * 100, random.nextFloat() * 100, random.nextFloat() * 100,
+			                        1, 10, (long)1e12, 0, false, 1, 1, 1);
+		}
+		
+		run(String.format("%d debris", bulletManager.getCapacity()), bulletManager, 500);
+	}
+	
+	private static void run(String name, BulletManager bulletManager, int maxFrames) {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		
+		long totalTime = 0, maxTime = 0;
+		int frames = 0, peakCount = 0;
+		
+		long allocated = threadBean.getThreadAllocatedBytes(threadId);
+		
+		while(bulletManager.getBulletCount() > 0 && frames < maxFrames) {
+			long start = System.nanoTime();
+			bulletManager.update(FRAME_TIME);
+			long time = System.nanoTime() - start;
+			
+			totalTime += time;
+			maxTime = Math.max(maxTime, time);
+			peakCount = Math.max(peakCount, bulletManager.getBulletCount());
+			frames++;
+		}
+		
+		allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+		
+		System.out.printf("%s: %d frames, at most %d bullets, %.3f ms average, %.3f ms max, %.1f KB allocated per frame\n",
+		                  name, frames, peakCount, totalTime / 1e6 / frames, maxTime / 1e6, allocated / 1024.0 / frames);
+		
+		bulletManager.clear();
+	}
+}
@@ -0,0 +1,95 @@
+package com.ra4king.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ra4king.fps.world.BulletManager;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+
+/**
+ * Updates 10k and 100k bullets, a twentieth of them solid, flying through a generated world with 1 up to N threads,
+ * where N is the number of cores but at least 4. Reports the update time per frame and checks that every thread count
+ * ends with exactly the same bullets and destroyed blocks.
+ * Usage: BulletScalingBenchmark [max threads]
+ *
+ * @author Roi Atalla
+ */
+public class BulletScalingBenchmark {
+	private static final int FRAMES = 60;
+	private static final long FRAME_TIME = 16_000_000L;
+	
+	public static void main(String[] args) {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+		
+		System.out.printf("%d cores\n", Runtime.getRuntime().availableProcessors());
+		
+		// JIT warmup
+		run(10_000, 1);
+		run(10_000, 2);
+		
+		for(int bulletCount : new int[] { 10_000, 100_000 }) {
+			long expected = 0;
+			
+			for(int threads = 1; threads <= maxThreads; threads *= 2) {
+				long[] result = run(bulletCount, threads);
+				
+				if(threads == 1) {
+					expected = result[2];
+				}
+				
+				System.out.printf("%6d bullets, %2d threads: %6.2f ms p50, %6.2f ms max per update, %d blocks destroyed, %s\n",
+				                  bulletCount, threads, result[0] / 1e6, result[1] / 1e6, result[3],
+				                  result[2] == expected ? "same result" : "DIFFERENT RESULT");
+			}
+		}
+	}
+	
+	/**
+	 * @return the p50 and max update time, a hash of the bullets left and the blocks destroyed
+	 */
+	private static long[] run(int bulletCount, int threads) {
+		World world = new World(4, 4, 4);
+		ChunkManager chunkManager = world.getChunkManager();
+		
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		for(Chunk chunk : chunkManager.getChunks()) {
+			generator.generate(chunk);
+		}
+		
+		BulletManager bulletManager = new BulletManager(chunkManager, bulletCount * 2, threads, 1234);
+		
+		final float width = 4 * Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING;
+		
+		Random random = new Random(1234);
+		for(int i = 0; i < bulletCount; i++) {
+			boolean isSolid = i % 20 == 0;
+			float speed = isSolid ? 500 : 100;
+			
+			bulletManager.addBullet(random.nextFloat() * width, random.nextFloat() * width, -random.nextFloat() * width,
+			                        (random.nextFloat() * 2 - 1) * speed, (random.nextFloat() * 2 - 1) * speed, (random.nextFloat() * 2 - 1) * speed,
+			                        1, 10, (long)5e9, 0, isSolid, 1, 1, 1);
+		}
+		
+		long[] times = new long[FRAMES];
+		for(int frame = 0; frame < FRAMES; frame++) {
+			long start = System.nanoTime();
+			bulletManager.update(FRAME_TIME);
+			times[frame] = System.nanoTime() - start;
+		}
+		
+		long hash = bulletManager.getBulletCount();
+		float[] positions = bulletManager.getPositions();
+		for(int i = 0; i < bulletManager.getBulletCount() * 3; i++) {
+			hash = hash * 31 + Float.floatToIntBits(positions[i]);
+		}
+		
+		world.close();
+		bulletManager.shutdown();
+		
+		Arrays.sort(times);
+		return new long[] { times[FRAMES / 2], times[FRAMES - 1], hash, bulletManager.getBlocksDestroyedCount() };
+	}
+}
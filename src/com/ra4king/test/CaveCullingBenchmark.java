@@ -0,0 +1,301 @@
+package com.ra4king.test;
+
+import java.util.Random;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.renderers.CaveCuller;
+import com.ra4king.fps.renderers.ChunkBVH;
+import com.ra4king.fps.renderers.ChunkFrustum;
+import com.ra4king.fps.renderers.ChunkRenderer;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkConnectivity;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Checks ChunkConnectivity against a union-find over the air blocks of every chunk of a noise world, then culls the
+ * world from random cameras placed in air, with the frustum alone and with CaveCuller after it. Runs once on plain
+ * noise terrain and once with the lower half of the world solid. For each camera, rays
+ * are cast through the blocks inside the frustum, and every chunk a ray passes through before hitting a solid block
+ * must be kept by CaveCuller.
+ * Usage: CaveCullingBenchmark [chunks per side], defaults to 6
+ *
+ * @author Roi Atalla
+ */
+public class CaveCullingBenchmark {
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		
+		ChunkConnectivity connectivity = new ChunkConnectivity();
+		
+		// A chunk split by a solid wall at x = 16 connects its -X and +X faces to the others but not to each other
+		World wallWorld = new World(1, 1, 1);
+		Chunk wall = wallWorld.getChunkManager().getChunks()[0];
+		wallWorld.getChunkManager().fillBox(BlockType.SOLID, 16, 0, 0, 17, Chunk.CHUNK_BLOCK_HEIGHT, Chunk.CHUNK_BLOCK_DEPTH);
+		long wallConnectivity = connectivity.compute(wall);
+		if(ChunkConnectivity.isConnected(wallConnectivity, Chunk.FACE_NEG_X, Chunk.FACE_POS_X) ||
+				!ChunkConnectivity.isConnected(wallConnectivity, Chunk.FACE_NEG_X, Chunk.FACE_POS_Y) ||
+				!ChunkConnectivity.isConnected(wallConnectivity, Chunk.FACE_POS_Z, Chunk.FACE_POS_X) ||
+				wallConnectivity != referenceConnectivity(wall)) {
+			throw new IllegalStateException("Wall chunk has connectivity " + Long.toBinaryString(wallConnectivity));
+		}
+		
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		
+		System.out.println("Noise terrain:");
+		World world = new World(side, side, side);
+		for(Chunk chunk : world.getChunkManager().getChunks()) {
+			generator.generate(chunk);
+		}
+		run(world, side, connectivity);
+		
+		// Solid below half the height, so most of what is under the cameras is buried
+		System.out.println("Noise terrain over solid ground:");
+		world = new World(side, side, side);
+		for(Chunk chunk : world.getChunkManager().getChunks()) {
+			generator.generate(chunk);
+		}
+		world.getChunkManager().fillBox(BlockType.SOLID, 0, 0, 0,
+		                                side * Chunk.CHUNK_BLOCK_WIDTH, side * Chunk.CHUNK_BLOCK_HEIGHT / 2, side * Chunk.CHUNK_BLOCK_DEPTH);
+		run(world, side, connectivity);
+	}
+	
+	private static void run(World world, int side, ChunkConnectivity connectivity) {
+		ChunkManager chunkManager = world.getChunkManager();
+		chunkManager.drainDirtyChunks();
+		
+		Chunk[] chunks = chunkManager.getChunks();
+		
+		// The first pass warms up the JIT
+		for(Chunk chunk : chunks) {
+			connectivity.compute(chunk);
+		}
+		
+		long connectivityTime = System.nanoTime();
+		for(Chunk chunk : chunks) {
+			chunk.updateConnectivity(connectivity);
+		}
+		connectivityTime = System.nanoTime() - connectivityTime;
+		
+		int fullyConnected = 0;
+		for(Chunk chunk : chunks) {
+			long expected = referenceConnectivity(chunk);
+			if(chunk.getConnectivity() != expected) {
+				throw new IllegalStateException("Chunk at (" + chunk.getCornerX() + "," + chunk.getCornerY() + "," + chunk.getCornerZ() + ") has connectivity " +
+				                                  Long.toBinaryString(chunk.getConnectivity()) + ", expected " + Long.toBinaryString(expected));
+			}
+			
+			if(chunk.getConnectivity() == ChunkConnectivity.ALL_CONNECTED) {
+				fullyConnected++;
+			}
+		}
+		
+		System.out.printf("  %d chunks (%dx%dx%d), connectivity matches, %.1f us per chunk, %d chunks connect every face\n",
+		                  chunks.length, side, side, side, connectivityTime / 1e3 / chunks.length, fullyConnected);
+		
+		ChunkRenderer[] chunkRenderers = new ChunkRenderer[chunks.length];
+		ChunkBVH bvh = new ChunkBVH();
+		for(int i = 0; i < chunks.length; i++) {
+			chunkRenderers[i] = new ChunkRenderer(chunks[i], i);
+			bvh.add(i, chunks[i]);
+		}
+		bvh.build();
+		
+		CaveCuller caveCuller = new CaveCuller(chunkManager, chunkRenderers);
+		
+		final int cameras = 200, rays = 500;
+		
+		int[] slots = new int[chunks.length];
+		boolean[] kept = new boolean[chunks.length], inFrustum = new boolean[chunks.length];
+		ChunkFrustum frustum = new ChunkFrustum();
+		Vector3 camera = new Vector3();
+		
+		Random random = new Random(1234);
+		int width = side * Chunk.CHUNK_BLOCK_WIDTH, height = side * Chunk.CHUNK_BLOCK_HEIGHT, depth = side * Chunk.CHUNK_BLOCK_DEPTH;
+		
+		long frustumTotal = 0, keptTotal = 0, caveTime = 0;
+		int cameraCount = 0;
+		
+		while(cameraCount < cameras) {
+			int bx = random.nextInt(width), by = random.nextInt(height), bz = random.nextInt(depth);
+			if(chunkManager.isSolid(bx, by, bz)) {
+				continue;
+			}
+			
+			cameraCount++;
+			
+			camera.set(bx * Chunk.SPACING, by * Chunk.SPACING, -bz * Chunk.SPACING);
+			
+			float dirX = (float)random.nextGaussian(), dirY = (float)random.nextGaussian(), dirZ = (float)random.nextGaussian();
+			float length = (float)Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+			dirX /= length;
+			dirY /= length;
+			dirZ /= length;
+			
+			final float far = 1000;
+			frustum.setup(ChunkCullingBenchmark.viewProjection(camera.x(), camera.y(), camera.z(), dirX, dirY, dirZ, far));
+			
+			int count = bvh.cull(frustum, slots);
+			for(int i = 0; i < count; i++) {
+				inFrustum[slots[i]] = true;
+			}
+			
+			long start = System.nanoTime();
+			int keptCount = caveCuller.cull(camera, slots, count);
+			caveTime += System.nanoTime() - start;
+			
+			for(int i = 0; i < keptCount; i++) {
+				kept[slots[i]] = true;
+			}
+			
+			frustumTotal += count;
+			keptTotal += keptCount;
+			
+			for(int r = 0; r < rays; r++) {
+				// Within 35 degrees of the view direction, inside the 90 degree frustum
+				float rayX, rayY, rayZ;
+				do {
+					rayX = (float)random.nextGaussian();
+					rayY = (float)random.nextGaussian();
+					rayZ = (float)random.nextGaussian();
+					length = (float)Math.sqrt(rayX * rayX + rayY * rayY + rayZ * rayZ);
+					rayX /= length;
+					rayY /= length;
+					rayZ /= length;
+				} while(rayX * dirX + rayY * dirY + rayZ * dirZ < Math.cos(Math.toRadians(35)));
+				
+				checkRay(chunkManager, bx, by, bz, rayX, rayY, -rayZ, far / Chunk.SPACING, inFrustum, kept);
+			}
+			
+			for(int i = 0; i < chunks.length; i++) {
+				inFrustum[i] = false;
+				kept[i] = false;
+			}
+		}
+		
+		System.out.printf("  %d cameras, %d rays each: every chunk seen by a ray was kept\n", cameras, rays);
+		System.out.printf("  Frustum:      %.1f chunks on average\n", (double)frustumTotal / cameras);
+		System.out.printf("  Cave culling: %.1f chunks on average (%.0f%% removed), %.1f us per frame\n",
+		                  (double)keptTotal / cameras, 100.0 * (frustumTotal - keptTotal) / frustumTotal, caveTime / 1e3 / cameras);
+	}
+	
+	/**
+	 * Walks the blocks along the ray from the center of the block, up to the first solid block, marking the chunks it
+	 * passes through. Block space, z is the chunks' z.
+	 */
+	static void checkRay(ChunkManager chunkManager, int x, int y, int z, float dirX, float dirY, float dirZ, float maxDistance,
+	                             boolean[] inFrustum, boolean[] kept) {
+		int stepX = dirX > 0 ? 1 : -1, stepY = dirY > 0 ? 1 : -1, stepZ = dirZ > 0 ? 1 : -1;
+		
+		// Distance along the ray to the next block boundary on each axis, and between boundaries
+		float deltaX = Math.abs(1 / dirX), deltaY = Math.abs(1 / dirY), deltaZ = Math.abs(1 / dirZ);
+		float nextX = deltaX * 0.5f, nextY = deltaY * 0.5f, nextZ = deltaZ * 0.5f;
+		
+		float distance = 0;
+		
+		while(distance < maxDistance) {
+			Chunk chunk = chunkManager.getChunkContaining(x, y, z);
+			if(chunk == null) {
+				return;
+			}
+			
+			// Past the near plane, within 1 block a ray can cross into a chunk that only touches the frustum behind it
+			int slot = ((ChunkRenderer)chunk.getCallback()).getChunkNumOffset();
+			if(distance > 1 && inFrustum[slot] && !kept[slot]) {
+				throw new IllegalStateException("Block (" + x + "," + y + "," + z + ") is seen by a ray but its chunk was culled.");
+			}
+			
+			if(chunkManager.isSolid(x, y, z)) {
+				return;
+			}
+			
+			if(nextX < nextY && nextX < nextZ) {
+				x += stepX;
+				distance = nextX;
+				nextX += deltaX;
+			} else if(nextY < nextZ) {
+				y += stepY;
+				distance = nextY;
+				nextY += deltaY;
+			} else {
+				z += stepZ;
+				distance = nextZ;
+				nextZ += deltaZ;
+			}
+		}
+	}
+	
+	/**
+	 * Unions every pair of neighboring air blocks and ORs together the faces each set touches.
+	 */
+	private static long referenceConnectivity(Chunk chunk) {
+		int[] parents = new int[Chunk.TOTAL_BLOCKS];
+		for(int i = 0; i < parents.length; i++) {
+			parents[i] = i;
+		}
+		
+		for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+			for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+				for(int x = 0; x < Chunk.CHUNK_BLOCK_WIDTH; x++) {
+					if(chunk.isSolid(x, y, z)) {
+						continue;
+					}
+					
+					int i = Chunk.localToIndex(x, y, z);
+					if(x > 0 && !chunk.isSolid(x - 1, y, z)) {
+						union(parents, i, Chunk.localToIndex(x - 1, y, z));
+					}
+					if(y > 0 && !chunk.isSolid(x, y - 1, z)) {
+						union(parents, i, Chunk.localToIndex(x, y - 1, z));
+					}
+					if(z > 0 && !chunk.isSolid(x, y, z - 1)) {
+						union(parents, i, Chunk.localToIndex(x, y, z - 1));
+					}
+				}
+			}
+		}
+		
+		int[] faces = new int[Chunk.TOTAL_BLOCKS];
+		for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+			for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+				for(int x = 0; x < Chunk.CHUNK_BLOCK_WIDTH; x++) {
+					if(chunk.isSolid(x, y, z)) {
+						continue;
+					}
+					
+					faces[find(parents, Chunk.localToIndex(x, y, z))] |=
+							(x == 0 ? Chunk.FACE_NEG_X : 0) | (x == Chunk.CHUNK_BLOCK_WIDTH - 1 ? Chunk.FACE_POS_X : 0) |
+									(y == 0 ? Chunk.FACE_NEG_Y : 0) | (y == Chunk.CHUNK_BLOCK_HEIGHT - 1 ? Chunk.FACE_POS_Y : 0) |
+									(z == 0 ? Chunk.FACE_NEG_Z : 0) | (z == Chunk.CHUNK_BLOCK_DEPTH - 1 ? Chunk.FACE_POS_Z : 0);
+				}
+			}
+		}
+		
+		long connectivity = 0;
+		for(int set : faces) {
+			for(int from = 0; from < 6; from++) {
+				for(int to = 0; to < 6; to++) {
+					if((set & (1 << from)) != 0 && (set & (1 << to)) != 0) {
+						connectivity |= 1L << (from * 6 + to);
+					}
+				}
+			}
+		}
+		
+		return connectivity;
+	}
+	
+	private static int find(int[] parents, int i) {
+		while(parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+	
+	private static void union(int[] parents, int a, int b) {
+		parents[find(parents, a)] = find(parents, b);
+	}
+}
@@ -0,0 +1,169 @@
+package com.ra4king.test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ra4king.fps.renderers.ChunkBVH;
+import com.ra4king.fps.renderers.ChunkFrustum;
+import com.ra4king.fps.world.Chunk;
+
+/**
+ * Culls a grid of chunk boxes from random cameras with ChunkBVH and by testing every box, checks both find exactly
+ * the same chunks and compares their time per frame.
+ * Usage: ChunkCullingBenchmark [chunks per side], defaults to 24 (13824 chunks)
+ *
+ * @author Roi Atalla
+ */
+public class ChunkCullingBenchmark {
+	private static final float CHUNK_WIDTH = Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING;
+	private static final float CHUNK_HEIGHT = Chunk.CHUNK_BLOCK_HEIGHT * Chunk.SPACING;
+	private static final float CHUNK_DEPTH = Chunk.CHUNK_BLOCK_DEPTH * Chunk.SPACING;
+	
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 24;
+		int chunks = side * side * side;
+		
+		// Boxes laid out like WorldRenderer's chunks, z going away from the origin into negative z
+		float[] bounds = new float[chunks * 6];
+		for(int i = 0; i < chunks; i++) {
+			int x = i % side, y = (i / side) % side, z = i / (side * side);
+			
+			bounds[i * 6] = x * CHUNK_WIDTH;
+			bounds[i * 6 + 1] = y * CHUNK_HEIGHT;
+			bounds[i * 6 + 2] = -(z + 1) * CHUNK_DEPTH;
+			bounds[i * 6 + 3] = (x + 1) * CHUNK_WIDTH;
+			bounds[i * 6 + 4] = (y + 1) * CHUNK_HEIGHT;
+			bounds[i * 6 + 5] = -z * CHUNK_DEPTH;
+		}
+		
+		ChunkBVH bvh = new ChunkBVH();
+		
+		long buildTime = System.nanoTime();
+		for(int i = 0; i < chunks; i++) {
+			bvh.add(i, bounds[i * 6], bounds[i * 6 + 1], bounds[i * 6 + 2], bounds[i * 6 + 3], bounds[i * 6 + 4], bounds[i * 6 + 5]);
+		}
+		bvh.build();
+		buildTime = System.nanoTime() - buildTime;
+		
+		System.out.printf("%d chunks (%dx%dx%d), %d nodes, built in %.3f ms\n", chunks, side, side, side, bvh.getNodeCount(), buildTime / 1e6);
+		
+		final int cameras = 64;
+		
+		ChunkFrustum[] frustums = new ChunkFrustum[cameras];
+		Random random = new Random(1234);
+		float extent = side * CHUNK_WIDTH;
+		
+		for(int i = 0; i < cameras; i++) {
+			// Half inside the grid, half around it
+			float spread = i % 2 == 0 ? 1 : 2;
+			float eyeX = (random.nextFloat() * spread - (spread - 1) / 2) * extent;
+			float eyeY = (random.nextFloat() * spread - (spread - 1) / 2) * extent;
+			float eyeZ = -(random.nextFloat() * spread - (spread - 1) / 2) * extent;
+			
+			frustums[i] = new ChunkFrustum();
+			frustums[i].setup(viewProjection(eyeX, eyeY, eyeZ, (float)random.nextGaussian(), (float)random.nextGaussian(), (float)random.nextGaussian(), 1000));
+		}
+		
+		int[] visible = new int[chunks], expected = new int[chunks];
+		long visibleTotal = 0;
+		
+		for(ChunkFrustum frustum : frustums) {
+			int count = bvh.cull(frustum, visible);
+			int expectedCount = bruteForce(frustum, bounds, chunks, expected);
+			
+			Arrays.sort(visible, 0, count);
+			if(count != expectedCount || !Arrays.equals(Arrays.copyOf(visible, count), Arrays.copyOf(expected, expectedCount))) {
+				throw new IllegalStateException("BVH found " + count + " chunks, testing every chunk found " + expectedCount);
+			}
+			
+			visibleTotal += count;
+		}
+		
+		System.out.printf("Culling matches testing every chunk, %.0f visible on average\n", (double)visibleTotal / cameras);
+		
+		final int rounds = 200;
+		
+		for(int pass = 0; pass < 2; pass++) {
+			int sink = 0;
+			
+			long bruteForceTime = System.nanoTime();
+			for(int r = 0; r < rounds; r++) {
+				for(ChunkFrustum frustum : frustums) {
+					sink += bruteForce(frustum, bounds, chunks, expected);
+				}
+			}
+			bruteForceTime = System.nanoTime() - bruteForceTime;
+			
+			long bvhTime = System.nanoTime();
+			for(int r = 0; r < rounds; r++) {
+				for(ChunkFrustum frustum : frustums) {
+					sink += bvh.cull(frustum, visible);
+				}
+			}
+			bvhTime = System.nanoTime() - bvhTime;
+			
+			// The first pass warms up the JIT
+			if(pass == 1) {
+				System.out.printf("Every chunk: %8.1f us/frame\n", bruteForceTime / 1e3 / (rounds * cameras));
+				System.out.printf("BVH:         %8.1f us/frame (%.1fx)  [%d]\n", bvhTime / 1e3 / (rounds * cameras), (double)bruteForceTime / bvhTime, sink);
+			}
+		}
+	}
+	
+	private static int bruteForce(ChunkFrustum frustum, float[] bounds, int chunks, int[] visible) {
+		int count = 0;
+		for(int i = 0; i < chunks; i++) {
+			int b = i * 6;
+			if(frustum.isBoxInside(bounds[b], bounds[b + 1], bounds[b + 2], bounds[b + 3], bounds[b + 4], bounds[b + 5])) {
+				visible[count++] = i;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * A column-major 90 degree, 16:9 perspective projection times a view looking from the eye along the direction.
+	 */
+	static FloatBuffer viewProjection(float eyeX, float eyeY, float eyeZ, float dirX, float dirY, float dirZ, float far) {
+		final float near = 1, aspect = 16f / 9f, f = 1;
+		
+		float[] projection = new float[16];
+		projection[0] = f / aspect;
+		projection[5] = f;
+		projection[10] = (far + near) / (near - far);
+		projection[11] = -1;
+		projection[14] = 2 * far * near / (near - far);
+		
+		float length = (float)Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+		float fx = dirX / length, fy = dirY / length, fz = dirZ / length;
+		
+		// side = forward x up(0, 1, 0), up = side x forward
+		float sx = -fz, sy = 0, sz = fx;
+		length = (float)Math.sqrt(sx * sx + sz * sz);
+		sx /= length;
+		sz /= length;
+		
+		float ux = sy * fz - sz * fy, uy = sz * fx - sx * fz, uz = sx * fy - sy * fx;
+		
+		float[] view = {
+				sx, ux, -fx, 0,
+				sy, uy, -fy, 0,
+				sz, uz, -fz, 0,
+				-(sx * eyeX + sy * eyeY + sz * eyeZ), -(ux * eyeX + uy * eyeY + uz * eyeZ), fx * eyeX + fy * eyeY + fz * eyeZ, 1
+		};
+		
+		float[] viewProjection = new float[16];
+		for(int column = 0; column < 4; column++) {
+			for(int row = 0; row < 4; row++) {
+				float sum = 0;
+				for(int k = 0; k < 4; k++) {
+					sum += projection[k * 4 + row] * view[column * 4 + k];
+				}
+				viewProjection[column * 4 + row] = sum;
+			}
+		}
+		
+		return FloatBuffer.wrap(viewProjection);
+	}
+}
@@ -0,0 +1,85 @@
+package com.ra4king.test;
+
+import com.ra4king.fps.actors.Block;
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.World;
+
+import net.indiespot.struct.cp.Struct;
+
+/**
+ * Compares the paletted chunk storage against the old layout of one Block struct per voxel.
+ * Usage: ChunkMemoryBenchmark [chunks per side]
+ *
+ * @author Roi Atalla
+ */
+public class ChunkMemoryBenchmark {
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		
+		World world = new World(side, side, side);
+		world.generateRandomBlocks();
+		
+		Chunk[] chunks = world.getChunkManager().getChunks();
+		
+		// Old layout: every voxel is a 16 byte Block struct holding its absolute coords and type
+		long t0 = System.nanoTime();
+		Block[][] structBlocks = new Block[chunks.length][];
+		for(int c = 0; c < chunks.length; c++) {
+			Chunk chunk = chunks[c];
+			structBlocks[c] = Struct.mallocArray(Block.class, Chunk.TOTAL_BLOCKS);
+			for(int i = 0; i < Chunk.TOTAL_BLOCKS; i++) {
+				structBlocks[c][i].init(chunk, Chunk.indexToLocalX(i), Chunk.indexToLocalY(i), Chunk.indexToLocalZ(i), chunk.getType(i));
+			}
+		}
+		long structInitTime = System.nanoTime() - t0;
+		long structBytes = (long)chunks.length * Chunk.TOTAL_BLOCKS * Struct.sizeof(Block.class);
+		
+		long palettedBytes = 0;
+		for(Chunk chunk : chunks) {
+			palettedBytes += chunk.getMemoryUsage();
+		}
+		
+		final int rounds = 20;
+		
+		int solid = 0;
+		t0 = System.nanoTime();
+		for(int r = 0; r < rounds; r++) {
+			for(Block[] blocks : structBlocks) {
+				for(Block block : blocks) {
+					if(block.getType() != BlockType.AIR) {
+						solid++;
+					}
+				}
+			}
+		}
+		long structReadTime = System.nanoTime() - t0;
+		
+		t0 = System.nanoTime();
+		for(int r = 0; r < rounds; r++) {
+			for(Chunk chunk : chunks) {
+				for(int i = 0; i < Chunk.TOTAL_BLOCKS; i++) {
+					if(chunk.getType(i) != BlockType.AIR) {
+						solid--;
+					}
+				}
+			}
+		}
+		long palettedReadTime = System.nanoTime() - t0;
+		
+		if(solid != 0) {
+			throw new IllegalStateException("Layouts disagree on the number of solid blocks.");
+		}
+		
+		long reads = (long)rounds * chunks.length * Chunk.TOTAL_BLOCKS;
+		
+		System.out.printf("%d chunks (%dx%dx%d)\n", chunks.length, side, side, side);
+		System.out.printf("Block structs: %8.3f MB, init %.3f ms, %.2f ns/read\n", structBytes / 1e6, structInitTime / 1e6, (double)structReadTime / reads);
+		System.out.printf("Paletted:      %8.3f MB, %.2f ns/read\n", palettedBytes / 1e6, (double)palettedReadTime / reads);
+		System.out.printf("Reduction:     %.1fx\n", (double)structBytes / palettedBytes);
+		
+		for(Block[] blocks : structBlocks) {
+			Struct.free(blocks);
+		}
+	}
+}
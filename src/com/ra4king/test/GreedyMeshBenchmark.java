@@ -0,0 +1,152 @@
+package com.ra4king.test;
+
+import java.nio.IntBuffer;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.renderers.BlockInstance;
+import com.ra4king.fps.renderers.GreedyMesher;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+
+/**
+ * Compares the triangles submitted and bytes uploaded for noise terrain by the instanced path, 12 triangles per surface
+ * block, against the greedy meshes. Checks that the meshes cover every visible face exactly once and that every surface
+ * block survives packing into a BlockInstance.
+ * Usage: GreedyMeshBenchmark [chunks per side], defaults to 4
+ *
+ * @author Roi Atalla
+ */
+public class GreedyMeshBenchmark {
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		
+		World world = new World(side, side, side);
+		
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		for(Chunk chunk : world.getChunkManager().getChunks()) {
+			generator.generate(chunk);
+		}
+		
+		Chunk[] chunks = world.getChunkManager().getChunks();
+		
+		System.out.printf("%d chunks (%dx%dx%d)\n", chunks.length, side, side, side);
+		
+		GreedyMesher mesher = new GreedyMesher();
+		
+		// The worst case, a 3D checkerboard, has 3 visible faces per block
+		IntBuffer vertices = IntBuffer.allocate(Chunk.TOTAL_BLOCKS * 3 * GreedyMesher.VERTICES_PER_QUAD);
+		
+		long surfaceBlocks = 0, visibleFaces = 0;
+		for(Chunk chunk : chunks) {
+			for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+				for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+					int surface = chunk.getSurfaceRow(y, z);
+					surfaceBlocks += Integer.bitCount(surface);
+					
+					for(; surface != 0; surface &= surface - 1) {
+						verifyInstance(chunk, Integer.numberOfTrailingZeros(surface), y, z);
+					}
+					
+					for(int face = Chunk.FACE_NEG_X; face <= Chunk.FACE_POS_Z; face <<= 1) {
+						visibleFaces += Integer.bitCount(chunk.getFaceRow(y, z, face));
+					}
+				}
+			}
+		}
+		
+		long quads = 0, area = 0;
+		for(Chunk chunk : chunks) {
+			vertices.clear();
+			int count = mesher.mesh(chunk, vertices);
+			quads += count;
+			
+			area += getArea(vertices, count);
+		}
+		
+		if(area != visibleFaces) {
+			throw new IllegalStateException("The meshes cover " + area + " faces, " + visibleFaces + " are visible.");
+		}
+		
+		long instancedTriangles = surfaceBlocks * 6 * 2;
+		long perFaceTriangles = visibleFaces * 2;
+		long greedyTriangles = quads * 2;
+		
+		System.out.printf("Instanced cubes: %10d triangles (%d surface blocks)\n", instancedTriangles, surfaceBlocks);
+		System.out.printf("Visible faces:   %10d triangles (%.1fx fewer)\n", perFaceTriangles, (double)instancedTriangles / perFaceTriangles);
+		System.out.printf("Greedy meshes:   %10d triangles (%.1fx fewer)\n", greedyTriangles, (double)instancedTriangles / greedyTriangles);
+		System.out.println();
+		
+		// Before packing, instances were 3 absolute int coordinates and an int type
+		System.out.printf("Instances, 16 bytes:     %8.3f MB\n", surfaceBlocks * 16 / 1e6);
+		System.out.printf("Instances, packed:       %8.3f MB\n", surfaceBlocks * BlockInstance.SIZE / 1e6);
+		System.out.printf("Greedy meshes:           %8.3f MB\n", quads * GreedyMesher.VERTICES_PER_QUAD * 4 / 1e6);
+		System.out.println();
+		
+		// The first rounds include JIT warmup
+		for(int round = 1; round <= 5; round++) {
+			long t0 = System.nanoTime();
+			for(Chunk chunk : chunks) {
+				vertices.clear();
+				mesher.mesh(chunk, vertices);
+			}
+			long time = System.nanoTime() - t0;
+			
+			System.out.printf("Round %d: meshed in %.3f ms, %.1f us per chunk\n", round, time / 1e6, time / 1e3 / chunks.length);
+		}
+	}
+	
+	private static void verifyInstance(Chunk chunk, int x, int y, int z) {
+		BlockType type = chunk.getType(Chunk.localToIndex(x, y, z));
+		int faces = chunk.getVisibleFaces(x, y, z);
+		
+		int instance = BlockInstance.encode(x, y, z, type, faces);
+		if(BlockInstance.getX(instance) != x || BlockInstance.getY(instance) != y || BlockInstance.getZ(instance) != z ||
+				BlockInstance.getType(instance) != type || BlockInstance.getFaces(instance) != faces) {
+			throw new IllegalStateException("BlockInstance does not round-trip (" + x + "," + y + "," + z + ") " + type + " " + faces);
+		}
+		
+		// Changing one field must leave the others alone
+		int changed = BlockInstance.setFaces(BlockInstance.setType(instance, BlockType.AIR), ~faces & Chunk.ALL_FACES);
+		if(BlockInstance.getX(changed) != x || BlockInstance.getY(changed) != y || BlockInstance.getZ(changed) != z ||
+				BlockInstance.getType(changed) != BlockType.AIR || BlockInstance.getFaces(changed) != (~faces & Chunk.ALL_FACES)) {
+			throw new IllegalStateException("BlockInstance setters changed other fields.");
+		}
+	}
+	
+	/**
+	 * Checks that each quad lies on its face's plane and adds up their areas in block faces.
+	 */
+	private static long getArea(IntBuffer vertices, int quads) {
+		long area = 0;
+		
+		for(int q = 0; q < quads; q++) {
+			int[] min = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+			int[] max = { Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+			int face = GreedyMesher.getVertexFace(vertices.get(q * GreedyMesher.VERTICES_PER_QUAD));
+			
+			for(int v = 0; v < GreedyMesher.VERTICES_PER_QUAD; v++) {
+				int vertex = vertices.get(q * GreedyMesher.VERTICES_PER_QUAD + v);
+				
+				if(GreedyMesher.getVertexFace(vertex) != face) {
+					throw new IllegalStateException("Quad " + q + " mixes faces.");
+				}
+				
+				int[] position = { GreedyMesher.getVertexX(vertex), GreedyMesher.getVertexY(vertex), GreedyMesher.getVertexZ(vertex) };
+				for(int a = 0; a < 3; a++) {
+					min[a] = Math.min(min[a], position[a]);
+					max[a] = Math.max(max[a], position[a]);
+				}
+			}
+			
+			int axis = face / 2;
+			if(min[axis] != max[axis]) {
+				throw new IllegalStateException("Quad " + q + " does not lie on its face's plane.");
+			}
+			
+			area += (long)(max[(axis + 1) % 3] - min[(axis + 1) % 3]) * (max[(axis + 2) % 3] - min[(axis + 2) % 3]);
+		}
+		
+		return area;
+	}
+}
@@ -0,0 +1,253 @@
+package com.ra4king.test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.renderers.BlockInstance;
+import com.ra4king.fps.renderers.ChunkBatchRenderer;
+import com.ra4king.fps.renderers.ChunkFrustum;
+import com.ra4king.fps.renderers.ChunkRenderer;
+import com.ra4king.fps.renderers.GreedyMesher;
+import com.ra4king.fps.renderers.RecordingRenderDevice;
+import com.ra4king.fps.renderers.RecordingRenderDevice.DrawCall;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Runs frames of the chunk pass against a RecordingRenderDevice, without a window or GPU, with and without greedy
+ * meshing. Each frame's draws are checked against the chunks: one draw per chunk rendered, and for cubes the instances
+ * each draw reads from the storage buffer are exactly the chunk's surface blocks. Reports CPU time, draws, state
+ * changes and bytes copied per frame. Then fills an unbounded world after its renderer was created, so the renderer's
+ * chunk slots grow, and checks its draws the same way.
+ * Usage: HeadlessRenderBenchmark [chunks per side], defaults to 4
+ *
+ * @author Roi Atalla
+ */
+public class HeadlessRenderBenchmark {
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		
+		World world = new World(side, side, side);
+		ChunkManager chunkManager = world.getChunkManager();
+		
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		for(Chunk chunk : chunkManager.getChunks()) {
+			generator.generate(chunk);
+		}
+		
+		RecordingRenderDevice device = new RecordingRenderDevice();
+		ChunkBatchRenderer renderer = new ChunkBatchRenderer(device, world);
+		
+		// There is no view to rasterize occluders for, see OcclusionBufferBenchmark
+		renderer.setOcclusionCulling(false);
+		
+		// Planes that were never set up, every chunk is inside
+		ChunkFrustum culling = new ChunkFrustum();
+		Vector3 camera = new Vector3(-Chunk.BLOCK_SIZE, -Chunk.BLOCK_SIZE, Chunk.BLOCK_SIZE).mult(5);
+		
+		System.out.printf("%d chunks (%dx%dx%d)\n", chunkManager.getChunkCount(), side, side, side);
+		
+		Random random = new Random(1234);
+		int width = side * Chunk.CHUNK_BLOCK_WIDTH, height = side * Chunk.CHUNK_BLOCK_HEIGHT, depth = side * Chunk.CHUNK_BLOCK_DEPTH;
+		
+		for(boolean greedyMeshing : new boolean[] { false, true }) {
+			renderer.setGreedyMeshing(greedyMeshing);
+			
+			// Fills every slot
+			device.reset();
+			renderFrame(renderer, culling, camera, device, chunkManager);
+			System.out.printf("%s, first frame: %.1f KB copied\n", greedyMeshing ? "Greedy meshing" : "Cubes", device.getCopyBytes() / 1024.0);
+			
+			for(int edits : new int[] { 0, 10, 100 }) {
+				final int frames = 50;
+				
+				long time = 0;
+				int draws = 0, stateChanges = 0;
+				long copyBytes = 0;
+				
+				for(int frame = 0; frame < frames; frame++) {
+					for(int e = 0; e < edits; e++) {
+						chunkManager.setBlock(random.nextBoolean() ? BlockType.AIR : BlockType.SOLID, random.nextInt(width), random.nextInt(height), random.nextInt(depth));
+					}
+					
+					device.reset();
+					time += renderFrame(renderer, culling, camera, device, chunkManager);
+					
+					draws += device.getDrawCalls().size();
+					stateChanges += device.getStateChangeCount();
+					copyBytes += device.getCopyBytes();
+				}
+				
+				System.out.printf("  %3d edits/frame: %6.3f ms/frame, %d draws, %d state changes, %.1f KB copied per frame\n",
+				                  edits, time / 1e6 / frames, draws / frames, stateChanges / frames, copyBytes / 1024.0 / frames);
+			}
+		}
+		
+		checkGrowingWorld(chunkManager, generator, culling, camera);
+	}
+	
+	/**
+	 * Adds the chunks of the bounded world to an empty unbounded one in halves, drawing with cubes after the first half
+	 * and with greedy meshes, enabled before adding it, after the second, then with cubes again.
+	 */
+	private static void checkGrowingWorld(ChunkManager chunkManager, NoiseChunkGenerator generator, ChunkFrustum culling, Vector3 camera) {
+		World world = new World(0, 0, 0, true);
+		ChunkManager unboundedManager = world.getChunkManager();
+		
+		RecordingRenderDevice device = new RecordingRenderDevice();
+		ChunkBatchRenderer renderer = new ChunkBatchRenderer(device, world);
+		renderer.setOcclusionCulling(false);
+		
+		Chunk[] chunks = chunkManager.getChunks();
+		int sectionsRendered = 0;
+		
+		for(int half = 0; half < 3; half++) {
+			// Before adding, so the mesh buffers grow as well
+			renderer.setGreedyMeshing(half == 1);
+			
+			for(int i = half * chunks.length / 2; i < Math.min(half + 1, 2) * chunks.length / 2; i++) {
+				Chunk chunk = new Chunk(unboundedManager, chunks[i].getCornerX(), chunks[i].getCornerY(), chunks[i].getCornerZ());
+				generator.generate(chunk);
+				unboundedManager.addChunk(chunk);
+			}
+			
+			device.reset();
+			renderFrame(renderer, culling, camera, device, unboundedManager);
+			sectionsRendered += renderer.getSectionsRenderedCount();
+		}
+		
+		System.out.printf("Unbounded world filled after its renderer: %d chunks, %d sections rendered over 3 frames\n",
+		                  unboundedManager.getChunkCount(), sectionsRendered);
+		
+		world.close();
+	}
+	
+	/**
+	 * @return the nanoseconds spent updating, preparing and drawing
+	 */
+	private static long renderFrame(ChunkBatchRenderer renderer, ChunkFrustum culling, Vector3 camera, RecordingRenderDevice device, ChunkManager chunkManager) {
+		long start = System.nanoTime();
+		
+		renderer.update();
+		renderer.prepare(culling, null, camera);
+		renderer.draw();
+		
+		long time = System.nanoTime() - start;
+		
+		verify(renderer, device, chunkManager);
+		
+		return time;
+	}
+	
+	private static void verify(ChunkBatchRenderer renderer, RecordingRenderDevice device, ChunkManager chunkManager) {
+		if(device.getMultiDrawCallCount() != 1 || device.getDrawCalls().size() != renderer.getSectionsRenderedCount()) {
+			throw new IllegalStateException(device.getDrawCalls().size() + " draws in " + device.getMultiDrawCallCount() + " calls, " +
+			                                  renderer.getSectionsRenderedCount() + " sections rendered.");
+		}
+		
+		if(device.getCopyBytes() < renderer.getChunkUploadBytes()) {
+			throw new IllegalStateException(device.getCopyBytes() + " bytes copied, " + renderer.getChunkUploadBytes() + " bytes uploaded.");
+		}
+		
+		// Slots are handed out in the order the chunks were loaded, the draws identify their chunk by its slot
+		ChunkRenderer[] chunkRenderers = new ChunkRenderer[chunkManager.getChunkCount()];
+		for(Chunk chunk : chunkManager.getChunks()) {
+			ChunkRenderer chunkRenderer = (ChunkRenderer)chunk.getCallback();
+			chunkRenderers[chunkRenderer.getChunkNumOffset()] = chunkRenderer;
+		}
+		
+		// A chunk is drawn in up to one draw per section, the mesh draws of a chunk add up to at most its quads and to all of
+		// them when every non-empty section was drawn
+		int[] chunkDraws = new int[chunkRenderers.length];
+		int[] chunkQuads = new int[chunkRenderers.length];
+		
+		for(DrawCall draw : device.getDrawCalls()) {
+			if(renderer.isGreedyMeshing()) {
+				if(draw.instanceCount != 1 || draw.count % GreedyMesher.INDICES_PER_QUAD != 0) {
+					throw new IllegalStateException("Mesh draw of " + draw.count + " indices and " + draw.instanceCount + " instances.");
+				}
+				
+				verifyCorner(chunkRenderers[draw.baseInstance], device.getBufferContents(device.getAttributeBuffer(draw.vertexArray, 1)), draw.baseInstance);
+				
+				chunkDraws[draw.baseInstance]++;
+				chunkQuads[draw.baseInstance] += draw.count / GreedyMesher.INDICES_PER_QUAD;
+			} else {
+				verifyCorner(chunkRenderers[draw.baseVertex / ChunkRenderer.CUBE_VERTEX_COUNT],
+				             device.getBufferContents(device.getAttributeBuffer(draw.vertexArray, 3)), draw.baseVertex);
+				verifyInstances(chunkRenderers[draw.baseVertex / ChunkRenderer.CUBE_VERTEX_COUNT], draw,
+				                device.getBufferContents(device.getAttributeBuffer(draw.vertexArray, 4)));
+			}
+		}
+		
+		if(renderer.isGreedyMeshing()) {
+			for(int slot = 0; slot < chunkRenderers.length; slot++) {
+				ChunkRenderer chunkRenderer = chunkRenderers[slot];
+				
+				int meshedSections = 0;
+				for(int i = 0; i < chunkRenderer.getSectionCount(); i++) {
+					if(chunkRenderer.getSection(i).getLastQuadRenderCount() != 0) {
+						meshedSections++;
+					}
+				}
+				
+				if(chunkDraws[slot] > meshedSections || chunkQuads[slot] > chunkRenderer.getLastQuadRenderCount() ||
+						(chunkDraws[slot] == meshedSections && chunkQuads[slot] != chunkRenderer.getLastQuadRenderCount())) {
+					throw new IllegalStateException(chunkDraws[slot] + " mesh draws of " + chunkQuads[slot] + " quads, the chunk has " +
+					                                  meshedSections + " meshed sections of " + chunkRenderer.getLastQuadRenderCount() + " quads.");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The chunk corner the draw reads, an ivec3 per vertex or per instance, has to be its chunk's.
+	 */
+	private static void verifyCorner(ChunkRenderer chunkRenderer, ByteBuffer corners, int index) {
+		Chunk chunk = chunkRenderer.getChunk();
+		
+		if(corners.getInt(index * 12) != chunk.getCornerX() || corners.getInt(index * 12 + 4) != chunk.getCornerY() ||
+				corners.getInt(index * 12 + 8) != chunk.getCornerZ()) {
+			throw new IllegalStateException("Draw reads a wrong corner for the chunk at (" + chunk.getCornerX() + "," + chunk.getCornerY() + "," +
+			                                  chunk.getCornerZ() + ")");
+		}
+	}
+	
+	/**
+	 * A draw's instances are all of one section, found from its first instance.
+	 */
+	private static void verifyInstances(ChunkRenderer chunkRenderer, DrawCall draw, ByteBuffer storage) {
+		Chunk chunk = chunkRenderer.getChunk();
+		int size = chunkRenderer.getSectionSize();
+		
+		int first = storage.getInt(draw.baseInstance * BlockInstance.SIZE);
+		int minX = BlockInstance.getX(first) / size * size, minY = BlockInstance.getY(first) / size * size, minZ = BlockInstance.getZ(first) / size * size;
+		int rowMask = (int)((1L << size) - 1) << minX;
+		
+		int surfaceBlocks = 0;
+		for(int z = minZ; z < minZ + size; z++) {
+			for(int y = minY; y < minY + size; y++) {
+				surfaceBlocks += Integer.bitCount(chunk.getSurfaceRow(y, z) & rowMask);
+			}
+		}
+		
+		if(draw.instanceCount != surfaceBlocks) {
+			throw new IllegalStateException("Draw of " + draw.instanceCount + " instances, the section has " + surfaceBlocks + " surface blocks.");
+		}
+		
+		for(int i = 0; i < draw.instanceCount; i++) {
+			int instance = storage.getInt((draw.baseInstance + i) * BlockInstance.SIZE);
+			int x = BlockInstance.getX(instance), y = BlockInstance.getY(instance), z = BlockInstance.getZ(instance);
+			
+			if(x / size * size != minX || y / size * size != minY || z / size * size != minZ ||
+					(chunk.getSurfaceRow(y, z) >>> x & 1) == 0 ||
+					BlockInstance.getType(instance) != chunk.getType(Chunk.localToIndex(x, y, z)) ||
+					BlockInstance.getFaces(instance) != chunk.getVisibleFaces(x, y, z)) {
+				throw new IllegalStateException("Draw reads a stale instance at (" + x + "," + y + "," + z + ")");
+			}
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package com.ra4king.test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.renderers.ChunkBVH;
+import com.ra4king.fps.renderers.ChunkFrustum;
+import com.ra4king.fps.renderers.ChunkRenderer;
+import com.ra4king.fps.renderers.OcclusionBuffer;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+
+/**
+ * Checks OcclusionBuffer against reference images of random scenes of quads, made by casting a ray through every pixel
+ * corner in double precision: a pixel is covered by a quad when all 4 of its corner rays hit it. Every pixel of the
+ * buffer must lie between the reference of the quads shrunk and the reference of the quads grown by a small epsilon,
+ * and rasterizing on one thread or in parallel bands must give the same buffer.
+ *
+ * Then culls a noise world over solid ground from random cameras placed in air with the frustum and the occlusion
+ * buffer, and every chunk in the frustum that a ray passes through before hitting a solid block must be kept, see
+ * CaveCullingBenchmark. Reports the time to rasterize and test per frame.
+ * Usage: OcclusionBufferBenchmark [image directory], writes the buffer and reference of the first scene as PGM images
+ * when given
+ *
+ * @author Roi Atalla
+ */
+public class OcclusionBufferBenchmark {
+	// Chunks at most this many chunks away from the camera along every axis are occluders, as in ChunkBatchRenderer
+	private static final int OCCLUDER_DISTANCE = 2;
+	
+	private static final float FAR = 1000;
+	
+	public static void main(String[] args) throws IOException {
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		
+		OcclusionBuffer serial = new OcclusionBuffer(1);
+		OcclusionBuffer parallel = new OcclusionBuffer(threads);
+		
+		checkScenes(serial, parallel, args.length > 0 ? args[0] : null);
+		
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		
+		final int side = 6;
+		World world = new World(side, side, side);
+		for(Chunk chunk : world.getChunkManager().getChunks()) {
+			generator.generate(chunk);
+		}
+		world.getChunkManager().fillBox(BlockType.SOLID, 0, 0, 0,
+		                                side * Chunk.CHUNK_BLOCK_WIDTH, side * Chunk.CHUNK_BLOCK_HEIGHT / 2, side * Chunk.CHUNK_BLOCK_DEPTH);
+		
+		System.out.println("Noise terrain over solid ground:");
+		cullWorld(world, side, serial, parallel, threads);
+		
+		serial.shutdown();
+		parallel.shutdown();
+	}
+	
+	private static void checkScenes(OcclusionBuffer serial, OcclusionBuffer parallel, String imageDirectory) throws IOException {
+		final int scenes = 20, quadsPerScene = 40;
+		final double epsilon = 1e-3;
+		
+		Random random = new Random(1234);
+		
+		int coveredPixels = 0;
+		
+		for(int scene = 0; scene < scenes; scene++) {
+			float eyeX = random.nextFloat() * 20, eyeY = random.nextFloat() * 20, eyeZ = random.nextFloat() * 20;
+			float dirX = (float)random.nextGaussian(), dirY = (float)random.nextGaussian() * 0.5f, dirZ = (float)random.nextGaussian();
+			
+			FloatBuffer viewProjection = ChunkCullingBenchmark.viewProjection(eyeX, eyeY, eyeZ, dirX, dirY, dirZ, FAR);
+			
+			// Axis aligned quads around the view direction, the closest ones crossing the near plane
+			float[][] quads = new float[quadsPerScene][];
+			for(int q = 0; q < quadsPerScene; q++) {
+				float distance = 0.5f + random.nextFloat() * random.nextFloat() * 200;
+				float x = eyeX + (dirX + (float)random.nextGaussian() * 0.4f) * distance;
+				float y = eyeY + (dirY + (float)random.nextGaussian() * 0.4f) * distance;
+				float z = eyeZ + (dirZ + (float)random.nextGaussian() * 0.4f) * distance;
+				
+				// Axis, plane position, then min and max along the two other axes
+				int axis = random.nextInt(3);
+				float[] center = { x, y, z };
+				float sizeU = 0.5f + random.nextFloat() * 8, sizeV = 0.5f + random.nextFloat() * 8;
+				int u = (axis + 1) % 3, v = (axis + 2) % 3;
+				quads[q] = new float[] { axis, center[axis], center[u] - sizeU, center[u] + sizeU, center[v] - sizeV, center[v] + sizeV };
+			}
+			
+			for(OcclusionBuffer buffer : new OcclusionBuffer[] { serial, parallel }) {
+				buffer.begin(viewProjection);
+				for(float[] quad : quads) {
+					addQuad(buffer, quad);
+				}
+				buffer.rasterize();
+			}
+			
+			double[] inverse = invert(viewProjection);
+			double[] shrunk = referenceImage(viewProjection, inverse, quads, -epsilon);
+			double[] grown = referenceImage(viewProjection, inverse, quads, epsilon);
+			
+			for(int y = 0; y < OcclusionBuffer.HEIGHT; y++) {
+				for(int x = 0; x < OcclusionBuffer.WIDTH; x++) {
+					float depth = serial.getDepth(x, y);
+					
+					if(Float.floatToIntBits(depth) != Float.floatToIntBits(parallel.getDepth(x, y))) {
+						throw new IllegalStateException("Scene " + scene + ", pixel (" + x + "," + y + ") is " + depth + " on one thread, " +
+						                                  parallel.getDepth(x, y) + " in bands.");
+					}
+					
+					int i = y * OcclusionBuffer.WIDTH + x;
+					if(depth < grown[i] - 1e-5 || depth > shrunk[i] + 1e-5) {
+						throw new IllegalStateException("Scene " + scene + ", pixel (" + x + "," + y + ") is " + depth + ", the reference is between " +
+						                                  grown[i] + " and " + shrunk[i]);
+					}
+					
+					if(depth != Float.POSITIVE_INFINITY) {
+						coveredPixels++;
+					}
+				}
+			}
+			
+			if(scene == 0 && imageDirectory != null) {
+				writeImage(imageDirectory + "/occlusion.pgm", serial::getDepth);
+				double[] reference = referenceImage(viewProjection, inverse, quads, 0);
+				writeImage(imageDirectory + "/reference.pgm", (x, y) -> (float)reference[y * OcclusionBuffer.WIDTH + x]);
+			}
+		}
+		
+		System.out.printf("%d scenes of %d quads match the reference images, %.0f%% of pixels covered\n",
+		                  scenes, quadsPerScene, 100.0 * coveredPixels / scenes / (OcclusionBuffer.WIDTH * OcclusionBuffer.HEIGHT));
+	}
+	
+	private static void addQuad(OcclusionBuffer buffer, float[] quad) {
+		int axis = (int)quad[0];
+		float[][] corners = new float[4][3];
+		for(int c = 0; c < 4; c++) {
+			corners[c][axis] = quad[1];
+			corners[c][(axis + 1) % 3] = c == 0 || c == 3 ? quad[2] : quad[3];
+			corners[c][(axis + 2) % 3] = c < 2 ? quad[4] : quad[5];
+		}
+		
+		buffer.addQuad(corners[0][0], corners[0][1], corners[0][2], corners[1][0], corners[1][1], corners[1][2],
+		               corners[2][0], corners[2][1], corners[2][2], corners[3][0], corners[3][1], corners[3][2]);
+	}
+	
+	/**
+	 * The depth of each pixel: the closest of the quads hit by all 4 of its corner rays past the near plane, at the
+	 * farthest of the 4 hits. Each quad is grown by epsilon times its size on every side, shrunk when negative.
+	 */
+	private static double[] referenceImage(FloatBuffer viewProjection, double[] inverse, float[][] quads, double epsilon) {
+		final int width = OcclusionBuffer.WIDTH, height = OcclusionBuffer.HEIGHT;
+		
+		double[] image = new double[width * height];
+		Arrays.fill(image, Double.POSITIVE_INFINITY);
+		
+		// Depth of each pixel corner's hit of the current quad, infinity where it misses
+		double[] cornerDepths = new double[(width + 1) * (height + 1)];
+		
+		double[] near = new double[3], far = new double[3];
+		
+		for(float[] quad : quads) {
+			int axis = (int)quad[0], u = (axis + 1) % 3, v = (axis + 2) % 3;
+			double growU = epsilon * (quad[3] - quad[2]), growV = epsilon * (quad[5] - quad[4]);
+			
+			for(int y = 0; y <= height; y++) {
+				for(int x = 0; x <= width; x++) {
+					double ndcX = 2.0 * x / width - 1, ndcY = 2.0 * y / height - 1;
+					unproject(inverse, ndcX, ndcY, -1, near);
+					unproject(inverse, ndcX, ndcY, 1, far);
+					
+					// The ray from the near plane to the far plane and on past it
+					double t = (quad[1] - near[axis]) / (far[axis] - near[axis]);
+					double hitU = near[u] + t * (far[u] - near[u]), hitV = near[v] + t * (far[v] - near[v]);
+					
+					double depth = Double.POSITIVE_INFINITY;
+					if(t >= -epsilon && hitU >= quad[2] - growU && hitU <= quad[3] + growU && hitV >= quad[4] - growV && hitV <= quad[5] + growV) {
+						double[] hit = { near[0] + t * (far[0] - near[0]), near[1] + t * (far[1] - near[1]), near[2] + t * (far[2] - near[2]) };
+						depth = projectDepth(viewProjection, hit);
+					}
+					
+					cornerDepths[y * (width + 1) + x] = depth;
+				}
+			}
+			
+			for(int y = 0; y < height; y++) {
+				for(int x = 0; x < width; x++) {
+					int corner = y * (width + 1) + x;
+					double depth = Math.max(Math.max(cornerDepths[corner], cornerDepths[corner + 1]),
+					                        Math.max(cornerDepths[corner + width + 1], cornerDepths[corner + width + 2]));
+					
+					image[y * width + x] = Math.min(image[y * width + x], depth);
+				}
+			}
+		}
+		
+		return image;
+	}
+	
+	private static void unproject(double[] inverse, double x, double y, double z, double[] out) {
+		double w = inverse[3] * x + inverse[7] * y + inverse[11] * z + inverse[15];
+		for(int row = 0; row < 3; row++) {
+			out[row] = (inverse[row] * x + inverse[4 + row] * y + inverse[8 + row] * z + inverse[12 + row]) / w;
+		}
+	}
+	
+	private static double projectDepth(FloatBuffer m, double[] point) {
+		double z = m.get(2) * point[0] + m.get(6) * point[1] + m.get(10) * point[2] + m.get(14);
+		double w = m.get(3) * point[0] + m.get(7) * point[1] + m.get(11) * point[2] + m.get(15);
+		return z / w;
+	}
+	
+	/**
+	 * Gauss-Jordan elimination with partial pivoting of the column-major matrix.
+	 */
+	private static double[] invert(FloatBuffer matrix) {
+		double[][] a = new double[4][8];
+		for(int row = 0; row < 4; row++) {
+			for(int column = 0; column < 4; column++) {
+				a[row][column] = matrix.get(column * 4 + row);
+			}
+			a[row][4 + row] = 1;
+		}
+		
+		for(int column = 0; column < 4; column++) {
+			int pivot = column;
+			for(int row = column + 1; row < 4; row++) {
+				if(Math.abs(a[row][column]) > Math.abs(a[pivot][column])) {
+					pivot = row;
+				}
+			}
+			
+			double[] temp = a[column];
+			a[column] = a[pivot];
+			a[pivot] = temp;
+			
+			double scale = a[column][column];
+			for(int k = 0; k < 8; k++) {
+				a[column][k] /= scale;
+			}
+			
+			for(int row = 0; row < 4; row++) {
+				if(row != column) {
+					double factor = a[row][column];
+					for(int k = 0; k < 8; k++) {
+						a[row][k] -= factor * a[column][k];
+					}
+				}
+			}
+		}
+		
+		double[] inverse = new double[16];
+		for(int row = 0; row < 4; row++) {
+			for(int column = 0; column < 4; column++) {
+				inverse[column * 4 + row] = a[row][4 + column];
+			}
+		}
+		return inverse;
+	}
+	
+	private interface DepthImage {
+		float getDepth(int x, int y);
+	}
+	
+	/**
+	 * Writes closer pixels brighter, uncovered ones black, with the top row of the view first.
+	 */
+	private static void writeImage(String path, DepthImage image) throws IOException {
+		try(OutputStream out = new FileOutputStream(path)) {
+			out.write(("P5\n" + OcclusionBuffer.WIDTH + " " + OcclusionBuffer.HEIGHT + "\n255\n").getBytes("US-ASCII"));
+			
+			for(int y = OcclusionBuffer.HEIGHT - 1; y >= 0; y--) {
+				for(int x = 0; x < OcclusionBuffer.WIDTH; x++) {
+					float depth = image.getDepth(x, y);
+					
+					// Normalized device z bunches up near 1, spread it back out
+					out.write(depth == Float.POSITIVE_INFINITY ? 0 : (int)(255 * Math.max(0, Math.min(1, (1 - depth) * 50))));
+				}
+			}
+		}
+	}
+	
+	private static void cullWorld(World world, int side, OcclusionBuffer serial, OcclusionBuffer parallel, int threads) {
+		ChunkManager chunkManager = world.getChunkManager();
+		chunkManager.drainDirtyChunks();
+		
+		Chunk[] chunks = chunkManager.getChunks();
+		
+		ChunkRenderer[] chunkRenderers = new ChunkRenderer[chunks.length];
+		ChunkBVH bvh = new ChunkBVH();
+		for(int i = 0; i < chunks.length; i++) {
+			chunkRenderers[i] = new ChunkRenderer(chunks[i], i);
+			chunkRenderers[i].update();
+			bvh.add(i, chunks[i]);
+		}
+		bvh.build();
+		
+		final int cameras = 200, rays = 500;
+		
+		int[] slots = new int[chunks.length];
+		boolean[] kept = new boolean[chunks.length], inFrustum = new boolean[chunks.length];
+		ChunkFrustum frustum = new ChunkFrustum();
+		
+		Random random = new Random(1234);
+		int width = side * Chunk.CHUNK_BLOCK_WIDTH, height = side * Chunk.CHUNK_BLOCK_HEIGHT, depth = side * Chunk.CHUNK_BLOCK_DEPTH;
+		
+		long frustumTotal = 0, keptTotal = 0, occluderTotal = 0;
+		long serialTime = 0, parallelTime = 0, testTime = 0;
+		int cameraCount = 0;
+		
+		while(cameraCount < cameras) {
+			int bx = random.nextInt(width), by = random.nextInt(height), bz = random.nextInt(depth);
+			if(chunkManager.isSolid(bx, by, bz)) {
+				continue;
+			}
+			
+			cameraCount++;
+			
+			float cameraX = bx * Chunk.SPACING, cameraY = by * Chunk.SPACING, cameraZ = -bz * Chunk.SPACING;
+			
+			float dirX = (float)random.nextGaussian(), dirY = (float)random.nextGaussian(), dirZ = (float)random.nextGaussian();
+			float length = (float)Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+			dirX /= length;
+			dirY /= length;
+			dirZ /= length;
+			
+			FloatBuffer viewProjection = ChunkCullingBenchmark.viewProjection(cameraX, cameraY, cameraZ, dirX, dirY, dirZ, FAR);
+			frustum.setup(viewProjection);
+			
+			int count = bvh.cull(frustum, slots);
+			for(int i = 0; i < count; i++) {
+				inFrustum[slots[i]] = true;
+			}
+			
+			for(OcclusionBuffer buffer : new OcclusionBuffer[] { serial, parallel }) {
+				buffer.begin(viewProjection);
+				
+				for(int i = 0; i < count; i++) {
+					Chunk chunk = chunks[slots[i]];
+					
+					int chunkX = Math.floorDiv(bx, Chunk.CHUNK_BLOCK_WIDTH) - chunk.getCornerX() / Chunk.CHUNK_BLOCK_WIDTH;
+					int chunkY = Math.floorDiv(by, Chunk.CHUNK_BLOCK_HEIGHT) - chunk.getCornerY() / Chunk.CHUNK_BLOCK_HEIGHT;
+					int chunkZ = Math.floorDiv(bz, Chunk.CHUNK_BLOCK_DEPTH) - chunk.getCornerZ() / Chunk.CHUNK_BLOCK_DEPTH;
+					
+					if(Math.max(Math.abs(chunkX), Math.max(Math.abs(chunkY), Math.abs(chunkZ))) <= OCCLUDER_DISTANCE) {
+						buffer.addChunkOccluders(chunkRenderers[slots[i]]);
+					}
+				}
+				
+				long start = System.nanoTime();
+				buffer.rasterize();
+				long time = System.nanoTime() - start;
+				
+				if(buffer == serial) {
+					serialTime += time;
+				} else {
+					parallelTime += time;
+				}
+			}
+			
+			occluderTotal += parallel.getOccluderCount();
+			
+			long start = System.nanoTime();
+			int keptCount = 0;
+			for(int i = 0; i < count; i++) {
+				if(parallel.isChunkVisible(chunks[slots[i]])) {
+					kept[slots[i]] = true;
+					keptCount++;
+				}
+			}
+			testTime += System.nanoTime() - start;
+			
+			frustumTotal += count;
+			keptTotal += keptCount;
+			
+			for(int r = 0; r < rays; r++) {
+				// Within 35 degrees of the view direction, inside the 90 degree frustum
+				float rayX, rayY, rayZ;
+				do {
+					rayX = (float)random.nextGaussian();
+					rayY = (float)random.nextGaussian();
+					rayZ = (float)random.nextGaussian();
+					length = (float)Math.sqrt(rayX * rayX + rayY * rayY + rayZ * rayZ);
+					rayX /= length;
+					rayY /= length;
+					rayZ /= length;
+				} while(rayX * dirX + rayY * dirY + rayZ * dirZ < Math.cos(Math.toRadians(35)));
+				
+				CaveCullingBenchmark.checkRay(chunkManager, bx, by, bz, rayX, rayY, -rayZ, FAR / Chunk.SPACING, inFrustum, kept);
+			}
+			
+			for(int i = 0; i < chunks.length; i++) {
+				inFrustum[i] = false;
+				kept[i] = false;
+			}
+		}
+		
+		System.out.printf("  %d cameras, %d rays each: every chunk seen by a ray was kept\n", cameras, rays);
+		System.out.printf("  Frustum:   %.1f chunks on average\n", (double)frustumTotal / cameras);
+		System.out.printf("  Occlusion: %.1f chunks on average (%.0f%% removed), %.1f occluders\n",
+		                  (double)keptTotal / cameras, 100.0 * (frustumTotal - keptTotal) / frustumTotal, (double)occluderTotal / cameras);
+		System.out.printf("  Rasterize: %.1f us on one thread, %.1f us in bands on %d threads (%d cores), tests %.1f us per frame\n",
+		                  serialTime / 1e3 / cameras, parallelTime / 1e3 / cameras, threads, Runtime.getRuntime().availableProcessors(), testTime / 1e3 / cameras);
+	}
+}
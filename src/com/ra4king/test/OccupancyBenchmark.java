@@ -0,0 +1,148 @@
+package com.ra4king.test;
+
+import com.ra4king.fps.actors.Block;
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+
+/**
+ * Compares finding surface blocks and their solid neighbors one voxel at a time through ChunkManager.getBlock against
+ * the chunks' occupancy bitsets.
+ * Usage: OccupancyBenchmark [chunks per side], defaults to 4
+ *
+ * @author Roi Atalla
+ */
+public class OccupancyBenchmark {
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		
+		World world = new World(side, side, side);
+		ChunkManager chunkManager = world.getChunkManager();
+		
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		for(Chunk chunk : chunkManager.getChunks()) {
+			generator.generate(chunk);
+		}
+		
+		Chunk[] chunks = chunkManager.getChunks();
+		
+		System.out.printf("%d chunks (%dx%dx%d)\n", chunks.length, side, side, side);
+		
+		// The first rounds include JIT warmup
+		for(int round = 1; round <= 5; round++) {
+			long t0 = System.nanoTime();
+			int perVoxel = countSurfacePerVoxel(chunkManager, chunks);
+			long perVoxelTime = System.nanoTime() - t0;
+			
+			t0 = System.nanoTime();
+			int bitset = countSurfaceBitset(chunks);
+			long bitsetTime = System.nanoTime() - t0;
+			
+			t0 = System.nanoTime();
+			int rows = countSurfaceRows(chunks);
+			long rowsTime = System.nanoTime() - t0;
+			
+			t0 = System.nanoTime();
+			long neighbors = countNeighborsPerVoxel(chunks);
+			long neighborsTime = System.nanoTime() - t0;
+			
+			t0 = System.nanoTime();
+			long neighborMasks = countNeighborsBitset(chunks);
+			long neighborMasksTime = System.nanoTime() - t0;
+			
+			if(perVoxel != bitset || perVoxel != rows || neighbors != neighborMasks) {
+				throw new IllegalStateException("Paths disagree: " + perVoxel + " " + bitset + " " + rows + " " + neighbors + " " + neighborMasks);
+			}
+			
+			System.out.printf("Round %d: %d surface blocks, %d solid neighbors\n", round, perVoxel, neighbors);
+			System.out.printf("  Surface, getBlock:        %8.3f ms\n", perVoxelTime / 1e6);
+			System.out.printf("  Surface, isSurrounded:    %8.3f ms\n", bitsetTime / 1e6);
+			System.out.printf("  Surface, getSurfaceRow:   %8.3f ms\n", rowsTime / 1e6);
+			System.out.printf("  Neighbors, getNeighbors:  %8.3f ms\n", neighborsTime / 1e6);
+			System.out.printf("  Neighbors, bitset mask:   %8.3f ms\n", neighborMasksTime / 1e6);
+		}
+	}
+	
+	private static int countSurfacePerVoxel(ChunkManager chunkManager, Chunk[] chunks) {
+		int count = 0;
+		for(Chunk chunk : chunks) {
+			for(int i = 0; i < Chunk.TOTAL_BLOCKS; i++) {
+				int x = chunk.getCornerX() + Chunk.indexToLocalX(i);
+				int y = chunk.getCornerY() + Chunk.indexToLocalY(i);
+				int z = chunk.getCornerZ() + Chunk.indexToLocalZ(i);
+				
+				if(chunk.getType(i) != BlockType.AIR && !isSurrounded(chunkManager, x, y, z)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	// What Block.isSurrounded did before chunks had occupancy bitsets
+	private static boolean isSurrounded(ChunkManager chunkManager, int x, int y, int z) {
+		return isSolid(chunkManager.getBlock(x, y + 1, z)) &&
+				isSolid(chunkManager.getBlock(x, y - 1, z)) &&
+				isSolid(chunkManager.getBlock(x - 1, y, z)) &&
+				isSolid(chunkManager.getBlock(x + 1, y, z)) &&
+				isSolid(chunkManager.getBlock(x, y, z - 1)) &&
+				isSolid(chunkManager.getBlock(x, y, z + 1));
+	}
+	
+	private static boolean isSolid(Block block) {
+		return block != null && block.getType() != BlockType.AIR;
+	}
+	
+	private static int countSurfaceBitset(Chunk[] chunks) {
+		int count = 0;
+		for(Chunk chunk : chunks) {
+			for(int i = 0; i < Chunk.TOTAL_BLOCKS; i++) {
+				int x = Chunk.indexToLocalX(i), y = Chunk.indexToLocalY(i), z = Chunk.indexToLocalZ(i);
+				
+				if(chunk.isSolid(x, y, z) && !chunk.isSurrounded(x, y, z)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	private static int countSurfaceRows(Chunk[] chunks) {
+		int count = 0;
+		for(Chunk chunk : chunks) {
+			for(int z = 0; z < Chunk.CHUNK_BLOCK_DEPTH; z++) {
+				for(int y = 0; y < Chunk.CHUNK_BLOCK_HEIGHT; y++) {
+					count += Integer.bitCount(chunk.getSurfaceRow(y, z));
+				}
+			}
+		}
+		return count;
+	}
+	
+	private static long countNeighborsPerVoxel(Chunk[] chunks) {
+		long count = 0;
+		for(Chunk chunk : chunks) {
+			for(int i = 0; i < Chunk.TOTAL_BLOCKS; i++) {
+				Block[] neighbors = chunk.getNeighbors(chunk.getCornerX() + Chunk.indexToLocalX(i), chunk.getCornerY() + Chunk.indexToLocalY(i), chunk.getCornerZ() + Chunk.indexToLocalZ(i));
+				for(Block neighbor : neighbors) {
+					if(isSolid(neighbor)) {
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+	
+	private static long countNeighborsBitset(Chunk[] chunks) {
+		long count = 0;
+		for(Chunk chunk : chunks) {
+			for(int i = 0; i < Chunk.TOTAL_BLOCKS; i++) {
+				count += Integer.bitCount(chunk.getSolidNeighbors(Chunk.indexToLocalX(i), Chunk.indexToLocalY(i), Chunk.indexToLocalZ(i)));
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,203 @@
+package com.ra4king.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.ra4king.fps.renderers.RegionAllocator;
+
+/**
+ * Checks RegionAllocator against a byte array: random allocations, frees, resizes, reallocations, grows and
+ * defragments, with every region filled with its own pattern that must survive defragmenting. Then measures allocation
+ * throughput with chunk-like sizes.
+ * Usage: RegionAllocatorBenchmark [operations], defaults to 200000
+ *
+ * @author Roi Atalla
+ */
+public class RegionAllocatorBenchmark {
+	private static final int ALIGNMENT = 64;
+	
+	public static void main(String[] args) {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		
+		check(operations);
+		
+		System.out.println();
+		
+		benchmark(operations);
+	}
+	
+	private static void check(int operations) {
+		Random random = new Random(1234);
+		
+		RegionAllocator allocator = new RegionAllocator(1 << 20, ALIGNMENT);
+		byte[][] memory = { new byte[allocator.getCapacity()] };
+		
+		List<Integer> handles = new ArrayList<>();
+		int[] patterns = new int[0];
+		
+		int failed = 0, moved = 0, defragments = 0;
+		
+		for(int op = 0; op < operations; op++) {
+			int action = random.nextInt(100);
+			
+			// Around 500 live regions, which do not all fit in the first capacities
+			if(handles.isEmpty() || action < 45 && handles.size() < 500) {
+				int handle = allocator.allocate(randomSize(random));
+				if(handle == RegionAllocator.NONE) {
+					failed++;
+				} else {
+					handles.add(handle);
+					patterns = setPattern(patterns, handle, random.nextInt(255) + 1);
+					fill(memory[0], allocator, handle, patterns[handle]);
+				}
+			} else if(action < 80) {
+				int handle = handles.remove(random.nextInt(handles.size()));
+				allocator.free(handle);
+				patterns[handle] = 0;
+			} else if(action < 90) {
+				int index = random.nextInt(handles.size());
+				int handle = handles.get(index);
+				
+				int resized = allocator.reallocate(handle, randomSize(random));
+				if(resized == RegionAllocator.NONE) {
+					failed++;
+				} else {
+					if(resized != handle) {
+						moved++;
+						
+						handles.set(index, resized);
+						patterns = setPattern(patterns, resized, patterns[handle]);
+						patterns[handle] = 0;
+					}
+					
+					fill(memory[0], allocator, resized, patterns[resized]);
+				}
+			} else if(action < 98) {
+				int handle = handles.get(random.nextInt(handles.size()));
+				allocator.resize(handle, Math.max(1, allocator.getSize(handle) / 2));
+			} else if(action < 99) {
+				allocator.defragment((handle, from, to, size) -> System.arraycopy(memory[0], from, memory[0], to, size));
+				defragments++;
+				
+				if(allocator.getFragmentation() != 0 || allocator.getLargestFreeBlock() != allocator.getFreeBytes()) {
+					throw new IllegalStateException("Free space is not in one block after defragmenting.");
+				}
+			} else if(allocator.getCapacity() < 16 << 20) {
+				allocator.grow(allocator.getCapacity() * 2);
+				memory[0] = Arrays.copyOf(memory[0], allocator.getCapacity());
+			}
+			
+			verify(allocator, handles, patterns, memory[0]);
+		}
+		
+		System.out.printf("%d operations checked: %d live regions, %d failed for lack of room, %d moved by reallocate, %d defragments\n",
+		                  operations, handles.size(), failed, moved, defragments);
+		System.out.printf("Capacity %.1f KB, used %.1f KB, peak %.1f KB, high water %.1f KB, largest free block %.1f KB, %.0f%% fragmented\n",
+		                  allocator.getCapacity() / 1024.0, allocator.getUsedBytes() / 1024.0, allocator.getPeakUsedBytes() / 1024.0,
+		                  allocator.getHighWaterMark() / 1024.0, allocator.getLargestFreeBlock() / 1024.0, allocator.getFragmentation() * 100);
+	}
+	
+	private static int randomSize(Random random) {
+		// Mostly a few KB like the surface of a chunk, sometimes much larger
+		return random.nextInt(10) == 0 ? 1 + random.nextInt(128 << 10) : 1 + random.nextInt(8 << 10);
+	}
+	
+	private static int[] setPattern(int[] patterns, int handle, int pattern) {
+		if(handle >= patterns.length) {
+			patterns = Arrays.copyOf(patterns, Math.max(handle + 1, patterns.length * 2));
+		}
+		
+		patterns[handle] = pattern;
+		return patterns;
+	}
+	
+	private static void fill(byte[] memory, RegionAllocator allocator, int handle, int pattern) {
+		int offset = allocator.getOffset(handle);
+		Arrays.fill(memory, offset, offset + allocator.getSize(handle), (byte)pattern);
+	}
+	
+	private static void verify(RegionAllocator allocator, List<Integer> handles, int[] patterns, byte[] memory) {
+		int[][] regions = new int[handles.size()][];
+		
+		long used = 0;
+		for(int i = 0; i < handles.size(); i++) {
+			int handle = handles.get(i);
+			int offset = allocator.getOffset(handle), size = allocator.getSize(handle);
+			
+			if(offset % ALIGNMENT != 0 || size % ALIGNMENT != 0) {
+				throw new IllegalStateException("Region " + handle + " is not aligned: " + offset + ", " + size);
+			}
+			
+			regions[i] = new int[] { offset, size, handle };
+			used += size;
+		}
+		
+		if(used != allocator.getUsedBytes() || handles.size() != allocator.getAllocationCount()) {
+			throw new IllegalStateException("Used " + allocator.getUsedBytes() + " bytes in " + allocator.getAllocationCount() + " regions, expected " + used + " in " + handles.size());
+		}
+		
+		if(allocator.getFreeBytes() != allocator.getCapacity() - used || allocator.getLargestFreeBlock() > allocator.getFreeBytes()) {
+			throw new IllegalStateException("Free space does not add up.");
+		}
+		
+		Arrays.sort(regions, (a, b) -> Integer.compare(a[0], b[0]));
+		
+		int end = 0;
+		for(int[] region : regions) {
+			if(region[0] < end) {
+				throw new IllegalStateException("Region " + region[2] + " overlaps the one before it.");
+			}
+			
+			end = region[0] + region[1];
+			
+			// Checking every byte is too slow for every operation, the first and last byte catch regions that moved
+			if(memory[region[0]] != (byte)patterns[region[2]] || memory[end - 1] != (byte)patterns[region[2]]) {
+				throw new IllegalStateException("Region " + region[2] + " lost its contents.");
+			}
+		}
+		
+		if(end > allocator.getCapacity() || end > allocator.getHighWaterMark()) {
+			throw new IllegalStateException("Region ends past the capacity or the high water mark.");
+		}
+	}
+	
+	private static void benchmark(int operations) {
+		Random random = new Random(1234);
+		
+		int[] sizes = new int[operations];
+		for(int i = 0; i < sizes.length; i++) {
+			sizes[i] = randomSize(random);
+		}
+		
+		// About 1000 live regions, averaging 16 KB
+		final int live = 1024;
+		int[] handles = new int[live];
+		
+		// The first rounds include JIT warmup
+		for(int round = 1; round <= 5; round++) {
+			RegionAllocator allocator = new RegionAllocator(64 << 20, ALIGNMENT);
+			Arrays.fill(handles, RegionAllocator.NONE);
+			
+			int failed = 0;
+			
+			long t0 = System.nanoTime();
+			for(int i = 0; i < operations; i++) {
+				int index = i & (live - 1);
+				if(handles[index] != RegionAllocator.NONE) {
+					allocator.free(handles[index]);
+				}
+				
+				handles[index] = allocator.allocate(sizes[i]);
+				if(handles[index] == RegionAllocator.NONE) {
+					failed++;
+				}
+			}
+			long time = System.nanoTime() - t0;
+			
+			System.out.printf("Round %d: %d free+allocate pairs in %.3f ms, %.1f ns per pair, %d failed, %.0f%% fragmented\n",
+			                  round, operations, time / 1e6, (double)time / operations, failed, allocator.getFragmentation() * 100);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.ra4king.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+
+/**
+ * Measures save and load throughput of the region file format.
+ * Usage: RegionBenchmark [chunks per side...], defaults to 4 and 16
+ *
+ * @author Roi Atalla
+ */
+public class RegionBenchmark {
+	public static void main(String[] args) throws IOException {
+		int[] sides = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray() : new int[] { 4, 16 };
+		
+		for(int side : sides) {
+			benchmark(side);
+		}
+	}
+	
+	private static void benchmark(int side) throws IOException {
+		World world = new World(side, side, side);
+		
+		Chunk[] chunks = world.getChunkManager().getChunks();
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		
+		long t0 = System.nanoTime();
+		Arrays.stream(chunks).parallel().forEach(generator::generate);
+		System.out.printf("%d chunks (%dx%dx%d) generated in %.3f ms\n", chunks.length, side, side, side, (System.nanoTime() - t0) / 1e6);
+		
+		File directory = Files.createTempDirectory("regions").toFile();
+		
+		try {
+			final int rounds = 5;
+			
+			long bestSave = Long.MAX_VALUE;
+			for(int r = 0; r < rounds; r++) {
+				deleteRegions(directory);
+				
+				t0 = System.nanoTime();
+				world.save(directory);
+				bestSave = Math.min(bestSave, System.nanoTime() - t0);
+			}
+			
+			long fileBytes = 0;
+			for(File file : directory.listFiles()) {
+				fileBytes += file.length();
+			}
+			
+			long bestLoad = Long.MAX_VALUE;
+			for(int r = 0; r < rounds; r++) {
+				World loaded = new World(side, side, side);
+				
+				t0 = System.nanoTime();
+				int count = loaded.load(directory);
+				bestLoad = Math.min(bestLoad, System.nanoTime() - t0);
+				
+				if(count != chunks.length) {
+					throw new IllegalStateException("Loaded " + count + " chunks, expected " + chunks.length);
+				}
+				
+				if(r == 0) {
+					verify(world, loaded);
+				}
+			}
+			
+			// Throughput is reported against the uncompressed size of the blocks, one byte per block
+			long rawBytes = (long)chunks.length * Chunk.TOTAL_BLOCKS;
+			
+			System.out.printf("Region files: %.3f MB in %d files (%.1fx smaller than 1 byte/block)\n", fileBytes / 1e6, directory.listFiles().length, (double)rawBytes / fileBytes);
+			System.out.printf("Save: %8.3f ms, %8.1f MB/s, %9.1f chunks/s\n", bestSave / 1e6, rawBytes / (bestSave / 1e9) / 1e6, chunks.length / (bestSave / 1e9));
+			System.out.printf("Load: %8.3f ms, %8.1f MB/s, %9.1f chunks/s\n", bestLoad / 1e6, rawBytes / (bestLoad / 1e9) / 1e6, chunks.length / (bestLoad / 1e9));
+			System.out.println();
+		} finally {
+			deleteRegions(directory);
+			directory.delete();
+		}
+	}
+	
+	private static void verify(World expected, World actual) {
+		for(Chunk chunk : expected.getChunkManager().getChunks()) {
+			Chunk other = actual.getChunkManager().getChunkContaining(chunk.getCornerX(), chunk.getCornerY(), chunk.getCornerZ());
+			
+			for(int i = 0; i < Chunk.TOTAL_BLOCKS; i++) {
+				if(chunk.getType(i) != other.getType(i)) {
+					throw new IllegalStateException("Loaded chunk differs from the saved one.");
+				}
+			}
+		}
+	}
+	
+	private static void deleteRegions(File directory) {
+		for(File file : directory.listFiles()) {
+			file.delete();
+		}
+	}
+}
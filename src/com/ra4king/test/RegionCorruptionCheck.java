@@ -0,0 +1,156 @@
+package com.ra4king.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.RegionFile;
+import com.ra4king.fps.world.World;
+
+/**
+ * Saves a generated world, then loads it again from copies of its region file with random bytes of the chunk table or
+ * of the chunk payloads changed, and a few hand-made table corruptions: a negative length, a length past the end of
+ * the file and two chunks sharing sectors. Every load has to either succeed with consistent chunks or fail with an
+ * IOException that leaves the world untouched.
+ * Usage: RegionCorruptionCheck [trials], defaults to 2000 per kind of corruption
+ *
+ * @author Roi Atalla
+ */
+public class RegionCorruptionCheck {
+	private static final int SIDE = 2;
+	
+	// The layout RegionFile writes: a 16 byte header, then a sector offset and a length per chunk
+	private static final int TABLE_OFFSET = 16;
+	private static final int TABLE_ENTRY_SIZE = 8;
+	private static final int TABLE_END = TABLE_OFFSET + RegionFile.CHUNKS_PER_REGION * TABLE_ENTRY_SIZE;
+	private static final int FIRST_DATA_OFFSET = (TABLE_END + RegionFile.SECTOR_SIZE - 1) / RegionFile.SECTOR_SIZE * RegionFile.SECTOR_SIZE;
+	
+	private enum Expect {
+		LOAD, REJECT, EITHER
+	}
+	
+	private static int loaded, rejected, failures;
+	
+	public static void main(String[] args) throws IOException {
+		int trials = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		
+		World world = new World(SIDE, SIDE, SIDE);
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		for(Chunk chunk : world.getChunkManager().getChunks()) {
+			generator.generate(chunk);
+		}
+		
+		File directory = Files.createTempDirectory("regions").toFile();
+		
+		try {
+			world.save(directory);
+			world.close();
+			
+			File[] files = directory.listFiles();
+			if(files.length != 1)
+				throw new IllegalStateException("Expected 1 region file, found " + files.length);
+			
+			File file = files[0];
+			byte[] original = Files.readAllBytes(file.toPath());
+			
+			int[] entries = new int[SIDE * SIDE * SIDE];
+			for(int i = 0; i < entries.length; i++) {
+				entries[i] = TABLE_OFFSET + RegionFile.getIndex(i / (SIDE * SIDE), (i / SIDE) % SIDE, i % SIDE) * TABLE_ENTRY_SIZE;
+			}
+			
+			Random random = new Random(1234);
+			
+			check("original file", file, original, Expect.LOAD);
+			
+			for(int t = 0; t < trials; t++) {
+				byte[] data = original.clone();
+				for(int f = random.nextInt(3); f >= 0; f--) {
+					data[FIRST_DATA_OFFSET + random.nextInt(data.length - FIRST_DATA_OFFSET)] = (byte)random.nextInt(256);
+				}
+				check("payload bytes", file, data, Expect.EITHER);
+			}
+			
+			for(int t = 0; t < trials; t++) {
+				byte[] data = original.clone();
+				for(int f = random.nextInt(3); f >= 0; f--) {
+					// Mostly the entries of saved chunks, the others are all zero
+					int offset = random.nextInt(4) == 0 ? random.nextInt(TABLE_END) : entries[random.nextInt(entries.length)] + random.nextInt(TABLE_ENTRY_SIZE);
+					data[offset] = (byte)random.nextInt(256);
+				}
+				check("table bytes", file, data, Expect.EITHER);
+			}
+			
+			ByteBuffer data = ByteBuffer.wrap(original.clone());
+			data.putInt(entries[0] + 4, data.getInt(entries[0] + 4) ^ Integer.MIN_VALUE);
+			check("negative length", file, data.array(), Expect.REJECT);
+			
+			data = ByteBuffer.wrap(original.clone());
+			data.putInt(entries[0] + 4, Integer.MAX_VALUE - 1);
+			check("length past the end", file, data.array(), Expect.REJECT);
+			
+			data = ByteBuffer.wrap(original.clone());
+			data.putInt(entries[1], data.getInt(entries[0]));
+			check("overlapping chunks", file, data.array(), Expect.REJECT);
+			
+			System.out.printf("%d loads succeeded, %d rejected with an IOException: %s\n", loaded, rejected, failures == 0 ? "all consistent" : failures + " FAILURES");
+		} finally {
+			for(File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	private static void check(String name, File file, byte[] data, Expect expect) throws IOException {
+		Files.write(file.toPath(), data);
+		
+		World world = new World(SIDE, SIDE, SIDE);
+		
+		try {
+			world.load(file.getParentFile());
+			loaded++;
+			
+			if(expect == Expect.REJECT)
+				fail(name, "corrupt file loaded");
+			
+			for(Chunk chunk : world.getChunkManager().getChunks()) {
+				int count = 0;
+				for(int i = 0; i < Chunk.TOTAL_BLOCKS; i++) {
+					if(chunk.getType(i) != BlockType.AIR)
+						count++;
+				}
+				
+				if(count != chunk.getBlockCount()) {
+					fail(name, "chunk holds " + count + " blocks but counts " + chunk.getBlockCount());
+					break;
+				}
+			}
+		} catch(IOException exc) {
+			rejected++;
+			
+			if(expect == Expect.LOAD)
+				fail(name, exc.toString());
+			
+			for(Chunk chunk : world.getChunkManager().getChunks()) {
+				if(chunk.getBlockCount() != 0) {
+					fail(name, "failed load changed the world");
+					break;
+				}
+			}
+		} catch(RuntimeException exc) {
+			fail(name, exc.toString());
+		} finally {
+			world.close();
+		}
+	}
+	
+	private static void fail(String name, String message) {
+		if(failures++ < 10)
+			System.out.println(name + ": " + message);
+	}
+}
@@ -0,0 +1,221 @@
+package com.ra4king.test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.renderers.BlockInstance;
+import com.ra4king.fps.renderers.ChunkRenderer;
+import com.ra4king.fps.renderers.ChunkResidency;
+import com.ra4king.fps.renderers.ChunkSection;
+import com.ra4king.fps.renderers.RegionAllocator;
+import com.ra4king.fps.renderers.WorldRenderer.DrawElementsIndirectCommand;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+
+/**
+ * Runs frames of ChunkRenderers against a ChunkResidency backed by a buffer in memory instead of GL, and compares the
+ * bytes uploaded per frame against re-uploading every chunk each frame. After each frame every slot is checked to hold
+ * exactly its section's surface blocks.
+ * Usage: ResidencyBenchmark [chunks per side], defaults to 4
+ *
+ * @author Roi Atalla
+ */
+public class ResidencyBenchmark {
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		
+		World world = new World(side, side, side);
+		ChunkManager chunkManager = world.getChunkManager();
+		
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		for(Chunk chunk : chunkManager.getChunks()) {
+			generator.generate(chunk);
+		}
+		chunkManager.drainDirtyChunks();
+		
+		Chunk[] chunks = chunkManager.getChunks();
+		
+		// Starts small so that the storage has to grow and defragment
+		FakeSlotBuffer buffer = new FakeSlotBuffer(chunks.length * 1024, 4 << 20);
+		int sectionsPerChunk = ChunkRenderer.getSectionsPerChunk(ChunkRenderer.DEFAULT_SECTION_SIZE);
+		ChunkResidency residency = new ChunkResidency(buffer, chunks.length * sectionsPerChunk, ChunkSection.getDataSize(ChunkRenderer.DEFAULT_SECTION_SIZE));
+		
+		ChunkRenderer[] chunkRenderers = new ChunkRenderer[chunks.length];
+		for(int i = 0; i < chunks.length; i++) {
+			chunkRenderers[i] = new ChunkRenderer(chunks[i], i);
+		}
+		
+		System.out.printf("%d chunks (%dx%dx%d)\n", chunks.length, side, side, side);
+		
+		// Every slot is empty on the first frame
+		long firstFrameBytes = renderFrame(chunkManager, chunkRenderers, residency, buffer);
+		System.out.printf("First frame:     %9.1f KB uploaded every frame, %9.1f KB on change\n",
+		                  firstFrameBytes / 1024.0, residency.getLastFrameBytes() / 1024.0);
+		
+		Random random = new Random(1234);
+		int width = side * Chunk.CHUNK_BLOCK_WIDTH, height = side * Chunk.CHUNK_BLOCK_HEIGHT, depth = side * Chunk.CHUNK_BLOCK_DEPTH;
+		
+		for(int edits : new int[] { 0, 1, 10, 100 }) {
+			final int frames = 100;
+			
+			long everyFrameBytes = 0;
+			long totalBytes = residency.getTotalBytes();
+			int uploads = 0;
+			
+			for(int frame = 0; frame < frames; frame++) {
+				for(int e = 0; e < edits; e++) {
+					chunkManager.setBlock(random.nextBoolean() ? BlockType.AIR : BlockType.SOLID, random.nextInt(width), random.nextInt(height), random.nextInt(depth));
+				}
+				
+				everyFrameBytes += renderFrame(chunkManager, chunkRenderers, residency, buffer);
+				uploads += residency.getLastFrameUploads();
+			}
+			
+			totalBytes = residency.getTotalBytes() - totalBytes;
+			
+			System.out.printf("%3d edits/frame: %9.1f KB/frame uploaded every frame, %9.1f KB/frame on change (%.1f slots/frame)\n",
+			                  edits, everyFrameBytes / 1024.0 / frames, totalBytes / 1024.0 / frames, (double)uploads / frames);
+		}
+		
+		RegionAllocator allocator = residency.getAllocator();
+		System.out.println();
+		System.out.printf("Fixed slots:   %8.1f KB\n", chunks.length * sectionsPerChunk * ChunkSection.getDataSize(ChunkRenderer.DEFAULT_SECTION_SIZE) / 1024.0);
+		System.out.printf("Regions:       %8.1f KB capacity, %.1f KB used, %.1f KB high water, %.0f%% fragmented\n",
+		                  allocator.getCapacity() / 1024.0, allocator.getUsedBytes() / 1024.0, allocator.getHighWaterMark() / 1024.0, allocator.getFragmentation() * 100);
+		System.out.printf("               %d grows, %d defragments\n", residency.getGrowCount(), residency.getDefragmentCount());
+	}
+	
+	private static final DrawElementsIndirectCommand command = new DrawElementsIndirectCommand();
+	
+	/**
+	 * @return the bytes the frame would have uploaded before, all of every non-empty chunk
+	 */
+	private static long renderFrame(ChunkManager chunkManager, ChunkRenderer[] chunkRenderers, ChunkResidency residency, FakeSlotBuffer buffer) {
+		chunkManager.drainDirtyChunks();
+		
+		long everyFrameBytes = 0;
+		
+		for(ChunkRenderer chunkRenderer : chunkRenderers) {
+			chunkRenderer.update();
+			
+			everyFrameBytes += chunkRenderer.getLastCubeRenderCount() * BlockInstance.SIZE;
+			
+			for(int i = 0; i < chunkRenderer.getSectionCount(); i++) {
+				ChunkSection section = chunkRenderer.getSection(i);
+				
+				int instances = section.render(command, residency) ? command.instanceCount : 0;
+				verify(section, residency, buffer, instances);
+			}
+		}
+		
+		residency.endFrame();
+		
+		return everyFrameBytes;
+	}
+	
+	static void verify(ChunkSection section, ChunkResidency residency, FakeSlotBuffer buffer, int instances) {
+		Chunk chunk = section.getChunkRenderer().getChunk();
+		int offset = residency.getOffset(section.getSlot());
+		
+		int minX = section.getMinX(), minY = section.getMinY(), minZ = section.getMinZ(), size = section.getSize();
+		int rowMask = (int)((1L << size) - 1) << minX;
+		
+		int surfaceBlocks = 0;
+		for(int z = minZ; z < minZ + size; z++) {
+			for(int y = minY; y < minY + size; y++) {
+				surfaceBlocks += Integer.bitCount(chunk.getSurfaceRow(y, z) & rowMask);
+			}
+		}
+		
+		if(instances != surfaceBlocks) {
+			throw new IllegalStateException("Slot holds " + instances + " instances, the section has " + surfaceBlocks + " surface blocks.");
+		}
+		
+		for(int i = 0; i < instances; i++) {
+			int instance = buffer.resident.getInt(offset + i * BlockInstance.SIZE);
+			int x = BlockInstance.getX(instance), y = BlockInstance.getY(instance), z = BlockInstance.getZ(instance);
+			
+			if(x < minX || x >= minX + size || y < minY || y >= minY + size || z < minZ || z >= minZ + size ||
+					(chunk.getSurfaceRow(y, z) >>> x & 1) == 0 ||
+					BlockInstance.getType(instance) != chunk.getType(Chunk.localToIndex(x, y, z)) ||
+					BlockInstance.getFaces(instance) != chunk.getVisibleFaces(x, y, z)) {
+				throw new IllegalStateException("Slot holds a stale instance at (" + x + "," + y + "," + z + ")");
+			}
+		}
+	}
+	
+	/**
+	 * Stages uploads in memory and copies them into the resident buffer right away.
+	 */
+	static class FakeSlotBuffer implements ChunkResidency.SlotBuffer {
+		private ByteBuffer resident;
+		private final ByteBuffer staging;
+		private int stagingUsed;
+		private int uploadOffset, uploadSize;
+		
+		FakeSlotBuffer(int size, int stagingSize) {
+			resident = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+			staging = ByteBuffer.allocate(stagingSize).order(ByteOrder.nativeOrder());
+		}
+		
+		@Override
+		public ByteBuffer beginUpload(int size) {
+			if(stagingUsed + size > staging.capacity()) {
+				return null;
+			}
+			
+			uploadOffset = stagingUsed;
+			uploadSize = size;
+			stagingUsed += size;
+			
+			ByteBuffer view = staging.duplicate();
+			view.limit(uploadOffset + size).position(uploadOffset);
+			return view;
+		}
+		
+		@Override
+		public void endUpload(int offset) {
+			ByteBuffer source = staging.duplicate();
+			source.limit(uploadOffset + uploadSize).position(uploadOffset);
+			
+			ByteBuffer destination = resident.duplicate();
+			destination.position(offset);
+			destination.put(source);
+		}
+		
+		@Override
+		public void move(int from, int to, int size) {
+			ByteBuffer source = resident.duplicate();
+			source.limit(from + size).position(from);
+			
+			// Front to back, so an overlapping move down is safe
+			ByteBuffer destination = resident.duplicate();
+			destination.position(to);
+			for(int i = 0; i < size; i++) {
+				destination.put(source.get());
+			}
+		}
+		
+		@Override
+		public int getSize() {
+			return resident.capacity();
+		}
+		
+		@Override
+		public void resize(int size) {
+			ByteBuffer resized = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+			resident.clear();
+			resized.put(resident);
+			resident = resized;
+		}
+		
+		@Override
+		public void endFrame() {
+			stagingUsed = 0;
+		}
+	}
+}
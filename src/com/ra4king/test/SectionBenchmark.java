@@ -0,0 +1,164 @@
+package com.ra4king.test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.renderers.ChunkBatchRenderer;
+import com.ra4king.fps.renderers.ChunkFrustum;
+import com.ra4king.fps.renderers.OcclusionBuffer;
+import com.ra4king.fps.renderers.RecordingRenderDevice;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Compares drawing chunks whole against drawing them in sections of 16 and 8 blocks, through the chunk pass running
+ * against a RecordingRenderDevice. For single block edits it reports the time to bring the instances and greedy meshes
+ * up to date and the bytes uploaded, then from random cameras in the air of a noise world over solid ground the
+ * sections, cubes and triangles left after frustum culling and after occlusion culling.
+ * Usage: SectionBenchmark [chunks per side], defaults to 6
+ *
+ * @author Roi Atalla
+ */
+public class SectionBenchmark {
+	private static final float FAR = 1000;
+	
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		
+		OcclusionBuffer occlusionBuffer = new OcclusionBuffer(1);
+		
+		System.out.printf("%d chunks (%dx%dx%d)\n", side * side * side, side, side, side);
+		
+		for(int sectionSize : new int[] { Chunk.CHUNK_BLOCK_WIDTH, 16, 8 }) {
+			World world = createWorld(side);
+			
+			RecordingRenderDevice device = new RecordingRenderDevice();
+			ChunkBatchRenderer renderer = new ChunkBatchRenderer(device, world, sectionSize);
+			
+			// Connectivity is per chunk whatever the section size
+			renderer.setCaveCulling(false);
+			
+			System.out.println(sectionSize == Chunk.CHUNK_BLOCK_WIDTH ? "Whole chunks:" : "Sections of " + sectionSize + ":");
+			
+			// The same edits for every section size, different ones for cubes and meshes so the second run changes blocks
+			Random random = new Random(1234);
+			
+			for(boolean greedyMeshing : new boolean[] { false, true }) {
+				renderer.setGreedyMeshing(greedyMeshing);
+				edit(world, side, renderer, device, random, greedyMeshing ? "Greedy meshing" : "Cubes");
+			}
+			
+			renderer.setGreedyMeshing(false);
+			cull(world, side, renderer, device, occlusionBuffer);
+		}
+		
+		occlusionBuffer.shutdown();
+	}
+	
+	private static World createWorld(int side) {
+		World world = new World(side, side, side);
+		
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		for(Chunk chunk : world.getChunkManager().getChunks()) {
+			generator.generate(chunk);
+		}
+		world.getChunkManager().fillBox(BlockType.SOLID, 0, 0, 0,
+		                                side * Chunk.CHUNK_BLOCK_WIDTH, side * Chunk.CHUNK_BLOCK_HEIGHT / 2, side * Chunk.CHUNK_BLOCK_DEPTH);
+		
+		return world;
+	}
+	
+	private static void edit(World world, int side, ChunkBatchRenderer renderer, RecordingRenderDevice device, Random random, String name) {
+		ChunkManager chunkManager = world.getChunkManager();
+		
+		// Planes that were never set up, every section is inside and uploaded
+		ChunkFrustum culling = new ChunkFrustum();
+		Vector3 camera = new Vector3(0, 0, 0);
+		
+		renderer.setOcclusionCulling(false);
+		
+		// Fills every slot
+		renderer.update();
+		renderer.prepare(culling, null, camera);
+		renderer.draw();
+		
+		int width = side * Chunk.CHUNK_BLOCK_WIDTH, height = side * Chunk.CHUNK_BLOCK_HEIGHT, depth = side * Chunk.CHUNK_BLOCK_DEPTH;
+		
+		final int frames = 200;
+		
+		long updateTime = 0, copyBytes = 0;
+		int copies = 0;
+		
+		for(int frame = 0; frame < frames; frame++) {
+			chunkManager.setBlock(random.nextBoolean() ? BlockType.AIR : BlockType.SOLID, random.nextInt(width), random.nextInt(height), random.nextInt(depth));
+			
+			device.reset();
+			
+			long start = System.nanoTime();
+			renderer.update();
+			updateTime += System.nanoTime() - start;
+			
+			renderer.prepare(culling, null, camera);
+			renderer.draw();
+			
+			copies += renderer.getChunkUploadCount();
+			copyBytes += device.getCopyBytes();
+		}
+		
+		System.out.printf("  %-14s 1 edit/frame: %7.1f us update, %.1f slots and %.1f KB uploaded per frame\n",
+		                  name + ",", updateTime / 1e3 / frames, (double)copies / frames, copyBytes / 1024.0 / frames);
+	}
+	
+	private static void cull(World world, int side, ChunkBatchRenderer renderer, RecordingRenderDevice device, OcclusionBuffer occlusionBuffer) {
+		ChunkManager chunkManager = world.getChunkManager();
+		ChunkFrustum frustum = new ChunkFrustum();
+		
+		final int cameras = 200;
+		
+		Random random = new Random(1234);
+		int width = side * Chunk.CHUNK_BLOCK_WIDTH, height = side * Chunk.CHUNK_BLOCK_HEIGHT, depth = side * Chunk.CHUNK_BLOCK_DEPTH;
+		
+		long[] sections = new long[2], cubes = new long[2], triangles = new long[2];
+		int cameraCount = 0;
+		
+		while(cameraCount < cameras) {
+			int bx = random.nextInt(width), by = random.nextInt(height), bz = random.nextInt(depth);
+			if(chunkManager.isSolid(bx, by, bz)) {
+				continue;
+			}
+			
+			cameraCount++;
+			
+			Vector3 camera = new Vector3(bx * Chunk.SPACING, by * Chunk.SPACING, -bz * Chunk.SPACING);
+			
+			float dirX = (float)random.nextGaussian(), dirY = (float)random.nextGaussian(), dirZ = (float)random.nextGaussian();
+			float length = (float)Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+			
+			FloatBuffer viewProjection = ChunkCullingBenchmark.viewProjection(camera.x(), camera.y(), camera.z(), dirX / length, dirY / length, dirZ / length, FAR);
+			frustum.setup(viewProjection);
+			
+			for(int occlusion = 0; occlusion < 2; occlusion++) {
+				renderer.setOcclusionCulling(occlusion == 1);
+				occlusionBuffer.begin(viewProjection);
+				
+				device.reset();
+				renderer.prepare(frustum, occlusionBuffer, camera);
+				renderer.draw();
+				
+				sections[occlusion] += renderer.getSectionsRenderedCount();
+				cubes[occlusion] += renderer.getBlocksRenderedCount();
+				triangles[occlusion] += renderer.getTrianglesRenderedCount();
+			}
+		}
+		
+		System.out.printf("  %d cameras, drawn per frame:\n", cameras);
+		System.out.printf("    Frustum:   %6.1f sections, %8.1f cubes, %9.1f triangles\n",
+		                  (double)sections[0] / cameras, (double)cubes[0] / cameras, (double)triangles[0] / cameras);
+		System.out.printf("    Occlusion: %6.1f sections, %8.1f cubes, %9.1f triangles\n",
+		                  (double)sections[1] / cameras, (double)cubes[1] / cameras, (double)triangles[1] / cameras);
+	}
+}
@@ -0,0 +1,272 @@
+package com.ra4king.test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.ChunkManager.BlockVisitor;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector3;
+
+import net.indiespot.struct.cp.Struct;
+
+/**
+ * Compares the ChunkManager queries against the scans getBlocks and getBlock(Vector3, float) did before them, a cube of
+ * isSolid lookups around the rounded center with a Vector3 per solid block, on a generated world. Block views are left
+ * out on both sides. Reports the time and bytes allocated per query, and checks that both find the same blocks.
+ * Usage: SpatialQueryBenchmark [queries], defaults to 200000
+ *
+ * @author Roi Atalla
+ */
+public class SpatialQueryBenchmark {
+	private static final int WORLD_CHUNKS = 4;
+	
+	private static com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+	
+	private static int[] legacyBuffer = new int[1024 * 3];
+	
+	public static void main(String[] args) {
+		int queries = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		
+		World world = new World(WORLD_CHUNKS, WORLD_CHUNKS, WORLD_CHUNKS);
+		ChunkManager chunkManager = world.getChunkManager();
+		
+		NoiseChunkGenerator generator = new NoiseChunkGenerator(1234);
+		for(Chunk chunk : chunkManager.getChunks()) {
+			generator.generate(chunk);
+		}
+		
+		final float width = WORLD_CHUNKS * Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING;
+		
+		Random random = new Random(1234);
+		float[] points = new float[queries * 3];
+		for(int i = 0; i < queries * 3; i += 3) {
+			points[i] = random.nextFloat() * width;
+			points[i + 1] = random.nextFloat() * width;
+			points[i + 2] = -random.nextFloat() * width;
+		}
+		
+		checkSameBlocks(chunkManager, points, Math.min(queries, 20000));
+		
+		int[] result = new int[1024 * 3];
+		int[] counter = new int[1];
+		BlockVisitor countingVisitor = (x, y, z) -> {
+			counter[0]++;
+			return true;
+		};
+		
+		System.out.printf("%d queries\n", queries);
+		
+		// The first round includes JIT warmup
+		for(int round = 0; round < 2; round++) {
+			boolean print = round == 1;
+			
+			for(float radius : new float[] { 0.5f, 5, 10 }) {
+				final float distance = Chunk.BLOCK_SIZE * 0.5f + radius;
+				
+				run(print, String.format("radius %4.1f sphere, old scan       ", radius), queries, i ->
+						legacyGetBlocks(chunkManager, points[i], points[i + 1], points[i + 2], radius));
+				run(print, String.format("radius %4.1f sphere, getSolidInSphere", radius), queries, i ->
+						chunkManager.getSolidInSphere(points[i], points[i + 1], points[i + 2], distance, result));
+				run(print, String.format("radius %4.1f sphere, visitor         ", radius), queries, i ->
+						chunkManager.forEachSolidInSphere(points[i], points[i + 1], points[i + 2], distance, countingVisitor));
+				run(print, String.format("radius %4.1f nearest, old scan      ", radius), queries, i ->
+						legacyGetBlock(chunkManager, points[i], points[i + 1], points[i + 2], radius, result) ? 1 : 0);
+				run(print, String.format("radius %4.1f nearest, findNearest   ", radius), queries, i ->
+						chunkManager.findNearestSolid(points[i], points[i + 1], points[i + 2], distance, result) ? 1 : 0);
+			}
+			
+			for(int side : new int[] { 4, 16, 64 }) {
+				run(print, String.format("%2d^3 box count, isSolid loop      ", side), queries / 10, i ->
+						legacyCount(chunkManager, toBlock(points[i]), toBlock(points[i + 1]), toBlock(-points[i + 2]), side));
+				run(print, String.format("%2d^3 box count, countSolidInBox   ", side), queries / 10, i -> {
+					int x = toBlock(points[i]), y = toBlock(points[i + 1]), z = toBlock(-points[i + 2]);
+					return chunkManager.countSolidInBox(x, y, z, x + side, y + side, z + side);
+				});
+			}
+		}
+		
+		world.close();
+	}
+	
+	private interface Query {
+		int run(int pointIndex);
+	}
+	
+	private static void run(boolean print, String name, int queries, Query query) {
+		long threadId = Thread.currentThread().getId();
+		
+		long sum = 0;
+		
+		long allocated = threadBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		
+		for(int i = 0; i < queries; i++) {
+			sum += query.run(i * 3);
+		}
+		
+		long time = System.nanoTime() - start;
+		allocated = threadBean.getThreadAllocatedBytes(threadId) - allocated;
+		
+		if(print) {
+			System.out.printf("%s: %7.1f ns, %6.1f bytes allocated per query, %.2f blocks found per query\n",
+			                  name, (double)time / queries, (double)allocated / queries, (double)sum / queries);
+		}
+	}
+	
+	private static void checkSameBlocks(ChunkManager chunkManager, float[] points, int queries) {
+		int[] result = new int[1024 * 3];
+		int[] nearest = new int[3], legacyNearest = new int[3];
+		int mismatches = 0;
+		
+		for(float radius : new float[] { 0.5f, 5, 10 }) {
+			final float distance = Chunk.BLOCK_SIZE * 0.5f + radius;
+			
+			for(int i = 0; i < queries * 3; i += 3) {
+				int legacySize = legacyGetBlocks(chunkManager, points[i], points[i + 1], points[i + 2], radius);
+				int size = chunkManager.getSolidInSphere(points[i], points[i + 1], points[i + 2], distance, result);
+				
+				if(!Arrays.equals(sortedTriples(legacyBuffer, legacySize), sortedTriples(result, size))) {
+					mismatches++;
+				}
+				
+				boolean legacyFound = legacyGetBlock(chunkManager, points[i], points[i + 1], points[i + 2], radius, legacyNearest);
+				boolean found = chunkManager.findNearestSolid(points[i], points[i + 1], points[i + 2], distance, nearest);
+				
+				if(legacyFound != found || found && !Arrays.equals(legacyNearest, nearest)) {
+					mismatches++;
+				}
+			}
+		}
+		
+		Random random = new Random(1234);
+		for(int i = 0; i < queries / 10; i++) {
+			int x = random.nextInt(200) - 36, y = random.nextInt(200) - 36, z = random.nextInt(200) - 36;
+			int side = 1 + random.nextInt(70);
+			
+			if(legacyCount(chunkManager, x, y, z, side) != chunkManager.countSolidInBox(x, y, z, x + side, y + side, z + side)) {
+				mismatches++;
+			}
+		}
+		
+		System.out.printf("%d spheres, %d nearest blocks and %d boxes checked against the old scans: %s\n", queries * 3, queries * 3, queries / 10,
+		                  mismatches == 0 ? "same blocks" : mismatches + " DIFFERENT");
+	}
+	
+	private static long[] sortedTriples(int[] positions, int size) {
+		long[] packed = new long[size];
+		for(int i = 0; i < size; i++) {
+			packed[i] = ((long)(positions[i * 3] & 0x1FFFFF) << 42) | ((long)(positions[i * 3 + 1] & 0x1FFFFF) << 21) | (positions[i * 3 + 2] & 0x1FFFFF);
+		}
+		Arrays.sort(packed);
+		return packed;
+	}
+	
+	/**
+	 * The scan ChunkManager.getBlocks did, storing positions in legacyBuffer instead of copying Block views. The result
+	 * array stands in for the Struct.nullArray it returned.
+	 */
+	private static int legacyGetBlocks(ChunkManager chunkManager, float x, float y, float z, float radius) {
+		Vector3 v = new Vector3(x, y, z);
+		
+		int px = Math.round(v.x() / Chunk.SPACING);
+		int py = Math.round(v.y() / Chunk.SPACING);
+		int pz = Math.round(-v.z() / Chunk.SPACING);
+		
+		final int count = (int)Math.ceil(radius / Chunk.SPACING);
+		
+		float distSqr = Chunk.BLOCK_SIZE * 0.5f + radius;
+		distSqr *= distSqr;
+		
+		int size = 0;
+		
+		for(int a = -count; a <= count; a++) {
+			for(int b = -count; b <= count; b++) {
+				for(int c = -count; c <= count; c++) {
+					if(!chunkManager.isSolid(px + a, py + b, pz + c))
+						continue;
+					
+					float lenSqr = new Vector3(px + a, py + b, -(pz + c)).mult(Chunk.SPACING).sub(v).lengthSquared();
+					
+					if(lenSqr <= distSqr) {
+						if(size * 3 >= legacyBuffer.length) {
+							legacyBuffer = Arrays.copyOf(legacyBuffer, legacyBuffer.length * 2);
+						}
+						
+						legacyBuffer[size * 3] = px + a;
+						legacyBuffer[size * 3 + 1] = py + b;
+						legacyBuffer[size * 3 + 2] = pz + c;
+						size++;
+					}
+				}
+			}
+		}
+		
+		Object[] result = Struct.nullArray(Object.class, size);
+		return result.length;
+	}
+	
+	/**
+	 * The scan ChunkManager.getBlock(Vector3, float) did, storing the position in result instead of returning a view.
+	 */
+	private static boolean legacyGetBlock(ChunkManager chunkManager, float x, float y, float z, float radius, int[] result) {
+		Vector3 v = new Vector3(x, y, z);
+		
+		int px = Math.round(v.x() / Chunk.SPACING);
+		int py = Math.round(v.y() / Chunk.SPACING);
+		int pz = Math.round(-v.z() / Chunk.SPACING);
+		
+		float lowestDistance = Float.MAX_VALUE;
+		int closestX = 0, closestY = 0, closestZ = 0;
+		
+		final int count = (int)Math.ceil(radius / Chunk.SPACING);
+		
+		for(int a = -count; a <= count; a++) {
+			for(int b = -count; b <= count; b++) {
+				for(int c = -count; c <= count; c++) {
+					if(!chunkManager.isSolid(px + a, py + b, pz + c))
+						continue;
+					
+					float len = new Vector3(px + a, py + b, -(pz + c)).mult(Chunk.SPACING).sub(v).lengthSquared();
+					
+					if(len < lowestDistance) {
+						lowestDistance = len;
+						closestX = px + a;
+						closestY = py + b;
+						closestZ = pz + c;
+					}
+				}
+			}
+		}
+		
+		final float d = Chunk.BLOCK_SIZE * 0.5f + radius;
+		
+		if(lowestDistance > d * d)
+			return false;
+		
+		result[0] = closestX;
+		result[1] = closestY;
+		result[2] = closestZ;
+		return true;
+	}
+	
+	private static int legacyCount(ChunkManager chunkManager, int x0, int y0, int z0, int side) {
+		int count = 0;
+		for(int z = z0; z < z0 + side; z++) {
+			for(int y = y0; y < y0 + side; y++) {
+				for(int x = x0; x < x0 + side; x++) {
+					if(chunkManager.isSolid(x, y, z))
+						count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	private static int toBlock(float coordinate) {
+		return (int)Math.floor(coordinate / Chunk.SPACING + 0.5f);
+	}
+}
@@ -0,0 +1,63 @@
+package com.ra4king.test;
+
+import com.ra4king.fps.StructTracker;
+import com.ra4king.fps.actors.Bullet;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkStreamer;
+import com.ra4king.fps.world.NoiseChunkGenerator;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Streams chunks around a camera flying in a straight line while firing blasts, with struct tracking on, and checks
+ * that the off-heap bytes held by chunks follow the loaded chunk count instead of growing, and that closing the World
+ * frees everything.
+ * Usage: StructLeakCheck [frames], defaults to 1000
+ *
+ * @author Roi Atalla
+ */
+public class StructLeakCheck {
+	public static void main(String[] args) throws Exception {
+		System.setProperty("fps.trackStructs", "true");
+		
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		
+		final int radius = 2, side = 2 * radius + 1;
+		
+		World world = new World(0, 0, 0, true);
+		world.enableStreaming(new NoiseChunkGenerator(1234), radius, side * side * side, 64L << 20, 1);
+		
+		ChunkStreamer streamer = world.getChunkStreamer();
+		
+		Vector3 camera = new Vector3();
+		long maxChunkBytes = 0;
+		
+		for(int frame = 0; frame < frames; frame++) {
+			// One chunk every 100 frames
+			camera.x(camera.x() + Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING / 100);
+			
+			streamer.update(camera);
+			
+			if(frame % 10 == 0) {
+				world.addBullet(new Bullet(camera, new Vector3(0, -200, 0), 10, 100));
+			}
+			world.getBulletManager().update(16_000_000L);
+			
+			maxChunkBytes = Math.max(maxChunkBytes, StructTracker.getLiveBytes(Chunk.class));
+			
+			Thread.sleep(5);
+		}
+		
+		// Chunks still being generated hold their structs too
+		int held = world.getChunkManager().getChunks().length + streamer.getQueueDepth() + streamer.getFinishedCount();
+		System.out.printf("%d chunks loaded, %d unloaded, %d discarded, %d being generated\n", world.getChunkManager().getChunks().length,
+		                  streamer.getUnloadedCount(), streamer.getDiscardedCount(), streamer.getQueueDepth() + streamer.getFinishedCount());
+		System.out.printf("Chunk structs: %d bytes held, at most %d bytes, %d bytes per chunk held\n",
+		                  StructTracker.getLiveBytes(Chunk.class), maxChunkBytes, held == 0 ? 0 : StructTracker.getLiveBytes(Chunk.class) / held);
+		
+		world.close();
+		
+		long leaked = StructTracker.getTotalLiveBytes();
+		System.out.println(leaked == 0 ? "All struct memory freed after close" : "Leaked " + leaked + " bytes after close");
+	}
+}
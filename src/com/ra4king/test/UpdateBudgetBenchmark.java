@@ -0,0 +1,138 @@
+package com.ra4king.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.renderers.ChunkBatchRenderer;
+import com.ra4king.fps.renderers.ChunkFrustum;
+import com.ra4king.fps.renderers.ChunkRenderer;
+import com.ra4king.fps.renderers.RecordingRenderDevice;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Runs frames of the chunk pass against a RecordingRenderDevice, with greedy meshing, right after every chunk is
+ * regenerated at once (the G key) and during a burst of blasts, once updating every changed chunk each frame and once
+ * with the default update budget. Reports the frame time percentiles over the frames until every chunk is up to date,
+ * and how many frames the chunks around the camera and all chunks took to be up to date.
+ * Usage: UpdateBudgetBenchmark [chunks per side], defaults to 6
+ *
+ * @author Roi Atalla
+ */
+public class UpdateBudgetBenchmark {
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		
+		System.out.printf("%d chunks (%dx%dx%d)\n", side * side * side, side, side, side);
+		
+		for(float budget : new float[] { 0, ChunkBatchRenderer.DEFAULT_UPDATE_BUDGET }) {
+			System.out.println(budget > 0 ? String.format("%.1f ms budget:", budget) : "No budget:");
+			
+			World world = new World(side, side, side);
+			world.generateRandomBlocks();
+			
+			RecordingRenderDevice device = new RecordingRenderDevice();
+			ChunkBatchRenderer renderer = new ChunkBatchRenderer(device, world);
+			renderer.setGreedyMeshing(true);
+			
+			// Planes that were never set up and no culling by terrain, every chunk is visible
+			ChunkFrustum culling = new ChunkFrustum();
+			renderer.setCaveCulling(false);
+			renderer.setOcclusionCulling(false);
+			
+			// In the middle of the world
+			float center = side * Chunk.CHUNK_BLOCK_WIDTH * Chunk.SPACING * 0.5f;
+			Vector3 camera = new Vector3(center, center, -center);
+			
+			// Everything up to date before measuring
+			renderer.update();
+			renderFrame(renderer, culling, camera, device);
+			renderer.setUpdateBudget(budget);
+			
+			world.clearAll();
+			world.generateRandomBlocks();
+			run("Regenerate all", world, renderer, culling, camera, device, null);
+			
+			run("Blasts", world, renderer, culling, camera, device, new Random(1234));
+		}
+	}
+	
+	/**
+	 * Renders frames until no chunk waits for an update.
+	 *
+	 * @param random if not null, 10 blasts are made every frame for the first 30 frames
+	 */
+	private static void run(String name, World world, ChunkBatchRenderer renderer, ChunkFrustum culling, Vector3 camera, RecordingRenderDevice device, Random random) {
+		ChunkManager chunkManager = world.getChunkManager();
+		int width = chunkManager.CHUNKS_SIDE_X * Chunk.CHUNK_BLOCK_WIDTH;
+		int height = chunkManager.CHUNKS_SIDE_Y * Chunk.CHUNK_BLOCK_HEIGHT;
+		int depth = chunkManager.CHUNKS_SIDE_Z * Chunk.CHUNK_BLOCK_DEPTH;
+		
+		final int blastFrames = 30, blastsPerFrame = 10, blastRadius = 4;
+		
+		long[] frameTimes = new long[4096];
+		int frames = 0, nearFrames = -1;
+		
+		do {
+			if(random != null && frames < blastFrames) {
+				for(int i = 0; i < blastsPerFrame; i++) {
+					int x = random.nextInt(width), y = random.nextInt(height), z = random.nextInt(depth);
+					chunkManager.fillBox(BlockType.AIR, Math.max(x - blastRadius, 0), Math.max(y - blastRadius, 0), Math.max(z - blastRadius, 0),
+					                     Math.min(x + blastRadius, width), Math.min(y + blastRadius, height), Math.min(z + blastRadius, depth));
+				}
+			}
+			
+			frameTimes[frames++] = renderFrame(renderer, culling, camera, device);
+			
+			if(nearFrames == -1 && isNearUpToDate(chunkManager, camera)) {
+				nearFrames = frames;
+			}
+		} while((renderer.getUpdatesPendingCount() > 0 || (random != null && frames < blastFrames)) && frames < frameTimes.length);
+		
+		Arrays.sort(frameTimes, 0, frames);
+		
+		System.out.printf("  %-15s %4d frames: %6.2f ms p50, %6.2f ms p99, %6.2f ms max, around the camera up to date after %d frames\n",
+		                  name + ",", frames, frameTimes[frames / 2] / 1e6, frameTimes[Math.min(frames - 1, frames * 99 / 100)] / 1e6, frameTimes[frames - 1] / 1e6, nearFrames);
+	}
+	
+	/**
+	 * @return the nanoseconds spent updating, preparing and drawing
+	 */
+	private static long renderFrame(ChunkBatchRenderer renderer, ChunkFrustum culling, Vector3 camera, RecordingRenderDevice device) {
+		device.reset();
+		
+		long start = System.nanoTime();
+		
+		renderer.update(camera);
+		renderer.prepare(culling, null, camera);
+		renderer.draw();
+		
+		return System.nanoTime() - start;
+	}
+	
+	/**
+	 * True if the chunk holding the camera and its neighbors have no changes waiting.
+	 */
+	private static boolean isNearUpToDate(ChunkManager chunkManager, Vector3 camera) {
+		int cx = Math.floorDiv(Math.round(camera.x() / Chunk.SPACING), Chunk.CHUNK_BLOCK_WIDTH);
+		int cy = Math.floorDiv(Math.round(camera.y() / Chunk.SPACING), Chunk.CHUNK_BLOCK_HEIGHT);
+		int cz = Math.floorDiv(Math.round(-camera.z() / Chunk.SPACING), Chunk.CHUNK_BLOCK_DEPTH);
+		
+		for(int z = cz - 1; z <= cz + 1; z++) {
+			for(int y = cy - 1; y <= cy + 1; y++) {
+				for(int x = cx - 1; x <= cx + 1; x++) {
+					Chunk chunk = chunkManager.getChunk(x, y, z);
+					
+					if(chunk != null && ((ChunkRenderer)chunk.getCallback()).needsUpdate()) {
+						return false;
+					}
+				}
+			}
+		}
+		
+		return true;
+	}
+}
@@ -0,0 +1,172 @@
+package com.ra4king.test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import com.ra4king.fps.actors.Block.BlockType;
+import com.ra4king.fps.actors.Bullet;
+import com.ra4king.fps.world.BulletManager;
+import com.ra4king.fps.world.Chunk;
+import com.ra4king.fps.world.ChunkManager;
+import com.ra4king.fps.world.VoxelTraversal;
+import com.ra4king.fps.world.World;
+import com.ra4king.opengl.util.math.Vector3;
+
+/**
+ * Checks VoxelTraversal on random segments: it starts in the block holding the start and ends in the block holding the
+ * end, each step moves to a block sharing a face, the entry fractions never decrease, and every block found by densely
+ * sampling the segment is visited. Then fires fast bullets at a wall one block thick with long frames and checks that
+ * each one stops in or destroys the wall instead of passing through.
+ * Usage: VoxelTraversalCheck [segments], defaults to 100000
+ *
+ * @author Roi Atalla
+ */
+public class VoxelTraversalCheck {
+	public static void main(String[] args) {
+		int segments = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		
+		checkSegments(segments);
+		checkWall();
+	}
+	
+	private static void checkSegments(int segments) {
+		Random random = new Random(1234);
+		VoxelTraversal traversal = new VoxelTraversal();
+		HashSet<Long> visited = new HashSet<>();
+		
+		final float range = 40 * Chunk.SPACING;
+		
+		int failures = 0;
+		long blocks = 0;
+		
+		for(int s = 0; s < segments; s++) {
+			float x0 = (random.nextFloat() * 2 - 1) * range, y0 = (random.nextFloat() * 2 - 1) * range, z0 = (random.nextFloat() * 2 - 1) * range;
+			float x1 = x0, y1 = y0, z1 = z0;
+			
+			// Some segments along an axis, or not moving at all
+			switch(s % 8) {
+				case 0:
+					break;
+				case 1:
+					x1 += (random.nextFloat() * 2 - 1) * range;
+					break;
+				case 2:
+					z1 += (random.nextFloat() * 2 - 1) * range;
+					break;
+				default:
+					x1 += (random.nextFloat() * 2 - 1) * range;
+					y1 += (random.nextFloat() * 2 - 1) * range;
+					z1 += (random.nextFloat() * 2 - 1) * range;
+			}
+			
+			visited.clear();
+			traversal.start(x0, y0, z0, x1, y1, z1);
+			
+			String error = null;
+			int count = 0;
+			int lastX = 0, lastY = 0, lastZ = 0;
+			float lastT = 0;
+			
+			while(traversal.next()) {
+				int x = traversal.getX(), y = traversal.getY(), z = traversal.getZ();
+				
+				if(count == 0) {
+					if(x != toBlock(x0) || y != toBlock(y0) || z != toBlock(-z0)) {
+						error = "does not start in the start block";
+					}
+				} else if(Math.abs(x - lastX) + Math.abs(y - lastY) + Math.abs(z - lastZ) != 1) {
+					error = "steps to a block not sharing a face";
+				}
+				
+				if(traversal.getT() < lastT || traversal.getT() > 1) {
+					error = "entry fraction out of order";
+				}
+				
+				visited.add(pack(x, y, z));
+				
+				lastX = x;
+				lastY = y;
+				lastZ = z;
+				lastT = traversal.getT();
+				count++;
+			}
+			
+			if(lastX != toBlock(x1) || lastY != toBlock(y1) || lastZ != toBlock(-z1)) {
+				error = "does not end in the end block";
+			}
+			
+			for(int i = 0; i <= 1000 && error == null; i++) {
+				float t = i / 1000f;
+				if(!visited.contains(pack(toBlock(x0 + (x1 - x0) * t), toBlock(y0 + (y1 - y0) * t), toBlock(-(z0 + (z1 - z0) * t))))) {
+					error = "misses a block on the segment";
+				}
+			}
+			
+			if(error != null) {
+				if(failures++ < 10) {
+					System.out.printf("FAIL (%f, %f, %f) -> (%f, %f, %f): %s\n", x0, y0, z0, x1, y1, z1, error);
+				}
+			}
+			
+			blocks += count;
+		}
+		
+		System.out.printf("%d segments, %d blocks visited: %s\n", segments, blocks, failures == 0 ? "ok" : failures + " failed");
+	}
+	
+	private static void checkWall() {
+		World world = new World(2, 1, 1);
+		ChunkManager chunkManager = world.getChunkManager();
+		BulletManager bulletManager = world.getBulletManager();
+		
+		final int wallX = Chunk.CHUNK_BLOCK_WIDTH;
+		chunkManager.fillBox(BlockType.SOLID, wallX, 0, 0, wallX + 1, Chunk.CHUNK_BLOCK_HEIGHT, Chunk.CHUNK_BLOCK_DEPTH);
+		
+		Random random = new Random(1234);
+		
+		for(long frameTime : new long[] { 8_000_000L, 16_000_000L, 33_000_000L, 50_000_000L }) {
+			final int bulletCount = 200;
+			
+			int blocksBefore = bulletManager.getBlocksDestroyedCount();
+			
+			// Each bullet at a different wall block, away from the edges so only the wall is hit
+			int[] wallBlocks = new int[(Chunk.CHUNK_BLOCK_HEIGHT - 8) * (Chunk.CHUNK_BLOCK_DEPTH - 8)];
+			for(int i = 0; i < wallBlocks.length; i++) {
+				wallBlocks[i] = i;
+			}
+			
+			for(int i = 0; i < bulletCount; i++) {
+				int j = i + random.nextInt(wallBlocks.length - i);
+				int block = wallBlocks[j];
+				wallBlocks[j] = wallBlocks[i];
+				
+				// Anywhere within the block's cross section
+				float y = (4 + block % (Chunk.CHUNK_BLOCK_HEIGHT - 8) + random.nextFloat() * 0.98f - 0.49f) * Chunk.SPACING;
+				float z = -(4 + block / (Chunk.CHUNK_BLOCK_HEIGHT - 8) + random.nextFloat() * 0.98f - 0.49f) * Chunk.SPACING;
+				
+				bulletManager.addBullet(new Bullet(new Vector3((wallX - 10 - random.nextFloat() * 5) * Chunk.SPACING, y, z), new Vector3(500, 0, 0), 1, 60));
+			}
+			
+			for(int frame = 0; frame < 100 && bulletManager.getBulletCount() > 0; frame++) {
+				bulletManager.update(frameTime);
+			}
+			
+			bulletManager.clear();
+			
+			int destroyed = bulletManager.getBlocksDestroyedCount() - blocksBefore;
+			
+			System.out.printf("%d ms frames: %d bullets fired at a wall 1 block thick, %d wall blocks destroyed: %s\n",
+			                  frameTime / 1_000_000, bulletCount, destroyed, destroyed == bulletCount ? "ok" : "FAIL");
+			
+			chunkManager.fillBox(BlockType.SOLID, wallX, 0, 0, wallX + 1, Chunk.CHUNK_BLOCK_HEIGHT, Chunk.CHUNK_BLOCK_DEPTH);
+		}
+	}
+	
+	private static int toBlock(float coordinate) {
+		return (int)Math.floor(coordinate / Chunk.SPACING + 0.5f);
+	}
+	
+	private static long pack(int x, int y, int z) {
+		return ((long)(x & 0x1FFFFF) << 42) | ((long)(y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+	}
+}
@@ -4,8 +4,8 @@ layout(location = 0) in vec3 position;
 layout(location = 1) in vec3 normal;
 layout(location = 2) in vec2 tex;
 
-layout(location = 3) in vec3 cubePos; // XYZ: index
-layout(location = 4) in uint cubeType;
+layout(location = 3) in ivec3 chunkCorner;
+layout(location = 4) in uint cube; // XYZ in the chunk: 5 bits each, visible faces: 6 bits, type: 11 bits
 
 out vec3 cameraSpacePosition;
 out vec3 norm;
@@ -18,7 +18,20 @@ uniform float cubeSize;
 
 uniform vec4 clipPlane;
 
+// Face bit of each of the cube's faces, in the order of its vertices: front (-Z), back (+Z), top, bottom, right, left
+const uint faceBits[6] = uint[](16u, 32u, 8u, 4u, 2u, 1u);
+
 void main() {
+	// Hidden faces collapse to a point so their triangles are not rasterized. gl_VertexID includes the baseVertex
+	// selecting this chunk's copy of the cube.
+	if(((cube >> 15) & faceBits[(gl_VertexID % 24) / 4]) == 0u) {
+		gl_Position = vec4(0.0, 0.0, 0.0, 1.0);
+		gl_ClipDistance[0] = -1.0;
+		return;
+	}
+	
+	vec3 cubePos = vec3(chunkCorner + ivec3(cube & 31u, (cube >> 5) & 31u, (cube >> 10) & 31u));
+	
 	vec4 worldPosition = vec4(cubeSize * (vec3(cubePos.xy, -cubePos.z) + position), 1);
 	
 	vec4 cameraPos = viewMatrix * worldPosition;
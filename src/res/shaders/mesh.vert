@@ -0,0 +1,42 @@
+#version 440
+
+layout(location = 0) in uint vertex; // XYZ: 6 bits each, face: 3 bits, type: 11 bits
+layout(location = 1) in ivec3 chunkCorner;
+
+out vec3 cameraSpacePosition;
+out vec3 norm;
+out vec2 texCoord;
+
+uniform mat4 projectionMatrix, viewMatrix;
+uniform mat3 normalMatrix;
+
+uniform float cubeSize;
+
+uniform vec4 clipPlane;
+
+// Indexed by face: -X, +X, -Y, +Y, -Z, +Z in block positions, Z is flipped in world space
+const vec3 normals[6] = vec3[](vec3(-1, 0, 0), vec3(1, 0, 0), vec3(0, -1, 0), vec3(0, 1, 0), vec3(0, 0, 1), vec3(0, 0, -1));
+
+// Block position axes the texture's s and t follow on each face, the same orientation as the cube's faces
+const vec3 texS[6] = vec3[](vec3(0, 0, -1), vec3(0, 0, 1), vec3(1, 0, 0), vec3(1, 0, 0), vec3(1, 0, 0), vec3(-1, 0, 0));
+const vec3 texT[6] = vec3[](vec3(0, 1, 0), vec3(0, 1, 0), vec3(0, 0, -1), vec3(0, 0, 1), vec3(0, 1, 0), vec3(0, 1, 0));
+
+void main() {
+	vec3 corner = vec3(vertex & 63u, (vertex >> 6) & 63u, (vertex >> 12) & 63u);
+	uint face = (vertex >> 18) & 7u;
+	
+	vec3 blockPos = vec3(chunkCorner) + corner;
+	vec4 worldPosition = vec4(cubeSize * vec3(blockPos.xy, -blockPos.z), 1);
+	
+	vec4 cameraPos = viewMatrix * worldPosition;
+	
+	cameraSpacePosition = vec3(cameraPos);
+	gl_Position = projectionMatrix * cameraPos;
+	
+	norm = normalMatrix * normals[face];
+	
+	// Merged quads span several blocks, the fragment shader repeats the texture once per block
+	texCoord = vec2(dot(texS[face], corner), dot(texT[face], corner));
+	
+	gl_ClipDistance[0] = dot(clipPlane.xyz, worldPosition.xyz) + clipPlane.w;
+}